@@ -3,4 +3,6 @@ module matrix.application.api {
     exports io.github.ma1uta.matrix.application.model;
 
     requires transitive matrix.common.api;
+
+    provides io.github.ma1uta.matrix.json.JsonCodecProvider with io.github.ma1uta.matrix.application.api.ApplicationJsonCodecs;
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import io.github.ma1uta.matrix.client.model.filter.EventFilter;
+import io.github.ma1uta.matrix.client.model.filter.RoomEventFilter;
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomEvent;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+import io.github.ma1uta.matrix.event.content.RoomAvatarContent;
+import io.github.ma1uta.matrix.event.content.StickerContent;
+import io.github.ma1uta.matrix.event.message.Audio;
+import io.github.ma1uta.matrix.event.message.File;
+import io.github.ma1uta.matrix.event.message.Image;
+import io.github.ma1uta.matrix.event.message.Video;
+import io.github.ma1uta.matrix.json.LazyEvent;
+import io.github.ma1uta.matrix.json.Passthrough;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.json.JsonString;
+
+/**
+ * Immutable predicate compiled from the {@link EventFilter} or the {@link RoomEventFilter}.
+ * <br>
+ * The conditions are checked in the order of their selectivity: the short include lists first, then the exclude lists and
+ * the {@code contains_url} condition which may require the event content last.
+ */
+public final class CompiledEventFilter {
+
+    /**
+     * The filter which accepts all events.
+     */
+    public static final CompiledEventFilter ALL = new CompiledEventFilter(new Condition[0], -1, false, false);
+
+    private static final String URL = "url";
+
+    private static final String CONTENT = "content";
+
+    private static final int EXCLUDE_RANK = 1 << 20;
+
+    private static final int TYPES_RANK = 1 << 10;
+
+    private static final int CONTENT_RANK = Integer.MAX_VALUE;
+
+    private final Condition[] conditions;
+
+    private final int limit;
+
+    private final boolean lazyLoadMembers;
+
+    private final boolean includeRedundantMembers;
+
+    private CompiledEventFilter(Condition[] conditions, int limit, boolean lazyLoadMembers, boolean includeRedundantMembers) {
+        this.conditions = conditions;
+        this.limit = limit;
+        this.lazyLoadMembers = lazyLoadMembers;
+        this.includeRedundantMembers = includeRedundantMembers;
+    }
+
+    /**
+     * Compile the event filter.
+     *
+     * @param filter the filter or {@code null} to accept all events.
+     * @return the compiled filter.
+     */
+    public static CompiledEventFilter compile(EventFilter filter) {
+        if (filter == null) {
+            return ALL;
+        }
+        List<Condition> conditions = new ArrayList<>();
+        addTypes(conditions, filter.getTypes(), filter.getNotTypes());
+        addIds(conditions, Field.SENDER, filter.getSenders(), filter.getNotSenders());
+        return build(conditions, filter.getLimit(), false, false);
+    }
+
+    /**
+     * Compile the room event filter.
+     *
+     * @param filter the filter or {@code null} to accept all events.
+     * @return the compiled filter.
+     */
+    public static CompiledEventFilter compile(RoomEventFilter filter) {
+        if (filter == null) {
+            return ALL;
+        }
+        List<Condition> conditions = new ArrayList<>();
+        addTypes(conditions, filter.getTypes(), filter.getNotTypes());
+        addIds(conditions, Field.SENDER, filter.getSenders(), filter.getNotSenders());
+        addIds(conditions, Field.ROOM, filter.getRooms(), filter.getNotRooms());
+        if (filter.getContainsUrl() != null) {
+            boolean containsUrl = filter.getContainsUrl();
+            conditions.add(new Condition(CONTENT_RANK, (event, roomId) -> containsUrl(event) == containsUrl));
+        }
+        return build(conditions, filter.getLimit(), Boolean.TRUE.equals(filter.getLazyLoadMembers()),
+            Boolean.TRUE.equals(filter.getIncludeRedundantMembers()));
+    }
+
+    private static CompiledEventFilter build(List<Condition> conditions, Long limit, boolean lazyLoadMembers,
+                                             boolean includeRedundantMembers) {
+        conditions.sort(Comparator.comparingInt(condition -> condition.rank));
+        return new CompiledEventFilter(conditions.toArray(new Condition[0]),
+            limit == null || limit < 0 ? -1 : (int) Math.min(limit, Integer.MAX_VALUE), lazyLoadMembers, includeRedundantMembers);
+    }
+
+    private static void addTypes(List<Condition> conditions, List<String> types, List<String> notTypes) {
+        if (notTypes != null && !notTypes.isEmpty()) {
+            TypePatterns excluded = TypePatterns.compile(notTypes);
+            conditions.add(new Condition(EXCLUDE_RANK + TYPES_RANK, (event, roomId) -> !excluded.matches(event.getType())));
+        }
+        if (types != null) {
+            TypePatterns included = TypePatterns.compile(types);
+            if (!included.isAny()) {
+                conditions.add(new Condition(TYPES_RANK, (event, roomId) -> included.matches(event.getType())));
+            }
+        }
+    }
+
+    private static void addIds(List<Condition> conditions, Field field, Collection<String> included, Collection<String> excluded) {
+        if (excluded != null && !excluded.isEmpty()) {
+            Set<String> set = set(excluded);
+            conditions.add(new Condition(EXCLUDE_RANK + set.size(), (event, roomId) -> !set.contains(field.get(event, roomId))));
+        }
+        if (included != null) {
+            Set<String> set = set(included);
+            conditions.add(new Condition(set.size(), (event, roomId) -> set.contains(field.get(event, roomId))));
+        }
+    }
+
+    private static Set<String> set(Collection<String> values) {
+        return values.size() == 1 ? Collections.singleton(values.iterator().next()) : new HashSet<>(values);
+    }
+
+    /**
+     * Check if the filter accepts the event.
+     *
+     * @param event the event.
+     * @return {@code true} if the event is accepted.
+     */
+    public boolean test(Event<?> event) {
+        return test(event, null);
+    }
+
+    /**
+     * Check if the filter accepts the event of the room.
+     *
+     * @param event  the event.
+     * @param roomId the room of the event if the event doesn't contain it (for example the sync response timeline).
+     * @return {@code true} if the event is accepted.
+     */
+    public boolean test(Event<?> event, String roomId) {
+        for (Condition condition : conditions) {
+            if (!condition.predicate.test(event, roomId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the filter accepts all events.
+     *
+     * @return {@code true} if the filter has no conditions.
+     */
+    public boolean isAll() {
+        return conditions.length == 0;
+    }
+
+    /**
+     * The maximum number of the events or -1 if the filter has no limit.
+     *
+     * @return the limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * The limit or the default limit if the filter has no limit.
+     *
+     * @param defaultLimit the default limit.
+     * @return the limit.
+     */
+    public int getLimit(int defaultLimit) {
+        return limit == -1 ? defaultLimit : limit;
+    }
+
+    public boolean isLazyLoadMembers() {
+        return lazyLoadMembers;
+    }
+
+    public boolean isIncludeRedundantMembers() {
+        return includeRedundantMembers;
+    }
+
+    /**
+     * Check if the event content has the url (the string {@code url} field, the null value means the missing url).
+     *
+     * @param event the event.
+     * @return {@code true} if the content has the url.
+     */
+    public static boolean containsUrl(Event<?> event) {
+        if (event instanceof LazyEvent && ((LazyEvent) event).isPristine()) {
+            byte[] content = ((LazyEvent) event).getRaw(CONTENT);
+            return content != null && content.length > 0 && content[0] == '{' && isString(Passthrough.field(content, URL));
+        }
+        RawJson raw = event.getRawJson();
+        if (raw != null) {
+            RawJson content = Passthrough.field(raw, CONTENT);
+            return content != null && content.getLength() > 0 && content.getBytes()[content.getOffset()] == '{'
+                && isString(Passthrough.field(content, URL));
+        }
+        Object content = event.getContent();
+        if (content instanceof RawEventContent) {
+            Object value = ((RawEventContent) content).getContent();
+            Object url = value instanceof Map ? ((Map<?, ?>) value).get(URL) : null;
+            return url instanceof String || url instanceof JsonString;
+        }
+        if (content instanceof Image) {
+            return ((Image) content).getUrl() != null;
+        }
+        if (content instanceof File) {
+            return ((File) content).getUrl() != null;
+        }
+        if (content instanceof Video) {
+            return ((Video) content).getUrl() != null;
+        }
+        if (content instanceof Audio) {
+            return ((Audio) content).getUrl() != null;
+        }
+        if (content instanceof StickerContent) {
+            return ((StickerContent) content).getUrl() != null;
+        }
+        if (content instanceof RoomAvatarContent) {
+            return ((RoomAvatarContent) content).getUrl() != null;
+        }
+        return false;
+    }
+
+    private static boolean isString(RawJson value) {
+        return value != null && value.getLength() > 0 && value.getBytes()[value.getOffset()] == '"';
+    }
+
+    /**
+     * The event fields used by the conditions.
+     */
+    private enum Field {
+
+        SENDER {
+            @Override
+            String get(Event<?> event, String roomId) {
+                if (event instanceof RoomEvent) {
+                    return ((RoomEvent<?>) event).getSender();
+                }
+                return event instanceof LazyEvent ? ((LazyEvent) event).getSender() : null;
+            }
+        },
+
+        ROOM {
+            @Override
+            String get(Event<?> event, String roomId) {
+                if (roomId != null) {
+                    return roomId;
+                }
+                if (event instanceof RoomEvent) {
+                    return ((RoomEvent<?>) event).getRoomId();
+                }
+                return event instanceof LazyEvent ? ((LazyEvent) event).getRoomId() : null;
+            }
+        };
+
+        abstract String get(Event<?> event, String roomId);
+    }
+
+    /**
+     * The condition with the rank (the lower rank is checked first).
+     */
+    private static final class Condition {
+
+        private final int rank;
+
+        private final EventPredicate predicate;
+
+        Condition(int rank, EventPredicate predicate) {
+            this.rank = rank;
+            this.predicate = predicate;
+        }
+    }
+
+    /**
+     * The predicate of the event.
+     */
+    @FunctionalInterface
+    private interface EventPredicate {
+
+        boolean test(Event<?> event, String roomId);
+    }
+}
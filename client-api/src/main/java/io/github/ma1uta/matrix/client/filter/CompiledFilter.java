@@ -0,0 +1,123 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import io.github.ma1uta.matrix.json.FieldProjection;
+import io.github.ma1uta.matrix.json.FragmentCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable filter compiled from the {@link FilterData}.
+ */
+public final class CompiledFilter {
+
+    /**
+     * The filter which accepts all events.
+     */
+    public static final CompiledFilter ALL = new CompiledFilter(null, FilterData.EventFormat.CLIENT, CompiledEventFilter.ALL,
+        CompiledEventFilter.ALL, CompiledRoomFilter.ALL);
+
+    private final List<String> eventFields;
+
+    private final FieldProjection projection;
+
+    private final String eventFormat;
+
+    private final String fragmentFormat;
+
+    private final CompiledEventFilter presence;
+
+    private final CompiledEventFilter accountData;
+
+    private final CompiledRoomFilter room;
+
+    private CompiledFilter(List<String> eventFields, String eventFormat, CompiledEventFilter presence,
+                           CompiledEventFilter accountData, CompiledRoomFilter room) {
+        this.eventFields = eventFields;
+        this.projection = eventFields == null ? null : FieldProjection.compile(eventFields);
+        this.eventFormat = eventFormat;
+        String format = FilterData.EventFormat.FEDERATION.equals(eventFormat) ? FragmentCache.FEDERATION : FragmentCache.CLIENT;
+        this.fragmentFormat = eventFields != null ? FragmentCache.projection(format, eventFields) : format;
+        this.presence = presence;
+        this.accountData = accountData;
+        this.room = room;
+    }
+
+    /**
+     * Compile the filter.
+     *
+     * @param filter the filter or {@code null} to accept all events.
+     * @return the compiled filter.
+     */
+    public static CompiledFilter compile(FilterData filter) {
+        if (filter == null) {
+            return ALL;
+        }
+        return new CompiledFilter(
+            filter.getEventFields() == null ? null : Collections.unmodifiableList(new ArrayList<>(filter.getEventFields())),
+            filter.getEventFormat() == null ? FilterData.EventFormat.CLIENT : filter.getEventFormat(),
+            CompiledEventFilter.compile(filter.getPresence()), CompiledEventFilter.compile(filter.getAccountData()),
+            CompiledRoomFilter.compile(filter.getRoom()));
+    }
+
+    /**
+     * The event fields to include.
+     *
+     * @return the event fields or {@code null} if all fields are included.
+     */
+    public List<String> getEventFields() {
+        return eventFields;
+    }
+
+    /**
+     * The projection of the event fields.
+     *
+     * @return the projection or {@code null} if all fields are included.
+     */
+    public FieldProjection getProjection() {
+        return projection;
+    }
+
+    public String getEventFormat() {
+        return eventFormat;
+    }
+
+    /**
+     * The output format of the events for the {@link FragmentCache}.
+     *
+     * @return the format.
+     */
+    public String getFragmentFormat() {
+        return fragmentFormat;
+    }
+
+    public CompiledEventFilter getPresence() {
+        return presence;
+    }
+
+    public CompiledEventFilter getAccountData() {
+        return accountData;
+    }
+
+    public CompiledRoomFilter getRoom() {
+        return room;
+    }
+}
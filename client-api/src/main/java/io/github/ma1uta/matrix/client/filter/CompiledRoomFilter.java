@@ -0,0 +1,124 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import io.github.ma1uta.matrix.client.model.filter.RoomFilter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable room filter compiled from the {@link RoomFilter}.
+ */
+public final class CompiledRoomFilter {
+
+    /**
+     * The filter which accepts all rooms and events.
+     */
+    public static final CompiledRoomFilter ALL = new CompiledRoomFilter(null, Collections.emptySet(), false, CompiledEventFilter.ALL,
+        CompiledEventFilter.ALL, CompiledEventFilter.ALL, CompiledEventFilter.ALL);
+
+    private final Set<String> rooms;
+
+    private final Set<String> notRooms;
+
+    private final boolean includeLeave;
+
+    private final CompiledEventFilter ephemeral;
+
+    private final CompiledEventFilter state;
+
+    private final CompiledEventFilter timeline;
+
+    private final CompiledEventFilter accountData;
+
+    private CompiledRoomFilter(Set<String> rooms, Set<String> notRooms, boolean includeLeave, CompiledEventFilter ephemeral,
+                               CompiledEventFilter state, CompiledEventFilter timeline, CompiledEventFilter accountData) {
+        this.rooms = rooms;
+        this.notRooms = notRooms;
+        this.includeLeave = includeLeave;
+        this.ephemeral = ephemeral;
+        this.state = state;
+        this.timeline = timeline;
+        this.accountData = accountData;
+    }
+
+    /**
+     * Compile the room filter.
+     *
+     * @param filter the filter or {@code null} to accept all rooms.
+     * @return the compiled filter.
+     */
+    public static CompiledRoomFilter compile(RoomFilter filter) {
+        if (filter == null) {
+            return ALL;
+        }
+        return new CompiledRoomFilter(set(filter.getRooms()), filter.getNotRooms() == null ? Collections.emptySet()
+            : set(filter.getNotRooms()), Boolean.TRUE.equals(filter.getIncludeLeave()), CompiledEventFilter.compile(filter.getEphemeral()),
+            CompiledEventFilter.compile(filter.getState()), CompiledEventFilter.compile(filter.getTimeline()),
+            CompiledEventFilter.compile(filter.getAccountData()));
+    }
+
+    private static Set<String> set(List<String> values) {
+        return values == null ? null : Collections.unmodifiableSet(new HashSet<>(values));
+    }
+
+    /**
+     * Check if the room should be included in the response.
+     *
+     * @param roomId the room id.
+     * @return {@code true} if the room is included.
+     */
+    public boolean includes(String roomId) {
+        return !notRooms.contains(roomId) && (rooms == null || rooms.contains(roomId));
+    }
+
+    /**
+     * The included rooms.
+     *
+     * @return the included rooms or {@code null} if all rooms are included.
+     */
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public Set<String> getNotRooms() {
+        return notRooms;
+    }
+
+    public boolean isIncludeLeave() {
+        return includeLeave;
+    }
+
+    public CompiledEventFilter getEphemeral() {
+        return ephemeral;
+    }
+
+    public CompiledEventFilter getState() {
+        return state;
+    }
+
+    public CompiledEventFilter getTimeline() {
+        return timeline;
+    }
+
+    public CompiledEventFilter getAccountData() {
+        return accountData;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import io.github.ma1uta.matrix.json.CanonicalJson;
+import io.github.ma1uta.matrix.json.Passthrough;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Cache of the compiled filters.
+ * <br>
+ * The uploaded filters are keyed by the user id and the filter id, the inline filters (the {@code filter} parameter of the
+ * sync request starting with {@code &#123;}) are keyed by the SHA-256 of their json, so the long-poll requests don't
+ * recompile the same filter. The cache is bounded by the count of the filters with LRU eviction.
+ */
+public class FilterCache {
+
+    /**
+     * The default maximum count of the filters.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static final String ID_PREFIX = "id:";
+
+    private static final String INLINE_PREFIX = "json:";
+
+    private static final char SEPARATOR = '\n';
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Map<String, CompiledFilter> filters;
+
+    public FilterCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public FilterCache(int maxSize) {
+        this.filters = new LinkedHashMap<String, CompiledFilter>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledFilter> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Resolve the filter parameter of the sync request.
+     *
+     * @param userId the user id.
+     * @param filter the filter id or the inline json filter.
+     * @param loader the loader of the uploaded filter by the user id and the filter id.
+     * @return the compiled filter.
+     */
+    public CompiledFilter resolve(String userId, String filter, BiFunction<String, String, FilterData> loader) {
+        if (filter == null || filter.isEmpty()) {
+            return CompiledFilter.ALL;
+        }
+        return filter.trim().startsWith("{") ? inline(filter) : get(userId, filter, loader);
+    }
+
+    /**
+     * Find or compile the uploaded filter.
+     *
+     * @param userId   the user id.
+     * @param filterId the filter id.
+     * @param loader   the loader of the uploaded filter by the user id and the filter id.
+     * @return the compiled filter or {@code null} if the filter isn't found.
+     */
+    public CompiledFilter get(String userId, String filterId, BiFunction<String, String, FilterData> loader) {
+        String key = ID_PREFIX + userId + SEPARATOR + filterId;
+        CompiledFilter compiled = lookup(key);
+        if (compiled == null) {
+            FilterData filter = loader.apply(userId, filterId);
+            if (filter == null) {
+                return null;
+            }
+            compiled = store(key, CompiledFilter.compile(filter));
+        }
+        return compiled;
+    }
+
+    /**
+     * Find or compile the inline filter.
+     *
+     * @param json the json of the filter.
+     * @return the compiled filter.
+     */
+    public CompiledFilter inline(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        String key = INLINE_PREFIX + Base64.getEncoder().withoutPadding().encodeToString(CanonicalJson.sha256().digest(bytes));
+        CompiledFilter compiled = lookup(key);
+        if (compiled == null) {
+            compiled = store(key, CompiledFilter.compile(Passthrough.read(bytes, FilterData.class)));
+        }
+        return compiled;
+    }
+
+    /**
+     * Remove the uploaded filter.
+     *
+     * @param userId   the user id.
+     * @param filterId the filter id.
+     */
+    public void invalidate(String userId, String filterId) {
+        synchronized (filters) {
+            filters.remove(ID_PREFIX + userId + SEPARATOR + filterId);
+        }
+    }
+
+    /**
+     * Remove all filters.
+     */
+    public void clear() {
+        synchronized (filters) {
+            filters.clear();
+        }
+    }
+
+    /**
+     * The count of the cached filters.
+     *
+     * @return the count of the filters.
+     */
+    public int size() {
+        synchronized (filters) {
+            return filters.size();
+        }
+    }
+
+    private CompiledFilter lookup(String key) {
+        synchronized (filters) {
+            return filters.get(key);
+        }
+    }
+
+    private CompiledFilter store(String key, CompiledFilter compiled) {
+        synchronized (filters) {
+            CompiledFilter existing = filters.putIfAbsent(key, compiled);
+            return existing != null ? existing : compiled;
+        }
+    }
+}
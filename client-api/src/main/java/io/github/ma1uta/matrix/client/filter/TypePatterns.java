@@ -0,0 +1,198 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Event type patterns compiled to the trie.
+ * <br>
+ * The {@code *} wildcard matches any sequence of the characters. The common patterns (the exact types and the prefixes like
+ * {@code m.room.*}) are matched in one pass without backtracking.
+ */
+public final class TypePatterns {
+
+    private static final TypePatterns ANY = new TypePatterns(null, true);
+
+    private static final TypePatterns NONE = new TypePatterns(null, false);
+
+    private static final char WILDCARD = '*';
+
+    private final Node root;
+
+    private final boolean any;
+
+    private TypePatterns(Node root, boolean any) {
+        this.root = root;
+        this.any = any;
+    }
+
+    /**
+     * Compile the patterns.
+     *
+     * @param patterns the patterns.
+     * @return the compiled patterns which match nothing if the patterns are empty.
+     */
+    public static TypePatterns compile(Collection<String> patterns) {
+        if (patterns.isEmpty()) {
+            return NONE;
+        }
+        Builder root = new Builder();
+        for (String pattern : patterns) {
+            if (pattern == null) {
+                continue;
+            }
+            if (pattern.length() == 1 && pattern.charAt(0) == WILDCARD) {
+                return ANY;
+            }
+            Builder node = root;
+            for (int i = 0; i < pattern.length(); i++) {
+                char ch = pattern.charAt(i);
+                if (ch == WILDCARD) {
+                    // the consecutive wildcards are the same as one.
+                    if (node.star == null) {
+                        node.star = new Builder();
+                    }
+                    node = node.star;
+                    while (i + 1 < pattern.length() && pattern.charAt(i + 1) == WILDCARD) {
+                        i++;
+                    }
+                } else {
+                    node = node.children.computeIfAbsent(ch, c -> new Builder());
+                }
+            }
+            node.terminal = true;
+        }
+        return new TypePatterns(root.build(), false);
+    }
+
+    /**
+     * The patterns which match any type.
+     *
+     * @return the patterns.
+     */
+    public static TypePatterns any() {
+        return ANY;
+    }
+
+    /**
+     * The patterns which match nothing.
+     *
+     * @return the patterns.
+     */
+    public static TypePatterns none() {
+        return NONE;
+    }
+
+    /**
+     * Check if the patterns match any type.
+     *
+     * @return {@code true} if the patterns match any type.
+     */
+    public boolean isAny() {
+        return any;
+    }
+
+    /**
+     * Check if the type matches one of the patterns.
+     *
+     * @param type the event type.
+     * @return {@code true} if the type matches.
+     */
+    public boolean matches(String type) {
+        if (any) {
+            return true;
+        }
+        if (root == null || type == null) {
+            return false;
+        }
+        return matches(root, type, 0);
+    }
+
+    private static boolean matches(Node node, String type, int position) {
+        Node current = node;
+        for (int i = position; i < type.length(); i++) {
+            if (current.star != null && matchesStar(current.star, type, i)) {
+                return true;
+            }
+            current = current.child(type.charAt(i));
+            if (current == null) {
+                return false;
+            }
+        }
+        return current.terminal || current.star != null && current.star.terminal;
+    }
+
+    private static boolean matchesStar(Node star, String type, int position) {
+        if (star.terminal) {
+            return true;
+        }
+        for (int i = position; i < type.length(); i++) {
+            if (star.child(type.charAt(i)) != null && matches(star, type, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Node {
+
+        private final char[] keys;
+
+        private final Node[] children;
+
+        private final Node star;
+
+        private final boolean terminal;
+
+        Node(char[] keys, Node[] children, Node star, boolean terminal) {
+            this.keys = keys;
+            this.children = children;
+            this.star = star;
+            this.terminal = terminal;
+        }
+
+        Node child(char ch) {
+            int index = Arrays.binarySearch(keys, ch);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    private static final class Builder {
+
+        private final Map<Character, Builder> children = new TreeMap<>();
+
+        private Builder star;
+
+        private boolean terminal;
+
+        Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().build();
+                i++;
+            }
+            return new Node(keys, nodes, star == null ? null : star.build(), terminal);
+        }
+    }
+}
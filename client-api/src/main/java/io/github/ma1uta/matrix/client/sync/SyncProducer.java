@@ -0,0 +1,79 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.sync;
+
+import io.github.ma1uta.matrix.client.model.sync.InvitedRoom;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.LeftRoom;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+
+/**
+ * Producer of the sync response which computes the rooms one at a time.
+ * <br>
+ * The rooms are passed to the sink as soon as they are computed and are written immediately, so the producer should not keep
+ * the references to the emitted rooms. The other sections are requested after all rooms.
+ */
+public interface SyncProducer {
+
+    /**
+     * Sink of the rooms.
+     *
+     * @param <R> the room type.
+     */
+    @FunctionalInterface
+    interface RoomSink<R> {
+
+        /**
+         * Write the room.
+         *
+         * @param roomId the room id.
+         * @param room   the room.
+         */
+        void room(String roomId, R room);
+    }
+
+    /**
+     * Emit the joined rooms.
+     *
+     * @param sink the sink.
+     */
+    void joined(RoomSink<JoinedRoom> sink);
+
+    /**
+     * Emit the invited rooms.
+     *
+     * @param sink the sink.
+     */
+    default void invited(RoomSink<InvitedRoom> sink) {
+    }
+
+    /**
+     * Emit the left rooms.
+     *
+     * @param sink the sink.
+     */
+    default void left(RoomSink<LeftRoom> sink) {
+    }
+
+    /**
+     * The other sections of the response (next_batch, presence, account_data, ...). The rooms of the returned response are
+     * ignored.
+     *
+     * @return the other sections.
+     */
+    SyncResponse complete();
+}
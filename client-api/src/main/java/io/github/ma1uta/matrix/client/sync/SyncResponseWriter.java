@@ -0,0 +1,182 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.sync;
+
+import io.github.ma1uta.matrix.client.filter.CompiledFilter;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.json.FieldProjection;
+import io.github.ma1uta.matrix.json.FragmentCache;
+import io.github.ma1uta.matrix.json.JsonCodecs;
+import io.github.ma1uta.matrix.json.JsonOutput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Sync response writer which writes the rooms as they are produced.
+ * <br>
+ * The response isn't built in memory: each room is written into the bounded buffer which is flushed into the stream when it
+ * is full, so the peak memory depends on the largest room instead of the count of the rooms. Use it as the entity of the
+ * sync response, for example {@code asyncResponse.resume(new SyncResponseWriter(producer))}.
+ * <br>
+ * The status and the headers are already sent when the rooms are produced, so the producer errors abort the response.
+ * <br>
+ * The events are written in the format of the filter (the {@code event_fields} projection) and are spliced from the
+ * {@link FragmentCache} if the cache is specified, so the event shared by the many responses is serialized once.
+ */
+public class SyncResponseWriter implements StreamingOutput {
+
+    /**
+     * The default size of the output buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private static final byte[] NEXT_BATCH = JsonOutput.encodeName("next_batch");
+
+    private static final byte[] ROOMS = JsonOutput.encodeName("rooms");
+
+    private static final byte[] JOIN = JsonOutput.encodeName("join");
+
+    private static final byte[] INVITE = JsonOutput.encodeName("invite");
+
+    private static final byte[] LEAVE = JsonOutput.encodeName("leave");
+
+    private static final byte[] PRESENCE = JsonOutput.encodeName("presence");
+
+    private static final byte[] ACCOUNT_DATA = JsonOutput.encodeName("account_data");
+
+    private static final byte[] TO_DEVICE = JsonOutput.encodeName("to_device");
+
+    private static final byte[] DEVICE_LISTS = JsonOutput.encodeName("device_lists");
+
+    private static final byte[] DEVICE_ONE_TIME_KEYS_COUNT = JsonOutput.encodeName("device_one_time_keys_count");
+
+    private final SyncProducer producer;
+
+    private final int bufferSize;
+
+    private final CompiledFilter filter;
+
+    private final FragmentCache fragments;
+
+    /**
+     * Create the writer with the default buffer size.
+     *
+     * @param producer the producer of the response.
+     */
+    public SyncResponseWriter(SyncProducer producer) {
+        this(producer, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create the writer.
+     *
+     * @param producer   the producer of the response.
+     * @param bufferSize the size of the output buffer.
+     */
+    public SyncResponseWriter(SyncProducer producer, int bufferSize) {
+        this(producer, bufferSize, CompiledFilter.ALL, null);
+    }
+
+    /**
+     * Create the writer with the default buffer size which writes the events in the format of the filter.
+     *
+     * @param producer  the producer of the response.
+     * @param filter    the filter of the sync request.
+     * @param fragments the cache of the serialized events or {@code null} to serialize the events for each response.
+     */
+    public SyncResponseWriter(SyncProducer producer, CompiledFilter filter, FragmentCache fragments) {
+        this(producer, DEFAULT_BUFFER_SIZE, filter, fragments);
+    }
+
+    /**
+     * Create the writer which writes the events in the format of the filter.
+     *
+     * @param producer   the producer of the response.
+     * @param bufferSize the size of the output buffer.
+     * @param filter     the filter of the sync request.
+     * @param fragments  the cache of the serialized events or {@code null} to serialize the events for each response.
+     */
+    public SyncResponseWriter(SyncProducer producer, int bufferSize, CompiledFilter filter, FragmentCache fragments) {
+        this.producer = producer;
+        this.bufferSize = bufferSize;
+        this.filter = filter != null ? filter : CompiledFilter.ALL;
+        this.fragments = fragments;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            write(new JsonOutput(output, bufferSize));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Write the response.
+     *
+     * @param out the output.
+     */
+    public void write(JsonOutput out) {
+        FieldProjection projection = filter.getProjection();
+        out.events(fragments, filter.getFragmentFormat(), projection != null ? projection::write : null);
+        out.beginObject();
+
+        out.name(ROOMS).beginObject();
+        section(out, JOIN, () -> producer.joined((roomId, room) -> room(out, roomId, room)));
+        section(out, INVITE, () -> producer.invited((roomId, room) -> room(out, roomId, room)));
+        section(out, LEAVE, () -> producer.left((roomId, room) -> room(out, roomId, room)));
+        out.endObject();
+
+        SyncResponse response = producer.complete();
+        if (response != null) {
+            field(out, NEXT_BATCH, response.getNextBatch());
+            field(out, PRESENCE, response.getPresence());
+            field(out, ACCOUNT_DATA, response.getAccountData());
+            field(out, TO_DEVICE, response.getToDevice());
+            field(out, DEVICE_LISTS, response.getDeviceLists());
+            field(out, DEVICE_ONE_TIME_KEYS_COUNT, response.getDeviceOneTimeKeysCount());
+        }
+
+        out.endObject();
+        out.flush();
+    }
+
+    private static void section(JsonOutput out, byte[] name, Runnable rooms) {
+        out.name(name).beginObject();
+        rooms.run();
+        out.endObject();
+    }
+
+    private static void room(JsonOutput out, String roomId, Object room) {
+        if (room != null) {
+            out.name(roomId);
+            JsonCodecs.write(out, room);
+        }
+    }
+
+    private static void field(JsonOutput out, byte[] name, Object value) {
+        if (value != null) {
+            out.name(name);
+            JsonCodecs.write(out, value);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 module matrix.client.api {
     exports io.github.ma1uta.matrix.client.api;
+    exports io.github.ma1uta.matrix.client.filter;
     exports io.github.ma1uta.matrix.client.model.account;
     exports io.github.ma1uta.matrix.client.model.admin;
     exports io.github.ma1uta.matrix.client.model.auth;
@@ -27,6 +28,9 @@ module matrix.client.api {
     exports io.github.ma1uta.matrix.client.model.userdirectory;
     exports io.github.ma1uta.matrix.client.model.version;
     exports io.github.ma1uta.matrix.client.model.voip;
+    exports io.github.ma1uta.matrix.client.sync;
 
     requires transitive matrix.common.api;
+
+    provides io.github.ma1uta.matrix.json.JsonCodecProvider with io.github.ma1uta.matrix.client.api.ClientJsonCodecs;
 }
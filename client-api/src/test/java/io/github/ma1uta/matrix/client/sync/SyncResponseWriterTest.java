@@ -0,0 +1,108 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.ma1uta.matrix.client.filter.CompiledFilter;
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.RoomTopic;
+import io.github.ma1uta.matrix.event.Unsigned;
+import io.github.ma1uta.matrix.event.content.RoomTopicContent;
+import io.github.ma1uta.matrix.json.FragmentCache;
+import io.github.ma1uta.matrix.json.JsonOutput;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+class SyncResponseWriterTest {
+
+    private static final String EVENT = "{\"content\":{\"topic\":\"Topic\"},\"event_id\":\"$event:example.org\","
+        + "\"origin_server_ts\":1,\"sender\":\"@alice:example.org\",\"state_key\":\"\",\"type\":\"m.room.topic\"";
+
+    @Test
+    void cachedEventKeepsUnsignedOfRecipient() {
+        FragmentCache cache = new FragmentCache();
+
+        assertEquals(response(EVENT + ",\"unsigned\":{\"age\":10,\"transaction_id\":\"txn\"}}"),
+            sync(cache, CompiledFilter.ALL, event(10L, "txn")));
+        assertEquals(response(EVENT + ",\"unsigned\":{\"age\":20}}"), sync(cache, CompiledFilter.ALL, event(20L, null)));
+        assertEquals(response(EVENT + "}"), sync(cache, CompiledFilter.ALL, event(null, null)));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void cachedProjectionKeepsUnsignedOfRecipient() {
+        FragmentCache cache = new FragmentCache();
+        FilterData filter = new FilterData();
+        filter.setEventFields(Arrays.asList("content", "unsigned.transaction_id"));
+        CompiledFilter compiled = CompiledFilter.compile(filter);
+
+        assertEquals(response("{\"content\":{\"topic\":\"Topic\"},\"unsigned\":{\"transaction_id\":\"txn\"}}"),
+            sync(cache, compiled, event(10L, "txn")));
+        assertEquals(response("{\"content\":{\"topic\":\"Topic\"}}"), sync(cache, compiled, event(20L, null)));
+        assertEquals(1, cache.getMisses());
+    }
+
+    private static RoomTopic event(Long age, String transactionId) {
+        RoomTopicContent content = new RoomTopicContent();
+        content.setTopic("Topic");
+        RoomTopic event = new RoomTopic();
+        event.setEventId("$event:example.org");
+        event.setSender("@alice:example.org");
+        event.setStateKey("");
+        event.setOriginServerTs(1L);
+        event.setContent(content);
+        if (age != null || transactionId != null) {
+            Unsigned<RoomTopicContent> unsigned = new Unsigned<>();
+            unsigned.setAge(age);
+            unsigned.setTransactionId(transactionId);
+            event.setUnsigned(unsigned);
+        }
+        return event;
+    }
+
+    private static String sync(FragmentCache cache, CompiledFilter filter, RoomTopic event) {
+        SyncProducer producer = new SyncProducer() {
+            @Override
+            public void joined(RoomSink<JoinedRoom> sink) {
+                Timeline timeline = new Timeline();
+                timeline.setEvents(Collections.singletonList(event));
+                JoinedRoom room = new JoinedRoom();
+                room.setTimeline(timeline);
+                sink.room("!room:example.org", room);
+            }
+
+            @Override
+            public SyncResponse complete() {
+                return null;
+            }
+        };
+        JsonOutput out = new JsonOutput();
+        new SyncResponseWriter(producer, filter, cache).write(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String response(String event) {
+        return "{\"rooms\":{\"join\":{\"!room:example.org\":{\"timeline\":{\"events\":[" + event + "]}}},\"invite\":{},\"leave\":{}}}";
+    }
+}
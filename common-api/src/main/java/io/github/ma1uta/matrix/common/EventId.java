@@ -0,0 +1,63 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import javax.json.bind.adapter.JsonbAdapter;
+import javax.json.bind.annotation.JsonbTypeAdapter;
+
+/**
+ * Event ID ($opaque:server for the room versions 1 and 2, $hash for the later versions).
+ */
+@JsonbTypeAdapter(EventId.Adapter.class)
+public final class EventId extends MatrixId {
+
+    private static final InternPool<EventId> POOL = new InternPool<>(EventId::new);
+
+    private EventId(String value) {
+        super(value, Id.Sigil.EVENT, false);
+    }
+
+    /**
+     * Get the interned event id.
+     *
+     * @param value the event id.
+     * @return the event id.
+     * @throws IllegalArgumentException if the event id is invalid.
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static EventId of(String value) {
+        return POOL.intern(value);
+    }
+
+    /**
+     * JSON-B adapter.
+     */
+    public static class Adapter implements JsonbAdapter<EventId, String> {
+
+        @Override
+        public String adaptToJson(EventId obj) {
+            return obj.getValue();
+        }
+
+        @Override
+        public EventId adaptFromJson(String obj) {
+            return EventId.of(obj);
+        }
+    }
+}
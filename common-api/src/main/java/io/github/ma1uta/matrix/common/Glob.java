@@ -0,0 +1,306 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+/**
+ * Compiled case-insensitive glob pattern.
+ * <br>
+ * The {@code *} matches any sequence of the characters and the {@code ?} matches any single character, the other characters
+ * are matched literally. The compiled pattern is immutable and can be shared and applied to each event, matching of the patterns
+ * shorter than 64 characters doesn't allocate.
+ * <br>
+ * The words are matched in a single forward scan which tracks the matched prefixes of the pattern started at each word start
+ * (the set of the pattern positions), so the cost is proportional to the length of the value times the length of the pattern.
+ */
+public final class Glob {
+
+    private static final int ANY_SEQUENCE = -1;
+
+    private static final int ANY_CHAR = -2;
+
+    private static final int WORD_SHIFT = 6;
+
+    private final String pattern;
+
+    private final int[] tokens;
+
+    private final boolean literal;
+
+    private final boolean anything;
+
+    private final int words;
+
+    private Glob(String pattern, int[] tokens, boolean literal, boolean anything) {
+        this.pattern = pattern;
+        this.tokens = tokens;
+        this.literal = literal;
+        this.anything = anything;
+        this.words = (tokens.length >>> WORD_SHIFT) + 1;
+    }
+
+    /**
+     * Compile the pattern.
+     *
+     * @param pattern the glob pattern.
+     * @return the compiled pattern.
+     */
+    public static Glob compile(String pattern) {
+        int[] tokens = new int[pattern.length()];
+        int count = 0;
+        boolean literal = true;
+        for (int i = 0; i < pattern.length(); i++) {
+            char ch = pattern.charAt(i);
+            if (ch == '*') {
+                literal = false;
+                if (count > 0 && tokens[count - 1] == ANY_SEQUENCE) {
+                    continue;
+                }
+                tokens[count++] = ANY_SEQUENCE;
+            } else if (ch == '?') {
+                literal = false;
+                tokens[count++] = ANY_CHAR;
+            } else {
+                tokens[count++] = Character.toLowerCase(ch);
+            }
+        }
+        int[] compiled = new int[count];
+        System.arraycopy(tokens, 0, compiled, 0, count);
+        return new Glob(pattern, compiled, literal, count == 1 && compiled[0] == ANY_SEQUENCE);
+    }
+
+    /**
+     * Check if the whole value matches the pattern.
+     *
+     * @param value the value.
+     * @return {@code true} if the value matches.
+     */
+    public boolean matches(CharSequence value) {
+        if (value == null) {
+            return false;
+        }
+        return anything || matches(value, 0, value.length());
+    }
+
+    /**
+     * Check if any word of the value matches the pattern (the match is surrounded by the non-word characters or the ends).
+     *
+     * @param value the value.
+     * @return {@code true} if any word matches.
+     */
+    public boolean matchesWord(CharSequence value) {
+        if (value == null || tokens.length == 0) {
+            return false;
+        }
+        if (!literal) {
+            return words == 1 ? scanWord(value) : scanWords(value);
+        }
+        int length = value.length();
+        for (int start = 0; start + tokens.length <= length; start++) {
+            if ((start == 0 || !isWordChar(value.charAt(start - 1))) && isBoundary(value, start + tokens.length)
+                && matchesLiteral(value, start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the pattern has no wildcards.
+     *
+     * @return {@code true} if the pattern is the literal.
+     */
+    public boolean isLiteral() {
+        return literal;
+    }
+
+    /**
+     * Check if the pattern matches any value.
+     *
+     * @return {@code true} if the pattern is the single {@code *}.
+     */
+    public boolean isAnything() {
+        return anything;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof Glob && pattern.equals(((Glob) o).pattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return pattern.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private boolean matchesLiteral(CharSequence value, int start) {
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i] != Character.toLowerCase(value.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(CharSequence value, int start, int end) {
+        int token = 0;
+        int position = start;
+        int starToken = -1;
+        int starPosition = start;
+        while (position < end) {
+            if (token < tokens.length && tokens[token] == ANY_SEQUENCE) {
+                starToken = token++;
+                starPosition = position;
+            } else if (token < tokens.length
+                && (tokens[token] == ANY_CHAR || tokens[token] == Character.toLowerCase(value.charAt(position)))) {
+                token++;
+                position++;
+            } else if (starToken != -1) {
+                token = starToken + 1;
+                position = ++starPosition;
+            } else {
+                return false;
+            }
+        }
+        while (token < tokens.length && tokens[token] == ANY_SEQUENCE) {
+            token++;
+        }
+        return token == tokens.length;
+    }
+
+    /**
+     * Match the words simulating the pattern automaton: the state {@code i} means that the first {@code i} tokens are matched.
+     * The new match starts at each word start and the word matches when the last state is reached at the word end.
+     * <br>
+     * The states of the pattern shorter than 64 tokens are kept in a single long.
+     *
+     * @param value the value.
+     * @return {@code true} if any word matches.
+     */
+    private boolean scanWord(CharSequence value) {
+        long states = 0;
+        long last = 1L << tokens.length;
+        int length = value.length();
+        for (int position = 0; ; position++) {
+            if (position == 0 || !isWordChar(value.charAt(position - 1))) {
+                states |= 1L;
+            }
+            for (int token = 0; token < tokens.length; token++) {
+                if (tokens[token] == ANY_SEQUENCE && (states & (1L << token)) != 0) {
+                    states |= 1L << (token + 1);
+                }
+            }
+            if ((states & last) != 0 && isBoundary(value, position)) {
+                return true;
+            }
+            if (position == length) {
+                return false;
+            }
+            int ch = Character.toLowerCase(value.charAt(position));
+            long next = 0;
+            for (long bits = states; bits != 0; bits &= bits - 1) {
+                int token = Long.numberOfTrailingZeros(bits);
+                if (token == tokens.length) {
+                    continue;
+                }
+                if (tokens[token] == ANY_SEQUENCE) {
+                    next |= 1L << token;
+                } else if (tokens[token] == ANY_CHAR || tokens[token] == ch) {
+                    next |= 1L << (token + 1);
+                }
+            }
+            states = next;
+        }
+    }
+
+    /**
+     * Match the words of the long pattern (see {@link #scanWord(CharSequence)}) with the states split into the words of the
+     * array allocated per call.
+     *
+     * @param value the value.
+     * @return {@code true} if any word matches.
+     */
+    private boolean scanWords(CharSequence value) {
+        long[] states = new long[2 * words];
+        int current = 0;
+        int next = words;
+        int length = value.length();
+        for (int position = 0; ; position++) {
+            if (position == 0 || !isWordChar(value.charAt(position - 1))) {
+                states[current] |= 1L;
+            }
+            for (int token = 0; token < tokens.length; token++) {
+                if (tokens[token] == ANY_SEQUENCE && isSet(states, current, token)) {
+                    set(states, current, token + 1);
+                }
+            }
+            if (isSet(states, current, tokens.length) && isBoundary(value, position)) {
+                return true;
+            }
+            if (position == length) {
+                return false;
+            }
+            int ch = Character.toLowerCase(value.charAt(position));
+            for (int i = 0; i < words; i++) {
+                states[next + i] = 0;
+            }
+            for (int i = 0; i < words; i++) {
+                for (long bits = states[current + i]; bits != 0; bits &= bits - 1) {
+                    int token = (i << WORD_SHIFT) + Long.numberOfTrailingZeros(bits);
+                    if (token == tokens.length) {
+                        continue;
+                    }
+                    if (tokens[token] == ANY_SEQUENCE) {
+                        set(states, next, token);
+                    } else if (tokens[token] == ANY_CHAR || tokens[token] == ch) {
+                        set(states, next, token + 1);
+                    }
+                }
+            }
+            int swap = current;
+            current = next;
+            next = swap;
+        }
+    }
+
+    private static boolean isSet(long[] states, int offset, int state) {
+        return (states[offset + (state >>> WORD_SHIFT)] & (1L << state)) != 0;
+    }
+
+    private static void set(long[] states, int offset, int state) {
+        states[offset + (state >>> WORD_SHIFT)] |= 1L << state;
+    }
+
+    private static boolean isBoundary(CharSequence value, int position) {
+        return position == value.length() || !isWordChar(value.charAt(position));
+    }
+
+    private static boolean isWordChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_';
+    }
+}
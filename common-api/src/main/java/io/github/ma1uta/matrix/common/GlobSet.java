@@ -0,0 +1,291 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Set of the case-insensitive glob patterns compiled into the single automaton.
+ * <br>
+ * The patterns share the common prefixes and the value is matched against all patterns in one pass, so the cost doesn't
+ * depend on the count of the patterns. The syntax is the same as {@link Glob}.
+ */
+public final class GlobSet {
+
+    private static final int[] NO_PATTERNS = new int[0];
+
+    private static final GlobSet EMPTY = compile(new ArrayList<>());
+
+    private final List<String> patterns;
+
+    private final char[][] keys;
+
+    private final int[][] next;
+
+    private final int[] anyChar;
+
+    private final int[] anySequence;
+
+    private final boolean[] loop;
+
+    private final int[][] terminals;
+
+    private GlobSet(List<String> patterns, char[][] keys, int[][] next, int[] anyChar, int[] anySequence, boolean[] loop,
+                    int[][] terminals) {
+        this.patterns = patterns;
+        this.keys = keys;
+        this.next = next;
+        this.anyChar = anyChar;
+        this.anySequence = anySequence;
+        this.loop = loop;
+        this.terminals = terminals;
+    }
+
+    /**
+     * The set without the patterns.
+     *
+     * @return the empty set.
+     */
+    public static GlobSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compile the patterns.
+     *
+     * @param patterns the glob patterns.
+     * @return the compiled set.
+     */
+    public static GlobSet compile(List<String> patterns) {
+        List<Builder> nodes = new ArrayList<>();
+        nodes.add(new Builder(false));
+        for (int id = 0; id < patterns.size(); id++) {
+            String pattern = patterns.get(id);
+            if (pattern == null) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char ch = pattern.charAt(i);
+                Builder current = nodes.get(node);
+                if (ch == '*') {
+                    if (current.loop) {
+                        continue;
+                    }
+                    if (current.anySequence == -1) {
+                        current.anySequence = nodes.size();
+                        nodes.add(new Builder(true));
+                    }
+                    node = current.anySequence;
+                } else if (ch == '?') {
+                    if (current.anyChar == -1) {
+                        current.anyChar = nodes.size();
+                        nodes.add(new Builder(false));
+                    }
+                    node = current.anyChar;
+                } else {
+                    Integer target = current.children.get(Character.toLowerCase(ch));
+                    if (target == null) {
+                        target = nodes.size();
+                        current.children.put(Character.toLowerCase(ch), target);
+                        nodes.add(new Builder(false));
+                    }
+                    node = target;
+                }
+            }
+            nodes.get(node).terminals.add(id);
+        }
+
+        int count = nodes.size();
+        char[][] keys = new char[count][];
+        int[][] next = new int[count][];
+        int[] anyChar = new int[count];
+        int[] anySequence = new int[count];
+        boolean[] loop = new boolean[count];
+        int[][] terminals = new int[count][];
+        for (int i = 0; i < count; i++) {
+            Builder node = nodes.get(i);
+            keys[i] = new char[node.children.size()];
+            next[i] = new int[node.children.size()];
+            int j = 0;
+            for (Map.Entry<Character, Integer> entry : node.children.entrySet()) {
+                keys[i][j] = entry.getKey();
+                next[i][j] = entry.getValue();
+                j++;
+            }
+            anyChar[i] = node.anyChar;
+            anySequence[i] = node.anySequence;
+            loop[i] = node.loop;
+            terminals[i] = node.terminals.isEmpty() ? NO_PATTERNS : node.terminals.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return new GlobSet(new ArrayList<>(patterns), keys, next, anyChar, anySequence, loop, terminals);
+    }
+
+    /**
+     * Check if the value matches any pattern.
+     *
+     * @param value the value.
+     * @return {@code true} if the value matches.
+     */
+    public boolean matches(CharSequence value) {
+        return firstMatch(value) != -1;
+    }
+
+    /**
+     * Find the first pattern which matches the value.
+     *
+     * @param value the value.
+     * @return the index of the first matched pattern or -1 if no pattern matches.
+     */
+    public int firstMatch(CharSequence value) {
+        return firstMatch(value, null);
+    }
+
+    /**
+     * Find the first accepted pattern which matches the value.
+     *
+     * @param value  the value.
+     * @param accept the filter of the pattern indexes or {@code null} to accept all patterns.
+     * @return the index of the first matched pattern or -1 if no pattern matches.
+     */
+    public int firstMatch(CharSequence value, IntPredicate accept) {
+        if (value == null || patterns.isEmpty()) {
+            return -1;
+        }
+        State state = new State(keys.length);
+        state.generation++;
+        add(state, 0);
+        for (int i = 0; i < value.length() && state.size > 0; i++) {
+            char ch = Character.toLowerCase(value.charAt(i));
+            int[] current = state.current;
+            int size = state.size;
+            state.swap();
+            for (int j = 0; j < size; j++) {
+                int node = current[j];
+                if (loop[node]) {
+                    add(state, node);
+                }
+                int target = step(node, ch);
+                if (target != -1) {
+                    add(state, target);
+                }
+                if (anyChar[node] != -1) {
+                    add(state, anyChar[node]);
+                }
+            }
+        }
+        int first = -1;
+        for (int j = 0; j < state.size; j++) {
+            for (int id : terminals[state.current[j]]) {
+                if ((first == -1 || id < first) && (accept == null || accept.test(id))) {
+                    first = id;
+                }
+            }
+        }
+        return first;
+    }
+
+    private void add(State state, int node) {
+        if (state.marks[node] == state.generation) {
+            return;
+        }
+        state.marks[node] = state.generation;
+        state.current[state.size++] = node;
+        if (anySequence[node] != -1) {
+            add(state, anySequence[node]);
+        }
+    }
+
+    private int step(int node, char ch) {
+        int index = Arrays.binarySearch(keys[node], ch);
+        return index < 0 ? -1 : next[node][index];
+    }
+
+    /**
+     * The pattern.
+     *
+     * @param index the index of the pattern.
+     * @return the pattern.
+     */
+    public String getPattern(int index) {
+        return patterns.get(index);
+    }
+
+    /**
+     * The count of the patterns.
+     *
+     * @return the count of the patterns.
+     */
+    public int size() {
+        return patterns.size();
+    }
+
+    /**
+     * The active nodes of the automaton.
+     */
+    private static final class State {
+
+        private int[] current;
+
+        private int[] spare;
+
+        private final int[] marks;
+
+        private int size;
+
+        private int generation;
+
+        State(int nodes) {
+            this.current = new int[nodes];
+            this.spare = new int[nodes];
+            this.marks = new int[nodes];
+        }
+
+        void swap() {
+            int[] previous = current;
+            current = spare;
+            spare = previous;
+            size = 0;
+            generation++;
+        }
+    }
+
+    /**
+     * The mutable node used to compile the automaton.
+     */
+    private static final class Builder {
+
+        private final Map<Character, Integer> children = new TreeMap<>();
+
+        private final List<Integer> terminals = new ArrayList<>();
+
+        private final boolean loop;
+
+        private int anyChar = -1;
+
+        private int anySequence = -1;
+
+        Builder(boolean loop) {
+            this.loop = loop;
+        }
+    }
+}
@@ -20,6 +20,9 @@ import java.util.Optional;
 
 /**
  * Matrix id (MXID) util class.
+ * <br>
+ * The identifiers which are inspected repeatedly should be parsed once into the interned {@link UserId}, {@link RoomId},
+ * {@link EventId}, {@link RoomAlias} or {@link ServerName}.
  */
 public class Id {
 
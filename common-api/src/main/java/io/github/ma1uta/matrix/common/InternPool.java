@@ -0,0 +1,87 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Bounded concurrent intern pool.
+ * <br>
+ * Equal values share the single instance while the pool is not full. The full pool is cleared, so the pool keeps
+ * the current working set instead of the values which were seen first.
+ *
+ * @param <T> the type of the interned values.
+ */
+public class InternPool<T> {
+
+    /**
+     * The default maximum size of the pool.
+     */
+    public static final int DEFAULT_MAX_SIZE = 100_000;
+
+    private final Map<String, T> pool = new ConcurrentHashMap<>();
+
+    private final Function<String, T> factory;
+
+    private final int maxSize;
+
+    public InternPool(Function<String, T> factory) {
+        this(factory, DEFAULT_MAX_SIZE);
+    }
+
+    public InternPool(Function<String, T> factory, int maxSize) {
+        this.factory = factory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the shared instance of the value.
+     *
+     * @param value the string value.
+     * @return the shared instance.
+     */
+    public T intern(String value) {
+        T instance = pool.get(value);
+        if (instance != null) {
+            return instance;
+        }
+        instance = factory.apply(value);
+        if (pool.size() >= maxSize) {
+            pool.clear();
+        }
+        T previous = pool.putIfAbsent(value, instance);
+        return previous != null ? previous : instance;
+    }
+
+    /**
+     * Count of the interned values.
+     *
+     * @return the count of the interned values.
+     */
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * Remove all values.
+     */
+    public void clear() {
+        pool.clear();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * Parsed matrix identifier (sigil, localpart and the optional server name).
+ * <br>
+ * The identifier is parsed once: the colon offset is stored and the server name is resolved to the interned
+ * {@link ServerName}. The subclasses are interned too, so the repeated identifiers share the single instance.
+ */
+public abstract class MatrixId implements Comparable<MatrixId> {
+
+    private final String value;
+
+    private final int colon;
+
+    private final ServerName serverName;
+
+    protected MatrixId(String value, char sigil, boolean serverRequired) {
+        if (value == null || value.length() < 2 || value.charAt(0) != sigil) {
+            throw new IllegalArgumentException("Invalid identifier (expected the '" + sigil + "' sigil): " + value);
+        }
+        this.value = value;
+        this.colon = value.indexOf(':');
+        if (colon == -1) {
+            if (serverRequired) {
+                throw new IllegalArgumentException("Missing server name: " + value);
+            }
+            this.serverName = null;
+        } else {
+            this.serverName = ServerName.of(value.substring(colon + 1));
+        }
+    }
+
+    /**
+     * Parse the identifier by its sigil.
+     *
+     * @param value the identifier.
+     * @return the interned identifier.
+     * @throws IllegalArgumentException if the identifier is invalid.
+     */
+    public static MatrixId of(String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Empty identifier");
+        }
+        switch (value.charAt(0)) {
+            case Id.Sigil.USER:
+                return UserId.of(value);
+            case Id.Sigil.ROOM:
+                return RoomId.of(value);
+            case Id.Sigil.EVENT:
+                return EventId.of(value);
+            case Id.Sigil.ALIAS:
+                return RoomAlias.of(value);
+            default:
+                throw new IllegalArgumentException("Unknown sigil: " + value);
+        }
+    }
+
+    /**
+     * The full identifier.
+     *
+     * @return the identifier.
+     */
+    @JsonValue
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * The sigil.
+     *
+     * @return the sigil.
+     */
+    public char getSigil() {
+        return value.charAt(0);
+    }
+
+    /**
+     * The localpart (the opaque part for the identifiers without the server name).
+     *
+     * @return the localpart.
+     */
+    public String getLocalPart() {
+        return value.substring(1, colon == -1 ? value.length() : colon);
+    }
+
+    /**
+     * The server name.
+     *
+     * @return the server name or {@code null} if the identifier doesn't contain the server name.
+     */
+    public ServerName getServerName() {
+        return serverName;
+    }
+
+    /**
+     * Whether the identifier belongs to the server.
+     *
+     * @param server the server name.
+     * @return {@code true} if the identifier has the same server name, else {@code false}.
+     */
+    public boolean isFrom(ServerName server) {
+        return serverName != null && serverName.equals(server);
+    }
+
+    @Override
+    public int compareTo(MatrixId other) {
+        return value.compareTo(other.value);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || other != null && getClass() == other.getClass() && value.equals(((MatrixId) other).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import io.github.ma1uta.matrix.event.content.RoomPowerLevelsContent;
+import io.github.ma1uta.matrix.event.nested.NotificationPowerLevel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Immutable compiled view of the {@link RoomPowerLevelsContent}.
+ * <br>
+ * The user and the event levels are stored in the open-addressing tables of the interned keys and the primitive levels, the
+ * defaults are resolved when the view is compiled, so each check is the single table lookup.
+ * <br>
+ * The levels are kept as {@code long} values (the spec allows the integers up to 2<sup>53</sup> - 1) and the view remembers
+ * which keys were explicitly set, so the authorization rules can check the keys which were added, changed or removed.
+ */
+public final class PowerLevels {
+
+    /**
+     * The level required to ban a user.
+     */
+    public static final String BAN = "ban";
+
+    /**
+     * The default level required to send message events.
+     */
+    public static final String EVENTS_DEFAULT = "events_default";
+
+    /**
+     * The level required to invite a user.
+     */
+    public static final String INVITE = "invite";
+
+    /**
+     * The level required to kick a user.
+     */
+    public static final String KICK = "kick";
+
+    /**
+     * The level required to redact an event sent by another user.
+     */
+    public static final String REDACT = "redact";
+
+    /**
+     * The default level required to send state events.
+     */
+    public static final String STATE_DEFAULT = "state_default";
+
+    /**
+     * The default power level for every user in the room.
+     */
+    public static final String USERS_DEFAULT = "users_default";
+
+    /**
+     * The level required to trigger an @room notification.
+     */
+    public static final String ROOM_NOTIFICATION = "room";
+
+    /**
+     * The top-level keys of the power levels content with the single level.
+     */
+    public static final List<String> LEVELS = Collections.unmodifiableList(
+        Arrays.asList(USERS_DEFAULT, EVENTS_DEFAULT, STATE_DEFAULT, BAN, KICK, INVITE, REDACT));
+
+    private static final InternPool<String> KEYS = new InternPool<>(key -> key);
+
+    private final LevelTable users;
+
+    private final LevelTable events;
+
+    private final LevelTable levels;
+
+    private final LevelTable notifications;
+
+    private final long usersDefault;
+
+    private final long eventsDefault;
+
+    private final long stateDefault;
+
+    private final long ban;
+
+    private final long kick;
+
+    private final long invite;
+
+    private final long redact;
+
+    private final long notificationRoom;
+
+    private PowerLevels(LevelTable users, LevelTable events, LevelTable levels, LevelTable notifications) {
+        this.users = users;
+        this.events = events;
+        this.levels = levels;
+        this.notifications = notifications;
+        this.usersDefault = levels.get(USERS_DEFAULT, RoomPowerLevelsContent.DEFAULT_LOW_LEVEL);
+        this.eventsDefault = levels.get(EVENTS_DEFAULT, RoomPowerLevelsContent.DEFAULT_LOW_LEVEL);
+        this.stateDefault = levels.get(STATE_DEFAULT, RoomPowerLevelsContent.DEFAULT_MEDIUM_LEVEL);
+        this.ban = levels.get(BAN, RoomPowerLevelsContent.DEFAULT_MEDIUM_LEVEL);
+        this.kick = levels.get(KICK, RoomPowerLevelsContent.DEFAULT_MEDIUM_LEVEL);
+        this.invite = levels.get(INVITE, RoomPowerLevelsContent.DEFAULT_LOW_LEVEL);
+        this.redact = levels.get(REDACT, RoomPowerLevelsContent.DEFAULT_MEDIUM_LEVEL);
+        this.notificationRoom = notifications.get(ROOM_NOTIFICATION, RoomPowerLevelsContent.DEFAULT_MEDIUM_LEVEL);
+    }
+
+    /**
+     * Create the builder of the power levels, the levels which are not set have the spec defaults.
+     *
+     * @return the builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Compile the power levels.
+     * <br>
+     * The non-null fields of the content are the explicit levels. The content model has its own defaults of the unset fields
+     * (for example {@code invite} is 50), the spec defaults of the view apply only to the {@code null} fields.
+     *
+     * @param content the content of the power levels event.
+     * @return the compiled power levels.
+     */
+    public static PowerLevels compile(RoomPowerLevelsContent content) {
+        Builder builder = builder()
+            .level(USERS_DEFAULT, content.getUsersDefault())
+            .level(EVENTS_DEFAULT, content.getEventsDefault())
+            .level(STATE_DEFAULT, content.getStateDefault())
+            .level(BAN, content.getBan())
+            .level(KICK, content.getKick())
+            .level(INVITE, content.getInvite())
+            .level(REDACT, content.getRedact());
+        NotificationPowerLevel notifications = content.getNotifications();
+        if (notifications != null) {
+            builder.notification(ROOM_NOTIFICATION, notifications.getRoom());
+        }
+        if (content.getUsers() != null) {
+            content.getUsers().forEach(builder::user);
+        }
+        if (content.getEvents() != null) {
+            content.getEvents().forEach(builder::event);
+        }
+        return builder.build();
+    }
+
+    /**
+     * The power levels of the room without the power levels event.
+     *
+     * @param creator the room creator.
+     * @return the power levels.
+     */
+    public static PowerLevels initial(String creator) {
+        return builder()
+            .level(STATE_DEFAULT, RoomPowerLevelsContent.DEFAULT_LOW_LEVEL)
+            .user(creator, RoomPowerLevelsContent.DEFAULT_HIGH_LEVEL)
+            .build();
+    }
+
+    /**
+     * The level of the user.
+     *
+     * @param userId the user id.
+     * @return the level of the user or the users default.
+     */
+    public long getUserLevel(String userId) {
+        return users.get(userId, usersDefault);
+    }
+
+    /**
+     * The level required to send the event.
+     *
+     * @param type    the event type.
+     * @param isState {@code true} for the state events.
+     * @return the required level.
+     */
+    public long getEventLevel(String type, boolean isState) {
+        return events.get(type, isState ? stateDefault : eventsDefault);
+    }
+
+    /**
+     * The explicit level of the user.
+     *
+     * @param userId the user id.
+     * @param absent the value returned when the user has no explicit level.
+     * @return the level of the user or the {@code absent} value.
+     */
+    public long getExplicitUserLevel(String userId, long absent) {
+        return users.get(userId, absent);
+    }
+
+    /**
+     * The explicit level required to send the event.
+     *
+     * @param type   the event type.
+     * @param absent the value returned when the event type has no explicit level.
+     * @return the required level or the {@code absent} value.
+     */
+    public long getExplicitEventLevel(String type, long absent) {
+        return events.get(type, absent);
+    }
+
+    /**
+     * The explicit value of the top-level key (one of the {@link #LEVELS}).
+     *
+     * @param key    the key of the power levels content.
+     * @param absent the value returned when the key is not set.
+     * @return the level or the {@code absent} value.
+     */
+    public long getExplicitLevel(String key, long absent) {
+        return levels.get(key, absent);
+    }
+
+    /**
+     * The explicit level of the notification.
+     *
+     * @param key    the notification key.
+     * @param absent the value returned when the notification has no explicit level.
+     * @return the level or the {@code absent} value.
+     */
+    public long getExplicitNotificationLevel(String key, long absent) {
+        return notifications.get(key, absent);
+    }
+
+    /**
+     * Check if the user can send the event.
+     *
+     * @param type    the event type.
+     * @param isState {@code true} for the state events.
+     * @param userId  the sender.
+     * @return {@code true} if the user has the required level.
+     */
+    public boolean canSend(String type, boolean isState, String userId) {
+        return getUserLevel(userId) >= getEventLevel(type, isState);
+    }
+
+    /**
+     * Check if the user can kick the target (the user has the kick level and the higher level than the target).
+     *
+     * @param userId the user id.
+     * @param target the target user id.
+     * @return {@code true} if the user can kick the target.
+     */
+    public boolean canKick(String userId, String target) {
+        long level = getUserLevel(userId);
+        return level >= kick && level > getUserLevel(target);
+    }
+
+    /**
+     * Check if the user can ban the target (the user has the ban level and the higher level than the target).
+     *
+     * @param userId the user id.
+     * @param target the target user id.
+     * @return {@code true} if the user can ban the target.
+     */
+    public boolean canBan(String userId, String target) {
+        long level = getUserLevel(userId);
+        return level >= ban && level > getUserLevel(target);
+    }
+
+    /**
+     * Check if the user can invite.
+     *
+     * @param userId the user id.
+     * @return {@code true} if the user has the invite level.
+     */
+    public boolean canInvite(String userId) {
+        return getUserLevel(userId) >= invite;
+    }
+
+    /**
+     * Check if the user can redact the events of the other users.
+     *
+     * @param userId the user id.
+     * @return {@code true} if the user has the redact level.
+     */
+    public boolean canRedact(String userId) {
+        return getUserLevel(userId) >= redact;
+    }
+
+    /**
+     * Check if the user can trigger the @room notification.
+     *
+     * @param userId the user id.
+     * @return {@code true} if the user has the room notification level.
+     */
+    public boolean canNotifyRoom(String userId) {
+        return getUserLevel(userId) >= notificationRoom;
+    }
+
+    /**
+     * Visit the users with the explicit levels.
+     *
+     * @param visitor the visitor of the user id and the level.
+     */
+    public void forEachUser(ObjLongConsumer<String> visitor) {
+        users.forEach(visitor);
+    }
+
+    /**
+     * Visit the event types with the explicit levels.
+     *
+     * @param visitor the visitor of the event type and the level.
+     */
+    public void forEachEvent(ObjLongConsumer<String> visitor) {
+        events.forEach(visitor);
+    }
+
+    /**
+     * Visit the notifications with the explicit levels.
+     *
+     * @param visitor the visitor of the notification key and the level.
+     */
+    public void forEachNotification(ObjLongConsumer<String> visitor) {
+        notifications.forEach(visitor);
+    }
+
+    /**
+     * The count of the users with the explicit levels.
+     *
+     * @return the count of the users.
+     */
+    public int getUserCount() {
+        return users.size;
+    }
+
+    public long getUsersDefault() {
+        return usersDefault;
+    }
+
+    public long getEventsDefault() {
+        return eventsDefault;
+    }
+
+    public long getStateDefault() {
+        return stateDefault;
+    }
+
+    public long getBan() {
+        return ban;
+    }
+
+    public long getKick() {
+        return kick;
+    }
+
+    public long getInvite() {
+        return invite;
+    }
+
+    public long getRedact() {
+        return redact;
+    }
+
+    public long getNotificationRoom() {
+        return notificationRoom;
+    }
+
+    /**
+     * Builder of the power levels, the {@code null} keys and levels are ignored.
+     */
+    public static final class Builder {
+
+        private final Map<String, Long> users = new LinkedHashMap<>();
+
+        private final Map<String, Long> events = new LinkedHashMap<>();
+
+        private final Map<String, Long> levels = new LinkedHashMap<>();
+
+        private final Map<String, Long> notifications = new LinkedHashMap<>();
+
+        /**
+         * Set the level of the top-level key (one of the {@link PowerLevels#LEVELS}).
+         *
+         * @param key   the key of the power levels content.
+         * @param level the level.
+         * @return this builder.
+         */
+        public Builder level(String key, Number level) {
+            return put(levels, key, level);
+        }
+
+        /**
+         * Set the level of the user.
+         *
+         * @param userId the user id.
+         * @param level  the level.
+         * @return this builder.
+         */
+        public Builder user(String userId, Number level) {
+            return put(users, userId, level);
+        }
+
+        /**
+         * Set the level required to send the event.
+         *
+         * @param type  the event type.
+         * @param level the level.
+         * @return this builder.
+         */
+        public Builder event(String type, Number level) {
+            return put(events, type, level);
+        }
+
+        /**
+         * Set the level of the notification.
+         *
+         * @param key   the notification key.
+         * @param level the level.
+         * @return this builder.
+         */
+        public Builder notification(String key, Number level) {
+            return put(notifications, key, level);
+        }
+
+        /**
+         * Compile the power levels.
+         *
+         * @return the compiled power levels.
+         */
+        public PowerLevels build() {
+            return new PowerLevels(LevelTable.of(users), LevelTable.of(events), LevelTable.of(levels), LevelTable.of(notifications));
+        }
+
+        private Builder put(Map<String, Long> target, String key, Number level) {
+            if (key != null && level != null) {
+                target.put(key, level.longValue());
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Open-addressing table of the interned keys and the primitive levels with the linear probing.
+     */
+    private static final class LevelTable {
+
+        private static final int MIN_CAPACITY = 2;
+
+        private static final int HASH_SPREAD = 16;
+
+        private final String[] keys;
+
+        private final long[] levels;
+
+        private final int mask;
+
+        private int size;
+
+        LevelTable(int expected) {
+            // the load factor is at most 3/4.
+            int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expected + expected / 3 + 1) - 1) << 1;
+            this.keys = new String[capacity];
+            this.levels = new long[capacity];
+            this.mask = capacity - 1;
+        }
+
+        static LevelTable of(Map<String, Long> values) {
+            LevelTable table = new LevelTable(values.size());
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                table.put(entry.getKey(), entry.getValue());
+            }
+            return table;
+        }
+
+        void put(String key, long level) {
+            int slot = slot(key);
+            while (keys[slot] != null) {
+                if (keys[slot].equals(key)) {
+                    levels[slot] = level;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = KEYS.intern(key);
+            levels[slot] = level;
+            size++;
+        }
+
+        long get(String key, long defaultLevel) {
+            if (key == null) {
+                return defaultLevel;
+            }
+            int slot = slot(key);
+            String candidate;
+            while ((candidate = keys[slot]) != null) {
+                if (candidate == key || candidate.equals(key)) {
+                    return levels[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return defaultLevel;
+        }
+
+        void forEach(ObjLongConsumer<String> visitor) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    visitor.accept(keys[i], levels[i]);
+                }
+            }
+        }
+
+        private int slot(String key) {
+            int hash = key.hashCode();
+            return (hash ^ (hash >>> HASH_SPREAD)) & mask;
+        }
+    }
+}
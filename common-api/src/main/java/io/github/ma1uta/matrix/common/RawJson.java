@@ -0,0 +1,70 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import java.util.Arrays;
+
+/**
+ * Original UTF-8 json of the object (the slice of the received bytes).
+ */
+public final class RawJson {
+
+    private final byte[] bytes;
+
+    private final int offset;
+
+    private final int length;
+
+    public RawJson(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public RawJson(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException("Invalid slice: " + offset + ", " + length);
+        }
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * The shared buffer (the json is located at the {@link #getOffset()}).
+     *
+     * @return the buffer.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Copy of the json.
+     *
+     * @return the json.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+}
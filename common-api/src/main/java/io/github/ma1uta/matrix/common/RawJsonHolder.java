@@ -0,0 +1,41 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+/**
+ * Object which can carry its original json.
+ * <br>
+ * The original json is dropped by the setters of the object, so the unmodified object can be written as the original bytes.
+ * The setters of the attached unsigned data drop the original json of the owner too. The other nested objects (for example the
+ * event content) aren't tracked: set them again (or reset the original json) after the in-place modification.
+ */
+public interface RawJsonHolder {
+
+    /**
+     * The original json.
+     *
+     * @return the original json or {@code null} if the object was modified or was created without the json.
+     */
+    RawJson getRawJson();
+
+    /**
+     * Attach the original json.
+     *
+     * @param rawJson the original json or {@code null} to drop it.
+     */
+    void setRawJson(RawJson rawJson);
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import javax.json.bind.adapter.JsonbAdapter;
+import javax.json.bind.annotation.JsonbTypeAdapter;
+
+/**
+ * Room alias (#alias:server).
+ */
+@JsonbTypeAdapter(RoomAlias.Adapter.class)
+public final class RoomAlias extends MatrixId {
+
+    private static final InternPool<RoomAlias> POOL = new InternPool<>(RoomAlias::new);
+
+    private RoomAlias(String value) {
+        super(value, Id.Sigil.ALIAS, true);
+    }
+
+    /**
+     * Get the interned room alias.
+     *
+     * @param value the room alias.
+     * @return the room alias.
+     * @throws IllegalArgumentException if the room alias is invalid.
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static RoomAlias of(String value) {
+        return POOL.intern(value);
+    }
+
+    /**
+     * JSON-B adapter.
+     */
+    public static class Adapter implements JsonbAdapter<RoomAlias, String> {
+
+        @Override
+        public String adaptToJson(RoomAlias obj) {
+            return obj.getValue();
+        }
+
+        @Override
+        public RoomAlias adaptFromJson(String obj) {
+            return RoomAlias.of(obj);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import javax.json.bind.adapter.JsonbAdapter;
+import javax.json.bind.annotation.JsonbTypeAdapter;
+
+/**
+ * Room ID (!opaque:server).
+ */
+@JsonbTypeAdapter(RoomId.Adapter.class)
+public final class RoomId extends MatrixId {
+
+    private static final InternPool<RoomId> POOL = new InternPool<>(RoomId::new);
+
+    private RoomId(String value) {
+        super(value, Id.Sigil.ROOM, true);
+    }
+
+    /**
+     * Get the interned room id.
+     *
+     * @param value the room id.
+     * @return the room id.
+     * @throws IllegalArgumentException if the room id is invalid.
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static RoomId of(String value) {
+        return POOL.intern(value);
+    }
+
+    /**
+     * JSON-B adapter.
+     */
+    public static class Adapter implements JsonbAdapter<RoomId, String> {
+
+        @Override
+        public String adaptToJson(RoomId obj) {
+            return obj.getValue();
+        }
+
+        @Override
+        public RoomId adaptFromJson(String obj) {
+            return RoomId.of(obj);
+        }
+    }
+}
@@ -0,0 +1,609 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import io.github.ma1uta.matrix.event.StateEvent;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Persistent room state: the state events by the {@code (type, state_key)} pairs.
+ * <br>
+ * The state is the hash array mapped trie, every change returns the new state which shares the unchanged nodes with the previous
+ * one. The state is immutable, so the readers (sync, auth checks) hold a consistent snapshot without the locks and the copies
+ * while the writer publishes the new states (for example, via {@link java.util.concurrent.atomic.AtomicReference}). The
+ * {@link #diff(RoomState, DiffConsumer)} skips the shared nodes, so the diff of the close states costs the size of the changes.
+ * <br>
+ * The keys are hashed by the keyed SipHash, so the remote servers can't flood the collision nodes with the chosen state
+ * keys.
+ */
+public final class RoomState implements Iterable<StateEvent<?>> {
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final int HASH_BITS = 32;
+
+    private static final int MAX_DEPTH = HASH_BITS / BITS + 2;
+
+    private static final BitmapNode EMPTY_NODE = new BitmapNode(0, 0, new Object[0]);
+
+    private static final RoomState EMPTY = new RoomState(EMPTY_NODE, 0);
+
+    private final Node root;
+
+    private final int size;
+
+    private RoomState(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * The state without the events.
+     *
+     * @return the empty state.
+     */
+    public static RoomState empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Create the state.
+     *
+     * @param events the state events.
+     * @return the state with the events (the later events replace the earlier ones with the same type and state key).
+     */
+    public static RoomState of(Iterable<? extends StateEvent<?>> events) {
+        RoomState state = EMPTY;
+        for (StateEvent<?> event : events) {
+            state = state.put(event);
+        }
+        return state;
+    }
+
+    /**
+     * Find the state event.
+     *
+     * @param type     the event type.
+     * @param stateKey the state key.
+     * @return the state event or {@code null}.
+     */
+    public StateEvent<?> get(String type, String stateKey) {
+        Entry entry = root.find(hash(type, stateKey), type, stateKey, 0);
+        return entry != null ? entry.event : null;
+    }
+
+    /**
+     * Set the state event.
+     *
+     * @param event the state event.
+     * @return the new state (or this state if the event is already set).
+     */
+    public RoomState put(StateEvent<?> event) {
+        String type = event.getType();
+        String stateKey = event.getStateKey();
+        if (type == null || stateKey == null) {
+            throw new IllegalArgumentException("Missing type or state key of the state event");
+        }
+        int[] sizeChange = new int[1];
+        Node newRoot = root.put(new Entry(type, stateKey, hash(type, stateKey), event), 0, sizeChange);
+        return newRoot != root ? new RoomState(newRoot, size + sizeChange[0]) : this;
+    }
+
+    /**
+     * Remove the state event.
+     *
+     * @param type     the event type.
+     * @param stateKey the state key.
+     * @return the new state (or this state if there is no such event).
+     */
+    public RoomState remove(String type, String stateKey) {
+        Node newRoot = root.remove(hash(type, stateKey), type, stateKey, 0);
+        return newRoot != root ? new RoomState(newRoot, size - 1) : this;
+    }
+
+    /**
+     * The count of the state events.
+     *
+     * @return the count of the events.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check the state has no events.
+     *
+     * @return {@code true} if the state is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Report the differences between this state and the other state. The events are compared by the reference.
+     *
+     * @param other    the other state.
+     * @param consumer the consumer of the changes.
+     */
+    public void diff(RoomState other, DiffConsumer consumer) {
+        diff(root, other.root, 0, consumer);
+    }
+
+    /**
+     * The state as the map.
+     *
+     * @return the new map of the state events by the state keys by the event types.
+     */
+    public Map<String, Map<String, StateEvent<?>>> toMap() {
+        Map<String, Map<String, StateEvent<?>>> result = new HashMap<>();
+        Iterator<Entry> entries = new EntryIterator(root);
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            result.computeIfAbsent(entry.type, type -> new HashMap<>()).put(entry.stateKey, entry.event);
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<StateEvent<?>> iterator() {
+        Iterator<Entry> entries = new EntryIterator(root);
+        return new Iterator<StateEvent<?>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public StateEvent<?> next() {
+                return entries.next().event;
+            }
+        };
+    }
+
+    /**
+     * The consumer of the state differences.
+     */
+    @FunctionalInterface
+    public interface DiffConsumer {
+
+        /**
+         * Consume the difference.
+         *
+         * @param type     the event type.
+         * @param stateKey the state key.
+         * @param before   the event of this state or {@code null} if it is added.
+         * @param after    the event of the other state or {@code null} if it is removed.
+         */
+        void accept(String type, String stateKey, StateEvent<?> before, StateEvent<?> after);
+    }
+
+    private static void diff(Node before, Node after, int shift, DiffConsumer consumer) {
+        if (before == after) {
+            return;
+        }
+        if (shift >= HASH_BITS) {
+            diffEntries((CollisionNode) before, (CollisionNode) after, consumer);
+            return;
+        }
+        BitmapNode left = (BitmapNode) before;
+        BitmapNode right = (BitmapNode) after;
+        int bits = left.dataMap | left.nodeMap | right.dataMap | right.nodeMap;
+        while (bits != 0) {
+            int bit = Integer.lowestOneBit(bits);
+            bits &= ~bit;
+            Entry leftEntry = left.entry(bit);
+            Entry rightEntry = right.entry(bit);
+            if (leftEntry != null && rightEntry != null && leftEntry.is(rightEntry.type, rightEntry.stateKey)) {
+                if (leftEntry.event != rightEntry.event) {
+                    consumer.accept(leftEntry.type, leftEntry.stateKey, leftEntry.event, rightEntry.event);
+                }
+            } else {
+                diff(left.child(bit, leftEntry, shift + BITS), right.child(bit, rightEntry, shift + BITS), shift + BITS, consumer);
+            }
+        }
+    }
+
+    private static void diffEntries(CollisionNode before, CollisionNode after, DiffConsumer consumer) {
+        for (Entry entry : before.entries) {
+            Entry other = after.find(entry.hash, entry.type, entry.stateKey, HASH_BITS);
+            if (other == null || other.event != entry.event) {
+                consumer.accept(entry.type, entry.stateKey, entry.event, other != null ? other.event : null);
+            }
+        }
+        for (Entry entry : after.entries) {
+            if (before.find(entry.hash, entry.type, entry.stateKey, HASH_BITS) == null) {
+                consumer.accept(entry.type, entry.stateKey, null, entry.event);
+            }
+        }
+    }
+
+    private static int hash(String type, String stateKey) {
+        return SipHash.hash(type, stateKey);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /**
+     * The node with the single entry.
+     */
+    private static Node singleNode(Entry entry, int shift) {
+        if (shift >= HASH_BITS) {
+            return new CollisionNode(new Entry[] {entry});
+        }
+        return new BitmapNode(bit(entry.hash, shift), 0, new Object[] {entry});
+    }
+
+    /**
+     * The node with two entries with the different keys.
+     */
+    private static Node pairNode(Entry first, Entry second, int shift) {
+        if (shift >= HASH_BITS) {
+            return new CollisionNode(new Entry[] {first, second});
+        }
+        int firstBit = bit(first.hash, shift);
+        int secondBit = bit(second.hash, shift);
+        if (firstBit == secondBit) {
+            return new BitmapNode(0, firstBit, new Object[] {pairNode(first, second, shift + BITS)});
+        }
+        Object[] content = Integer.compareUnsigned(firstBit, secondBit) < 0 ? new Object[] {first, second} : new Object[] {second, first};
+        return new BitmapNode(firstBit | secondBit, 0, content);
+    }
+
+    /**
+     * The state entry.
+     */
+    private static final class Entry {
+
+        private final String type;
+
+        private final String stateKey;
+
+        private final int hash;
+
+        private final StateEvent<?> event;
+
+        Entry(String type, String stateKey, int hash, StateEvent<?> event) {
+            this.type = type;
+            this.stateKey = stateKey;
+            this.hash = hash;
+            this.event = event;
+        }
+
+        boolean is(String otherType, String otherStateKey) {
+            return type.equals(otherType) && stateKey.equals(otherStateKey);
+        }
+    }
+
+    /**
+     * The trie node.
+     */
+    private abstract static class Node {
+
+        abstract Entry find(int hash, String type, String stateKey, int shift);
+
+        abstract Node put(Entry entry, int shift, int[] sizeChange);
+
+        abstract Node remove(int hash, String type, String stateKey, int shift);
+
+        /**
+         * The only entry of the node.
+         *
+         * @return the entry or {@code null} if the node has other entries or the child nodes.
+         */
+        abstract Entry single();
+
+        abstract int arity();
+
+        /**
+         * The entry or the child node.
+         *
+         * @param index the index.
+         * @return the {@link Entry} or the {@link Node}.
+         */
+        abstract Object get(int index);
+    }
+
+    /**
+     * The node with the entries and the child nodes by the 5 bits of the hash: the entries and then the nodes, in the order of the
+     * bits.
+     */
+    private static final class BitmapNode extends Node {
+
+        private final int dataMap;
+
+        private final int nodeMap;
+
+        private final Object[] content;
+
+        BitmapNode(int dataMap, int nodeMap, Object[] content) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.content = content;
+        }
+
+        Entry entry(int bit) {
+            return (dataMap & bit) != 0 ? (Entry) content[dataIndex(bit)] : null;
+        }
+
+        /**
+         * The child node at the bit.
+         *
+         * @param bit   the bit.
+         * @param entry the entry at the bit or {@code null}.
+         * @param shift the shift of the child node.
+         * @return the child node, the single entry node or the empty node.
+         */
+        Node child(int bit, Entry entry, int shift) {
+            if (entry != null) {
+                return singleNode(entry, shift);
+            }
+            if ((nodeMap & bit) != 0) {
+                return (Node) content[nodeIndex(bit)];
+            }
+            return shift >= HASH_BITS ? new CollisionNode(new Entry[0]) : EMPTY_NODE;
+        }
+
+        @Override
+        Entry find(int hash, String type, String stateKey, int shift) {
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                Entry entry = (Entry) content[dataIndex(bit)];
+                return entry.is(type, stateKey) ? entry : null;
+            }
+            if ((nodeMap & bit) != 0) {
+                return ((Node) content[nodeIndex(bit)]).find(hash, type, stateKey, shift + BITS);
+            }
+            return null;
+        }
+
+        @Override
+        Node put(Entry entry, int shift, int[] sizeChange) {
+            int bit = bit(entry.hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = dataIndex(bit);
+                Entry existing = (Entry) content[index];
+                if (existing.is(entry.type, entry.stateKey)) {
+                    if (existing.event == entry.event) {
+                        return this;
+                    }
+                    Object[] newContent = content.clone();
+                    newContent[index] = entry;
+                    return new BitmapNode(dataMap, nodeMap, newContent);
+                }
+                sizeChange[0] = 1;
+                Node child = pairNode(existing, entry, shift + BITS);
+                int newNodeMap = nodeMap | bit;
+                int nodeIndex = Integer.bitCount(dataMap) - 1 + Integer.bitCount(newNodeMap & (bit - 1));
+                Object[] newContent = new Object[content.length];
+                System.arraycopy(content, 0, newContent, 0, index);
+                System.arraycopy(content, index + 1, newContent, index, nodeIndex - index);
+                newContent[nodeIndex] = child;
+                System.arraycopy(content, nodeIndex + 1, newContent, nodeIndex + 1, content.length - nodeIndex - 1);
+                return new BitmapNode(dataMap & ~bit, newNodeMap, newContent);
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = nodeIndex(bit);
+                Node child = (Node) content[index];
+                Node newChild = child.put(entry, shift + BITS, sizeChange);
+                if (newChild == child) {
+                    return this;
+                }
+                Object[] newContent = content.clone();
+                newContent[index] = newChild;
+                return new BitmapNode(dataMap, nodeMap, newContent);
+            }
+            sizeChange[0] = 1;
+            int index = dataIndex(bit);
+            Object[] newContent = new Object[content.length + 1];
+            System.arraycopy(content, 0, newContent, 0, index);
+            newContent[index] = entry;
+            System.arraycopy(content, index, newContent, index + 1, content.length - index);
+            return new BitmapNode(dataMap | bit, nodeMap, newContent);
+        }
+
+        @Override
+        Node remove(int hash, String type, String stateKey, int shift) {
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = dataIndex(bit);
+                if (!((Entry) content[index]).is(type, stateKey)) {
+                    return this;
+                }
+                Object[] newContent = new Object[content.length - 1];
+                System.arraycopy(content, 0, newContent, 0, index);
+                System.arraycopy(content, index + 1, newContent, index, content.length - index - 1);
+                return new BitmapNode(dataMap & ~bit, nodeMap, newContent);
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = nodeIndex(bit);
+                Node child = (Node) content[index];
+                Node newChild = child.remove(hash, type, stateKey, shift + BITS);
+                if (newChild == child) {
+                    return this;
+                }
+                Entry single = newChild.single();
+                if (single == null) {
+                    Object[] newContent = content.clone();
+                    newContent[index] = newChild;
+                    return new BitmapNode(dataMap, nodeMap, newContent);
+                }
+                int newDataMap = dataMap | bit;
+                int dataIndex = Integer.bitCount(newDataMap & (bit - 1));
+                Object[] newContent = new Object[content.length];
+                System.arraycopy(content, 0, newContent, 0, dataIndex);
+                newContent[dataIndex] = single;
+                System.arraycopy(content, dataIndex, newContent, dataIndex + 1, index - dataIndex);
+                System.arraycopy(content, index + 1, newContent, index + 1, content.length - index - 1);
+                return new BitmapNode(newDataMap, nodeMap & ~bit, newContent);
+            }
+            return this;
+        }
+
+        @Override
+        Entry single() {
+            return nodeMap == 0 && Integer.bitCount(dataMap) == 1 ? (Entry) content[0] : null;
+        }
+
+        @Override
+        int arity() {
+            return content.length;
+        }
+
+        @Override
+        Object get(int index) {
+            return content[index];
+        }
+
+        private int dataIndex(int bit) {
+            return Integer.bitCount(dataMap & (bit - 1));
+        }
+
+        private int nodeIndex(int bit) {
+            return Integer.bitCount(dataMap) + Integer.bitCount(nodeMap & (bit - 1));
+        }
+    }
+
+    /**
+     * The node of the entries with the same hash.
+     */
+    private static final class CollisionNode extends Node {
+
+        private final Entry[] entries;
+
+        CollisionNode(Entry[] entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        Entry find(int hash, String type, String stateKey, int shift) {
+            for (Entry entry : entries) {
+                if (entry.is(type, stateKey)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Node put(Entry entry, int shift, int[] sizeChange) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].is(entry.type, entry.stateKey)) {
+                    if (entries[i].event == entry.event) {
+                        return this;
+                    }
+                    Entry[] newEntries = entries.clone();
+                    newEntries[i] = entry;
+                    return new CollisionNode(newEntries);
+                }
+            }
+            sizeChange[0] = 1;
+            Entry[] newEntries = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = entry;
+            return new CollisionNode(newEntries);
+        }
+
+        @Override
+        Node remove(int hash, String type, String stateKey, int shift) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].is(type, stateKey)) {
+                    Entry[] newEntries = new Entry[entries.length - 1];
+                    System.arraycopy(entries, 0, newEntries, 0, i);
+                    System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+                    return new CollisionNode(newEntries);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        Entry single() {
+            return entries.length == 1 ? entries[0] : null;
+        }
+
+        @Override
+        int arity() {
+            return entries.length;
+        }
+
+        @Override
+        Object get(int index) {
+            return entries[index];
+        }
+    }
+
+    /**
+     * The depth-first iterator of the entries.
+     */
+    private static final class EntryIterator implements Iterator<Entry> {
+
+        private final Node[] nodes = new Node[MAX_DEPTH];
+
+        private final int[] positions = new int[MAX_DEPTH];
+
+        private int depth;
+
+        private Entry next;
+
+        EntryIterator(Node root) {
+            nodes[0] = root;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry result = next;
+            advance();
+            return result;
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Node node = nodes[depth];
+                if (positions[depth] == node.arity()) {
+                    depth--;
+                    continue;
+                }
+                Object child = node.get(positions[depth]++);
+                if (child instanceof Entry) {
+                    next = (Entry) child;
+                    return;
+                }
+                depth++;
+                nodes[depth] = (Node) child;
+                positions[depth] = 0;
+            }
+        }
+    }
+}
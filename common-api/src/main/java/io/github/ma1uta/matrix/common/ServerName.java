@@ -0,0 +1,181 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import javax.json.bind.adapter.JsonbAdapter;
+import javax.json.bind.annotation.JsonbTypeAdapter;
+
+/**
+ * Server name (hostname or IP literal with the optional port).
+ * <br>
+ * The server name is parsed once, the instances are interned.
+ */
+@JsonbTypeAdapter(ServerName.Adapter.class)
+public final class ServerName implements Comparable<ServerName> {
+
+    private static final InternPool<ServerName> POOL = new InternPool<>(ServerName::new);
+
+    private static final int MAX_PORT = 65535;
+
+    private static final int DECIMAL = 10;
+
+    private static final int IPV4_DOTS = 3;
+
+    private final String value;
+
+    private final int portColon;
+
+    private final int port;
+
+    private ServerName(String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Empty server name");
+        }
+        this.value = value;
+        int colon;
+        if (value.charAt(0) == '[') {
+            int end = value.indexOf(']');
+            if (end == -1) {
+                throw new IllegalArgumentException("Invalid IPv6 literal: " + value);
+            }
+            colon = end + 1 < value.length() ? end + 1 : -1;
+        } else {
+            colon = value.lastIndexOf(':');
+        }
+        if (colon != -1 && (colon >= value.length() - 1 || value.charAt(colon) != ':')) {
+            throw new IllegalArgumentException("Invalid server name: " + value);
+        }
+        this.portColon = colon;
+        this.port = colon == -1 ? -1 : parsePort(value, colon + 1);
+    }
+
+    private static int parsePort(String value, int start) {
+        int port = 0;
+        for (int i = start; i < value.length(); i++) {
+            int digit = Character.digit(value.charAt(i), DECIMAL);
+            if (digit == -1 || port > MAX_PORT) {
+                throw new IllegalArgumentException("Invalid port: " + value);
+            }
+            port = port * DECIMAL + digit;
+        }
+        if (port > MAX_PORT) {
+            throw new IllegalArgumentException("Invalid port: " + value);
+        }
+        return port;
+    }
+
+    /**
+     * Get the interned server name.
+     *
+     * @param value the server name.
+     * @return the server name.
+     * @throws IllegalArgumentException if the server name is invalid.
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static ServerName of(String value) {
+        return POOL.intern(value);
+    }
+
+    /**
+     * The full server name.
+     *
+     * @return the server name.
+     */
+    @JsonValue
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * The hostname or the IP literal (IPv6 in the square brackets).
+     *
+     * @return the host.
+     */
+    public String getHost() {
+        return portColon == -1 ? value : value.substring(0, portColon);
+    }
+
+    /**
+     * The port.
+     *
+     * @return the port or -1 if the port is missing.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Whether the host is an IP literal (IPv4 address or the IPv6 address in the square brackets).
+     *
+     * @return {@code true} if the host is the IP literal, else {@code false}.
+     */
+    public boolean isIpLiteral() {
+        if (value.charAt(0) == '[') {
+            return true;
+        }
+        int end = portColon == -1 ? value.length() : portColon;
+        int dots = 0;
+        for (int i = 0; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '.') {
+                dots++;
+            } else if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return dots == IPV4_DOTS;
+    }
+
+    @Override
+    public int compareTo(ServerName other) {
+        return value.compareTo(other.value);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || other instanceof ServerName && value.equals(((ServerName) other).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+
+    /**
+     * JSON-B adapter.
+     */
+    public static class Adapter implements JsonbAdapter<ServerName, String> {
+
+        @Override
+        public String adaptToJson(ServerName obj) {
+            return obj.getValue();
+        }
+
+        @Override
+        public ServerName adaptFromJson(String obj) {
+            return ServerName.of(obj);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import java.security.SecureRandom;
+
+/**
+ * SipHash-1-3 of the string pairs with the random key of the process.
+ * <br>
+ * The strings which come from the remote servers (the event types, the state keys) can be chosen to collide by
+ * {@link String#hashCode()}, but not by the keyed hash, so the hash tables of these strings keep their expected cost.
+ * <br>
+ * The chars are packed by four into the 64-bit words, the message is the length of the first string, the chars of both strings
+ * and the total length, so the different pairs have the different messages.
+ */
+final class SipHash {
+
+    private static final long INIT_0 = 0x736f6d6570736575L;
+
+    private static final long INIT_1 = 0x646f72616e646f6dL;
+
+    private static final long INIT_2 = 0x6c7967656e657261L;
+
+    private static final long INIT_3 = 0x7465646279746573L;
+
+    private static final long FINALIZATION = 0xffL;
+
+    private static final int FINALIZATION_ROUNDS = 3;
+
+    private static final int ROTATE_A = 13;
+
+    private static final int ROTATE_B = 16;
+
+    private static final int ROTATE_C = 21;
+
+    private static final int ROTATE_D = 17;
+
+    private static final int HALF = 32;
+
+    private static final int CHARS_PER_WORD = 4;
+
+    private static final int CHAR_BITS = 16;
+
+    private static final long KEY_0;
+
+    private static final long KEY_1;
+
+    static {
+        SecureRandom random = new SecureRandom();
+        KEY_0 = random.nextLong();
+        KEY_1 = random.nextLong();
+    }
+
+    private SipHash() {
+        //singleton
+    }
+
+    /**
+     * The hash of the string pair.
+     *
+     * @param first  the first string.
+     * @param second the second string.
+     * @return the 32-bit hash.
+     */
+    static int hash(String first, String second) {
+        int firstLength = first.length();
+        int length = firstLength + second.length();
+        int words = (length + CHARS_PER_WORD - 1) / CHARS_PER_WORD;
+        long v0 = KEY_0 ^ INIT_0;
+        long v1 = KEY_1 ^ INIT_1;
+        long v2 = KEY_0 ^ INIT_2;
+        long v3 = KEY_1 ^ INIT_3;
+        for (int word = -1; word <= words; word++) {
+            long message;
+            if (word < 0) {
+                message = firstLength;
+            } else if (word == words) {
+                message = length;
+            } else {
+                message = 0;
+                int start = word * CHARS_PER_WORD;
+                int end = Math.min(length, start + CHARS_PER_WORD);
+                for (int index = start; index < end; index++) {
+                    char ch = index < firstLength ? first.charAt(index) : second.charAt(index - firstLength);
+                    message |= (long) ch << ((index - start) * CHAR_BITS);
+                }
+            }
+            v3 ^= message;
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, ROTATE_A) ^ v0;
+            v0 = Long.rotateLeft(v0, HALF);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, ROTATE_B) ^ v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, ROTATE_C) ^ v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, ROTATE_D) ^ v2;
+            v2 = Long.rotateLeft(v2, HALF);
+            v0 ^= message;
+        }
+        v2 ^= FINALIZATION;
+        for (int round = 0; round < FINALIZATION_ROUNDS; round++) {
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, ROTATE_A) ^ v0;
+            v0 = Long.rotateLeft(v0, HALF);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, ROTATE_B) ^ v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, ROTATE_C) ^ v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, ROTATE_D) ^ v2;
+            v2 = Long.rotateLeft(v2, HALF);
+        }
+        long hash = v0 ^ v1 ^ v2 ^ v3;
+        return (int) (hash ^ (hash >>> HALF));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import javax.json.bind.adapter.JsonbAdapter;
+import javax.json.bind.annotation.JsonbTypeAdapter;
+
+/**
+ * User ID (@localpart:server).
+ */
+@JsonbTypeAdapter(UserId.Adapter.class)
+public final class UserId extends MatrixId {
+
+    private static final InternPool<UserId> POOL = new InternPool<>(UserId::new);
+
+    private UserId(String value) {
+        super(value, Id.Sigil.USER, true);
+    }
+
+    /**
+     * Get the interned user id.
+     *
+     * @param value the user id.
+     * @return the user id.
+     * @throws IllegalArgumentException if the user id is invalid.
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static UserId of(String value) {
+        return POOL.intern(value);
+    }
+
+    /**
+     * JSON-B adapter.
+     */
+    public static class Adapter implements JsonbAdapter<UserId, String> {
+
+        @Override
+        public String adaptToJson(UserId obj) {
+            return obj.getValue();
+        }
+
+        @Override
+        public UserId adaptFromJson(String obj) {
+            return UserId.of(obj);
+        }
+    }
+}
@@ -16,11 +16,15 @@
 
 package io.github.ma1uta.matrix.event;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.common.RawJsonHolder;
 import io.github.ma1uta.matrix.event.content.EventContent;
 import io.swagger.v3.oas.annotations.media.Schema;
 
 import javax.json.bind.annotation.JsonbProperty;
+import javax.json.bind.annotation.JsonbTransient;
 
 /**
  * Event.
@@ -51,7 +55,7 @@ import javax.json.bind.annotation.JsonbProperty;
         Typing.class
     }
 )
-public abstract class Event<C extends EventContent> {
+public abstract class Event<C extends EventContent> implements RawJsonHolder {
 
     /**
      * The fields in this object will vary depending on the type of event. When interacting with the REST API, this is the HTTP body.
@@ -63,12 +67,38 @@ public abstract class Event<C extends EventContent> {
     )
     private C content;
 
+    /**
+     * The original json of the event.
+     */
+    private transient RawJson rawJson;
+
     public C getContent() {
         return content;
     }
 
     public void setContent(C content) {
         this.content = content;
+        markModified();
+    }
+
+    @JsonIgnore
+    @JsonbTransient
+    @Override
+    public RawJson getRawJson() {
+        return rawJson;
+    }
+
+    @JsonbTransient
+    @Override
+    public void setRawJson(RawJson rawJson) {
+        this.rawJson = rawJson;
+    }
+
+    /**
+     * Drop the original json after the modification.
+     */
+    protected void markModified() {
+        this.rawJson = null;
     }
 
     /**
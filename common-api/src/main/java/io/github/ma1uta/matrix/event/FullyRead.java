@@ -56,6 +56,7 @@ public class FullyRead extends Event<FullyReadContent> {
 
     public void setRoomId(String roomId) {
         this.roomId = roomId;
+        markModified();
     }
 
     @Override
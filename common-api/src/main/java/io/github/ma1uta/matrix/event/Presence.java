@@ -47,6 +47,7 @@ public class Presence extends Event<PresenceContent> {
 
     public void setSender(String sender) {
         this.sender = sender;
+        markModified();
     }
 
     @Override
@@ -60,6 +60,7 @@ public class Receipt extends Event<ReceiptContent> {
 
     public void setRoomId(String roomId) {
         this.roomId = roomId;
+        markModified();
     }
 
     @Override
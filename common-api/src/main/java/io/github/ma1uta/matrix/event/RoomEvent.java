@@ -102,6 +102,7 @@ public abstract class RoomEvent<C extends EventContent> extends Event<C> {
 
     public void setEventId(String eventId) {
         this.eventId = eventId;
+        markModified();
     }
 
     @JsonProperty("room_id")
@@ -111,6 +112,7 @@ public abstract class RoomEvent<C extends EventContent> extends Event<C> {
 
     public void setRoomId(String roomId) {
         this.roomId = roomId;
+        markModified();
     }
 
     public String getSender() {
@@ -119,6 +121,7 @@ public abstract class RoomEvent<C extends EventContent> extends Event<C> {
 
     public void setSender(String sender) {
         this.sender = sender;
+        markModified();
     }
 
     public Unsigned<C> getUnsigned() {
@@ -127,6 +130,10 @@ public abstract class RoomEvent<C extends EventContent> extends Event<C> {
 
     public void setUnsigned(Unsigned<C> unsigned) {
         this.unsigned = unsigned;
+        if (unsigned != null) {
+            unsigned.attachTo(this);
+        }
+        markModified();
     }
 
     @JsonProperty("origin_server_ts")
@@ -136,5 +143,6 @@ public abstract class RoomEvent<C extends EventContent> extends Event<C> {
 
     public void setOriginServerTs(Long originServerTs) {
         this.originServerTs = originServerTs;
+        markModified();
     }
 }
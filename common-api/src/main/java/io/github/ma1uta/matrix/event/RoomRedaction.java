@@ -62,5 +62,6 @@ public class RoomRedaction extends RoomEvent<RoomRedactionContent> {
 
     public void setRedacts(String redacts) {
         this.redacts = redacts;
+        markModified();
     }
 }
@@ -84,6 +84,7 @@ public abstract class StateEvent<C extends EventContent> extends RoomEvent<C> {
 
     public void setStateKey(String stateKey) {
         this.stateKey = stateKey;
+        markModified();
     }
 
     @JsonProperty("prev_content")
@@ -93,5 +94,6 @@ public abstract class StateEvent<C extends EventContent> extends RoomEvent<C> {
 
     public void setPrevContent(C prevContent) {
         this.prevContent = prevContent;
+        markModified();
     }
 }
@@ -53,6 +53,7 @@ public class Typing extends Event<TypingContent> {
 
     public void setRoomId(String roomId) {
         this.roomId = roomId;
+        markModified();
     }
 
     @Override
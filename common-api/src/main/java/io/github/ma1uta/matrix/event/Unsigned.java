@@ -17,6 +17,7 @@
 package io.github.ma1uta.matrix.event;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.github.ma1uta.matrix.common.RawJsonHolder;
 import io.github.ma1uta.matrix.event.content.EventContent;
 import io.swagger.v3.oas.annotations.media.Schema;
 
@@ -88,12 +89,18 @@ public class Unsigned<C extends EventContent> {
     @JsonbProperty("invite_room_state")
     private List<Event> inviteRoomState;
 
+    /**
+     * The object which original json contains this unsigned data.
+     */
+    private transient RawJsonHolder owner;
+
     public Long getAge() {
         return age;
     }
 
     public void setAge(Long age) {
         this.age = age;
+        markModified();
     }
 
     @JsonProperty("redacted_because")
@@ -103,6 +110,7 @@ public class Unsigned<C extends EventContent> {
 
     public void setRedactedBecause(Event redactedBecause) {
         this.redactedBecause = redactedBecause;
+        markModified();
     }
 
     @JsonProperty("transaction_id")
@@ -112,6 +120,7 @@ public class Unsigned<C extends EventContent> {
 
     public void setTransactionId(String transactionId) {
         this.transactionId = transactionId;
+        markModified();
     }
 
     @JsonProperty("prev_content")
@@ -121,6 +130,7 @@ public class Unsigned<C extends EventContent> {
 
     public void setPrevContent(C prevContent) {
         this.prevContent = prevContent;
+        markModified();
     }
 
     @JsonProperty("invite_room_state")
@@ -130,5 +140,23 @@ public class Unsigned<C extends EventContent> {
 
     public void setInviteRoomState(List<Event> inviteRoomState) {
         this.inviteRoomState = inviteRoomState;
+        markModified();
+    }
+
+    /**
+     * Attach to the object which original json contains this unsigned data.
+     * <br>
+     * The setters drop the original json of the owner.
+     *
+     * @param owner the owner or {@code null} to detach.
+     */
+    public void attachTo(RawJsonHolder owner) {
+        this.owner = owner;
+    }
+
+    private void markModified() {
+        if (owner != null) {
+            owner.setRawJson(null);
+        }
     }
 }
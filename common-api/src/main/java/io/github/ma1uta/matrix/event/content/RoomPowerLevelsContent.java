@@ -67,17 +67,17 @@ public class RoomPowerLevelsContent implements EventContent {
     /**
      * Default max level if unspecified.
      */
-    public static final byte DEFAULT_HIGH_LEVEL = 100;
+    public static final long DEFAULT_HIGH_LEVEL = 100;
 
     /**
      * Default medium level if unspecified.
      */
-    public static final byte DEFAULT_MEDIUM_LEVEL = 50;
+    public static final long DEFAULT_MEDIUM_LEVEL = 50;
 
     /**
      * Default lowest level if unspecified.
      */
-    public static final byte DEFAULT_LOW_LEVEL = 0;
+    public static final long DEFAULT_LOW_LEVEL = 0;
 
     /**
      * The level required to ban a user. Defaults to 50 if unspecified.
@@ -86,7 +86,7 @@ public class RoomPowerLevelsContent implements EventContent {
         description = "The level required to ban a user.",
         defaultValue = "50"
     )
-    private Byte ban = DEFAULT_MEDIUM_LEVEL;
+    private Long ban = DEFAULT_MEDIUM_LEVEL;
 
     /**
      * The level required to send specific event types. This is a mapping from event type to power level required.
@@ -94,7 +94,7 @@ public class RoomPowerLevelsContent implements EventContent {
     @Schema(
         description = "The level required to send specific event types. This is a mapping from event type to power level required."
     )
-    private Map<String, Byte> events;
+    private Map<String, Long> events;
 
     /**
      * The default level required to send message events. Can be overridden by the events key. Defaults to 0 if unspecified.
@@ -105,7 +105,7 @@ public class RoomPowerLevelsContent implements EventContent {
         defaultValue = "0"
     )
     @JsonbProperty("events_default")
-    private Byte eventsDefault = DEFAULT_LOW_LEVEL;
+    private Long eventsDefault = DEFAULT_LOW_LEVEL;
 
     /**
      * The level required to invite a user. Defaults to 50 if unspecified.
@@ -114,7 +114,7 @@ public class RoomPowerLevelsContent implements EventContent {
         description = "The level required to invite a user.",
         defaultValue = "50"
     )
-    private Byte invite = DEFAULT_MEDIUM_LEVEL;
+    private Long invite = DEFAULT_MEDIUM_LEVEL;
 
     /**
      * The level required to kick a user. Defaults to 50 if unspecified.
@@ -123,7 +123,7 @@ public class RoomPowerLevelsContent implements EventContent {
         description = "The level required to kick a user.",
         defaultValue = "50"
     )
-    private Byte kick = DEFAULT_MEDIUM_LEVEL;
+    private Long kick = DEFAULT_MEDIUM_LEVEL;
 
     /**
      * The level required to redact an event. Defaults to 50 if unspecified.
@@ -132,7 +132,7 @@ public class RoomPowerLevelsContent implements EventContent {
         description = "The level required to redact an event.",
         defaultValue = "50"
     )
-    private Byte redact = DEFAULT_MEDIUM_LEVEL;
+    private Long redact = DEFAULT_MEDIUM_LEVEL;
 
     /**
      * The default level required to send state events. Can be overridden by the events key. Defaults to 50 if unspecified,
@@ -144,7 +144,7 @@ public class RoomPowerLevelsContent implements EventContent {
             + " by the events key. Defaults to 50 if unspecified, but 0 if there is no m.room.power_levels event at all."
     )
     @JsonbProperty("state_default")
-    private Byte stateDefault;
+    private Long stateDefault;
 
     /**
      * The power levels for specific users. This is a mapping from user_id to power level for that user.
@@ -152,7 +152,7 @@ public class RoomPowerLevelsContent implements EventContent {
     @Schema(
         description = "The power levels for specific users. This is a mapping from user_id to power level for that user."
     )
-    private Map<String, Byte> users;
+    private Map<String, Long> users;
 
     /**
      * The default power level for every user in the room, unless their user_id is mentioned in the users key. Defaults to 0 if unspecified.
@@ -163,7 +163,7 @@ public class RoomPowerLevelsContent implements EventContent {
         defaultValue = "0"
     )
     @JsonbProperty("users_default")
-    private Byte usersDefault = DEFAULT_LOW_LEVEL;
+    private Long usersDefault = DEFAULT_LOW_LEVEL;
 
     /**
      * The power level requirements for specific notification types. This is a mapping from key to power level for that notifications key.
@@ -174,78 +174,78 @@ public class RoomPowerLevelsContent implements EventContent {
     )
     private NotificationPowerLevel notifications;
 
-    public Byte getBan() {
+    public Long getBan() {
         return ban;
     }
 
-    public void setBan(Byte ban) {
+    public void setBan(Long ban) {
         this.ban = ban;
     }
 
-    public Map<String, Byte> getEvents() {
+    public Map<String, Long> getEvents() {
         return events;
     }
 
-    public void setEvents(Map<String, Byte> events) {
+    public void setEvents(Map<String, Long> events) {
         this.events = events;
     }
 
     @JsonProperty("events_default")
-    public Byte getEventsDefault() {
+    public Long getEventsDefault() {
         return eventsDefault;
     }
 
-    public void setEventsDefault(Byte eventsDefault) {
+    public void setEventsDefault(Long eventsDefault) {
         this.eventsDefault = eventsDefault;
     }
 
-    public Byte getInvite() {
+    public Long getInvite() {
         return invite;
     }
 
-    public void setInvite(Byte invite) {
+    public void setInvite(Long invite) {
         this.invite = invite;
     }
 
-    public Byte getKick() {
+    public Long getKick() {
         return kick;
     }
 
-    public void setKick(Byte kick) {
+    public void setKick(Long kick) {
         this.kick = kick;
     }
 
-    public Byte getRedact() {
+    public Long getRedact() {
         return redact;
     }
 
-    public void setRedact(Byte redact) {
+    public void setRedact(Long redact) {
         this.redact = redact;
     }
 
     @JsonProperty("state_default")
-    public Byte getStateDefault() {
+    public Long getStateDefault() {
         return stateDefault;
     }
 
-    public void setStateDefault(Byte stateDefault) {
+    public void setStateDefault(Long stateDefault) {
         this.stateDefault = stateDefault;
     }
 
-    public Map<String, Byte> getUsers() {
+    public Map<String, Long> getUsers() {
         return users;
     }
 
-    public void setUsers(Map<String, Byte> users) {
+    public void setUsers(Map<String, Long> users) {
         this.users = users;
     }
 
     @JsonProperty("users_default")
-    public Byte getUsersDefault() {
+    public Long getUsersDefault() {
         return usersDefault;
     }
 
-    public void setUsersDefault(Byte usersDefault) {
+    public void setUsersDefault(Long usersDefault) {
         this.usersDefault = usersDefault;
     }
 
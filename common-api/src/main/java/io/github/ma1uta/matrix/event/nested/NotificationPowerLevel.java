@@ -32,13 +32,13 @@ public class NotificationPowerLevel {
     @Schema(
         description = "The level required to trigger an @room notification. Defaults to 50 if unspecified."
     )
-    private Byte room;
+    private Long room;
 
-    public Byte getRoom() {
+    public Long getRoom() {
         return room;
     }
 
-    public void setRoom(Byte room) {
+    public void setRoom(Long room) {
         this.room = room;
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.common.RawJsonHolder;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import javax.json.bind.JsonbException;
+import javax.json.stream.JsonParser;
+
+/**
+ * Canonical json encoding for the signing and hashing.
+ * <br>
+ * The value is written by the {@link JsonCodecs} in a single pass without building the intermediate sorted copy. The result can
+ * be written into the reusable {@link CanonicalJsonOutput} or streamed directly into the {@link MessageDigest}.
+ * <br>
+ * The {@link RawJsonHolder} with the original json (for example the received PDU) is written from the original json, so the
+ * hashes and the signatures cover the keys which are unknown to the model. The original json is streamed from the parser, only
+ * the keys of each object are sorted.
+ */
+public class CanonicalJson {
+
+    /**
+     * Keys which are excluded before the signing.
+     */
+    public static final String[] SIGNING_EXCLUDED = {"signatures", "unsigned"};
+
+    /**
+     * Keys which are excluded before the content hash calculation.
+     */
+    public static final String[] HASHING_EXCLUDED = {"signatures", "unsigned", "hashes"};
+
+    /**
+     * Content hash algorithm.
+     */
+    public static final String SHA256 = "SHA-256";
+
+    private static final int DIGEST_BUFFER = 1024;
+
+    protected CanonicalJson() {
+        //singleton
+    }
+
+    /**
+     * Encode the value.
+     *
+     * @param value        the value.
+     * @param excludedKeys the excluded top-level keys.
+     * @return the canonical json.
+     */
+    public static byte[] encode(Object value, String... excludedKeys) {
+        CanonicalJsonOutput out = new CanonicalJsonOutput();
+        write(value, out.exclude(excludedKeys));
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the value into the canonical writer.
+     * <br>
+     * The writer is reset before writing, so the same writer (and its buffer) can be reused for the many values.
+     *
+     * @param value the value.
+     * @param out   the writer.
+     */
+    public static void write(Object value, CanonicalJsonOutput out) {
+        out.reset();
+        RawJson raw = value instanceof RawJsonHolder ? ((RawJsonHolder) value).getRawJson() : null;
+        if (raw == null) {
+            JsonCodecs.write(out, value);
+            return;
+        }
+        try (JsonParser parser = JsonParsers.parser(raw.getBytes(), raw.getOffset(), raw.getLength())) {
+            out.copy(parser, parser.next());
+        }
+    }
+
+    /**
+     * Feed the canonical json of the value into the digest.
+     *
+     * @param value        the value.
+     * @param digest       the digest.
+     * @param excludedKeys the excluded top-level keys.
+     * @return the digest result.
+     */
+    public static byte[] digest(Object value, MessageDigest digest, String... excludedKeys) {
+        CanonicalJsonOutput out = new CanonicalJsonOutput(digestStream(digest), DIGEST_BUFFER);
+        write(value, out.exclude(excludedKeys));
+        out.flush();
+        return digest.digest();
+    }
+
+    /**
+     * Calculate the SHA-256 content hash of the PDU (without the {@code signatures}, {@code unsigned} and {@code hashes}).
+     *
+     * @param pdu the persistent data unit.
+     * @return the unpadded base64-encoded hash.
+     */
+    public static String contentHash(Object pdu) {
+        return contentHash(pdu, true);
+    }
+
+    /**
+     * Calculate the SHA-256 content hash of the PDU (without the {@code signatures}, {@code unsigned} and {@code hashes}).
+     *
+     * @param pdu          the persistent data unit.
+     * @param integersOnly {@code false} to hash the PDU of the room versions 1-5 which may contain the non-integer numbers (see
+     *                     {@link CanonicalJsonOutput#integersOnly(boolean)}).
+     * @return the unpadded base64-encoded hash.
+     */
+    public static String contentHash(Object pdu, boolean integersOnly) {
+        MessageDigest digest = sha256();
+        CanonicalJsonOutput out = new CanonicalJsonOutput(digestStream(digest), DIGEST_BUFFER).integersOnly(integersOnly);
+        write(pdu, out.exclude(HASHING_EXCLUDED));
+        out.flush();
+        return Base64.getEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    /**
+     * Create the SHA-256 digest.
+     *
+     * @return the digest.
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance(SHA256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new JsonbException("Missing the " + SHA256 + " digest", e);
+        }
+    }
+
+    /**
+     * Create the output stream which updates the digest.
+     *
+     * @param digest the digest.
+     * @return the output stream.
+     */
+    public static OutputStream digestStream(MessageDigest digest) {
+        return new DigestStream(digest);
+    }
+
+    /**
+     * Output stream which updates the digest.
+     */
+    private static class DigestStream extends OutputStream {
+
+        private final MessageDigest digest;
+
+        DigestStream(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.json.bind.JsonbException;
+import javax.json.stream.JsonParser;
+
+/**
+ * Json writer which produces the canonical json (https://matrix.org/docs/spec/appendices#canonical-json).
+ * <br>
+ * Object keys are sorted by the unicode code points, numbers are restricted to the integers in the range
+ * [-(2**53)+1, (2**53)-1] (the room versions 6 and later and the locally created events). The events of the room versions 1-5
+ * may contain the other numbers, the writer with {@link #integersOnly(boolean)} disabled writes them as the plain decimals
+ * without the exponent and the trailing zeros (the integral numbers as the integers).
+ * <br>
+ * The model classes are already written in the canonical order by the generated codecs, so only maps and json values are sorted
+ * at runtime. Top-level keys (for example {@code signatures} and {@code unsigned}) can be excluded from the output and the
+ * top-level and {@code content} keys can be restricted (for the redaction) without copying the source object.
+ */
+public class CanonicalJsonOutput extends JsonOutput {
+
+    private static final int INTEGER_BITS = 53;
+
+    /**
+     * The maximum allowed integer.
+     */
+    public static final long MAX_INTEGER = (1L << INTEGER_BITS) - 1;
+
+    /**
+     * The minimum allowed integer.
+     */
+    public static final long MIN_INTEGER = -MAX_INTEGER;
+
+    /**
+     * The order of the object keys (by unicode code points).
+     */
+    public static final Comparator<String> KEY_ORDER = CanonicalJsonOutput::compareKeys;
+
+    private static final char SURROGATE_START = 0xD800;
+
+    private static final char PRIVATE_USE_START = 0xE000;
+
+    private static final int SURROGATE_SHIFT = 0x800;
+
+    private static final int PRIVATE_USE_SHIFT = 0x2000;
+
+    private static final String CONTENT = "content";
+
+    private static final int ENCODED_NAME_EXTRA = 3;
+
+    private static final int MAX_LONG_LENGTH = 18;
+
+    private final List<String> excludedNames = new ArrayList<>();
+
+    private final List<byte[]> excluded = new ArrayList<>();
+
+    private final List<Members> members = new ArrayList<>();
+
+    private Set<String> retained;
+
+    private Set<String> retainedContent;
+
+    private boolean integersOnly = true;
+
+    private int depth;
+
+    private int contentDepth = -1;
+
+    private boolean contentNext;
+
+    private int skipDepth = -1;
+
+    private boolean skipNext;
+
+    public CanonicalJsonOutput() {
+        super();
+    }
+
+    public CanonicalJsonOutput(OutputStream out) {
+        super(out);
+    }
+
+    public CanonicalJsonOutput(OutputStream out, int capacity) {
+        super(out, capacity);
+    }
+
+    /**
+     * Compare two keys by the unicode code points.
+     * <br>
+     * The {@link String#compareTo(String)} compares UTF-16 code units which differs from the code point order when one of the
+     * strings contains the supplementary characters and the other one contains the characters in the range U+E000..U+FFFF.
+     *
+     * @param first  the first key.
+     * @param second the second key.
+     * @return a negative integer, zero, or a positive integer as the first key is less than, equal to, or greater than the second.
+     */
+    public static int compareKeys(String first, String second) {
+        int length = Math.min(first.length(), second.length());
+        for (int i = 0; i < length; i++) {
+            char a = first.charAt(i);
+            char b = second.charAt(i);
+            if (a != b) {
+                if (a >= SURROGATE_START && b >= SURROGATE_START) {
+                    return codePointOrder(a) - codePointOrder(b);
+                }
+                return a - b;
+            }
+        }
+        return first.length() - second.length();
+    }
+
+    private static int codePointOrder(char c) {
+        return c >= PRIVATE_USE_START ? c - SURROGATE_SHIFT : c + PRIVATE_USE_SHIFT;
+    }
+
+    /**
+     * Exclude the top-level keys from the output.
+     *
+     * @param keys the excluded keys.
+     * @return this writer.
+     */
+    public CanonicalJsonOutput exclude(Collection<String> keys) {
+        for (String key : keys) {
+            excludedNames.add(key);
+            excluded.add(encodeName(key));
+        }
+        return this;
+    }
+
+    /**
+     * Exclude the top-level keys from the output.
+     *
+     * @param keys the excluded keys.
+     * @return this writer.
+     */
+    public CanonicalJsonOutput exclude(String... keys) {
+        return exclude(Arrays.asList(keys));
+    }
+
+    /**
+     * Retain only the specified top-level keys and the specified keys of the top-level {@code content} object.
+     * <br>
+     * The sets aren't copied, so the same (immutable) sets can be shared between the writers.
+     *
+     * @param keys        the retained top-level keys or {@code null} to retain all keys.
+     * @param contentKeys the retained content keys or {@code null} to retain all content keys.
+     * @return this writer.
+     */
+    public CanonicalJsonOutput retain(Set<String> keys, Set<String> contentKeys) {
+        this.retained = keys;
+        this.retainedContent = contentKeys;
+        return this;
+    }
+
+    /**
+     * Write the value read by the parser.
+     * <br>
+     * The parser events are written as they are read, only the keys of each object are sorted: the members of the object are
+     * written into the reusable buffer of its depth and then copied in the key order, so the value isn't built as a tree. The
+     * top-level exclusions and restrictions apply as to the other values.
+     *
+     * @param parser the parser.
+     * @param event  the current event of the parser (the first event of the value).
+     * @return this writer.
+     */
+    public CanonicalJsonOutput copy(JsonParser parser, JsonParser.Event event) {
+        copy(this, parser, event, 0, null);
+        return this;
+    }
+
+    /**
+     * Allow only the integers in the canonical json range (the default) or write the other numbers in the canonical form.
+     *
+     * @param integersOnly {@code true} for the room versions 6 and later and the locally created events, {@code false} to
+     *                     write the events of the room versions 1-5.
+     * @return this writer.
+     */
+    public CanonicalJsonOutput integersOnly(boolean integersOnly) {
+        this.integersOnly = integersOnly;
+        return this;
+    }
+
+    @Override
+    public boolean isCanonical() {
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K> Iterable<K> keys(Map<K, ?> map) {
+        if (map.size() < 2) {
+            return map.keySet();
+        }
+        Object[] keys = map.keySet().toArray();
+        Arrays.sort(keys, (first, second) -> compareKeys(String.valueOf(first), String.valueOf(second)));
+        return (List<K>) Arrays.asList(keys);
+    }
+
+    @Override
+    public JsonOutput beginObject() {
+        return beginContainer() ? this : super.beginObject();
+    }
+
+    @Override
+    public JsonOutput endObject() {
+        return endContainer() ? this : super.endObject();
+    }
+
+    @Override
+    public JsonOutput beginArray() {
+        return beginContainer() ? this : super.beginArray();
+    }
+
+    @Override
+    public JsonOutput endArray() {
+        return endContainer() ? this : super.endArray();
+    }
+
+    @Override
+    public JsonOutput name(byte[] encodedName) {
+        if (skipDepth >= 0) {
+            return this;
+        }
+        if (retained == null && retainedContent == null) {
+            if (depth == 1 && isExcluded(encodedName)) {
+                skipNext = true;
+                return this;
+            }
+        } else if ((depth == 1 || depth == contentDepth)
+            && skipName(new String(encodedName, 1, encodedName.length - ENCODED_NAME_EXTRA, StandardCharsets.UTF_8))) {
+            skipNext = true;
+            return this;
+        }
+        return super.name(encodedName);
+    }
+
+    @Override
+    public JsonOutput name(String name) {
+        if (skipDepth >= 0) {
+            return this;
+        }
+        if (skipName(name)) {
+            skipNext = true;
+            return this;
+        }
+        return super.name(name);
+    }
+
+    @Override
+    public JsonOutput value(String value) {
+        return skipValue() ? this : super.value(value);
+    }
+
+    @Override
+    public JsonOutput value(long value) {
+        if (skipValue()) {
+            return this;
+        }
+        if (integersOnly && (value < MIN_INTEGER || value > MAX_INTEGER)) {
+            throw new JsonbException("The integer is out of the canonical json range: " + value);
+        }
+        return super.value(value);
+    }
+
+    @Override
+    public JsonOutput value(double value) {
+        if (skipValue()) {
+            return this;
+        }
+        if (!integersOnly && !Double.isNaN(value) && !Double.isInfinite(value)) {
+            return decimal(BigDecimal.valueOf(value));
+        }
+        if (value != Math.rint(value) || value < MIN_INTEGER || value > MAX_INTEGER) {
+            throw new JsonbException("The canonical json doesn't allow the number: " + value);
+        }
+        return super.value((long) value);
+    }
+
+    @Override
+    public JsonOutput value(boolean value) {
+        return skipValue() ? this : super.value(value);
+    }
+
+    @Override
+    public JsonOutput value(BigDecimal value) {
+        if (value == null) {
+            return nullValue();
+        }
+        if (skipValue()) {
+            return this;
+        }
+        if (!integersOnly) {
+            return decimal(value);
+        }
+        try {
+            return super.value(checkRange(value.toBigIntegerExact()));
+        } catch (ArithmeticException e) {
+            throw new JsonbException("The canonical json doesn't allow the number: " + value, e);
+        }
+    }
+
+    @Override
+    public JsonOutput value(BigInteger value) {
+        if (value == null) {
+            return nullValue();
+        }
+        return skipValue() ? this : super.value(checkRange(value));
+    }
+
+    @Override
+    public JsonOutput nullValue() {
+        return skipValue() ? this : super.nullValue();
+    }
+
+    @Override
+    public JsonOutput rawValue(byte[] json, int offset, int length) {
+        return skipValue() ? this : super.rawValue(json, offset, length);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        depth = 0;
+        skipDepth = -1;
+        skipNext = false;
+        contentDepth = -1;
+        contentNext = false;
+    }
+
+    private void copy(JsonOutput target, JsonParser parser, JsonParser.Event event, int level, Set<String> keys) {
+        switch (event) {
+            case START_OBJECT:
+                copyObject(target, parser, level, keys);
+                break;
+            case START_ARRAY:
+                target.beginArray();
+                for (JsonParser.Event item = parser.next(); item != JsonParser.Event.END_ARRAY; item = parser.next()) {
+                    copy(target, parser, item, level, null);
+                }
+                target.endArray();
+                break;
+            case VALUE_STRING:
+                target.value(parser.getString());
+                break;
+            case VALUE_NUMBER:
+                if (parser.isIntegralNumber() && parser.getString().length() <= MAX_LONG_LENGTH) {
+                    target.value(parser.getLong());
+                } else {
+                    target.value(parser.getBigDecimal());
+                }
+                break;
+            case VALUE_TRUE:
+                target.value(true);
+                break;
+            case VALUE_FALSE:
+                target.value(false);
+                break;
+            case VALUE_NULL:
+                target.nullValue();
+                break;
+            default:
+                throw new JsonbException("Unexpected json event: " + event);
+        }
+    }
+
+    private void copyObject(JsonOutput target, JsonParser parser, int level, Set<String> keys) {
+        target.beginObject();
+        boolean top = target == this && depth == 1;
+        Members object = members(level);
+        for (JsonParser.Event event = parser.next(); event != JsonParser.Event.END_OBJECT; event = parser.next()) {
+            String name = parser.getString();
+            JsonParser.Event value = parser.next();
+            boolean skip = keys != null && !keys.contains(name);
+            Set<String> valueKeys = null;
+            if (top) {
+                skip = skipName(name);
+                valueKeys = contentNext ? retainedContent : null;
+                contentNext = false;
+            }
+            if (skip) {
+                if (value == JsonParser.Event.START_OBJECT) {
+                    parser.skipObject();
+                } else if (value == JsonParser.Event.START_ARRAY) {
+                    parser.skipArray();
+                }
+                continue;
+            }
+            object.begin(name);
+            copy(object.values, parser, value, level + 1, valueKeys);
+            object.end();
+        }
+        object.writeTo(target);
+        if (top) {
+            contentNext = false;
+        }
+        target.endObject();
+    }
+
+    private Members members(int level) {
+        while (members.size() <= level) {
+            members.add(new Members());
+        }
+        Members object = members.get(level);
+        object.reset(integersOnly);
+        return object;
+    }
+
+    private JsonOutput decimal(BigDecimal value) {
+        BigDecimal stripped = value.signum() == 0 ? BigDecimal.ZERO : value.stripTrailingZeros();
+        if (stripped.scale() <= 0) {
+            return super.value(stripped.toBigInteger());
+        }
+        byte[] digits = stripped.toPlainString().getBytes(StandardCharsets.US_ASCII);
+        return super.rawValue(digits, 0, digits.length);
+    }
+
+    private BigInteger checkRange(BigInteger value) {
+        if (!integersOnly) {
+            return value;
+        }
+        if (value.bitLength() >= Long.SIZE || value.longValue() < MIN_INTEGER || value.longValue() > MAX_INTEGER) {
+            throw new JsonbException("The integer is out of the canonical json range: " + value);
+        }
+        return value;
+    }
+
+    private boolean skipName(String name) {
+        if (depth == 1) {
+            contentNext = false;
+            if (excludedNames.contains(name) || retained != null && !retained.contains(name)) {
+                return true;
+            }
+            contentNext = retainedContent != null && CONTENT.equals(name);
+            return false;
+        }
+        return depth == contentDepth && retainedContent != null && !retainedContent.contains(name);
+    }
+
+    private boolean isExcluded(byte[] encodedName) {
+        for (byte[] name : excluded) {
+            if (Arrays.equals(name, encodedName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean beginContainer() {
+        depth++;
+        if (skipDepth >= 0) {
+            return true;
+        }
+        if (skipNext) {
+            skipNext = false;
+            skipDepth = depth;
+            return true;
+        }
+        if (contentNext) {
+            contentNext = false;
+            contentDepth = depth;
+        }
+        return false;
+    }
+
+    private boolean endContainer() {
+        depth--;
+        if (depth < contentDepth) {
+            contentDepth = -1;
+        }
+        if (skipDepth >= 0) {
+            if (depth < skipDepth) {
+                skipDepth = -1;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean skipValue() {
+        if (skipDepth >= 0) {
+            return true;
+        }
+        if (skipNext) {
+            skipNext = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The members of the object which is being copied: the names and the values written one after another.
+     */
+    private static final class Members {
+
+        private static final Comparator<Member> ORDER = (first, second) -> compareKeys(first.name, second.name);
+
+        private final CanonicalJsonOutput values = new CanonicalJsonOutput();
+
+        private Member[] items = new Member[0];
+
+        private int count;
+
+        void reset(boolean integersOnly) {
+            values.reset();
+            values.integersOnly(integersOnly);
+            count = 0;
+        }
+
+        void begin(String name) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, Math.max(2, count * 2));
+            }
+            Member member = items[count];
+            if (member == null) {
+                member = new Member();
+                items[count] = member;
+            }
+            member.name = name;
+            // the values are separated by the commas
+            member.start = count > 0 ? values.size() + 1 : values.size();
+        }
+
+        void end() {
+            items[count++].end = values.size();
+        }
+
+        void writeTo(JsonOutput target) {
+            if (count > 1) {
+                Arrays.sort(items, 0, count, ORDER);
+            }
+            byte[] buffer = values.buffer();
+            for (int i = 0; i < count; i++) {
+                Member member = items[i];
+                target.name(member.name);
+                target.rawValue(buffer, member.start, member.end - member.start);
+            }
+        }
+    }
+
+    /**
+     * The name and the bounds of the value of the object member.
+     */
+    private static final class Member {
+
+        private String name;
+
+        private int start;
+
+        private int end;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.content.EventContent;
+
+import javax.json.JsonObject;
+import javax.json.bind.serializer.DeserializationContext;
+import javax.json.stream.JsonParser;
+
+/**
+ * Reader of the content with the concrete class.
+ */
+class ClassContentReader implements ContentReader {
+
+    private final Class<? extends EventContent> contentClass;
+
+    ClassContentReader(Class<? extends EventContent> contentClass) {
+        this.contentClass = contentClass;
+    }
+
+    @Override
+    public EventContent read(JsonParser parser, DeserializationContext ctx) {
+        return ctx.deserialize(contentClass, parser);
+    }
+
+    @Override
+    public EventContent read(JsonObject content, DeserializationContext ctx) {
+        return ctx.deserialize(contentClass, JsonParsers.parser(content));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.content.EventContent;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.bind.JsonbException;
+import javax.json.bind.serializer.DeserializationContext;
+import javax.json.bind.serializer.JsonbDeserializer;
+import javax.json.stream.JsonParser;
+
+/**
+ * Deserializer of the polymorphic content which concrete class is defined by the discriminator property
+ * (msgtype, algorithm, ...).
+ * <br>
+ * The properties before the discriminator are buffered as the flat {@link TokenBuffer}, then the buffered events and the rest
+ * of the object are read by the concrete class in the same pass. Only the content with the unknown discriminator value is
+ * read as the {@link JsonObject}.
+ *
+ * @param <T> the base content type.
+ */
+public abstract class DiscriminatedContentDeserializer<T extends EventContent> implements JsonbDeserializer<T>, ContentReader {
+
+    private final String discriminator;
+
+    private final Map<String, Class<? extends T>> mapping;
+
+    protected DiscriminatedContentDeserializer(String discriminator, Map<String, Class<? extends T>> mapping) {
+        this.discriminator = discriminator;
+        this.mapping = mapping;
+    }
+
+    /**
+     * Create the content for the unknown discriminator value.
+     *
+     * @param content the content object.
+     * @param value   the discriminator value.
+     * @return the raw content.
+     */
+    protected abstract T raw(JsonObject content, String value);
+
+    @Override
+    public T deserialize(JsonParser parser, DeserializationContext ctx, Type rtType) {
+        return readObject(parser, ctx);
+    }
+
+    @Override
+    public T read(JsonParser parser, DeserializationContext ctx) {
+        JsonParser.Event event = parser.next();
+        switch (event) {
+            case VALUE_NULL:
+                return null;
+            case START_OBJECT:
+                return readObject(parser, ctx);
+            default:
+                throw new JsonbException("Expected object but found: " + event);
+        }
+    }
+
+    @Override
+    public T read(JsonObject content, DeserializationContext ctx) {
+        JsonValue discriminatorValue = content.get(discriminator);
+        String value = discriminatorValue instanceof JsonString ? ((JsonString) discriminatorValue).getString() : null;
+        Class<? extends T> contentClass = value == null ? null : mapping.get(value);
+        if (contentClass == null) {
+            return raw(content, value);
+        }
+        return ctx.deserialize(contentClass, JsonParsers.parser(content));
+    }
+
+    /**
+     * Read the content object which start is consumed.
+     *
+     * @param parser the parser.
+     * @param ctx    the deserialization context.
+     * @return the content.
+     */
+    private T readObject(JsonParser parser, DeserializationContext ctx) {
+        TokenBuffer prefix = new TokenBuffer();
+        prefix.add(parser, JsonParser.Event.START_OBJECT);
+        String value = null;
+        boolean consumed = false;
+        while (true) {
+            JsonParser.Event event = parser.next();
+            prefix.add(parser, event);
+            if (event == JsonParser.Event.END_OBJECT) {
+                consumed = true;
+                break;
+            }
+            boolean isDiscriminator = discriminator.equals(parser.getString());
+            JsonParser.Event valueEvent = parser.next();
+            prefix.addValue(parser, valueEvent);
+            if (isDiscriminator && valueEvent == JsonParser.Event.VALUE_STRING) {
+                value = parser.getString();
+                break;
+            }
+        }
+        JsonParser replay = prefix.replay(consumed ? null : parser);
+        Class<? extends T> contentClass = value == null ? null : mapping.get(value);
+        if (contentClass == null) {
+            replay.next();
+            return raw(replay.getObject(), value);
+        }
+        return ctx.deserialize(contentClass, replay);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.content.EventContent;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+
+import javax.json.stream.JsonParser;
+
+/**
+ * Codec of the {@link EventContent} without the known event type. Such content is read as the {@link RawEventContent}.
+ */
+public class EventContentJsonCodec extends PolymorphicJsonCodec<EventContent> {
+
+    @Override
+    public Class<EventContent> getType() {
+        return EventContent.class;
+    }
+
+    @Override
+    public void write(EventContent value, JsonOutput out) {
+        if (value instanceof RawEventContent) {
+            JsonCodecs.write(out, ((RawEventContent) value).getContent());
+        } else {
+            writeConcrete(value, out);
+        }
+    }
+
+    @Override
+    public EventContent read(JsonParser parser) {
+        Object content = JsonParsers.readObject(parser);
+        return content == null ? null : new RawEventContent(content);
+    }
+}
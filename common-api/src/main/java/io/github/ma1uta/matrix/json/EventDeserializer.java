@@ -0,0 +1,508 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.AcceptedTerms;
+import io.github.ma1uta.matrix.event.CallAnswer;
+import io.github.ma1uta.matrix.event.CallCandidates;
+import io.github.ma1uta.matrix.event.CallHangup;
+import io.github.ma1uta.matrix.event.CallInvite;
+import io.github.ma1uta.matrix.event.Direct;
+import io.github.ma1uta.matrix.event.Dummy;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.ForwardedRoomKey;
+import io.github.ma1uta.matrix.event.FullyRead;
+import io.github.ma1uta.matrix.event.IgnoredUserList;
+import io.github.ma1uta.matrix.event.KeyVerificationAccept;
+import io.github.ma1uta.matrix.event.KeyVerificationCancel;
+import io.github.ma1uta.matrix.event.KeyVerificationKey;
+import io.github.ma1uta.matrix.event.KeyVerificationMac;
+import io.github.ma1uta.matrix.event.KeyVerificationRequest;
+import io.github.ma1uta.matrix.event.KeyVerificationStart;
+import io.github.ma1uta.matrix.event.PolicyRuleRoom;
+import io.github.ma1uta.matrix.event.PolicyRuleServer;
+import io.github.ma1uta.matrix.event.PolicyRuleUser;
+import io.github.ma1uta.matrix.event.Presence;
+import io.github.ma1uta.matrix.event.PushRules;
+import io.github.ma1uta.matrix.event.RawEvent;
+import io.github.ma1uta.matrix.event.Receipt;
+import io.github.ma1uta.matrix.event.RoomAliases;
+import io.github.ma1uta.matrix.event.RoomAvatar;
+import io.github.ma1uta.matrix.event.RoomCanonicalAlias;
+import io.github.ma1uta.matrix.event.RoomCreate;
+import io.github.ma1uta.matrix.event.RoomEncrypted;
+import io.github.ma1uta.matrix.event.RoomEncryption;
+import io.github.ma1uta.matrix.event.RoomEvent;
+import io.github.ma1uta.matrix.event.RoomGuestAccess;
+import io.github.ma1uta.matrix.event.RoomHistoryVisibility;
+import io.github.ma1uta.matrix.event.RoomJoinRules;
+import io.github.ma1uta.matrix.event.RoomKey;
+import io.github.ma1uta.matrix.event.RoomKeyRequest;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.RoomMessage;
+import io.github.ma1uta.matrix.event.RoomMessageFeedback;
+import io.github.ma1uta.matrix.event.RoomName;
+import io.github.ma1uta.matrix.event.RoomPinned;
+import io.github.ma1uta.matrix.event.RoomPowerLevels;
+import io.github.ma1uta.matrix.event.RoomRedaction;
+import io.github.ma1uta.matrix.event.RoomServerAcl;
+import io.github.ma1uta.matrix.event.RoomThirdPartyInvite;
+import io.github.ma1uta.matrix.event.RoomTombstone;
+import io.github.ma1uta.matrix.event.RoomTopic;
+import io.github.ma1uta.matrix.event.StateEvent;
+import io.github.ma1uta.matrix.event.Sticker;
+import io.github.ma1uta.matrix.event.Tag;
+import io.github.ma1uta.matrix.event.Typing;
+import io.github.ma1uta.matrix.event.Unsigned;
+import io.github.ma1uta.matrix.event.content.AcceptedTermsContent;
+import io.github.ma1uta.matrix.event.content.CallAnswerContent;
+import io.github.ma1uta.matrix.event.content.CallCandidatesContent;
+import io.github.ma1uta.matrix.event.content.CallHangupContent;
+import io.github.ma1uta.matrix.event.content.CallInviteContent;
+import io.github.ma1uta.matrix.event.content.DirectContent;
+import io.github.ma1uta.matrix.event.content.DummyContent;
+import io.github.ma1uta.matrix.event.content.EventContent;
+import io.github.ma1uta.matrix.event.content.ForwardedRoomKeyContent;
+import io.github.ma1uta.matrix.event.content.FullyReadContent;
+import io.github.ma1uta.matrix.event.content.IgnoredUserListContent;
+import io.github.ma1uta.matrix.event.content.KeyVerificationAcceptContent;
+import io.github.ma1uta.matrix.event.content.KeyVerificationCancelContent;
+import io.github.ma1uta.matrix.event.content.KeyVerificationKeyContent;
+import io.github.ma1uta.matrix.event.content.KeyVerificationMacContent;
+import io.github.ma1uta.matrix.event.content.KeyVerificationRequestContent;
+import io.github.ma1uta.matrix.event.content.KeyVerificationStartContent;
+import io.github.ma1uta.matrix.event.content.PolicyRuleRoomContent;
+import io.github.ma1uta.matrix.event.content.PolicyRuleServerContent;
+import io.github.ma1uta.matrix.event.content.PolicyRuleUserContent;
+import io.github.ma1uta.matrix.event.content.PresenceContent;
+import io.github.ma1uta.matrix.event.content.PushRulesContent;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+import io.github.ma1uta.matrix.event.content.ReceiptContent;
+import io.github.ma1uta.matrix.event.content.RoomAliasesContent;
+import io.github.ma1uta.matrix.event.content.RoomAvatarContent;
+import io.github.ma1uta.matrix.event.content.RoomCanonicalAliasContent;
+import io.github.ma1uta.matrix.event.content.RoomCreateContent;
+import io.github.ma1uta.matrix.event.content.RoomEncryptionContent;
+import io.github.ma1uta.matrix.event.content.RoomGuestAccessContent;
+import io.github.ma1uta.matrix.event.content.RoomHistoryVisibilityContent;
+import io.github.ma1uta.matrix.event.content.RoomJoinRulesContent;
+import io.github.ma1uta.matrix.event.content.RoomKeyContent;
+import io.github.ma1uta.matrix.event.content.RoomKeyRequestContent;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import io.github.ma1uta.matrix.event.content.RoomMessageFeedbackContent;
+import io.github.ma1uta.matrix.event.content.RoomNameContent;
+import io.github.ma1uta.matrix.event.content.RoomPinnedContent;
+import io.github.ma1uta.matrix.event.content.RoomPowerLevelsContent;
+import io.github.ma1uta.matrix.event.content.RoomRedactionContent;
+import io.github.ma1uta.matrix.event.content.RoomServerAclContent;
+import io.github.ma1uta.matrix.event.content.RoomThirdPartyInviteContent;
+import io.github.ma1uta.matrix.event.content.RoomTopicContent;
+import io.github.ma1uta.matrix.event.content.StickerContent;
+import io.github.ma1uta.matrix.event.content.TagContent;
+import io.github.ma1uta.matrix.event.content.TombstoneContent;
+import io.github.ma1uta.matrix.event.content.TypingContent;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.bind.serializer.DeserializationContext;
+import javax.json.bind.serializer.JsonbDeserializer;
+import javax.json.stream.JsonParser;
+
+/**
+ * Streaming deserializer of the {@link Event} hierarchy.
+ * <br>
+ * The event class is looked up by the ``type`` property in the precomputed dispatch table, unknown types are read as the
+ * {@link RawEvent}. The event is read in a single pass over the token stream without reflection. When the ``type`` precedes
+ * the ``content`` the content is decoded directly from the stream, otherwise (for example, in the canonical json where
+ * the keys are sorted) the events of the content are buffered as the flat {@link TokenBuffer} and replayed after the type.
+ * <br>
+ * Usage: {@code JsonbBuilder.create(new JsonbConfig().withDeserializers(new EventDeserializer()))}.
+ */
+public class EventDeserializer implements JsonbDeserializer<Event> {
+
+    private static final Map<String, EventMapping> DEFAULT_MAPPINGS;
+
+    static {
+        Map<String, EventMapping> mappings = new HashMap<>();
+        register(mappings, AcceptedTerms.TYPE, AcceptedTerms::new, AcceptedTermsContent.class);
+        register(mappings, CallAnswer.TYPE, CallAnswer::new, CallAnswerContent.class);
+        register(mappings, CallCandidates.TYPE, CallCandidates::new, CallCandidatesContent.class);
+        register(mappings, CallHangup.TYPE, CallHangup::new, CallHangupContent.class);
+        register(mappings, CallInvite.TYPE, CallInvite::new, CallInviteContent.class);
+        register(mappings, Direct.TYPE, Direct::new, DirectContent.class);
+        register(mappings, Dummy.TYPE, Dummy::new, DummyContent.class);
+        register(mappings, ForwardedRoomKey.TYPE, ForwardedRoomKey::new, ForwardedRoomKeyContent.class);
+        register(mappings, FullyRead.TYPE, FullyRead::new, FullyReadContent.class);
+        register(mappings, IgnoredUserList.TYPE, IgnoredUserList::new, IgnoredUserListContent.class);
+        register(mappings, KeyVerificationAccept.TYPE, KeyVerificationAccept::new, KeyVerificationAcceptContent.class);
+        register(mappings, KeyVerificationCancel.TYPE, KeyVerificationCancel::new, KeyVerificationCancelContent.class);
+        register(mappings, KeyVerificationKey.TYPE, KeyVerificationKey::new, KeyVerificationKeyContent.class);
+        register(mappings, KeyVerificationMac.TYPE, KeyVerificationMac::new, KeyVerificationMacContent.class);
+        register(mappings, KeyVerificationRequest.TYPE, KeyVerificationRequest::new, KeyVerificationRequestContent.class);
+        register(mappings, KeyVerificationStart.TYPE, KeyVerificationStart::new, KeyVerificationStartContent.class);
+        register(mappings, PolicyRuleRoom.TYPE, PolicyRuleRoom::new, PolicyRuleRoomContent.class);
+        register(mappings, PolicyRuleServer.TYPE, PolicyRuleServer::new, PolicyRuleServerContent.class);
+        register(mappings, PolicyRuleUser.TYPE, PolicyRuleUser::new, PolicyRuleUserContent.class);
+        register(mappings, Presence.TYPE, Presence::new, PresenceContent.class);
+        register(mappings, PushRules.TYPE, PushRules::new, PushRulesContent.class);
+        register(mappings, Receipt.TYPE, Receipt::new, ReceiptContent.class);
+        register(mappings, RoomAliases.TYPE, RoomAliases::new, RoomAliasesContent.class);
+        register(mappings, RoomAvatar.TYPE, RoomAvatar::new, RoomAvatarContent.class);
+        register(mappings, RoomCanonicalAlias.TYPE, RoomCanonicalAlias::new, RoomCanonicalAliasContent.class);
+        register(mappings, RoomCreate.TYPE, RoomCreate::new, RoomCreateContent.class);
+        mappings.put(RoomEncrypted.TYPE, new EventMapping(RoomEncrypted::new, new RoomEncryptedContentDeserializer()));
+        register(mappings, RoomEncryption.TYPE, RoomEncryption::new, RoomEncryptionContent.class);
+        register(mappings, RoomGuestAccess.TYPE, RoomGuestAccess::new, RoomGuestAccessContent.class);
+        register(mappings, RoomHistoryVisibility.TYPE, RoomHistoryVisibility::new, RoomHistoryVisibilityContent.class);
+        register(mappings, RoomJoinRules.TYPE, RoomJoinRules::new, RoomJoinRulesContent.class);
+        register(mappings, RoomKey.TYPE, RoomKey::new, RoomKeyContent.class);
+        register(mappings, RoomKeyRequest.TYPE, RoomKeyRequest::new, RoomKeyRequestContent.class);
+        register(mappings, RoomMember.TYPE, RoomMember::new, RoomMemberContent.class);
+        mappings.put(RoomMessage.TYPE, new EventMapping(RoomMessage::new, new RoomMessageContentDeserializer()));
+        register(mappings, RoomMessageFeedback.TYPE, RoomMessageFeedback::new, RoomMessageFeedbackContent.class);
+        register(mappings, RoomName.TYPE, RoomName::new, RoomNameContent.class);
+        register(mappings, RoomPinned.TYPE, RoomPinned::new, RoomPinnedContent.class);
+        register(mappings, RoomPowerLevels.TYPE, RoomPowerLevels::new, RoomPowerLevelsContent.class);
+        register(mappings, RoomRedaction.TYPE, RoomRedaction::new, RoomRedactionContent.class);
+        register(mappings, RoomServerAcl.TYPE, RoomServerAcl::new, RoomServerAclContent.class);
+        register(mappings, RoomThirdPartyInvite.TYPE, RoomThirdPartyInvite::new, RoomThirdPartyInviteContent.class);
+        register(mappings, RoomTombstone.TYPE, RoomTombstone::new, TombstoneContent.class);
+        register(mappings, RoomTopic.TYPE, RoomTopic::new, RoomTopicContent.class);
+        register(mappings, Sticker.TYPE, Sticker::new, StickerContent.class);
+        register(mappings, Tag.TYPE, Tag::new, TagContent.class);
+        register(mappings, Typing.TYPE, Typing::new, TypingContent.class);
+        DEFAULT_MAPPINGS = Collections.unmodifiableMap(mappings);
+    }
+
+    private final Map<String, EventMapping> mappings;
+
+    public EventDeserializer() {
+        this.mappings = DEFAULT_MAPPINGS;
+    }
+
+    public EventDeserializer(Map<String, EventMapping> customMappings) {
+        Map<String, EventMapping> merged = new HashMap<>(DEFAULT_MAPPINGS);
+        merged.putAll(customMappings);
+        this.mappings = merged;
+    }
+
+    private static void register(Map<String, EventMapping> mappings, String type, Supplier<? extends Event<?>> factory,
+                                 Class<? extends EventContent> contentClass) {
+        mappings.put(type, new EventMapping(factory, contentClass));
+    }
+
+    /**
+     * Default event mappings.
+     *
+     * @return the unmodifiable map of the known events.
+     */
+    public static Map<String, EventMapping> defaultMappings() {
+        return DEFAULT_MAPPINGS;
+    }
+
+    /**
+     * Mapping of the event type.
+     *
+     * @param type the event type.
+     * @return the mapping or {@code null} if the event type is unknown.
+     */
+    public EventMapping mapping(String type) {
+        return mappings.get(type);
+    }
+
+    @Override
+    public Event deserialize(JsonParser parser, DeserializationContext ctx, Type rtType) {
+        return read(parser, ctx);
+    }
+
+    /**
+     * Read the event.
+     *
+     * @param parser the parser positioned at the start of the event object.
+     * @param ctx    the deserialization context.
+     * @return the event.
+     */
+    public Event<?> read(JsonParser parser, DeserializationContext ctx) {
+        EventFields fields = new EventFields();
+        while (parser.hasNext()) {
+            if (parser.next() == JsonParser.Event.END_OBJECT) {
+                break;
+            }
+            String key = parser.getString();
+            switch (key) {
+                case "type":
+                    fields.type = JsonParsers.readString(parser);
+                    fields.mapping = fields.type == null ? null : mappings.get(fields.type);
+                    break;
+                case "content":
+                    if (fields.mapping != null) {
+                        fields.content = fields.mapping.getContentReader().read(parser, ctx);
+                    } else if (fields.type == null) {
+                        fields.contentTokens = TokenBuffer.record(parser);
+                    } else {
+                        fields.rawContent = JsonParsers.readObject(parser);
+                    }
+                    break;
+                case "prev_content":
+                    if (fields.mapping != null) {
+                        fields.prevContent = fields.mapping.getContentReader().read(parser, ctx);
+                    } else if (fields.type == null) {
+                        fields.prevContentTokens = TokenBuffer.record(parser);
+                    } else {
+                        fields.rawPrevContent = JsonParsers.readObject(parser);
+                    }
+                    break;
+                case "unsigned":
+                    if (fields.mapping != null) {
+                        fields.unsigned = readUnsigned(parser, ctx, fields.mapping.getContentReader());
+                    } else if (fields.type == null) {
+                        fields.unsignedTokens = TokenBuffer.record(parser);
+                    } else {
+                        fields.rawUnsigned = JsonParsers.readObject(parser);
+                    }
+                    break;
+                case "event_id":
+                    fields.eventId = JsonParsers.readString(parser);
+                    break;
+                case "room_id":
+                    fields.roomId = JsonParsers.readString(parser);
+                    break;
+                case "sender":
+                    fields.sender = JsonParsers.readString(parser);
+                    break;
+                case "state_key":
+                    fields.stateKey = JsonParsers.readString(parser);
+                    break;
+                case "redacts":
+                    fields.redacts = JsonParsers.readString(parser);
+                    break;
+                case "origin_server_ts":
+                    fields.originServerTs = JsonParsers.readLong(parser);
+                    break;
+                default:
+                    if (fields.mapping != null) {
+                        JsonParsers.skipValue(parser);
+                    } else {
+                        fields.extra(key, JsonParsers.readValue(parser));
+                    }
+            }
+        }
+        if (fields.mapping == null) {
+            fields.rawContent = tree(fields.contentTokens, fields.rawContent);
+            fields.rawPrevContent = tree(fields.prevContentTokens, fields.rawPrevContent);
+            fields.rawUnsigned = tree(fields.unsignedTokens, fields.rawUnsigned);
+            return rawEvent(fields);
+        }
+        return typedEvent(fields, ctx);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Event<?> typedEvent(EventFields fields, DeserializationContext ctx) {
+        ContentReader reader = fields.mapping.getContentReader();
+        Event event = fields.mapping.getFactory().get();
+        event.setContent(fields.contentTokens != null ? reader.read(fields.contentTokens.replay(null), ctx) : fields.content);
+
+        if (event instanceof RoomEvent) {
+            RoomEvent roomEvent = (RoomEvent) event;
+            roomEvent.setEventId(fields.eventId);
+            roomEvent.setRoomId(fields.roomId);
+            roomEvent.setSender(fields.sender);
+            roomEvent.setOriginServerTs(fields.originServerTs);
+            roomEvent.setUnsigned(
+                fields.unsignedTokens != null ? readUnsigned(fields.unsignedTokens.replay(null), ctx, reader) : fields.unsigned);
+
+            if (event instanceof StateEvent) {
+                StateEvent stateEvent = (StateEvent) event;
+                stateEvent.setStateKey(fields.stateKey);
+                stateEvent.setPrevContent(
+                    fields.prevContentTokens != null ? reader.read(fields.prevContentTokens.replay(null), ctx) : fields.prevContent);
+            } else if (event instanceof RoomRedaction) {
+                ((RoomRedaction) event).setRedacts(fields.redacts);
+            }
+        } else if (event instanceof Typing) {
+            ((Typing) event).setRoomId(fields.roomId);
+        } else if (event instanceof Receipt) {
+            ((Receipt) event).setRoomId(fields.roomId);
+        } else if (event instanceof FullyRead) {
+            ((FullyRead) event).setRoomId(fields.roomId);
+        } else if (event instanceof Presence) {
+            ((Presence) event).setSender(fields.sender);
+        }
+        return event;
+    }
+
+    private static JsonObject tree(TokenBuffer tokens, JsonObject object) {
+        return tokens != null ? JsonParsers.readObject(tokens.replay(null)) : object;
+    }
+
+    private Event<?> rawEvent(EventFields fields) {
+        Map<String, Object> props = new LinkedHashMap<>();
+        putIfPresent(props, "content", fields.rawContent);
+        putIfPresent(props, "event_id", fields.eventId);
+        putIfPresent(props, "room_id", fields.roomId);
+        putIfPresent(props, "sender", fields.sender);
+        putIfPresent(props, "state_key", fields.stateKey);
+        putIfPresent(props, "redacts", fields.redacts);
+        putIfPresent(props, "origin_server_ts", fields.originServerTs);
+        putIfPresent(props, "prev_content", fields.rawPrevContent);
+        putIfPresent(props, "unsigned", fields.rawUnsigned);
+        if (fields.extra != null) {
+            props.putAll(fields.extra);
+        }
+        RawEvent event = new RawEvent(props, fields.type);
+        event.setContent(new RawEventContent(fields.rawContent));
+        return event;
+    }
+
+    private void putIfPresent(Map<String, Object> props, String key, Object value) {
+        if (value != null) {
+            props.put(key, value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Unsigned<?> readUnsigned(JsonParser parser, DeserializationContext ctx, ContentReader reader) {
+        if (!isObject(parser, parser.next())) {
+            return null;
+        }
+        Unsigned unsigned = new Unsigned<>();
+        while (parser.hasNext()) {
+            if (parser.next() == JsonParser.Event.END_OBJECT) {
+                break;
+            }
+            switch (parser.getString()) {
+                case "age":
+                    unsigned.setAge(JsonParsers.readLong(parser));
+                    break;
+                case "transaction_id":
+                    unsigned.setTransactionId(JsonParsers.readString(parser));
+                    break;
+                case "prev_content":
+                    unsigned.setPrevContent(reader.read(parser, ctx));
+                    break;
+                case "redacted_because":
+                    unsigned.setRedactedBecause(isObject(parser, parser.next()) ? read(parser, ctx) : null);
+                    break;
+                case "invite_room_state":
+                    unsigned.setInviteRoomState(readEvents(parser, ctx));
+                    break;
+                default:
+                    JsonParsers.skipValue(parser);
+            }
+        }
+        return unsigned;
+    }
+
+    private List<Event> readEvents(JsonParser parser, DeserializationContext ctx) {
+        JsonParser.Event start = parser.next();
+        if (start != JsonParser.Event.START_ARRAY) {
+            skipStarted(parser, start);
+            return null;
+        }
+        List<Event> events = new ArrayList<>();
+        while (parser.hasNext()) {
+            JsonParser.Event token = parser.next();
+            if (token == JsonParser.Event.END_ARRAY) {
+                break;
+            }
+            if (isObject(parser, token)) {
+                events.add(read(parser, ctx));
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Check the consumed event starts the object, otherwise skip the value.
+     *
+     * @param parser the parser.
+     * @param event  the first event of the value.
+     * @return {@code true} if the value is the object.
+     */
+    private static boolean isObject(JsonParser parser, JsonParser.Event event) {
+        if (event == JsonParser.Event.START_OBJECT) {
+            return true;
+        }
+        skipStarted(parser, event);
+        return false;
+    }
+
+    private static void skipStarted(JsonParser parser, JsonParser.Event event) {
+        if (event == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (event == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+
+    /**
+     * Fields collected while reading the event.
+     */
+    private static class EventFields {
+
+        private String type;
+
+        private EventMapping mapping;
+
+        private EventContent content;
+
+        private JsonObject rawContent;
+
+        private TokenBuffer contentTokens;
+
+        private EventContent prevContent;
+
+        private JsonObject rawPrevContent;
+
+        private TokenBuffer prevContentTokens;
+
+        private Unsigned<?> unsigned;
+
+        private JsonObject rawUnsigned;
+
+        private TokenBuffer unsignedTokens;
+
+        private String eventId;
+
+        private String roomId;
+
+        private String sender;
+
+        private String stateKey;
+
+        private String redacts;
+
+        private Long originServerTs;
+
+        private Map<String, JsonValue> extra;
+
+        private void extra(String key, JsonValue value) {
+            if (extra == null) {
+                extra = new LinkedHashMap<>();
+            }
+            extra.put(key, value);
+        }
+    }
+}
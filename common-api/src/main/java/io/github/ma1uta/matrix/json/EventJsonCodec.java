@@ -0,0 +1,89 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RawEvent;
+
+import java.util.Map;
+import javax.json.stream.JsonParser;
+
+/**
+ * Codec of the {@link Event} hierarchy which reads the events with the {@link EventDeserializer}.
+ */
+public class EventJsonCodec extends PolymorphicJsonCodec<Event> {
+
+    private static final String TYPE_NAME = "type";
+
+    private static final byte[] TYPE = JsonOutput.encodeName(TYPE_NAME);
+
+    private final EventDeserializer deserializer = new EventDeserializer();
+
+    @Override
+    public Class<Event> getType() {
+        return Event.class;
+    }
+
+    @Override
+    public void write(Event value, JsonOutput out) {
+        if (value instanceof LazyEvent) {
+            ((LazyEvent) value).write(out);
+            return;
+        }
+        RawJson raw = value.getRawJson();
+        if (raw != null && !out.isCanonical()) {
+            out.rawValue(raw.getBytes(), raw.getOffset(), raw.getLength());
+            return;
+        }
+        if (!(value instanceof RawEvent)) {
+            writeConcrete(value, out);
+            return;
+        }
+        RawEvent event = (RawEvent) value;
+        boolean typePending = event.getType() != null;
+        out.beginObject();
+        if (typePending && !out.isCanonical()) {
+            out.name(TYPE).value(event.getType());
+            typePending = false;
+        }
+        if (event.getProperties() instanceof Map) {
+            Map<?, ?> properties = (Map<?, ?>) event.getProperties();
+            for (Object key : out.keys(properties)) {
+                String name = String.valueOf(key);
+                if (typePending && CanonicalJsonOutput.compareKeys(TYPE_NAME, name) < 0) {
+                    out.name(TYPE).value(event.getType());
+                    typePending = false;
+                }
+                out.name(name);
+                JsonCodecs.write(out, properties.get(key));
+            }
+        }
+        if (typePending) {
+            out.name(TYPE).value(event.getType());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Event read(JsonParser parser) {
+        if (parser.next() != JsonParser.Event.START_OBJECT) {
+            return null;
+        }
+        return deserializer.read(parser, JsonCodecs.context());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.content.EventContent;
+
+import java.util.function.Supplier;
+
+/**
+ * Mapping of the event type to the event constructor and the content reader.
+ */
+public final class EventMapping {
+
+    private final Supplier<? extends Event<?>> factory;
+
+    private final ContentReader contentReader;
+
+    public EventMapping(Supplier<? extends Event<?>> factory, ContentReader contentReader) {
+        this.factory = factory;
+        this.contentReader = contentReader;
+    }
+
+    public EventMapping(Supplier<? extends Event<?>> factory, Class<? extends EventContent> contentClass) {
+        this(factory, new ClassContentReader(contentClass));
+    }
+
+    public Supplier<? extends Event<?>> getFactory() {
+        return factory;
+    }
+
+    public ContentReader getContentReader() {
+        return contentReader;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.common.RawJsonHolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writer of the selected fields of the events (the {@code event_fields} of the filter).
+ * <br>
+ * The fields are the dotted paths, the literal dot in the field name is escaped by the backslash. Only the selected subtrees are
+ * copied from the source bytes to the output, the other values are skipped without decoding, so the cost is proportional to the
+ * size of the projected fields. The parent objects are written only if they contain at least one selected field. The objects
+ * without the original json are encoded first and then projected.
+ * <br>
+ * The projection can be cached with the {@link FragmentCache} using the {@link FragmentCache#projection(List)} format and the
+ * {@link #write(JsonOutput, Object)} as the encoder.
+ */
+public final class FieldProjection {
+
+    private static final char ESCAPE = '\\';
+
+    private static final char SEPARATOR = '.';
+
+    private static final ThreadLocal<JsonOutput> BUFFERS = ThreadLocal.withInitial(JsonOutput::new);
+
+    private final Node root;
+
+    private final int depth;
+
+    private FieldProjection(Node root, int depth) {
+        this.root = root;
+        this.depth = depth;
+    }
+
+    /**
+     * Compile the field paths.
+     *
+     * @param fields the dotted field paths.
+     * @return the projection.
+     */
+    public static FieldProjection compile(Collection<String> fields) {
+        Builder root = new Builder(null);
+        int depth = 0;
+        for (String field : fields) {
+            List<String> path = split(field);
+            depth = Math.max(depth, path.size());
+            Builder node = root;
+            for (String name : path) {
+                if (node.whole) {
+                    break;
+                }
+                node = node.children.computeIfAbsent(name, Builder::new);
+            }
+            node.whole = true;
+            node.children.clear();
+        }
+        return new FieldProjection(root.build(), depth);
+    }
+
+    /**
+     * Split the field path into the field names.
+     *
+     * @param field the dotted field path.
+     * @return the field names.
+     */
+    public static List<String> split(String field) {
+        List<String> names = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < field.length(); i++) {
+            char ch = field.charAt(i);
+            if (ch == ESCAPE && i + 1 < field.length()) {
+                name.append(field.charAt(++i));
+            } else if (ch == SEPARATOR) {
+                names.add(name.toString());
+                name.setLength(0);
+            } else {
+                name.append(ch);
+            }
+        }
+        names.add(name.toString());
+        return names;
+    }
+
+    /**
+     * Write the selected fields of the object.
+     *
+     * @param out   the output.
+     * @param value the object (the unmodified {@link LazyEvent} and the objects with the original json are projected without
+     *              encoding).
+     */
+    public void write(JsonOutput out, Object value) {
+        if (value instanceof LazyEvent && ((LazyEvent) value).isPristine()) {
+            write(out, ((LazyEvent) value).raw());
+            return;
+        }
+        if (value instanceof RawJsonHolder && ((RawJsonHolder) value).getRawJson() != null) {
+            write(out, ((RawJsonHolder) value).getRawJson());
+            return;
+        }
+        JsonOutput buffer = BUFFERS.get();
+        buffer.reset();
+        JsonCodecs.write(buffer, value);
+        write(out, buffer.buffer(), 0, buffer.size());
+    }
+
+    /**
+     * Write the selected fields of the json object.
+     *
+     * @param out  the output.
+     * @param json the json object.
+     */
+    public void write(JsonOutput out, RawJson json) {
+        write(out, json.getBytes(), json.getOffset(), json.getLength());
+    }
+
+    /**
+     * Write the selected fields of the json object.
+     *
+     * @param out    the output.
+     * @param json   the UTF-8 encoded json object.
+     * @param offset the start of the json.
+     * @param length the length of the json.
+     */
+    public void write(JsonOutput out, byte[] json, int offset, int length) {
+        int end = offset + length;
+        out.beginObject();
+        new Projector(out, json, end, depth).object(root, JsonScanner.skipWhitespaces(json, offset, end), 0);
+        out.endObject();
+    }
+
+    /**
+     * Copy the selected fields of the single object keeping the state of the opened parent objects.
+     */
+    private static final class Projector {
+
+        private final JsonOutput out;
+
+        private final byte[] json;
+
+        private final int end;
+
+        private final Node[] path;
+
+        private int opened;
+
+        Projector(JsonOutput out, byte[] json, int end, int depth) {
+            this.out = out;
+            this.json = json;
+            this.end = end;
+            this.path = new Node[depth];
+        }
+
+        void object(Node node, int start, int level) {
+            JsonScanner.scanObject(json, start, end, (nameStart, nameEnd, valueStart, valueEnd) -> {
+                Node child = node.child(json, nameStart, nameEnd);
+                if (child == null) {
+                    return;
+                }
+                if (child.whole) {
+                    open(level);
+                    out.name(child.encodedName).rawValue(json, valueStart, valueEnd - valueStart);
+                } else if (json[valueStart] == '{') {
+                    path[level] = child;
+                    object(child, valueStart, level + 1);
+                    if (opened > level) {
+                        out.endObject();
+                        opened = level;
+                    }
+                }
+            });
+        }
+
+        private void open(int level) {
+            while (opened < level) {
+                out.name(path[opened].encodedName).beginObject();
+                opened++;
+            }
+        }
+    }
+
+    /**
+     * The field of the projection.
+     */
+    private static final class Node {
+
+        private static final Node[] EMPTY = new Node[0];
+
+        private final String name;
+
+        private final byte[] utf8;
+
+        private final byte[] encodedName;
+
+        private final Node[] children;
+
+        private final boolean whole;
+
+        Node(String name, Node[] children, boolean whole) {
+            this.name = name;
+            this.utf8 = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+            this.encodedName = name == null ? null : JsonOutput.encodeName(name);
+            this.children = children.length == 0 ? EMPTY : children;
+            this.whole = whole;
+        }
+
+        Node child(byte[] json, int nameStart, int nameEnd) {
+            if (JsonScanner.hasEscapes(json, nameStart, nameEnd)) {
+                String decoded = JsonScanner.decodeString(json, nameStart, nameEnd);
+                for (Node child : children) {
+                    if (child.name.equals(decoded)) {
+                        return child;
+                    }
+                }
+                return null;
+            }
+            int length = nameEnd - nameStart;
+            for (Node child : children) {
+                byte[] candidate = child.utf8;
+                if (candidate.length == length && Arrays.equals(candidate, 0, length, json, nameStart, nameEnd)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The mutable field used to compile the projection.
+     */
+    private static final class Builder {
+
+        private final String name;
+
+        private final Map<String, Builder> children = new LinkedHashMap<>();
+
+        private boolean whole;
+
+        Builder(String name) {
+            this.name = name;
+        }
+
+        Node build() {
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Builder child : children.values()) {
+                nodes[i++] = child.build();
+            }
+            return new Node(name, nodes, whole);
+        }
+    }
+}
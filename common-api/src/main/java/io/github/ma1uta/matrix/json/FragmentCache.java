@@ -0,0 +1,425 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Cache of the serialized events shared between the responses.
+ * <br>
+ * The fragments are keyed by the event id and the output format (see {@link #CLIENT}, {@link #FEDERATION} and
+ * {@link #projection(List)}) and are spliced into the output as is. Only the recipient-independent data should be cached, the
+ * recipient-dependent {@code unsigned} data ({@code age}, {@code transaction_id}) can be kept out of the fragments and written
+ * per response (see {@link #write(JsonOutput, String, String, Object, BiConsumer, BiConsumer)}, the events written by the
+ * {@link JsonOutput#events(FragmentCache, String, BiConsumer)} are cached this way). The cache is bounded by the total size of
+ * the fragments and is split into the segments with the own LRU eviction to reduce the contention.
+ */
+public class FragmentCache {
+
+    /**
+     * The client-server format.
+     */
+    public static final String CLIENT = "client";
+
+    /**
+     * The federation format.
+     */
+    public static final String FEDERATION = "federation";
+
+    /**
+     * The default maximum size of the fragments (bytes).
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The default count of the segments.
+     */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private static final String PROJECTION_PREFIX = "fields:";
+
+    private static final byte[] UNSIGNED = "unsigned".getBytes(StandardCharsets.UTF_8);
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final int HASH_MULTIPLIER = 31;
+
+    private final Segment[] segments;
+
+    /**
+     * The free encoding buffers of the thread. The event encoded into the buffer can contain the cached events which are
+     * encoded on the same thread, so each nesting level takes its own buffer.
+     */
+    private final ThreadLocal<ArrayDeque<JsonOutput>> buffers = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public FragmentCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_SEGMENTS);
+    }
+
+    public FragmentCache(long maxBytes, int segmentCount) {
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(Math.max(1, maxBytes / segmentCount));
+        }
+    }
+
+    /**
+     * Format of the event projection (the filter event_fields) of the client events.
+     *
+     * @param eventFields the included fields.
+     * @return the format.
+     */
+    public static String projection(List<String> eventFields) {
+        return projection(CLIENT, eventFields);
+    }
+
+    /**
+     * Format of the event projection (the filter event_fields).
+     *
+     * @param format      the format of the projected events ({@link #CLIENT} or {@link #FEDERATION}).
+     * @param eventFields the included fields.
+     * @return the format.
+     */
+    public static String projection(String format, List<String> eventFields) {
+        return format + ":" + PROJECTION_PREFIX + String.join(",", eventFields);
+    }
+
+    /**
+     * Write the event with the default codecs splicing the cached fragment if exists.
+     *
+     * @param out     the output.
+     * @param eventId the event id or {@code null} to write the event without caching.
+     * @param format  the format.
+     * @param event   the event.
+     */
+    public void write(JsonOutput out, String eventId, String format, Object event) {
+        write(out, eventId, format, event, JsonCodecs::write);
+    }
+
+    /**
+     * Write the event splicing the cached fragment if exists.
+     *
+     * @param out     the output.
+     * @param eventId the event id or {@code null} to write the event without caching.
+     * @param format  the format.
+     * @param event   the event.
+     * @param encoder the encoder of the event in the specified format.
+     * @param <T>     the event type.
+     */
+    public <T> void write(JsonOutput out, String eventId, String format, T event, BiConsumer<JsonOutput, ? super T> encoder) {
+        write(out, eventId, format, event, encoder, null);
+    }
+
+    /**
+     * Write the event splicing the cached fragment if exists and keeping the {@code unsigned} data out of the fragment.
+     * <br>
+     * The unsigned data is recipient-dependent ({@code age}, {@code transaction_id}), so the {@code unsigned} member is removed
+     * from the cached fragment and the members of the object written by the {@code unsigned} encoder (the unsigned data of this
+     * response) are merged into the fragment on each write. The fragments of the format should be written either always with or
+     * always without the {@code unsigned} encoder.
+     *
+     * @param out      the output.
+     * @param eventId  the event id or {@code null} to write the event without caching.
+     * @param format   the format.
+     * @param event    the event.
+     * @param encoder  the encoder of the event in the specified format.
+     * @param unsigned the encoder of the json object with the {@code unsigned} member of the event in the specified format or
+     *                 {@code null} to cache the whole event.
+     * @param <T>      the event type.
+     */
+    public <T> void write(JsonOutput out, String eventId, String format, T event, BiConsumer<JsonOutput, ? super T> encoder,
+                          BiConsumer<JsonOutput, ? super T> unsigned) {
+        if (eventId == null || out.isCanonical()) {
+            encoder.accept(out, event);
+            return;
+        }
+        ArrayDeque<JsonOutput> free = buffers.get();
+        JsonOutput buffer = free.isEmpty() ? new JsonOutput() : free.pop();
+        try {
+            byte[] fragment = get(eventId, format);
+            if (fragment == null) {
+                buffer.reset();
+                encoder.accept(buffer, event);
+                fragment = unsigned != null ? withoutUnsigned(buffer.buffer(), buffer.size()) : buffer.toByteArray();
+                put(eventId, format, fragment);
+            }
+            if (unsigned == null) {
+                out.rawValue(fragment, 0, fragment.length);
+                return;
+            }
+            buffer.reset();
+            unsigned.accept(buffer, event);
+            out.mergedObject(fragment, fragment.length, buffer.buffer(), buffer.size());
+        } finally {
+            free.push(buffer);
+        }
+    }
+
+    /**
+     * Get the cached fragment.
+     *
+     * @param eventId the event id.
+     * @param format  the format.
+     * @return the fragment or {@code null}.
+     */
+    public byte[] get(String eventId, String format) {
+        byte[] fragment = segment(eventId).get(new Key(eventId, format));
+        if (fragment != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return fragment;
+    }
+
+    /**
+     * Cache the fragment.
+     *
+     * @param eventId  the event id.
+     * @param format   the format.
+     * @param fragment the serialized event.
+     */
+    public void put(String eventId, String format, byte[] fragment) {
+        segment(eventId).put(new Key(eventId, format), fragment);
+    }
+
+    /**
+     * Remove all fragments of the event (for example after the redaction).
+     *
+     * @param eventId the event id.
+     */
+    public void invalidate(String eventId) {
+        segment(eventId).remove(eventId);
+    }
+
+    /**
+     * Remove all fragments.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Total size of the cached fragments.
+     *
+     * @return the size in bytes.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getBytes();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static byte[] withoutUnsigned(byte[] json, int length) {
+        UnsignedMember member = new UnsignedMember(json);
+        JsonScanner.scanObject(json, JsonScanner.skipWhitespaces(json, 0, length), length, member);
+        if (member.start == -1) {
+            return Arrays.copyOf(json, length);
+        }
+        byte[] fragment = new byte[length - (member.end - member.start)];
+        System.arraycopy(json, 0, fragment, 0, member.start);
+        System.arraycopy(json, member.end, fragment, member.start, length - member.end);
+        return fragment;
+    }
+
+    private Segment segment(String eventId) {
+        return segments[(eventId.hashCode() & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * Cache key.
+     */
+    /**
+     * Finder of the {@code unsigned} member span including the separating comma.
+     */
+    private static final class UnsignedMember implements JsonScanner.FieldVisitor {
+
+        private final byte[] json;
+
+        private int previousEnd = -1;
+
+        private int start = -1;
+
+        private int end = -1;
+
+        private boolean untilNext;
+
+        UnsignedMember(byte[] json) {
+            this.json = json;
+        }
+
+        @Override
+        public void field(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            if (untilNext) {
+                end = nameStart - 1;
+                untilNext = false;
+            } else if (start == -1 && isUnsigned(nameStart, nameEnd)) {
+                untilNext = previousEnd == -1;
+                start = untilNext ? nameStart - 1 : previousEnd;
+                end = valueEnd;
+            } else {
+                previousEnd = valueEnd;
+            }
+        }
+
+        private boolean isUnsigned(int nameStart, int nameEnd) {
+            if (nameEnd - nameStart != UNSIGNED.length) {
+                return false;
+            }
+            for (int i = 0; i < UNSIGNED.length; i++) {
+                if (json[nameStart + i] != UNSIGNED[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Key {
+
+        private final String eventId;
+
+        private final String format;
+
+        private final int hash;
+
+        Key(String eventId, String format) {
+            this.eventId = eventId;
+            this.format = format;
+            this.hash = eventId.hashCode() * HASH_MULTIPLIER + format.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && eventId.equals(key.eventId) && format.equals(key.format);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * LRU segment bounded by the size of the fragments.
+     * <br>
+     * The formats of the each cached event are indexed, so the event is invalidated without scanning the segment.
+     */
+    private static final class Segment {
+
+        private final long maxBytes;
+
+        private final LinkedHashMap<Key, byte[]> fragments = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+        private final Map<String, List<String>> formats = new HashMap<>(INITIAL_CAPACITY);
+
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(Key key) {
+            return fragments.get(key);
+        }
+
+        synchronized void put(Key key, byte[] fragment) {
+            if (fragment.length > maxBytes) {
+                return;
+            }
+            byte[] previous = fragments.put(key, fragment);
+            if (previous == null) {
+                formats.computeIfAbsent(key.eventId, id -> new ArrayList<>(2)).add(key.format);
+            }
+            bytes += fragment.length - (previous != null ? previous.length : 0);
+            Iterator<Map.Entry<Key, byte[]>> eldest = fragments.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<Key, byte[]> entry = eldest.next();
+                bytes -= entry.getValue().length;
+                eldest.remove();
+                unindex(entry.getKey());
+            }
+        }
+
+        synchronized void remove(String eventId) {
+            List<String> eventFormats = formats.remove(eventId);
+            if (eventFormats != null) {
+                for (String format : eventFormats) {
+                    byte[] fragment = fragments.remove(new Key(eventId, format));
+                    if (fragment != null) {
+                        bytes -= fragment.length;
+                    }
+                }
+            }
+        }
+
+        synchronized void clear() {
+            fragments.clear();
+            formats.clear();
+            bytes = 0;
+        }
+
+        private void unindex(Key key) {
+            List<String> eventFormats = formats.get(key.eventId);
+            if (eventFormats != null) {
+                eventFormats.remove(key.format);
+                if (eventFormats.isEmpty()) {
+                    formats.remove(key.eventId);
+                }
+            }
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+    }
+}
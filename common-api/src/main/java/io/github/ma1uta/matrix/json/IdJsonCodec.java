@@ -0,0 +1,128 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.common.EventId;
+import io.github.ma1uta.matrix.common.MatrixId;
+import io.github.ma1uta.matrix.common.RoomAlias;
+import io.github.ma1uta.matrix.common.RoomId;
+import io.github.ma1uta.matrix.common.ServerName;
+import io.github.ma1uta.matrix.common.UserId;
+
+import java.util.function.Function;
+import javax.json.bind.JsonbException;
+import javax.json.stream.JsonParser;
+
+/**
+ * Codec of the identifiers which are written as the json strings.
+ *
+ * @param <T> the identifier type.
+ */
+public abstract class IdJsonCodec<T> implements JsonCodec<T> {
+
+    private final Class<T> type;
+
+    private final Function<String, T> factory;
+
+    protected IdJsonCodec(Class<T> type, Function<String, T> factory) {
+        this.type = type;
+        this.factory = factory;
+    }
+
+    @Override
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    public void write(T value, JsonOutput out) {
+        out.value(value.toString());
+    }
+
+    @Override
+    public T read(JsonParser parser) {
+        String value = JsonParsers.readString(parser);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return factory.apply(value);
+        } catch (IllegalArgumentException e) {
+            throw new JsonbException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Codec of the {@link MatrixId} (chosen by the sigil).
+     */
+    public static class Any extends IdJsonCodec<MatrixId> {
+
+        public Any() {
+            super(MatrixId.class, MatrixId::of);
+        }
+    }
+
+    /**
+     * Codec of the {@link UserId}.
+     */
+    public static class User extends IdJsonCodec<UserId> {
+
+        public User() {
+            super(UserId.class, UserId::of);
+        }
+    }
+
+    /**
+     * Codec of the {@link RoomId}.
+     */
+    public static class Room extends IdJsonCodec<RoomId> {
+
+        public Room() {
+            super(RoomId.class, RoomId::of);
+        }
+    }
+
+    /**
+     * Codec of the {@link EventId}.
+     */
+    public static class Event extends IdJsonCodec<EventId> {
+
+        public Event() {
+            super(EventId.class, EventId::of);
+        }
+    }
+
+    /**
+     * Codec of the {@link RoomAlias}.
+     */
+    public static class Alias extends IdJsonCodec<RoomAlias> {
+
+        public Alias() {
+            super(RoomAlias.class, RoomAlias::of);
+        }
+    }
+
+    /**
+     * Codec of the {@link ServerName}.
+     */
+    public static class Server extends IdJsonCodec<ServerName> {
+
+        public Server() {
+            super(ServerName.class, ServerName::of);
+        }
+    }
+}
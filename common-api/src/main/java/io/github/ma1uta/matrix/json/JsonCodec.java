@@ -0,0 +1,52 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import javax.json.stream.JsonParser;
+
+/**
+ * Reflection-free json codec of the single class.
+ * <br>
+ * Codecs are usually generated at compile time by the json-processor and registered through the {@link java.util.ServiceLoader}.
+ *
+ * @param <T> the type of the object.
+ */
+public interface JsonCodec<T> {
+
+    /**
+     * Class of the objects handled by the codec.
+     *
+     * @return the class.
+     */
+    Class<T> getType();
+
+    /**
+     * Write the object.
+     *
+     * @param value the object (not null).
+     * @param out   the output.
+     */
+    void write(T value, JsonOutput out);
+
+    /**
+     * Read the object.
+     *
+     * @param parser the parser positioned before the object (right after the key name or at the start of the document).
+     * @return the object or {@code null} if the json value is null.
+     */
+    T read(JsonParser parser);
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import java.util.List;
+
+/**
+ * Provider of the {@link JsonCodec}s of the single module.
+ * <br>
+ * The json-processor generates the provider with all codecs of the module (option {@code jeon.codec.provider}). The provider
+ * is declared with the {@code provides} clause of the module descriptor and with the {@code META-INF/services} on the classpath.
+ */
+public interface JsonCodecProvider {
+
+    /**
+     * Codecs of the module.
+     *
+     * @return the codecs.
+     */
+    List<JsonCodec<?>> getCodecs();
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomEvent;
+
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.bind.JsonbException;
+import javax.json.bind.serializer.DeserializationContext;
+import javax.json.stream.JsonParser;
+
+/**
+ * Registry of the {@link JsonCodec}s and the helpers used by the generated codecs.
+ */
+public class JsonCodecs {
+
+    private static final Map<Class<?>, JsonCodec<?>> CODECS = new ConcurrentHashMap<>();
+
+    private static final DeserializationContext CONTEXT = new CodecDeserializationContext();
+
+    static {
+        for (JsonCodec<?> codec : ServiceLoader.load(JsonCodec.class, JsonCodecs.class.getClassLoader())) {
+            CODECS.put(codec.getType(), codec);
+        }
+        for (JsonCodecProvider provider : ServiceLoader.load(JsonCodecProvider.class, JsonCodecs.class.getClassLoader())) {
+            for (JsonCodec<?> codec : provider.getCodecs()) {
+                CODECS.putIfAbsent(codec.getType(), codec);
+            }
+        }
+    }
+
+    protected JsonCodecs() {
+        //singleton
+    }
+
+    /**
+     * Reader of the single value.
+     *
+     * @param <T> the type of the value.
+     */
+    @FunctionalInterface
+    public interface ValueReader<T> {
+
+        /**
+         * Read the value.
+         *
+         * @param parser the parser positioned before the value.
+         * @return the value.
+         */
+        T read(JsonParser parser);
+    }
+
+    /**
+     * Writer of the single not null value.
+     *
+     * @param <T> the type of the value.
+     */
+    @FunctionalInterface
+    public interface ValueWriter<T> {
+
+        /**
+         * Write the value.
+         *
+         * @param out   the output.
+         * @param value the value.
+         */
+        void write(JsonOutput out, T value);
+    }
+
+    /**
+     * Register the codec.
+     *
+     * @param codec the codec.
+     */
+    public static void register(JsonCodec<?> codec) {
+        CODECS.put(codec.getType(), codec);
+    }
+
+    /**
+     * Find the codec of the class, the nearest superclass or the implemented interface.
+     *
+     * @param type the class.
+     * @param <T>  the type of the objects.
+     * @return the codec or {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> JsonCodec<T> codec(Class<T> type) {
+        JsonCodec<?> codec = CODECS.get(type);
+        if (codec == null) {
+            Class<?> superclass = type.getSuperclass();
+            while (codec == null && superclass != null) {
+                codec = CODECS.get(superclass);
+                superclass = superclass.getSuperclass();
+            }
+            for (Class<?> iface = type; codec == null && iface != null; iface = iface.getSuperclass()) {
+                for (Class<?> candidate : iface.getInterfaces()) {
+                    codec = CODECS.get(candidate);
+                    if (codec != null) {
+                        break;
+                    }
+                }
+            }
+            if (codec != null) {
+                CODECS.putIfAbsent(type, codec);
+            }
+        }
+        return (JsonCodec<T>) codec;
+    }
+
+    private static <T> JsonCodec<T> requireCodec(Class<T> type) {
+        JsonCodec<T> codec = codec(type);
+        if (codec == null) {
+            throw new JsonbException("Missing json codec for the " + type.getName());
+        }
+        return codec;
+    }
+
+    /**
+     * The deserialization context backed by the codecs.
+     *
+     * @return the deserialization context.
+     */
+    public static DeserializationContext context() {
+        return CONTEXT;
+    }
+
+    /**
+     * Serialize the object into the byte array.
+     *
+     * @param value the object.
+     * @return the UTF-8 json.
+     */
+    public static byte[] toJson(Object value) {
+        JsonOutput out = new JsonOutput();
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    /**
+     * Read the object with the codec.
+     *
+     * @param parser the parser positioned before the value.
+     * @param type   the class of the object.
+     * @param <T>    the type of the object.
+     * @return the object.
+     */
+    public static <T> T read(JsonParser parser, Class<T> type) {
+        return requireCodec(type).read(parser);
+    }
+
+    /**
+     * Write the object choosing the codec by its runtime class.
+     *
+     * @param out   the output.
+     * @param value the object.
+     */
+    @SuppressWarnings("unchecked")
+    public static void write(JsonOutput out, Object value) {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Boolean) {
+            out.value((boolean) (Boolean) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.value(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            out.value(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            out.value((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            out.value((BigInteger) value);
+        } else if (value instanceof JsonValue) {
+            out.value((JsonValue) value);
+        } else if (value instanceof Map) {
+            writeMap(out, (Map<Object, Object>) value, JsonCodecs::write);
+        } else if (value instanceof Collection) {
+            writeCollection(out, (Collection<Object>) value, JsonCodecs::write);
+        } else if (value instanceof char[]) {
+            out.value(new String((char[]) value));
+        } else if (value instanceof Enum) {
+            out.value(((Enum<?>) value).name());
+        } else if (!(value instanceof Event) || !out.writeEvent(eventId((Event<?>) value), value)) {
+            ((JsonCodec<Object>) requireCodec(value.getClass())).write(value, out);
+        }
+    }
+
+    /**
+     * Write the collection as the json array.
+     *
+     * @param out    the output.
+     * @param values the collection.
+     * @param writer the writer of the items.
+     * @param <T>    the type of the items.
+     */
+    public static <T> void writeCollection(JsonOutput out, Collection<T> values, ValueWriter<? super T> writer) {
+        out.beginArray();
+        for (T value : values) {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                writer.write(out, value);
+            }
+        }
+        out.endArray();
+    }
+
+    /**
+     * Write the map as the json object.
+     *
+     * @param out    the output.
+     * @param values the map.
+     * @param writer the writer of the values.
+     * @param <T>    the type of the values.
+     */
+    public static <T> void writeMap(JsonOutput out, Map<?, T> values, ValueWriter<? super T> writer) {
+        out.beginObject();
+        for (Object key : out.keys(values)) {
+            out.name(String.valueOf(key));
+            T value = values.get(key);
+            if (value == null) {
+                out.nullValue();
+            } else {
+                writer.write(out, value);
+            }
+        }
+        out.endObject();
+    }
+
+    /**
+     * Read the string.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static String readString(JsonParser parser) {
+        return JsonParsers.readString(parser);
+    }
+
+    /**
+     * Read the string as the char array.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static char[] readChars(JsonParser parser) {
+        String value = JsonParsers.readString(parser);
+        return value == null ? null : value.toCharArray();
+    }
+
+    /**
+     * Read the long.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Long readLong(JsonParser parser) {
+        return JsonParsers.readLong(parser);
+    }
+
+    /**
+     * Read the integer.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Integer readInteger(JsonParser parser) {
+        Long value = JsonParsers.readLong(parser);
+        return value == null ? null : Math.toIntExact(value);
+    }
+
+    /**
+     * Read the short.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Short readShort(JsonParser parser) {
+        Long value = JsonParsers.readLong(parser);
+        return value == null ? null : value.shortValue();
+    }
+
+    /**
+     * Read the byte.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Byte readByte(JsonParser parser) {
+        Long value = JsonParsers.readLong(parser);
+        return value == null ? null : value.byteValue();
+    }
+
+    /**
+     * Read the double.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Double readDouble(JsonParser parser) {
+        BigDecimal value = readBigDecimal(parser);
+        return value == null ? null : value.doubleValue();
+    }
+
+    /**
+     * Read the float.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Float readFloat(JsonParser parser) {
+        BigDecimal value = readBigDecimal(parser);
+        return value == null ? null : value.floatValue();
+    }
+
+    /**
+     * Read the decimal.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static BigDecimal readBigDecimal(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        switch (event) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_NUMBER:
+                return parser.getBigDecimal();
+            default:
+                throw new JsonbException("Expected number but found: " + event);
+        }
+    }
+
+    /**
+     * Read the big integer.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static BigInteger readBigInteger(JsonParser parser) {
+        BigDecimal value = readBigDecimal(parser);
+        return value == null ? null : value.toBigInteger();
+    }
+
+    /**
+     * Read the boolean.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Boolean readBoolean(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        switch (event) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                throw new JsonbException("Expected boolean but found: " + event);
+        }
+    }
+
+    /**
+     * Read the enum constant by name.
+     *
+     * @param parser  the parser.
+     * @param valueOf the enum lookup.
+     * @param <E>     the enum type.
+     * @return the value.
+     */
+    public static <E extends Enum<E>> E readEnum(JsonParser parser, Function<String, E> valueOf) {
+        String value = JsonParsers.readString(parser);
+        return value == null ? null : valueOf.apply(value);
+    }
+
+    /**
+     * Read the json array as the list.
+     *
+     * @param parser the parser.
+     * @param reader the reader of the items.
+     * @param <T>    the type of the items.
+     * @return the value.
+     */
+    public static <T> List<T> readList(JsonParser parser, ValueReader<T> reader) {
+        List<T> values = new ArrayList<>();
+        return readArray(parser, reader, values) ? values : null;
+    }
+
+    /**
+     * Read the json array as the set.
+     *
+     * @param parser the parser.
+     * @param reader the reader of the items.
+     * @param <T>    the type of the items.
+     * @return the value.
+     */
+    public static <T> Set<T> readSet(JsonParser parser, ValueReader<T> reader) {
+        Set<T> values = new LinkedHashSet<>();
+        return readArray(parser, reader, values) ? values : null;
+    }
+
+    private static <T> boolean readArray(JsonParser parser, ValueReader<T> reader, Collection<T> values) {
+        JsonParser.Event event = parser.next();
+        if (event == JsonParser.Event.VALUE_NULL) {
+            return false;
+        }
+        if (event != JsonParser.Event.START_ARRAY) {
+            throw new JsonbException("Expected array but found: " + event);
+        }
+        PeekingParser itemParser = new PeekingParser(parser);
+        while (parser.hasNext()) {
+            JsonParser.Event item = parser.next();
+            if (item == JsonParser.Event.END_ARRAY) {
+                break;
+            }
+            itemParser.pushBack(item);
+            values.add(reader.read(itemParser));
+        }
+        return true;
+    }
+
+    /**
+     * Read the json object as the map.
+     *
+     * @param parser the parser.
+     * @param reader the reader of the values.
+     * @param <T>    the type of the values.
+     * @return the value.
+     */
+    public static <T> Map<String, T> readMap(JsonParser parser, ValueReader<T> reader) {
+        JsonParser.Event event = parser.next();
+        if (event == JsonParser.Event.VALUE_NULL) {
+            return null;
+        }
+        if (event != JsonParser.Event.START_OBJECT) {
+            throw new JsonbException("Expected object but found: " + event);
+        }
+        Map<String, T> values = new LinkedHashMap<>();
+        while (parser.hasNext()) {
+            if (parser.next() == JsonParser.Event.END_OBJECT) {
+                break;
+            }
+            String key = parser.getString();
+            values.put(key, reader.read(parser));
+        }
+        return values;
+    }
+
+    /**
+     * Read any json value as the plain java object (map, list, string, number, boolean or null).
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    public static Object readValue(JsonParser parser) {
+        return toJava(JsonParsers.readValue(parser));
+    }
+
+    /**
+     * Skip the value.
+     *
+     * @param parser the parser.
+     */
+    public static void skip(JsonParser parser) {
+        JsonParsers.skipValue(parser);
+    }
+
+    private static String eventId(Event<?> event) {
+        if (event instanceof RoomEvent) {
+            return ((RoomEvent<?>) event).getEventId();
+        }
+        return event instanceof LazyEvent ? ((LazyEvent) event).getEventId() : null;
+    }
+
+    private static Object toJava(JsonValue value) {
+        switch (value.getValueType()) {
+            case OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+                    map.put(entry.getKey(), toJava(entry.getValue()));
+                }
+                return map;
+            case ARRAY:
+                List<Object> list = new ArrayList<>();
+                for (JsonValue item : (JsonArray) value) {
+                    list.add(toJava(item));
+                }
+                return list;
+            case STRING:
+                return ((JsonString) value).getString();
+            case NUMBER:
+                JsonNumber number = (JsonNumber) value;
+                return number.isIntegral() && number.bigIntegerValue().bitLength() < Long.SIZE
+                    ? (Object) number.longValue()
+                    : number.bigDecimalValue();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Deserialization context which delegates to the codecs.
+     */
+    private static class CodecDeserializationContext implements DeserializationContext {
+
+        @Override
+        public <T> T deserialize(Class<T> clazz, JsonParser parser) {
+            return read(parser, clazz);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T deserialize(Type type, JsonParser parser) {
+            if (type instanceof Class) {
+                return read(parser, (Class<T>) type);
+            }
+            throw new JsonbException("Unsupported type: " + type);
+        }
+    }
+}
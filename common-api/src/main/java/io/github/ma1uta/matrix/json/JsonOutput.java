@@ -0,0 +1,688 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.RoomEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.bind.JsonbException;
+
+/**
+ * Compact UTF-8 json writer.
+ * <br>
+ * Writes directly into the byte buffer which can be reused between documents (see {@link #reset()}) or flushed into the
+ * output stream. Field names can be pre-encoded once with the {@link #encodeName(String)}.
+ */
+public class JsonOutput {
+
+    private static final int DEFAULT_CAPACITY = 512;
+
+    private static final int CONTROL_CHARS = 0x20;
+
+    private static final int ONE_BYTE = 0x80;
+
+    private static final int TWO_BYTES = 0x800;
+
+    private static final int SIX_BITS = 6;
+
+    private static final int TWELVE_BITS = 12;
+
+    private static final int EIGHTEEN_BITS = 18;
+
+    private static final int LOW_BITS = 0x3F;
+
+    private static final int CONTINUATION = 0x80;
+
+    private static final int TWO_BYTES_HEADER = 0xC0;
+
+    private static final int THREE_BYTES_HEADER = 0xE0;
+
+    private static final int FOUR_BYTES_HEADER = 0xF0;
+
+    private static final int MAX_CHAR_BYTES = 4;
+
+    private static final int UNICODE_ESCAPE_LENGTH = 6;
+
+    private static final int HEX_SHIFT = 4;
+
+    private static final int HEX_MASK = 0xF;
+
+    private static final int REPLACEMENT_CHAR = 0xFFFD;
+
+    private static final String UNSIGNED = "unsigned";
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+
+    private byte[] buffer;
+
+    private int position;
+
+    private boolean needComma;
+
+    private FragmentCache fragments;
+
+    private String fragmentFormat;
+
+    private BiConsumer<JsonOutput, Object> eventEncoder;
+
+    private BiConsumer<JsonOutput, Object> unsignedEncoder;
+
+    private boolean writingEvent;
+
+    public JsonOutput() {
+        this(null, DEFAULT_CAPACITY);
+    }
+
+    public JsonOutput(OutputStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public JsonOutput(OutputStream out, int capacity) {
+        this.out = out;
+        this.buffer = new byte[Math.max(capacity, UNICODE_ESCAPE_LENGTH)];
+    }
+
+    /**
+     * Pre-encode the field name (quoted, escaped and followed by the colon).
+     *
+     * @param name the field name.
+     * @return the encoded name.
+     */
+    public static byte[] encodeName(String name) {
+        JsonOutput output = new JsonOutput(null, name.length() + 2 + 1);
+        output.writeString(name);
+        output.writeByte(':');
+        return output.toByteArray();
+    }
+
+    /**
+     * Start the object.
+     *
+     * @return this writer.
+     */
+    public JsonOutput beginObject() {
+        separator();
+        writeByte('{');
+        needComma = false;
+        return this;
+    }
+
+    /**
+     * End the object.
+     *
+     * @return this writer.
+     */
+    public JsonOutput endObject() {
+        writeByte('}');
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Start the array.
+     *
+     * @return this writer.
+     */
+    public JsonOutput beginArray() {
+        separator();
+        writeByte('[');
+        needComma = false;
+        return this;
+    }
+
+    /**
+     * End the array.
+     *
+     * @return this writer.
+     */
+    public JsonOutput endArray() {
+        writeByte(']');
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the pre-encoded field name.
+     *
+     * @param encodedName the name encoded by the {@link #encodeName(String)}.
+     * @return this writer.
+     */
+    public JsonOutput name(byte[] encodedName) {
+        separator();
+        writeBytes(encodedName, 0, encodedName.length);
+        needComma = false;
+        return this;
+    }
+
+    /**
+     * Write the field name.
+     *
+     * @param name the field name.
+     * @return this writer.
+     */
+    public JsonOutput name(String name) {
+        separator();
+        writeString(name);
+        writeByte(':');
+        needComma = false;
+        return this;
+    }
+
+    /**
+     * Write the string value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        writeString(value);
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the integer value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(int value) {
+        return value((long) value);
+    }
+
+    /**
+     * Write the long value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(long value) {
+        separator();
+        writeAscii(Long.toString(value));
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the double value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JsonbException("Unable to write the non-finite number: " + value);
+        }
+        separator();
+        writeAscii(Double.toString(value));
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the boolean value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(boolean value) {
+        separator();
+        byte[] bytes = value ? TRUE : FALSE;
+        writeBytes(bytes, 0, bytes.length);
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the decimal value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(BigDecimal value) {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        writeAscii(value.toString());
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the big integer value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(BigInteger value) {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        writeAscii(value.toString());
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the json value.
+     *
+     * @param value the value.
+     * @return this writer.
+     */
+    public JsonOutput value(JsonValue value) {
+        if (value == null) {
+            return nullValue();
+        }
+        switch (value.getValueType()) {
+            case OBJECT:
+                JsonObject object = (JsonObject) value;
+                beginObject();
+                for (String key : keys(object)) {
+                    name(key);
+                    value(object.get(key));
+                }
+                return endObject();
+            case ARRAY:
+                beginArray();
+                for (JsonValue item : (JsonArray) value) {
+                    value(item);
+                }
+                return endArray();
+            case STRING:
+                return value(((JsonString) value).getString());
+            case NUMBER:
+                return value(((JsonNumber) value).bigDecimalValue());
+            case TRUE:
+                return value(true);
+            case FALSE:
+                return value(false);
+            default:
+                return nullValue();
+        }
+    }
+
+    /**
+     * Write the null value.
+     *
+     * @return this writer.
+     */
+    public JsonOutput nullValue() {
+        separator();
+        writeBytes(NULL, 0, NULL.length);
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the already encoded json value as is.
+     *
+     * @param json   the UTF-8 encoded json value.
+     * @param offset the offset of the value.
+     * @param length the length of the value.
+     * @return this writer.
+     */
+    public JsonOutput rawValue(byte[] json, int offset, int length) {
+        separator();
+        writeBytes(json, offset, length);
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Write the json object with the members of the both json objects.
+     *
+     * @param first        the first UTF-8 encoded json object.
+     * @param firstLength  the length of the first object.
+     * @param second       the second UTF-8 encoded json object.
+     * @param secondLength the length of the second object.
+     * @return this writer.
+     */
+    JsonOutput mergedObject(byte[] first, int firstLength, byte[] second, int secondLength) {
+        int firstEnd = closingBrace(first, firstLength);
+        int secondStart = JsonScanner.skipWhitespaces(second, 0, secondLength) + 1;
+        int secondEnd = closingBrace(second, secondLength);
+        separator();
+        writeBytes(first, 0, firstEnd);
+        if (JsonScanner.skipWhitespaces(second, secondStart, secondEnd) != secondEnd) {
+            int firstStart = JsonScanner.skipWhitespaces(first, 0, firstEnd) + 1;
+            if (JsonScanner.skipWhitespaces(first, firstStart, firstEnd) != firstEnd) {
+                writeByte(',');
+            }
+            writeBytes(second, secondStart, secondEnd - secondStart);
+        }
+        writeByte('}');
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Whether the object keys should be written in the canonical (sorted) order.
+     *
+     * @return {@code true} if the keys are sorted.
+     */
+    public boolean isCanonical() {
+        return false;
+    }
+
+    /**
+     * Keys of the map in the order in which they should be written.
+     *
+     * @param map the map.
+     * @param <K> the type of the keys.
+     * @return the keys.
+     */
+    public <K> Iterable<K> keys(Map<K, ?> map) {
+        return map.keySet();
+    }
+
+    /**
+     * Write the events through the cache of the serialized events and (or) with the specified encoder.
+     * <br>
+     * Applies to the events written by the {@link JsonCodecs} at any depth (for example the timeline events of the room), the
+     * events nested into the written event are written by the encoder. The events without the event id aren't cached. The
+     * {@code unsigned} data isn't cached and is written for each response.
+     *
+     * @param cache   the cache or {@code null} to write the events without caching.
+     * @param format  the format of the events (see {@link FragmentCache}).
+     * @param encoder the encoder of the events in the format or {@code null} to use the default codecs.
+     * @return this writer.
+     */
+    public JsonOutput events(FragmentCache cache, String format, BiConsumer<JsonOutput, Object> encoder) {
+        this.fragments = cache;
+        this.fragmentFormat = format;
+        this.eventEncoder = encoder;
+        BiConsumer<JsonOutput, Object> writer = encoder != null ? encoder : JsonCodecs::write;
+        this.unsignedEncoder = (buffer, event) -> writer.accept(buffer, unsigned(event));
+        return this;
+    }
+
+    /**
+     * Write the event with the configured cache or encoder.
+     *
+     * @param eventId the event id or {@code null}.
+     * @param event   the event.
+     * @return {@code true} if the event is written, {@code false} if the event should be written by the default codec.
+     */
+    boolean writeEvent(String eventId, Object event) {
+        boolean cached = fragments != null && eventId != null && fragmentFormat != null;
+        if (writingEvent || !cached && eventEncoder == null) {
+            return false;
+        }
+        writingEvent = true;
+        try {
+            BiConsumer<JsonOutput, Object> encoder = eventEncoder != null ? eventEncoder : JsonCodecs::write;
+            if (cached) {
+                fragments.write(this, eventId, fragmentFormat, event, encoder, unsignedEncoder);
+            } else {
+                encoder.accept(this, event);
+            }
+        } finally {
+            writingEvent = false;
+        }
+        return true;
+    }
+
+    /**
+     * Count of the buffered bytes.
+     *
+     * @return the count of the buffered bytes.
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * Copy of the buffered bytes.
+     *
+     * @return the buffered bytes.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * The internal buffer, the first {@link #size()} bytes are written.
+     *
+     * @return the buffer.
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Write the buffered bytes into the stream and reset the buffer.
+     *
+     * @param stream the target stream.
+     */
+    public void writeTo(OutputStream stream) {
+        try {
+            stream.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+
+    /**
+     * Flush the buffered bytes into the underlying stream.
+     */
+    public void flush() {
+        if (out != null) {
+            writeTo(out);
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Reset the writer to write a new document reusing the buffer.
+     */
+    public void reset() {
+        position = 0;
+        needComma = false;
+    }
+
+    /**
+     * Write the comma if required.
+     */
+    protected void separator() {
+        if (needComma) {
+            writeByte(',');
+        }
+    }
+
+    /**
+     * Write the quoted and escaped string.
+     *
+     * @param value the string.
+     */
+    protected void writeString(String value) {
+        int length = value.length();
+        ensure(length + 2);
+        buffer[position++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= CONTROL_CHARS && c < ONE_BYTE && c != '"' && c != '\\') {
+                if (position == buffer.length) {
+                    ensure(1);
+                }
+                buffer[position++] = (byte) c;
+            } else if (c < ONE_BYTE) {
+                writeEscaped(c);
+            } else {
+                int codePoint = c;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, value.charAt(++i));
+                } else if (Character.isSurrogate(c)) {
+                    codePoint = REPLACEMENT_CHAR;
+                }
+                writeCodePoint(codePoint);
+            }
+        }
+        ensure(1);
+        buffer[position++] = '"';
+    }
+
+    private void writeEscaped(char c) {
+        ensure(UNICODE_ESCAPE_LENGTH);
+        buffer[position++] = '\\';
+        switch (c) {
+            case '"':
+                buffer[position++] = '"';
+                break;
+            case '\\':
+                buffer[position++] = '\\';
+                break;
+            case '\b':
+                buffer[position++] = 'b';
+                break;
+            case '\f':
+                buffer[position++] = 'f';
+                break;
+            case '\n':
+                buffer[position++] = 'n';
+                break;
+            case '\r':
+                buffer[position++] = 'r';
+                break;
+            case '\t':
+                buffer[position++] = 't';
+                break;
+            default:
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c >> HEX_SHIFT];
+                buffer[position++] = HEX[c & HEX_MASK];
+        }
+    }
+
+    private void writeCodePoint(int codePoint) {
+        ensure(MAX_CHAR_BYTES);
+        if (codePoint < TWO_BYTES) {
+            buffer[position++] = (byte) (TWO_BYTES_HEADER | (codePoint >> SIX_BITS));
+            buffer[position++] = (byte) (CONTINUATION | (codePoint & LOW_BITS));
+        } else if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            buffer[position++] = (byte) (THREE_BYTES_HEADER | (codePoint >> TWELVE_BITS));
+            buffer[position++] = (byte) (CONTINUATION | ((codePoint >> SIX_BITS) & LOW_BITS));
+            buffer[position++] = (byte) (CONTINUATION | (codePoint & LOW_BITS));
+        } else {
+            buffer[position++] = (byte) (FOUR_BYTES_HEADER | (codePoint >> EIGHTEEN_BITS));
+            buffer[position++] = (byte) (CONTINUATION | ((codePoint >> TWELVE_BITS) & LOW_BITS));
+            buffer[position++] = (byte) (CONTINUATION | ((codePoint >> SIX_BITS) & LOW_BITS));
+            buffer[position++] = (byte) (CONTINUATION | (codePoint & LOW_BITS));
+        }
+    }
+
+    /**
+     * Write the ascii string as is.
+     *
+     * @param value the ascii string.
+     */
+    protected void writeAscii(String value) {
+        int length = value.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Write the single byte.
+     *
+     * @param b the byte.
+     */
+    protected void writeByte(int b) {
+        ensure(1);
+        buffer[position++] = (byte) b;
+    }
+
+    /**
+     * Write the bytes.
+     *
+     * @param bytes  the bytes.
+     * @param offset the offset.
+     * @param length the length.
+     */
+    protected void writeBytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    private void ensure(int required) {
+        if (position + required <= buffer.length) {
+            return;
+        }
+        if (out != null) {
+            writeTo(out);
+            if (required <= buffer.length) {
+                return;
+            }
+        }
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + required));
+    }
+
+    private static int closingBrace(byte[] json, int length) {
+        int end = length - 1;
+        while (json[end] != '}') {
+            end--;
+        }
+        return end;
+    }
+
+    private static Map<String, Object> unsigned(Object event) {
+        Object unsigned = null;
+        if (event instanceof RoomEvent) {
+            unsigned = ((RoomEvent<?>) event).getUnsigned();
+        } else if (event instanceof LazyEvent) {
+            unsigned = ((LazyEvent) event).getValue(UNSIGNED);
+        }
+        return unsigned != null ? Collections.singletonMap(UNSIGNED, unsigned) : Collections.emptyMap();
+    }
+}
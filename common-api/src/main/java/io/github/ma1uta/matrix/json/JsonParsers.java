@@ -0,0 +1,145 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.bind.JsonbException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+/**
+ * Common parser helpers.
+ */
+final class JsonParsers {
+
+    private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(Collections.emptyMap());
+
+    private JsonParsers() {
+        //singleton
+    }
+
+    /**
+     * Create a parser over the buffered object.
+     *
+     * @param object the object.
+     * @return the parser.
+     */
+    static JsonParser parser(JsonObject object) {
+        return PARSER_FACTORY.createParser(object);
+    }
+
+    /**
+     * Create a parser over the UTF-8 encoded json.
+     *
+     * @param json   the json.
+     * @param offset the offset of the json.
+     * @param length the length of the json.
+     * @return the parser.
+     */
+    static JsonParser parser(byte[] json, int offset, int length) {
+        return PARSER_FACTORY.createParser(new ByteArrayInputStream(json, offset, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the next value as a string.
+     *
+     * @param parser the parser.
+     * @return the string value or {@code null}.
+     */
+    static String readString(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        switch (event) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+            case VALUE_NUMBER:
+                return parser.getString();
+            default:
+                throw new JsonbException("Expected string but found: " + event);
+        }
+    }
+
+    /**
+     * Read the next value as a long.
+     *
+     * @param parser the parser.
+     * @return the long value or {@code null}.
+     */
+    static Long readLong(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        switch (event) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_NUMBER:
+                return parser.getLong();
+            default:
+                throw new JsonbException("Expected number but found: " + event);
+        }
+    }
+
+    /**
+     * Read the next value as an object.
+     *
+     * @param parser the parser.
+     * @return the object value or {@code null}.
+     */
+    static JsonObject readObject(JsonParser parser) {
+        JsonParser.Event event = parser.next();
+        switch (event) {
+            case VALUE_NULL:
+                return null;
+            case START_OBJECT:
+                return parser.getObject();
+            default:
+                throw new JsonbException("Expected object but found: " + event);
+        }
+    }
+
+    /**
+     * Read the next value.
+     *
+     * @param parser the parser.
+     * @return the value.
+     */
+    static JsonValue readValue(JsonParser parser) {
+        parser.next();
+        return parser.getValue();
+    }
+
+    /**
+     * Skip the next value.
+     *
+     * @param parser the parser.
+     */
+    static void skipValue(JsonParser parser) {
+        switch (parser.next()) {
+            case START_OBJECT:
+                parser.skipObject();
+                break;
+            case START_ARRAY:
+                parser.skipArray();
+                break;
+            default:
+                // scalar is already consumed.
+        }
+    }
+}
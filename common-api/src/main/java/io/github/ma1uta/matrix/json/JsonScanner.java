@@ -0,0 +1,292 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import java.nio.charset.StandardCharsets;
+import javax.json.bind.JsonbException;
+
+/**
+ * Byte-level scanner of the UTF-8 json.
+ * <br>
+ * The scanner only finds the boundaries of the values (for the indexing and the splicing of the raw json), it doesn't
+ * decode or validate the scalar values.
+ */
+public final class JsonScanner {
+
+    private static final int ESCAPE_HEX_LENGTH = 4;
+
+    private static final int HEX_RADIX = 16;
+
+    private JsonScanner() {
+        //singleton
+    }
+
+    /**
+     * Visitor of the object fields.
+     */
+    @FunctionalInterface
+    public interface FieldVisitor {
+
+        /**
+         * Visit the field.
+         *
+         * @param nameStart  the start of the name (after the opening quote).
+         * @param nameEnd    the end of the name (the closing quote position).
+         * @param valueStart the start of the value.
+         * @param valueEnd   the end of the value (exclusive).
+         */
+        void field(int nameStart, int nameEnd, int valueStart, int valueEnd);
+    }
+
+    /**
+     * Visitor of the array elements.
+     */
+    @FunctionalInterface
+    public interface ElementVisitor {
+
+        /**
+         * Visit the element.
+         *
+         * @param start the start of the element.
+         * @param end   the end of the element (exclusive).
+         */
+        void element(int start, int end);
+    }
+
+    /**
+     * Skip the whitespaces.
+     *
+     * @param json the json.
+     * @param pos  the position.
+     * @param end  the end of the json.
+     * @return the position of the first non-whitespace byte.
+     */
+    public static int skipWhitespaces(byte[] json, int pos, int end) {
+        int i = pos;
+        while (i < end && (json[i] == ' ' || json[i] == '\n' || json[i] == '\r' || json[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Skip the string.
+     *
+     * @param json the json.
+     * @param pos  the position of the opening quote.
+     * @param end  the end of the json.
+     * @return the position after the closing quote.
+     */
+    public static int skipString(byte[] json, int pos, int end) {
+        for (int i = pos + 1; i < end; i++) {
+            if (json[i] == '\\') {
+                i++;
+            } else if (json[i] == '"') {
+                return i + 1;
+            }
+        }
+        throw new JsonbException("Unterminated string at " + pos);
+    }
+
+    /**
+     * Skip the value.
+     *
+     * @param json the json.
+     * @param pos  the start of the value.
+     * @param end  the end of the json.
+     * @return the position after the value.
+     */
+    public static int skipValue(byte[] json, int pos, int end) {
+        if (pos >= end) {
+            throw new JsonbException("Expected value at " + pos);
+        }
+        byte first = json[pos];
+        if (first == '"') {
+            return skipString(json, pos, end);
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            int i = pos;
+            while (i < end) {
+                byte c = json[i];
+                if (c == '"') {
+                    i = skipString(json, i, end);
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return i + 1;
+                    }
+                }
+                i++;
+            }
+            throw new JsonbException("Unterminated value at " + pos);
+        }
+        int i = pos;
+        while (i < end && json[i] != ',' && json[i] != '}' && json[i] != ']' && json[i] != ' ' && json[i] != '\n' && json[i] != '\r'
+            && json[i] != '\t') {
+            i++;
+        }
+        if (i == pos) {
+            throw new JsonbException("Expected value at " + pos);
+        }
+        return i;
+    }
+
+    /**
+     * Scan the fields of the object.
+     *
+     * @param json    the json.
+     * @param pos     the position of the opening brace.
+     * @param end     the end of the json.
+     * @param visitor the field visitor.
+     * @return the position after the closing brace.
+     */
+    public static int scanObject(byte[] json, int pos, int end, FieldVisitor visitor) {
+        if (pos >= end || json[pos] != '{') {
+            throw new JsonbException("Expected object at " + pos);
+        }
+        int i = skipWhitespaces(json, pos + 1, end);
+        if (i < end && json[i] == '}') {
+            return i + 1;
+        }
+        while (true) {
+            if (i >= end || json[i] != '"') {
+                throw new JsonbException("Expected field name at " + i);
+            }
+            int nameEnd = skipString(json, i, end);
+            int valueStart = skipWhitespaces(json, nameEnd, end);
+            if (valueStart >= end || json[valueStart] != ':') {
+                throw new JsonbException("Expected ':' at " + valueStart);
+            }
+            valueStart = skipWhitespaces(json, valueStart + 1, end);
+            int valueEnd = skipValue(json, valueStart, end);
+            visitor.field(i + 1, nameEnd - 1, valueStart, valueEnd);
+            i = skipWhitespaces(json, valueEnd, end);
+            if (i < end && json[i] == ',') {
+                i = skipWhitespaces(json, i + 1, end);
+            } else if (i < end && json[i] == '}') {
+                return i + 1;
+            } else {
+                throw new JsonbException("Expected ',' or '}' at " + i);
+            }
+        }
+    }
+
+    /**
+     * Scan the elements of the array.
+     *
+     * @param json    the json.
+     * @param pos     the position of the opening bracket.
+     * @param end     the end of the json.
+     * @param visitor the element visitor.
+     * @return the position after the closing bracket.
+     */
+    public static int scanArray(byte[] json, int pos, int end, ElementVisitor visitor) {
+        if (pos >= end || json[pos] != '[') {
+            throw new JsonbException("Expected array at " + pos);
+        }
+        int i = skipWhitespaces(json, pos + 1, end);
+        if (i < end && json[i] == ']') {
+            return i + 1;
+        }
+        while (true) {
+            int valueEnd = skipValue(json, i, end);
+            visitor.element(i, valueEnd);
+            i = skipWhitespaces(json, valueEnd, end);
+            if (i < end && json[i] == ',') {
+                i = skipWhitespaces(json, i + 1, end);
+            } else if (i < end && json[i] == ']') {
+                return i + 1;
+            } else {
+                throw new JsonbException("Expected ',' or ']' at " + i);
+            }
+        }
+    }
+
+    /**
+     * Whether the string contains the escape sequences.
+     *
+     * @param json  the json.
+     * @param start the start of the string content (after the opening quote).
+     * @param end   the end of the string content (the closing quote position).
+     * @return {@code true} if the string contains the escape sequences, else {@code false}.
+     */
+    public static boolean hasEscapes(byte[] json, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (json[i] == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode the string content.
+     *
+     * @param json  the json.
+     * @param start the start of the string content (after the opening quote).
+     * @param end   the end of the string content (the closing quote position).
+     * @return the decoded string.
+     */
+    public static String decodeString(byte[] json, int start, int end) {
+        if (!hasEscapes(json, start, end)) {
+            return new String(json, start, end - start, StandardCharsets.UTF_8);
+        }
+        StringBuilder value = new StringBuilder(end - start);
+        int chunk = start;
+        int i = start;
+        while (i < end) {
+            if (json[i] != '\\') {
+                i++;
+                continue;
+            }
+            value.append(new String(json, chunk, i - chunk, StandardCharsets.UTF_8));
+            char escaped = (char) json[i + 1];
+            i += 2;
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    value.append((char) Integer.parseInt(new String(json, i, ESCAPE_HEX_LENGTH, StandardCharsets.US_ASCII), HEX_RADIX));
+                    i += ESCAPE_HEX_LENGTH;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+            chunk = i;
+        }
+        value.append(new String(json, chunk, end - chunk, StandardCharsets.UTF_8));
+        return value.toString();
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.content.EventContent;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.bind.JsonbException;
+import javax.json.stream.JsonParser;
+
+/**
+ * Event backed by the original UTF-8 json.
+ * <br>
+ * Only the offsets of the top-level fields are indexed when the event is created. The routing fields ({@code type},
+ * {@code sender}, {@code room_id}, ...) are decoded from the bytes on access, the content is decoded on the first access.
+ * The unmodified event is written as the original bytes.
+ * <br>
+ * The instances are not thread-safe (as the other events).
+ */
+public class LazyEvent extends Event<EventContent> {
+
+    private static final EventDeserializer DEFAULT_DESERIALIZER = new EventDeserializer();
+
+    private static final byte[] TYPE = utf8("type");
+
+    private static final byte[] CONTENT = utf8("content");
+
+    private static final byte[] EVENT_ID = utf8("event_id");
+
+    private static final byte[] ROOM_ID = utf8("room_id");
+
+    private static final byte[] SENDER = utf8("sender");
+
+    private static final byte[] STATE_KEY = utf8("state_key");
+
+    private static final byte[] ORIGIN_SERVER_TS = utf8("origin_server_ts");
+
+    private static final int NAME_START = 0;
+
+    private static final int NAME_END = 1;
+
+    private static final int VALUE_START = 2;
+
+    private static final int VALUE_END = 3;
+
+    private static final int FIELD_SLOTS = 4;
+
+    private static final int INITIAL_FIELDS = 16;
+
+    private final byte[] json;
+
+    private final int offset;
+
+    private final int length;
+
+    private final EventDeserializer deserializer;
+
+    private int objectStart;
+
+    private int objectEnd;
+
+    private int[] index;
+
+    private int fields;
+
+    private String type;
+
+    private boolean contentDecoded;
+
+    private boolean contentChanged;
+
+    protected LazyEvent(byte[] json, int offset, int length, EventDeserializer deserializer) {
+        this.json = json;
+        this.offset = offset;
+        this.length = length;
+        this.deserializer = deserializer;
+        this.index = new int[INITIAL_FIELDS * FIELD_SLOTS];
+        scan();
+    }
+
+    /**
+     * Index the event.
+     *
+     * @param json the UTF-8 encoded event.
+     * @return the event.
+     * @throws JsonbException if the json isn't an object.
+     */
+    public static LazyEvent of(byte[] json) {
+        return of(json, 0, json.length, DEFAULT_DESERIALIZER);
+    }
+
+    /**
+     * Index the event.
+     *
+     * @param json         the UTF-8 encoded event.
+     * @param offset       the offset of the event.
+     * @param length       the length of the event.
+     * @param deserializer the deserializer of the content and of the whole event.
+     * @return the event.
+     * @throws JsonbException if the json isn't an object.
+     */
+    public static LazyEvent of(byte[] json, int offset, int length, EventDeserializer deserializer) {
+        return new LazyEvent(json, offset, length, deserializer);
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getType() {
+        if (type == null) {
+            type = getString(TYPE);
+        }
+        return type;
+    }
+
+    /**
+     * The event id.
+     *
+     * @return the event id or {@code null}.
+     */
+    public String getEventId() {
+        return getString(EVENT_ID);
+    }
+
+    /**
+     * The room id.
+     *
+     * @return the room id or {@code null}.
+     */
+    public String getRoomId() {
+        return getString(ROOM_ID);
+    }
+
+    /**
+     * The sender.
+     *
+     * @return the sender or {@code null}.
+     */
+    public String getSender() {
+        return getString(SENDER);
+    }
+
+    /**
+     * The state key.
+     *
+     * @return the state key or {@code null}.
+     */
+    public String getStateKey() {
+        return getString(STATE_KEY);
+    }
+
+    /**
+     * The timestamp.
+     *
+     * @return the timestamp or {@code null}.
+     */
+    public Long getOriginServerTs() {
+        int field = find(ORIGIN_SERVER_TS);
+        if (field == -1 || isNull(field)) {
+            return null;
+        }
+        int start = index[field + VALUE_START];
+        try {
+            return Long.parseLong(new String(json, start, index[field + VALUE_END] - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new JsonbException("Invalid origin_server_ts", e);
+        }
+    }
+
+    @Override
+    public EventContent getContent() {
+        if (!contentDecoded) {
+            contentDecoded = true;
+            super.setContent(decodeContent());
+        }
+        return super.getContent();
+    }
+
+    @Override
+    public void setContent(EventContent content) {
+        contentDecoded = true;
+        contentChanged = true;
+        super.setContent(content);
+    }
+
+    /**
+     * Whether the event has the top-level field.
+     *
+     * @param name the field name.
+     * @return {@code true} if the field exists, else {@code false}.
+     */
+    public boolean has(String name) {
+        return find(utf8(name)) != -1;
+    }
+
+    /**
+     * Names of the top-level fields.
+     *
+     * @return the field names.
+     */
+    public List<String> getFieldNames() {
+        List<String> names = new ArrayList<>(fields);
+        for (int i = 0; i < fields; i++) {
+            int field = i * FIELD_SLOTS;
+            names.add(JsonScanner.decodeString(json, index[field + NAME_START], index[field + NAME_END]));
+        }
+        return names;
+    }
+
+    /**
+     * Copy of the raw json of the top-level field.
+     *
+     * @param name the field name.
+     * @return the raw json or {@code null} if the field is missing.
+     */
+    public byte[] getRaw(String name) {
+        int field = find(utf8(name));
+        return field == -1 ? null : Arrays.copyOfRange(json, index[field + VALUE_START], index[field + VALUE_END]);
+    }
+
+    /**
+     * Decode the top-level field as a plain java object (map, list, string, number, boolean or null).
+     *
+     * @param name the field name.
+     * @return the value or {@code null} if the field is missing.
+     */
+    public Object getValue(String name) {
+        int field = find(utf8(name));
+        return field == -1 ? null : readValue(field);
+    }
+
+    /**
+     * Materialize the typed event.
+     *
+     * @return the event.
+     */
+    @SuppressWarnings("unchecked")
+    public Event<?> toEvent() {
+        JsonParser parser = JsonParsers.parser(json, offset, length);
+        parser.next();
+        Event<?> event = deserializer.read(parser, JsonCodecs.context());
+        if (contentChanged) {
+            ((Event<EventContent>) event).setContent(super.getContent());
+        }
+        return event;
+    }
+
+    /**
+     * Whether the event is unmodified and can be written as the original bytes.
+     *
+     * @return {@code true} if the event is unmodified, else {@code false}.
+     */
+    public boolean isPristine() {
+        return !contentChanged;
+    }
+
+    /**
+     * The original json of the event object.
+     *
+     * @return the original json.
+     */
+    RawJson raw() {
+        return new RawJson(json, objectStart, objectEnd - objectStart);
+    }
+
+    /**
+     * Write the event.
+     * <br>
+     * The unmodified event is written as the original bytes. The canonical output requires the re-encoding of the values.
+     *
+     * @param out the output.
+     */
+    public void write(JsonOutput out) {
+        if (out.isCanonical()) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (int i = 0; i < fields; i++) {
+                int field = i * FIELD_SLOTS;
+                String name = JsonScanner.decodeString(json, index[field + NAME_START], index[field + NAME_END]);
+                values.put(name, contentChanged && isField(field, CONTENT) ? super.getContent() : readValue(field));
+            }
+            JsonCodecs.write(out, values);
+        } else if (!contentChanged) {
+            out.rawValue(json, objectStart, objectEnd - objectStart);
+        } else {
+            out.beginObject();
+            boolean contentWritten = false;
+            for (int i = 0; i < fields; i++) {
+                int field = i * FIELD_SLOTS;
+                out.name(JsonScanner.decodeString(json, index[field + NAME_START], index[field + NAME_END]));
+                if (isField(field, CONTENT)) {
+                    JsonCodecs.write(out, super.getContent());
+                    contentWritten = true;
+                } else {
+                    out.rawValue(json, index[field + VALUE_START], index[field + VALUE_END] - index[field + VALUE_START]);
+                }
+            }
+            if (!contentWritten) {
+                out.name("content");
+                JsonCodecs.write(out, super.getContent());
+            }
+            out.endObject();
+        }
+    }
+
+    private EventContent decodeContent() {
+        int field = find(CONTENT);
+        if (field == -1 || isNull(field)) {
+            return null;
+        }
+        int start = index[field + VALUE_START];
+        JsonParser parser = JsonParsers.parser(json, start, index[field + VALUE_END] - start);
+        EventMapping mapping = getType() != null ? deserializer.mapping(getType()) : null;
+        if (mapping != null) {
+            return mapping.getContentReader().read(parser, JsonCodecs.context());
+        }
+        return new RawEventContent(JsonParsers.readObject(parser));
+    }
+
+    private Object readValue(int field) {
+        int start = index[field + VALUE_START];
+        return JsonCodecs.readValue(JsonParsers.parser(json, start, index[field + VALUE_END] - start));
+    }
+
+    private String getString(byte[] name) {
+        int field = find(name);
+        if (field == -1 || isNull(field)) {
+            return null;
+        }
+        int start = index[field + VALUE_START];
+        if (json[start] != '"') {
+            throw new JsonbException("Expected string at " + start);
+        }
+        return JsonScanner.decodeString(json, start + 1, index[field + VALUE_END] - 1);
+    }
+
+    private boolean isNull(int field) {
+        return json[index[field + VALUE_START]] == 'n';
+    }
+
+    private int find(byte[] name) {
+        for (int i = 0; i < fields; i++) {
+            int field = i * FIELD_SLOTS;
+            if (isField(field, name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isField(int field, byte[] name) {
+        int start = index[field + NAME_START];
+        int end = index[field + NAME_END];
+        if (end - start == name.length) {
+            for (int i = 0; i < name.length; i++) {
+                if (json[start + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return JsonScanner.hasEscapes(json, start, end)
+            && JsonScanner.decodeString(json, start, end).equals(new String(name, StandardCharsets.UTF_8));
+    }
+
+    private void scan() {
+        int end = offset + length;
+        objectStart = JsonScanner.skipWhitespaces(json, offset, end);
+        objectEnd = JsonScanner.scanObject(json, objectStart, end, this::addField);
+    }
+
+    private void addField(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int field = fields * FIELD_SLOTS;
+        if (field == index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[field + NAME_START] = nameStart;
+        index[field + NAME_END] = nameEnd;
+        index[field + VALUE_START] = valueStart;
+        index[field + VALUE_END] = valueEnd;
+        fields++;
+    }
+}
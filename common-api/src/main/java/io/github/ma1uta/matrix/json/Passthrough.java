@@ -0,0 +1,170 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.common.RawJsonHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.json.stream.JsonParser;
+
+/**
+ * Reads the objects keeping their original json.
+ * <br>
+ * The {@link RawJsonHolder}s which were read by these methods are written as the original bytes until they are modified.
+ * For example the PDUs of the received transaction:
+ * <pre>
+ * Transaction transaction = Passthrough.read(body, Transaction.class);
+ * Passthrough.attachElements(transaction.getPdus(), Passthrough.field(body, "pdus"));
+ * </pre>
+ */
+public class Passthrough {
+
+    protected Passthrough() {
+        //singleton
+    }
+
+    /**
+     * Read the object and attach the original json to it.
+     *
+     * @param json the UTF-8 encoded json.
+     * @param type the object class.
+     * @param <T>  the object type.
+     * @return the object.
+     */
+    public static <T> T read(byte[] json, Class<T> type) {
+        return read(new RawJson(json), type);
+    }
+
+    /**
+     * Read the object and attach the original json to it.
+     *
+     * @param json the UTF-8 encoded json.
+     * @param type the object class.
+     * @param <T>  the object type.
+     * @return the object.
+     */
+    public static <T> T read(RawJson json, Class<T> type) {
+        JsonParser parser = JsonParsers.parser(json.getBytes(), json.getOffset(), json.getLength());
+        T value = JsonCodecs.read(parser, type);
+        attach(value, json);
+        return value;
+    }
+
+    /**
+     * Read the array elements and attach the original json to each of them.
+     *
+     * @param json the UTF-8 encoded json array.
+     * @param type the element class.
+     * @param <T>  the element type.
+     * @return the elements.
+     */
+    public static <T> List<T> readArray(RawJson json, Class<T> type) {
+        List<T> values = new ArrayList<>();
+        for (RawJson element : elements(json)) {
+            values.add(read(element, type));
+        }
+        return values;
+    }
+
+    /**
+     * Attach the original json to the already read array elements.
+     *
+     * @param values the elements.
+     * @param json   the json array which the elements were read from.
+     */
+    public static void attachElements(List<?> values, RawJson json) {
+        if (values == null || json == null) {
+            return;
+        }
+        List<RawJson> elements = elements(json);
+        if (elements.size() != values.size()) {
+            return;
+        }
+        for (int i = 0; i < values.size(); i++) {
+            attach(values.get(i), elements.get(i));
+        }
+    }
+
+    /**
+     * Find the top-level field of the object.
+     *
+     * @param json the UTF-8 encoded json object.
+     * @param name the field name.
+     * @return the json of the field value or {@code null} if the field is missing.
+     */
+    public static RawJson field(byte[] json, String name) {
+        return field(new RawJson(json), name);
+    }
+
+    /**
+     * Find the top-level field of the object.
+     *
+     * @param json the json object.
+     * @param name the field name.
+     * @return the json of the field value or {@code null} if the field is missing.
+     */
+    public static RawJson field(RawJson json, String name) {
+        byte[] bytes = json.getBytes();
+        int end = json.getOffset() + json.getLength();
+        int[] found = {-1, -1};
+        JsonScanner.scanObject(bytes, JsonScanner.skipWhitespaces(bytes, json.getOffset(), end), end,
+            (nameStart, nameEnd, valueStart, valueEnd) -> {
+                if (found[0] == -1 && name.equals(JsonScanner.decodeString(bytes, nameStart, nameEnd))) {
+                    found[0] = valueStart;
+                    found[1] = valueEnd;
+                }
+            });
+        return found[0] == -1 ? null : new RawJson(bytes, found[0], found[1] - found[0]);
+    }
+
+    /**
+     * Split the json array into the elements.
+     *
+     * @param json the json array.
+     * @return the json of the elements.
+     */
+    public static List<RawJson> elements(RawJson json) {
+        byte[] bytes = json.getBytes();
+        int end = json.getOffset() + json.getLength();
+        List<RawJson> elements = new ArrayList<>();
+        int start = JsonScanner.skipWhitespaces(bytes, json.getOffset(), end);
+        if (start < end && bytes[start] == 'n') {
+            return elements;
+        }
+        JsonScanner.scanArray(bytes, start, end,
+            (elementStart, elementEnd) -> elements.add(new RawJson(bytes, elementStart, elementEnd - elementStart)));
+        return elements;
+    }
+
+    private static void attach(Object value, RawJson json) {
+        if (value instanceof RawJsonHolder) {
+            byte[] bytes = json.getBytes();
+            int end = json.getOffset() + json.getLength();
+            int start = JsonScanner.skipWhitespaces(bytes, json.getOffset(), end);
+            while (end > start && isWhitespace(bytes[end - 1])) {
+                end--;
+            }
+            ((RawJsonHolder) value).setRawJson(new RawJson(bytes, start, end - start));
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import javax.json.bind.JsonbException;
+
+/**
+ * Codec of the abstract type which writes the objects with the codec of the runtime class.
+ *
+ * @param <T> the abstract type.
+ */
+public abstract class PolymorphicJsonCodec<T> implements JsonCodec<T> {
+
+    /**
+     * Write the object with the codec of its runtime class.
+     *
+     * @param value the object.
+     * @param out   the output.
+     */
+    @SuppressWarnings("unchecked")
+    protected void writeConcrete(T value, JsonOutput out) {
+        JsonCodec<T> codec = (JsonCodec<T>) JsonCodecs.codec(value.getClass());
+        if (codec == null || codec == this) {
+            throw new JsonbException("Missing json codec for the " + value.getClass().getName());
+        }
+        codec.write(value, out);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.content.RoomEncryptedContent;
+import io.github.ma1uta.matrix.event.encrypted.MegolmEncryptedContent;
+import io.github.ma1uta.matrix.event.encrypted.OlmEncryptedContent;
+import io.github.ma1uta.matrix.event.encrypted.RawEncryptedContent;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.json.JsonObject;
+
+/**
+ * Deserializer of the {@link RoomEncryptedContent} by the ``algorithm`` property.
+ */
+public class RoomEncryptedContentDeserializer extends DiscriminatedContentDeserializer<RoomEncryptedContent> {
+
+    private static final Map<String, Class<? extends RoomEncryptedContent>> ALGORITHMS = new HashMap<>();
+
+    static {
+        ALGORITHMS.put(OlmEncryptedContent.ALGORITHM, OlmEncryptedContent.class);
+        ALGORITHMS.put(MegolmEncryptedContent.ALGORITHM, MegolmEncryptedContent.class);
+    }
+
+    public RoomEncryptedContentDeserializer() {
+        super("algorithm", ALGORITHMS);
+    }
+
+    @Override
+    protected RoomEncryptedContent raw(JsonObject content, String value) {
+        RawEncryptedContent raw = new RawEncryptedContent(content, value);
+        raw.setSenderKey(content.getString("sender_key", null));
+        raw.setDeviceId(content.getString("device_id", null));
+        raw.setSessionId(content.getString("session_id", null));
+        return raw;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.content.RoomEncryptedContent;
+import io.github.ma1uta.matrix.event.encrypted.RawEncryptedContent;
+
+import javax.json.stream.JsonParser;
+
+/**
+ * Codec of the {@link RoomEncryptedContent} which dispatches by the ``algorithm``.
+ */
+public class RoomEncryptedContentJsonCodec extends PolymorphicJsonCodec<RoomEncryptedContent> {
+
+    private final RoomEncryptedContentDeserializer deserializer = new RoomEncryptedContentDeserializer();
+
+    @Override
+    public Class<RoomEncryptedContent> getType() {
+        return RoomEncryptedContent.class;
+    }
+
+    @Override
+    public void write(RoomEncryptedContent value, JsonOutput out) {
+        if (value instanceof RawEncryptedContent) {
+            JsonCodecs.write(out, ((RawEncryptedContent) value).getProps());
+        } else {
+            writeConcrete(value, out);
+        }
+    }
+
+    @Override
+    public RoomEncryptedContent read(JsonParser parser) {
+        return deserializer.read(parser, JsonCodecs.context());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.content.RoomMessageContent;
+import io.github.ma1uta.matrix.event.message.Audio;
+import io.github.ma1uta.matrix.event.message.Emote;
+import io.github.ma1uta.matrix.event.message.File;
+import io.github.ma1uta.matrix.event.message.Image;
+import io.github.ma1uta.matrix.event.message.Location;
+import io.github.ma1uta.matrix.event.message.Notice;
+import io.github.ma1uta.matrix.event.message.RawMessageContent;
+import io.github.ma1uta.matrix.event.message.ServerNotice;
+import io.github.ma1uta.matrix.event.message.Text;
+import io.github.ma1uta.matrix.event.message.Video;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.json.JsonObject;
+
+/**
+ * Deserializer of the {@link RoomMessageContent} by the ``msgtype`` property.
+ */
+public class RoomMessageContentDeserializer extends DiscriminatedContentDeserializer<RoomMessageContent> {
+
+    private static final Map<String, Class<? extends RoomMessageContent>> MSGTYPES = new HashMap<>();
+
+    static {
+        MSGTYPES.put(Audio.MSGTYPE, Audio.class);
+        MSGTYPES.put(Emote.MSGTYPE, Emote.class);
+        MSGTYPES.put(File.MSGTYPE, File.class);
+        MSGTYPES.put(Image.MSGTYPE, Image.class);
+        MSGTYPES.put(Location.MSGTYPE, Location.class);
+        MSGTYPES.put(Notice.MSGTYPE, Notice.class);
+        MSGTYPES.put(ServerNotice.MSGTYPE, ServerNotice.class);
+        MSGTYPES.put(Text.MSGTYPE, Text.class);
+        MSGTYPES.put(Video.MSGTYPE, Video.class);
+    }
+
+    public RoomMessageContentDeserializer() {
+        super("msgtype", MSGTYPES);
+    }
+
+    @Override
+    protected RoomMessageContent raw(JsonObject content, String value) {
+        return new RawMessageContent(content, value);
+    }
+}
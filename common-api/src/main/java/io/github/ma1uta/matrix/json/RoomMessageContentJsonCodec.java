@@ -0,0 +1,49 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import io.github.ma1uta.matrix.event.content.RoomMessageContent;
+import io.github.ma1uta.matrix.event.message.RawMessageContent;
+
+import javax.json.stream.JsonParser;
+
+/**
+ * Codec of the {@link RoomMessageContent} which dispatches by the ``msgtype``.
+ */
+public class RoomMessageContentJsonCodec extends PolymorphicJsonCodec<RoomMessageContent> {
+
+    private final RoomMessageContentDeserializer deserializer = new RoomMessageContentDeserializer();
+
+    @Override
+    public Class<RoomMessageContent> getType() {
+        return RoomMessageContent.class;
+    }
+
+    @Override
+    public void write(RoomMessageContent value, JsonOutput out) {
+        if (value instanceof RawMessageContent) {
+            JsonCodecs.write(out, ((RawMessageContent) value).getNode());
+        } else {
+            writeConcrete(value, out);
+        }
+    }
+
+    @Override
+    public RoomMessageContent read(JsonParser parser) {
+        return deserializer.read(parser, JsonCodecs.context());
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.json;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonLocation;
+import javax.json.stream.JsonParser;
+
+/**
+ * Flat buffer of the parser events (the event kinds and the texts of the names, strings and numbers) which can be replayed.
+ * <br>
+ * Used instead of the {@link JsonObject} tree when the value must be read before it can be decoded (the content before the
+ * event type, the properties before the discriminator). The replay can continue with the live parser, so only the already
+ * consumed part of the value is buffered.
+ */
+final class TokenBuffer {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private static final int MAX_INT_DIGITS = 9;
+
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private static final JsonParser.Event[] EVENTS = JsonParser.Event.values();
+
+    private static final JsonBuilderFactory BUILDER_FACTORY = Json.createBuilderFactory(Collections.emptyMap());
+
+    private byte[] events = new byte[INITIAL_CAPACITY];
+
+    private String[] texts = new String[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * Record the value.
+     *
+     * @param parser the parser positioned before the value.
+     * @return the buffer.
+     */
+    static TokenBuffer record(JsonParser parser) {
+        TokenBuffer buffer = new TokenBuffer();
+        buffer.addValue(parser, parser.next());
+        return buffer;
+    }
+
+    /**
+     * Add the consumed event.
+     *
+     * @param parser the parser.
+     * @param event  the event.
+     */
+    void add(JsonParser parser, JsonParser.Event event) {
+        if (size == events.length) {
+            events = Arrays.copyOf(events, size * 2);
+            texts = Arrays.copyOf(texts, size * 2);
+        }
+        events[size] = (byte) event.ordinal();
+        texts[size] = hasText(event) ? parser.getString() : null;
+        size++;
+    }
+
+    /**
+     * Add the value which first event is consumed.
+     *
+     * @param parser the parser.
+     * @param first  the first event of the value.
+     */
+    void addValue(JsonParser parser, JsonParser.Event first) {
+        add(parser, first);
+        int depth = isStart(first) ? 1 : 0;
+        while (depth > 0) {
+            JsonParser.Event event = parser.next();
+            add(parser, event);
+            if (isStart(event)) {
+                depth++;
+            } else if (event == JsonParser.Event.END_OBJECT || event == JsonParser.Event.END_ARRAY) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Replay the buffer.
+     *
+     * @param continuation the parser which continues the buffered events or {@code null}.
+     * @return the parser.
+     */
+    JsonParser replay(JsonParser continuation) {
+        return new Replay(continuation);
+    }
+
+    private static boolean hasText(JsonParser.Event event) {
+        return event == JsonParser.Event.KEY_NAME || event == JsonParser.Event.VALUE_STRING || event == JsonParser.Event.VALUE_NUMBER;
+    }
+
+    private static boolean isStart(JsonParser.Event event) {
+        return event == JsonParser.Event.START_OBJECT || event == JsonParser.Event.START_ARRAY;
+    }
+
+    /**
+     * The parser over the buffered events and then over the continuation.
+     */
+    private final class Replay implements JsonParser {
+
+        private final JsonParser continuation;
+
+        private int position;
+
+        private boolean delegated;
+
+        private Event current;
+
+        private String text;
+
+        Replay(JsonParser continuation) {
+            this.continuation = continuation;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < size || (continuation != null && continuation.hasNext());
+        }
+
+        @Override
+        public Event next() {
+            if (position < size) {
+                delegated = false;
+                text = texts[position];
+                current = EVENTS[events[position++]];
+                return current;
+            }
+            if (continuation == null) {
+                throw new NoSuchElementException();
+            }
+            delegated = true;
+            current = continuation.next();
+            return current;
+        }
+
+        @Override
+        public String getString() {
+            return delegated ? continuation.getString() : text;
+        }
+
+        @Override
+        public boolean isIntegralNumber() {
+            if (delegated) {
+                return continuation.isIntegralNumber();
+            }
+            return text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0;
+        }
+
+        @Override
+        public int getInt() {
+            if (delegated) {
+                return continuation.getInt();
+            }
+            return isIntegralNumber() && text.length() <= MAX_INT_DIGITS ? Integer.parseInt(text) : (int) getLong();
+        }
+
+        @Override
+        public long getLong() {
+            if (delegated) {
+                return continuation.getLong();
+            }
+            return isIntegralNumber() && text.length() <= MAX_LONG_DIGITS ? Long.parseLong(text) : getBigDecimal().longValue();
+        }
+
+        @Override
+        public BigDecimal getBigDecimal() {
+            return delegated ? continuation.getBigDecimal() : new BigDecimal(text);
+        }
+
+        @Override
+        public JsonLocation getLocation() {
+            return continuation != null ? continuation.getLocation() : null;
+        }
+
+        @Override
+        public JsonObject getObject() {
+            JsonObjectBuilder builder = BUILDER_FACTORY.createObjectBuilder();
+            Event event = next();
+            while (event != Event.END_OBJECT) {
+                String name = getString();
+                builder.add(name, value(next()));
+                event = next();
+            }
+            return builder.build();
+        }
+
+        @Override
+        public JsonValue getValue() {
+            return delegated ? continuation.getValue() : value(current);
+        }
+
+        @Override
+        public JsonArray getArray() {
+            JsonArrayBuilder builder = BUILDER_FACTORY.createArrayBuilder();
+            Event event = next();
+            while (event != Event.END_ARRAY) {
+                builder.add(value(event));
+                event = next();
+            }
+            return builder.build();
+        }
+
+        @Override
+        public Stream<JsonValue> getArrayStream() {
+            return getArray().stream();
+        }
+
+        @Override
+        public Stream<Map.Entry<String, JsonValue>> getObjectStream() {
+            return getObject().entrySet().stream();
+        }
+
+        @Override
+        public Stream<JsonValue> getValueStream() {
+            return StreamSupport.stream(new Spliterators.AbstractSpliterator<JsonValue>(Long.MAX_VALUE, Spliterator.ORDERED) {
+                @Override
+                public boolean tryAdvance(Consumer<? super JsonValue> action) {
+                    if (!hasNext()) {
+                        return false;
+                    }
+                    action.accept(value(next()));
+                    return true;
+                }
+            }, false);
+        }
+
+        @Override
+        public void skipArray() {
+            skip();
+        }
+
+        @Override
+        public void skipObject() {
+            skip();
+        }
+
+        @Override
+        public void close() {
+            // the continuation is closed by its owner.
+        }
+
+        private void skip() {
+            int depth = 1;
+            while (depth > 0) {
+                Event event = next();
+                if (isStart(event)) {
+                    depth++;
+                } else if (event == Event.END_OBJECT || event == Event.END_ARRAY) {
+                    depth--;
+                }
+            }
+        }
+
+        private JsonValue value(Event event) {
+            switch (event) {
+                case START_OBJECT:
+                    return getObject();
+                case START_ARRAY:
+                    return getArray();
+                case VALUE_STRING:
+                    return Json.createValue(getString());
+                case VALUE_NUMBER:
+                    return Json.createValue(getBigDecimal());
+                case VALUE_TRUE:
+                    return JsonValue.TRUE;
+                case VALUE_FALSE:
+                    return JsonValue.FALSE;
+                case VALUE_NULL:
+                    return JsonValue.NULL;
+                default:
+                    throw new IllegalStateException("Unexpected event: " + event);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.policy;
+
+import io.github.ma1uta.matrix.common.UserId;
+import io.github.ma1uta.matrix.event.PolicyRuleRoom;
+import io.github.ma1uta.matrix.event.PolicyRuleServer;
+import io.github.ma1uta.matrix.event.PolicyRuleUser;
+import io.github.ma1uta.matrix.event.StateEvent;
+import io.github.ma1uta.matrix.event.content.PolicyRuleRoomContent;
+import io.github.ma1uta.matrix.event.content.PolicyRuleServerContent;
+import io.github.ma1uta.matrix.event.content.PolicyRuleUserContent;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Policy engine of the subscribed policy rooms.
+ * <br>
+ * The policy events of the subscribed rooms are applied incrementally (see {@link #apply(String, StateEvent)}), the events
+ * with the unknown recommendation or without the entity (for example the redacted rules) remove the rule. Only the
+ * {@link PolicyRule#BAN} recommendation is specified, so the engine answers whether the entity is banned and by which rule.
+ */
+public class PolicyEngine {
+
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    private final PolicyMatcher users;
+
+    private final PolicyMatcher roomRules;
+
+    private final PolicyMatcher servers;
+
+    public PolicyEngine() {
+        this(PolicyMatcher.DEFAULT_CACHE_SIZE);
+    }
+
+    public PolicyEngine(int cacheSize) {
+        this.users = new PolicyMatcher(cacheSize);
+        this.roomRules = new PolicyMatcher(cacheSize);
+        this.servers = new PolicyMatcher(cacheSize);
+    }
+
+    /**
+     * Subscribe to the policy room. The current state of the room should be applied after the subscription.
+     *
+     * @param roomId the policy room.
+     */
+    public void subscribe(String roomId) {
+        rooms.add(roomId);
+    }
+
+    /**
+     * Unsubscribe from the policy room and remove its rules.
+     *
+     * @param roomId the policy room.
+     */
+    public void unsubscribe(String roomId) {
+        if (rooms.remove(roomId)) {
+            users.removeRoom(roomId);
+            roomRules.removeRoom(roomId);
+            servers.removeRoom(roomId);
+        }
+    }
+
+    /**
+     * The subscribed policy rooms.
+     *
+     * @return the policy rooms.
+     */
+    public Set<String> getRooms() {
+        return Collections.unmodifiableSet(rooms);
+    }
+
+    /**
+     * Apply the state event of the policy room.
+     *
+     * @param roomId the room of the event.
+     * @param event  the state event.
+     * @return {@code true} if the event is the policy rule of the subscribed room.
+     */
+    public boolean apply(String roomId, StateEvent<?> event) {
+        if (!rooms.contains(roomId)) {
+            return false;
+        }
+        String entity;
+        String recommendation;
+        String reason;
+        PolicyMatcher matcher;
+        if (event instanceof PolicyRuleUser) {
+            PolicyRuleUserContent content = ((PolicyRuleUser) event).getContent();
+            entity = content == null ? null : content.getEntity();
+            recommendation = content == null ? null : content.getRecommendation();
+            reason = content == null ? null : content.getReason();
+            matcher = users;
+        } else if (event instanceof PolicyRuleRoom) {
+            PolicyRuleRoomContent content = ((PolicyRuleRoom) event).getContent();
+            entity = content == null ? null : content.getEntity();
+            recommendation = content == null ? null : content.getRecommendation();
+            reason = content == null ? null : content.getReason();
+            matcher = roomRules;
+        } else if (event instanceof PolicyRuleServer) {
+            PolicyRuleServerContent content = ((PolicyRuleServer) event).getContent();
+            entity = content == null ? null : content.getEntity();
+            recommendation = content == null ? null : content.getRecommendation();
+            reason = content == null ? null : content.getReason();
+            matcher = servers;
+        } else {
+            return false;
+        }
+        String stateKey = event.getStateKey() == null ? "" : event.getStateKey();
+        if (entity == null || !PolicyRule.BAN.equals(recommendation)) {
+            matcher.remove(roomId, stateKey);
+        } else {
+            matcher.put(new PolicyRule(event.getType(), roomId, stateKey, entity, recommendation, reason));
+        }
+        return true;
+    }
+
+    /**
+     * Find the rule which bans the user.
+     *
+     * @param userId the user id.
+     * @return the rule or {@code null} if the user isn't banned.
+     */
+    public PolicyRule findUser(String userId) {
+        return users.match(userId);
+    }
+
+    /**
+     * Find the rule which bans the room.
+     *
+     * @param roomId the room id.
+     * @return the rule or {@code null} if the room isn't banned.
+     */
+    public PolicyRule findRoom(String roomId) {
+        return roomRules.match(roomId);
+    }
+
+    /**
+     * Find the rule which bans the server.
+     *
+     * @param serverName the server name.
+     * @return the rule or {@code null} if the server isn't banned.
+     */
+    public PolicyRule findServer(String serverName) {
+        return servers.match(serverName);
+    }
+
+    /**
+     * Find the rule which bans the sender of the event: the user rule or the server rule of the user's server.
+     *
+     * @param sender the sender.
+     * @return the rule or {@code null} if the sender isn't banned.
+     */
+    public PolicyRule findSender(String sender) {
+        PolicyRule rule = users.match(sender);
+        if (rule == null && sender != null) {
+            try {
+                rule = servers.match(UserId.of(sender).getServerName().getValue());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return rule;
+    }
+
+    public PolicyMatcher getUsers() {
+        return users;
+    }
+
+    public PolicyMatcher getRoomRules() {
+        return roomRules;
+    }
+
+    public PolicyMatcher getServers() {
+        return servers;
+    }
+}
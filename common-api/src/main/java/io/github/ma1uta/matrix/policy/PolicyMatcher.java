@@ -0,0 +1,281 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.policy;
+
+import io.github.ma1uta.matrix.common.GlobSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Incrementally updated matcher of the policy rules of the single kind.
+ * <br>
+ * The literal entities are kept in the hash map. The glob entities are compiled into the {@link GlobSet}, the new globs are
+ * added to the small delta list and the removed globs are skipped until the delta or the removed globs are large enough to
+ * recompile. The results are cached by the entity until the next change, so the repeated lookups are single hash map reads.
+ * The updates are serialized, the lookups are lock-free.
+ */
+public final class PolicyMatcher {
+
+    /**
+     * The default maximum count of the cached results.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 100_000;
+
+    private static final int MAX_DELTA = 64;
+
+    private static final PolicyRule[] NO_RULES = new PolicyRule[0];
+
+    private static final char SEPARATOR = '\n';
+
+    private final Map<String, PolicyRule> rules = new HashMap<>();
+
+    private final Map<String, PolicyRule[]> literals = new ConcurrentHashMap<>();
+
+    private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+
+    private final int cacheSize;
+
+    private volatile Globs globs = new Globs(GlobSet.empty(), NO_RULES, new boolean[0], 0, NO_RULES);
+
+    private volatile int generation;
+
+    public PolicyMatcher() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    public PolicyMatcher(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Add or replace the rule with the same room and state key.
+     *
+     * @param rule the rule.
+     */
+    public synchronized void put(PolicyRule rule) {
+        String key = key(rule.getRoomId(), rule.getStateKey());
+        PolicyRule previous = rules.remove(key);
+        if (previous != null) {
+            unindex(previous);
+        }
+        rules.put(key, rule);
+        if (rule.isGlob()) {
+            Globs current = globs;
+            PolicyRule[] delta = Arrays.copyOf(current.delta, current.delta.length + 1);
+            delta[delta.length - 1] = rule;
+            globs = delta.length > MAX_DELTA ? compile() : new Globs(current.set, current.rules, current.removed, current.removedCount,
+                delta);
+        } else {
+            literals.merge(normalize(rule.getEntity()), new PolicyRule[] {rule}, PolicyMatcher::concat);
+        }
+        invalidate();
+    }
+
+    /**
+     * Remove the rule.
+     *
+     * @param roomId   the policy room.
+     * @param stateKey the state key of the policy event.
+     * @return the removed rule or {@code null} if the rule wasn't found.
+     */
+    public synchronized PolicyRule remove(String roomId, String stateKey) {
+        PolicyRule removed = rules.remove(key(roomId, stateKey));
+        if (removed != null) {
+            unindex(removed);
+            invalidate();
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all rules of the policy room.
+     *
+     * @param roomId the policy room.
+     */
+    public synchronized void removeRoom(String roomId) {
+        List<PolicyRule> removed = new ArrayList<>();
+        rules.values().removeIf(rule -> rule.getRoomId().equals(roomId) && removed.add(rule));
+        for (PolicyRule rule : removed) {
+            unindex(rule);
+        }
+        invalidate();
+    }
+
+    /**
+     * Find the rule which matches the entity.
+     *
+     * @param entity the user id, the room id or the server name.
+     * @return the matched rule or {@code null} if no rule matches.
+     */
+    public PolicyRule match(String entity) {
+        if (entity == null) {
+            return null;
+        }
+        int currentGeneration = generation;
+        Cached cached = cache.get(entity);
+        if (cached != null && cached.generation == currentGeneration) {
+            return cached.rule;
+        }
+        PolicyRule rule = find(entity);
+        if (cache.size() >= cacheSize) {
+            cache.clear();
+        }
+        cache.put(entity, new Cached(currentGeneration, rule));
+        return rule;
+    }
+
+    /**
+     * The count of the rules.
+     *
+     * @return the count of the rules.
+     */
+    public synchronized int size() {
+        return rules.size();
+    }
+
+    private PolicyRule find(String entity) {
+        PolicyRule[] matched = literals.get(normalize(entity));
+        if (matched != null) {
+            return matched[0];
+        }
+        Globs current = globs;
+        int index = current.set.firstMatch(entity, current);
+        if (index != -1) {
+            return current.rules[index];
+        }
+        for (PolicyRule rule : current.delta) {
+            if (rule.getPattern().matches(entity)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private void unindex(PolicyRule rule) {
+        if (!rule.isGlob()) {
+            literals.computeIfPresent(normalize(rule.getEntity()), (entity, indexed) -> remove(indexed, rule));
+            return;
+        }
+        Globs current = globs;
+        for (int i = 0; i < current.delta.length; i++) {
+            if (current.delta[i] == rule) {
+                globs = new Globs(current.set, current.rules, current.removed, current.removedCount, remove(current.delta, rule));
+                return;
+            }
+        }
+        for (int i = 0; i < current.rules.length; i++) {
+            if (current.rules[i] == rule && !current.removed[i]) {
+                boolean[] removed = current.removed.clone();
+                removed[i] = true;
+                int removedCount = current.removedCount + 1;
+                globs = removedCount * 2 > current.rules.length ? compile()
+                    : new Globs(current.set, current.rules, removed, removedCount, current.delta);
+                return;
+            }
+        }
+    }
+
+    private Globs compile() {
+        List<PolicyRule> compiled = new ArrayList<>();
+        for (PolicyRule rule : rules.values()) {
+            if (rule.isGlob()) {
+                compiled.add(rule);
+            }
+        }
+        List<String> patterns = new ArrayList<>(compiled.size());
+        for (PolicyRule rule : compiled) {
+            patterns.add(rule.getEntity());
+        }
+        return new Globs(GlobSet.compile(patterns), compiled.toArray(NO_RULES), new boolean[compiled.size()], 0, NO_RULES);
+    }
+
+    private void invalidate() {
+        generation++;
+        cache.clear();
+    }
+
+    private static PolicyRule[] concat(PolicyRule[] first, PolicyRule[] second) {
+        PolicyRule[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static PolicyRule[] remove(PolicyRule[] rules, PolicyRule rule) {
+        List<PolicyRule> result = new ArrayList<>(Arrays.asList(rules));
+        result.remove(rule);
+        return result.isEmpty() ? null : result.toArray(NO_RULES);
+    }
+
+    private static String normalize(String entity) {
+        return entity.toLowerCase(Locale.ROOT);
+    }
+
+    private static String key(String roomId, String stateKey) {
+        return roomId + SEPARATOR + stateKey;
+    }
+
+    /**
+     * The compiled glob rules.
+     */
+    private static final class Globs implements IntPredicate {
+
+        private final GlobSet set;
+
+        private final PolicyRule[] rules;
+
+        private final boolean[] removed;
+
+        private final int removedCount;
+
+        private final PolicyRule[] delta;
+
+        Globs(GlobSet set, PolicyRule[] rules, boolean[] removed, int removedCount, PolicyRule[] delta) {
+            this.set = set;
+            this.rules = rules;
+            this.removed = removed;
+            this.removedCount = removedCount;
+            this.delta = delta == null ? NO_RULES : delta;
+        }
+
+        @Override
+        public boolean test(int index) {
+            return !removed[index];
+        }
+    }
+
+    /**
+     * The cached result.
+     */
+    private static final class Cached {
+
+        private final int generation;
+
+        private final PolicyRule rule;
+
+        Cached(int generation, PolicyRule rule) {
+            this.generation = generation;
+            this.rule = rule;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.policy;
+
+import io.github.ma1uta.matrix.common.Glob;
+
+/**
+ * The moderation policy rule of the policy room.
+ */
+public final class PolicyRule {
+
+    /**
+     * The ban recommendation.
+     */
+    public static final String BAN = "m.ban";
+
+    private final String kind;
+
+    private final String roomId;
+
+    private final String stateKey;
+
+    private final String entity;
+
+    private final String recommendation;
+
+    private final String reason;
+
+    private final Glob pattern;
+
+    /**
+     * Create the rule.
+     *
+     * @param kind           the type of the policy event.
+     * @param roomId         the policy room.
+     * @param stateKey       the state key of the policy event.
+     * @param entity         the entity (the glob pattern).
+     * @param recommendation the recommendation.
+     * @param reason         the reason.
+     */
+    public PolicyRule(String kind, String roomId, String stateKey, String entity, String recommendation, String reason) {
+        this.kind = kind;
+        this.roomId = roomId;
+        this.stateKey = stateKey;
+        this.entity = entity;
+        this.recommendation = recommendation;
+        this.reason = reason;
+        this.pattern = Glob.compile(entity);
+    }
+
+    /**
+     * The type of the policy event ({@code m.policy.rule.user}, {@code m.policy.rule.room} or {@code m.policy.rule.server}).
+     *
+     * @return the type of the policy event.
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getStateKey() {
+        return stateKey;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public String getRecommendation() {
+        return recommendation;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Whether the entity contains the glob characters.
+     *
+     * @return {@code true} if the entity is the glob pattern.
+     */
+    public boolean isGlob() {
+        return !pattern.isLiteral();
+    }
+
+    /**
+     * The compiled entity.
+     *
+     * @return the compiled entity.
+     */
+    public Glob getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + entity + " (" + roomId + " " + stateKey + ")";
+    }
+}
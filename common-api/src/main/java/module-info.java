@@ -5,6 +5,8 @@ module matrix.common.api {
     exports io.github.ma1uta.matrix.event.message;
     exports io.github.ma1uta.matrix.event.nested;
     exports io.github.ma1uta.matrix.event.encrypted;
+    exports io.github.ma1uta.matrix.json;
+    exports io.github.ma1uta.matrix.policy;
     exports io.github.ma1uta.matrix.protocol;
     exports io.github.ma1uta.matrix.thirdpid;
 
@@ -12,4 +14,9 @@ module matrix.common.api {
     requires transitive java.json.bind;
     requires transitive com.fasterxml.jackson.annotation;
     requires transitive io.swagger.v3.oas.annotations;
+
+    uses io.github.ma1uta.matrix.json.JsonCodec;
+    uses io.github.ma1uta.matrix.json.JsonCodecProvider;
+
+    provides io.github.ma1uta.matrix.json.JsonCodecProvider with io.github.ma1uta.matrix.json.CommonJsonCodecs;
 }
@@ -12,4 +12,6 @@ module matrix.identity.api {
     exports io.github.ma1uta.matrix.identity.model.validation;
 
     requires transitive matrix.common.api;
+
+    provides io.github.ma1uta.matrix.json.JsonCodecProvider with io.github.ma1uta.matrix.identity.api.IdentityJsonCodecs;
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.processor;
+
+import java.util.Collection;
+import java.util.List;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Generates the source code of the json codec.
+ */
+class CodecGenerator {
+
+    private static final String CODECS = "io.github.ma1uta.matrix.json.JsonCodecs";
+
+    private static final String OUTPUT = "io.github.ma1uta.matrix.json.JsonOutput";
+
+    private static final String PARSER = "javax.json.stream.JsonParser";
+
+    private static final String RAW_JSON_HOLDER = "io.github.ma1uta.matrix.common.RawJsonHolder";
+
+    private static final String INDENT = "    ";
+
+    private final Types types;
+
+    private final TypeMirror objectType;
+
+    private final TypeMirror rawJsonHolderType;
+
+    CodecGenerator(Types types, Elements elements) {
+        this.types = types;
+        this.objectType = elements.getTypeElement(Object.class.getName()).asType();
+        TypeElement rawJsonHolder = elements.getTypeElement(RAW_JSON_HOLDER);
+        this.rawJsonHolderType = rawJsonHolder != null ? rawJsonHolder.asType() : null;
+    }
+
+    /**
+     * Generate the codec source.
+     *
+     * @param packageName the package of the codec.
+     * @param codecName   the simple name of the codec.
+     * @param type        the model class.
+     * @param properties  the json properties of the model.
+     * @param readAs      the polymorphic root which codec reads the model or {@code null} to read the properties.
+     * @return the source code.
+     */
+    String generate(String packageName, String codecName, TypeElement type, List<Property> properties, String readAs) {
+        String modelName = types.erasure(type.asType()).toString();
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n * Json codec of the {@link ").append(modelName).append("}.\n")
+            .append(" * <br>\n * Generated by the io.github.ma1uta.matrix.processor.JsonCodecProcessor.\n */\n")
+            .append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+            .append("public final class ").append(codecName).append(" implements io.github.ma1uta.matrix.json.JsonCodec<")
+            .append(modelName).append("> {\n\n");
+
+        for (int i = 0; i < properties.size(); i++) {
+            source.append(INDENT).append("private static final byte[] NAME_").append(i).append(" = ").append(OUTPUT)
+                .append(".encodeName(").append(literal(properties.get(i).getName())).append(");\n\n");
+        }
+
+        source.append(INDENT).append("@Override\n")
+            .append(INDENT).append("public Class<").append(modelName).append("> getType() {\n")
+            .append(INDENT).append(INDENT).append("return ").append(modelName).append(".class;\n")
+            .append(INDENT).append("}\n\n");
+
+        writeMethod(source, modelName, properties, isRawJsonHolder(type));
+        if (readAs == null) {
+            readMethod(source, modelName, properties);
+        } else {
+            delegateReadMethod(source, modelName, readAs);
+        }
+
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Generate the source of the codec provider of the module.
+     *
+     * @param packageName  the package of the provider.
+     * @param providerName the simple name of the provider.
+     * @param codecs       the binary names of the codecs.
+     * @return the source code.
+     */
+    String generateProvider(String packageName, String providerName, Collection<String> codecs) {
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n * Json codecs of the module.\n")
+            .append(" * <br>\n * Generated by the io.github.ma1uta.matrix.processor.JsonCodecProcessor.\n */\n")
+            .append("public final class ").append(providerName).append(" implements io.github.ma1uta.matrix.json.JsonCodecProvider {\n\n")
+            .append(INDENT).append("@Override\n")
+            .append(INDENT).append("public java.util.List<io.github.ma1uta.matrix.json.JsonCodec<?>> getCodecs() {\n")
+            .append(INDENT).append(INDENT).append("return java.util.Arrays.asList(");
+        String separator = "\n";
+        for (String codec : codecs) {
+            source.append(separator).append(INDENT).append(INDENT).append(INDENT).append("new ").append(codec.replace('$', '.'))
+                .append("()");
+            separator = ",\n";
+        }
+        source.append("\n").append(INDENT).append(INDENT).append(");\n")
+            .append(INDENT).append("}\n")
+            .append("}\n");
+        return source.toString();
+    }
+
+    private boolean isRawJsonHolder(TypeElement type) {
+        return rawJsonHolderType != null && types.isAssignable(types.erasure(type.asType()), rawJsonHolderType);
+    }
+
+    private void writeMethod(StringBuilder source, String modelName, List<Property> properties, boolean rawJsonHolder) {
+        source.append(INDENT).append("@Override\n")
+            .append(INDENT).append("public void write(").append(modelName).append(" value, ").append(OUTPUT).append(" out) {\n");
+        if (rawJsonHolder) {
+            String prefix = INDENT + INDENT;
+            source.append(prefix).append("io.github.ma1uta.matrix.common.RawJson raw = value.getRawJson();\n")
+                .append(prefix).append("if (raw != null && !out.isCanonical()) {\n")
+                .append(prefix).append(INDENT).append("out.rawValue(raw.getBytes(), raw.getOffset(), raw.getLength());\n")
+                .append(prefix).append(INDENT).append("return;\n")
+                .append(prefix).append("}\n");
+        }
+        source.append(INDENT).append(INDENT).append("out.beginObject();\n");
+        for (int i = 0; i < properties.size(); i++) {
+            Property property = properties.get(i);
+            if (property.getGetter() == null) {
+                continue;
+            }
+            TypeMirror type = property.getGetterType();
+            String statement = writeStatement(type, "v", "out", 0);
+            if (statement == null) {
+                continue;
+            }
+            String getter = "value." + property.getGetter().getSimpleName() + "()";
+            String prefix = INDENT + INDENT;
+            if (type.getKind().isPrimitive()) {
+                source.append(prefix).append("{\n")
+                    .append(prefix).append(INDENT).append(sourceType(type)).append(" v = ").append(getter).append(";\n")
+                    .append(prefix).append(INDENT).append("out.name(NAME_").append(i).append(");\n")
+                    .append(prefix).append(INDENT).append(statement).append("\n")
+                    .append(prefix).append("}\n");
+            } else {
+                source.append(prefix).append("{\n")
+                    .append(prefix).append(INDENT).append(sourceType(type)).append(" v = ").append(getter).append(";\n")
+                    .append(prefix).append(INDENT).append("if (v != null) {\n")
+                    .append(prefix).append(INDENT).append(INDENT).append("out.name(NAME_").append(i).append(");\n")
+                    .append(prefix).append(INDENT).append(INDENT).append(statement).append("\n")
+                    .append(prefix).append(INDENT).append("}\n")
+                    .append(prefix).append("}\n");
+            }
+        }
+        source.append(INDENT).append(INDENT).append("out.endObject();\n")
+            .append(INDENT).append("}\n\n");
+    }
+
+    private void readMethod(StringBuilder source, String modelName, List<Property> properties) {
+        String prefix = INDENT + INDENT;
+        source.append(INDENT).append("@Override\n")
+            .append(INDENT).append("public ").append(modelName).append(" read(").append(PARSER).append(" parser) {\n")
+            .append(prefix).append("if (parser.next() != ").append(PARSER).append(".Event.START_OBJECT) {\n")
+            .append(prefix).append(INDENT).append("return null;\n")
+            .append(prefix).append("}\n")
+            .append(prefix).append(modelName).append(" value = new ").append(modelName).append("();\n")
+            .append(prefix).append("while (parser.hasNext()) {\n")
+            .append(prefix).append(INDENT).append("if (parser.next() == ").append(PARSER).append(".Event.END_OBJECT) {\n")
+            .append(prefix).append(INDENT).append(INDENT).append("break;\n")
+            .append(prefix).append(INDENT).append("}\n")
+            .append(prefix).append(INDENT).append("switch (parser.getString()) {\n");
+        String casePrefix = prefix + INDENT + INDENT;
+        for (Property property : properties) {
+            if (property.getSetter() == null) {
+                continue;
+            }
+            TypeMirror type = property.getSetterType();
+            String expression = readExpression(type, "parser", 0);
+            if (expression == null) {
+                continue;
+            }
+            String setter = "value." + property.getSetter().getSimpleName();
+            source.append(prefix).append(INDENT).append(INDENT).append("case ").append(literal(property.getName())).append(": {\n");
+            if (type.getKind().isPrimitive()) {
+                String boxed = types.boxedClass((PrimitiveType) type).getQualifiedName().toString();
+                source.append(casePrefix).append(INDENT).append(boxed).append(" v = ").append(expression).append(";\n")
+                    .append(casePrefix).append(INDENT).append("if (v != null) {\n")
+                    .append(casePrefix).append(INDENT).append(INDENT).append(setter).append("(v);\n")
+                    .append(casePrefix).append(INDENT).append("}\n");
+            } else {
+                source.append(casePrefix).append(INDENT).append(setter).append("(").append(expression).append(");\n");
+            }
+            source.append(casePrefix).append(INDENT).append("break;\n")
+                .append(casePrefix).append("}\n");
+        }
+        source.append(casePrefix).append("default:\n")
+            .append(casePrefix).append(INDENT).append(CODECS).append(".skip(parser);\n")
+            .append(prefix).append(INDENT).append("}\n")
+            .append(prefix).append("}\n")
+            .append(prefix).append("return value;\n")
+            .append(INDENT).append("}\n");
+    }
+
+    private void delegateReadMethod(StringBuilder source, String modelName, String readAs) {
+        String prefix = INDENT + INDENT;
+        source.append(INDENT).append("@Override\n")
+            .append(INDENT).append("public ").append(modelName).append(" read(").append(PARSER).append(" parser) {\n")
+            .append(prefix).append("Object value = ").append(CODECS).append(".read(parser, ").append(readAs).append(".class);\n")
+            .append(prefix).append("if (value == null || value instanceof ").append(modelName).append(") {\n")
+            .append(prefix).append(INDENT).append("return (").append(modelName).append(") value;\n")
+            .append(prefix).append("}\n")
+            .append(prefix).append("throw new javax.json.bind.JsonbException(\"Expected ").append(modelName)
+            .append(" but found \" + value.getClass().getName());\n")
+            .append(INDENT).append("}\n");
+    }
+
+    /**
+     * Statement which writes the not null value.
+     *
+     * @return the statement or {@code null} if the type isn't supported.
+     */
+    private String writeStatement(TypeMirror rawType, String value, String out, int depth) {
+        TypeMirror type = normalize(rawType);
+        switch (type.getKind()) {
+            case BOOLEAN:
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return out + ".value(" + value + ");";
+            case ARRAY:
+                return ((ArrayType) type).getComponentType().getKind() == TypeKind.CHAR
+                    ? out + ".value(new String(" + value + "));"
+                    : CODECS + ".write(" + out + ", " + value + ");";
+            case DECLARED:
+                break;
+            default:
+                return null;
+        }
+        DeclaredType declaredType = (DeclaredType) type;
+        String name = qualifiedName(declaredType);
+        String item = "v" + (depth + 1);
+        String itemOut = "o" + (depth + 1);
+        switch (name) {
+            case "java.lang.String":
+            case "java.lang.Boolean":
+            case "java.lang.Byte":
+            case "java.lang.Short":
+            case "java.lang.Integer":
+            case "java.lang.Long":
+            case "java.lang.Float":
+            case "java.lang.Double":
+            case "java.math.BigDecimal":
+            case "java.math.BigInteger":
+                return out + ".value(" + value + ");";
+            case "java.util.List":
+            case "java.util.Set":
+            case "java.util.Collection":
+                String itemStatement = writeStatement(typeArgument(declaredType, 0), item, itemOut, depth + 1);
+                return CODECS + ".writeCollection(" + out + ", " + value + ", (" + itemOut + ", " + item + ") -> {\n"
+                    + itemStatement + "\n});";
+            case "java.util.Map":
+                String valueStatement = writeStatement(typeArgument(declaredType, 1), item, itemOut, depth + 1);
+                return CODECS + ".writeMap(" + out + ", " + value + ", (" + itemOut + ", " + item + ") -> {\n"
+                    + valueStatement + "\n});";
+            default:
+                if (declaredType.asElement().getKind() == ElementKind.ENUM) {
+                    return out + ".value(" + value + ".name());";
+                }
+                return CODECS + ".write(" + out + ", " + value + ");";
+        }
+    }
+
+    /**
+     * Expression which reads the value.
+     *
+     * @return the expression or {@code null} if the type isn't supported.
+     */
+    private String readExpression(TypeMirror rawType, String parser, int depth) {
+        TypeMirror type = normalize(rawType);
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return CODECS + ".readBoolean(" + parser + ")";
+            case BYTE:
+                return CODECS + ".readByte(" + parser + ")";
+            case SHORT:
+                return CODECS + ".readShort(" + parser + ")";
+            case INT:
+                return CODECS + ".readInteger(" + parser + ")";
+            case LONG:
+                return CODECS + ".readLong(" + parser + ")";
+            case FLOAT:
+                return CODECS + ".readFloat(" + parser + ")";
+            case DOUBLE:
+                return CODECS + ".readDouble(" + parser + ")";
+            case ARRAY:
+                return ((ArrayType) type).getComponentType().getKind() == TypeKind.CHAR ? CODECS + ".readChars(" + parser + ")" : null;
+            case DECLARED:
+                break;
+            default:
+                return null;
+        }
+        DeclaredType declaredType = (DeclaredType) type;
+        String name = qualifiedName(declaredType);
+        String item = "p" + (depth + 1);
+        switch (name) {
+            case "java.lang.String":
+                return CODECS + ".readString(" + parser + ")";
+            case "java.lang.Boolean":
+                return CODECS + ".readBoolean(" + parser + ")";
+            case "java.lang.Byte":
+                return CODECS + ".readByte(" + parser + ")";
+            case "java.lang.Short":
+                return CODECS + ".readShort(" + parser + ")";
+            case "java.lang.Integer":
+                return CODECS + ".readInteger(" + parser + ")";
+            case "java.lang.Long":
+                return CODECS + ".readLong(" + parser + ")";
+            case "java.lang.Float":
+                return CODECS + ".readFloat(" + parser + ")";
+            case "java.lang.Double":
+                return CODECS + ".readDouble(" + parser + ")";
+            case "java.math.BigDecimal":
+                return CODECS + ".readBigDecimal(" + parser + ")";
+            case "java.math.BigInteger":
+                return CODECS + ".readBigInteger(" + parser + ")";
+            case "java.lang.Object":
+                return CODECS + ".readValue(" + parser + ")";
+            case "java.util.List":
+            case "java.util.Collection":
+                String listItem = readExpression(typeArgument(declaredType, 0), item, depth + 1);
+                return listItem == null ? null : CODECS + ".readList(" + parser + ", " + item + " -> " + listItem + ")";
+            case "java.util.Set":
+                String setItem = readExpression(typeArgument(declaredType, 0), item, depth + 1);
+                return setItem == null ? null : CODECS + ".readSet(" + parser + ", " + item + " -> " + setItem + ")";
+            case "java.util.Map":
+                String mapValue = readExpression(typeArgument(declaredType, 1), item, depth + 1);
+                return mapValue == null ? null : CODECS + ".readMap(" + parser + ", " + item + " -> " + mapValue + ")";
+            default:
+                if (declaredType.asElement().getKind() == ElementKind.ENUM) {
+                    return CODECS + ".readEnum(" + parser + ", " + name + "::valueOf)";
+                }
+                return "(" + sourceType(declaredType) + ") " + CODECS + ".read(" + parser + ", " + name + ".class)";
+        }
+    }
+
+    private TypeMirror normalize(TypeMirror type) {
+        switch (type.getKind()) {
+            case WILDCARD:
+                TypeMirror bound = ((WildcardType) type).getExtendsBound();
+                return bound == null ? objectType : normalize(bound);
+            case TYPEVAR:
+            case INTERSECTION:
+                return types.erasure(type);
+            default:
+                return type;
+        }
+    }
+
+    private TypeMirror typeArgument(DeclaredType type, int index) {
+        List<? extends TypeMirror> arguments = type.getTypeArguments();
+        return arguments.size() > index ? arguments.get(index) : objectType;
+    }
+
+    private String qualifiedName(DeclaredType type) {
+        return ((TypeElement) type.asElement()).getQualifiedName().toString();
+    }
+
+    /**
+     * Source representation of the type. Types with type variables or wildcards are erased.
+     */
+    private String sourceType(TypeMirror type) {
+        return isConcrete(type) ? type.toString() : types.erasure(type).toString();
+    }
+
+    private boolean isConcrete(TypeMirror type) {
+        switch (type.getKind()) {
+            case DECLARED:
+                for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+                    if (!isConcrete(argument)) {
+                        return false;
+                    }
+                }
+                return true;
+            case ARRAY:
+                return isConcrete(((ArrayType) type).getComponentType());
+            case TYPEVAR:
+            case WILDCARD:
+            case INTERSECTION:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private String literal(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates reflection-free json codecs of the model classes.
+ * <br>
+ * The codec is generated for each public concrete class with the public no-arg constructor from the configured packages
+ * (option {@code jeon.codec.packages}, comma-separated, default is the model packages of the jeon modules). Json names are taken
+ * from the {@code @JsonbProperty} and {@code @JsonProperty} annotations. The generated codecs together with the hand-written
+ * {@code JsonCodec} implementations of the module are registered in the {@code META-INF/services}.
+ * <br>
+ * The {@code META-INF/services} are ignored in the named modules, so the processor also generates the {@code JsonCodecProvider}
+ * with all codecs of the module (option {@code jeon.codec.provider}, the qualified name of the provider) which should be
+ * declared in the module descriptor: {@code provides io.github.ma1uta.matrix.json.JsonCodecProvider with <provider>}.
+ * <br>
+ * The codecs are collected in all rounds (including the classes generated by the other processors), the provider and the
+ * services are written when the processing is over. The incremental compilation keeps the codecs registered by the previous
+ * compilation if they are still available.
+ * <br>
+ * Events are polymorphic and generic, the generated codecs of the events only write them and read them with the
+ * {@code Event} codec which dispatches by the event type.
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions( {JsonCodecProcessor.PACKAGES_OPTION, JsonCodecProcessor.PROVIDER_OPTION})
+public class JsonCodecProcessor extends AbstractProcessor {
+
+    /**
+     * Option with the comma-separated list of the model packages.
+     */
+    public static final String PACKAGES_OPTION = "jeon.codec.packages";
+
+    /**
+     * Option with the qualified name of the generated codec provider.
+     */
+    public static final String PROVIDER_OPTION = "jeon.codec.provider";
+
+    private static final String DEFAULT_PACKAGES = "io.github.ma1uta.matrix.common,"
+        + "io.github.ma1uta.matrix.event,"
+        + "io.github.ma1uta.matrix.protocol,"
+        + "io.github.ma1uta.matrix.thirdpid,"
+        + "io.github.ma1uta.matrix.application.model,"
+        + "io.github.ma1uta.matrix.client.model,"
+        + "io.github.ma1uta.matrix.identity.model,"
+        + "io.github.ma1uta.matrix.push.model,"
+        + "io.github.ma1uta.matrix.server.model";
+
+    private static final String JSON_CODEC = "io.github.ma1uta.matrix.json.JsonCodec";
+
+    private static final String JSON_CODEC_PROVIDER = "io.github.ma1uta.matrix.json.JsonCodecProvider";
+
+    private static final String SERVICES = "META-INF/services/";
+
+    private static final String CODEC_SUFFIX = "JsonCodec";
+
+    private static final List<String> POLYMORPHIC_ROOTS = Collections.singletonList("io.github.ma1uta.matrix.event.Event");
+
+    private final Set<String> codecs = new LinkedHashSet<>();
+
+    private List<String> packages;
+
+    private String provider;
+
+    private TypeMirror jsonCodecType;
+
+    private PropertyScanner scanner;
+
+    private CodecGenerator generator;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        String option = processingEnv.getOptions().getOrDefault(PACKAGES_OPTION, DEFAULT_PACKAGES);
+        packages = new ArrayList<>();
+        for (String packageName : Arrays.asList(option.split(","))) {
+            if (!packageName.trim().isEmpty()) {
+                packages.add(packageName.trim());
+            }
+        }
+        provider = processingEnv.getOptions().get(PROVIDER_OPTION);
+        scanner = new PropertyScanner(processingEnv.getTypeUtils());
+        generator = new CodecGenerator(processingEnv.getTypeUtils(), processingEnv.getElementUtils());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (jsonCodecType == null) {
+            TypeElement jsonCodec = processingEnv.getElementUtils().getTypeElement(JSON_CODEC);
+            if (jsonCodec == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, JSON_CODEC + " isn't available, skip codecs.");
+                return false;
+            }
+            jsonCodecType = processingEnv.getTypeUtils().erasure(jsonCodec.asType());
+        }
+
+        if (roundEnv.processingOver()) {
+            readServices();
+            writeProvider();
+            writeServices(JSON_CODEC, codecs);
+            if (provider != null && !codecs.isEmpty()) {
+                writeServices(JSON_CODEC_PROVIDER, Collections.singleton(provider));
+            }
+            return false;
+        }
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            process(type);
+        }
+        return false;
+    }
+
+    private void process(TypeElement type) {
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+            process(nested);
+        }
+        if (!isInstantiable(type) || type.getQualifiedName().contentEquals(String.valueOf(provider))) {
+            return;
+        }
+        if (processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type.asType()), jsonCodecType)) {
+            codecs.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+            return;
+        }
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        if (!isModelPackage(packageName)) {
+            return;
+        }
+        List<Property> properties = scanner.scan(type);
+        if (properties.isEmpty()) {
+            return;
+        }
+        String codecName = codecName(type);
+        String qualifiedName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            try (Writer writer = file.openWriter()) {
+                writer.write(generator.generate(packageName, codecName, type, properties, polymorphicRoot(type)));
+            }
+            codecs.add(qualifiedName);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write the codec: " + e.getMessage(), type);
+        }
+    }
+
+    private boolean isInstantiable(TypeElement type) {
+        Set<Modifier> modifiers = type.getModifiers();
+        if (type.getKind() != ElementKind.CLASS || !modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER) {
+            Element enclosing = type.getEnclosingElement();
+            if (!modifiers.contains(Modifier.STATIC) || !enclosing.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+        } else if (type.getNestingKind() != NestingKind.TOP_LEVEL) {
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isModelPackage(String packageName) {
+        for (String modelPackage : packages) {
+            if (packageName.equals(modelPackage) || packageName.startsWith(modelPackage + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String polymorphicRoot(TypeElement type) {
+        Types types = processingEnv.getTypeUtils();
+        for (String root : POLYMORPHIC_ROOTS) {
+            TypeElement rootElement = processingEnv.getElementUtils().getTypeElement(root);
+            if (rootElement != null && types.isAssignable(types.erasure(type.asType()), types.erasure(rootElement.asType()))) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private String codecName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name.insert(0, '_').insert(0, enclosing.getSimpleName());
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(CODEC_SUFFIX).toString();
+    }
+
+    /**
+     * Merge the codecs registered by the previous compilation which are still available (the incremental compilation processes
+     * only the changed classes).
+     */
+    private void readServices() {
+        List<String> previous = new ArrayList<>();
+        try {
+            FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICES + JSON_CODEC);
+            try (BufferedReader reader = new BufferedReader(file.openReader(true))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String codec = line.trim();
+                    if (!codec.isEmpty() && !codec.startsWith("#") && isCodec(codec)) {
+                        previous.add(codec);
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // the first compilation
+            return;
+        }
+        previous.addAll(codecs);
+        codecs.clear();
+        codecs.addAll(previous);
+    }
+
+    private boolean isCodec(String binaryName) {
+        TypeElement type = processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.'));
+        return type != null && processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type.asType()),
+            jsonCodecType);
+    }
+
+    private void writeProvider() {
+        if (provider == null || codecs.isEmpty()) {
+            if (!codecs.isEmpty()) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    PROVIDER_OPTION + " isn't set, the codecs are registered only on the classpath.");
+            }
+            return;
+        }
+        int dot = provider.lastIndexOf('.');
+        String packageName = dot < 0 ? "" : provider.substring(0, dot);
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(provider);
+            try (Writer writer = file.openWriter()) {
+                writer.write(generator.generateProvider(packageName, provider.substring(dot + 1), codecs));
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write the codec provider: " + e.getMessage());
+        }
+    }
+
+    private void writeServices(String service, Collection<String> implementations) {
+        if (implementations.isEmpty()) {
+            return;
+        }
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICES + service);
+            try (Writer writer = file.openWriter()) {
+                for (String implementation : implementations) {
+                    writer.write(implementation);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to register the codecs: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.processor;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Json property of the model class.
+ */
+class Property {
+
+    private final String name;
+
+    private final ExecutableElement getter;
+
+    private final TypeMirror getterType;
+
+    private final ExecutableElement setter;
+
+    private final TypeMirror setterType;
+
+    Property(String name, ExecutableElement getter, TypeMirror getterType, ExecutableElement setter, TypeMirror setterType) {
+        this.name = name;
+        this.getter = getter;
+        this.getterType = getterType;
+        this.setter = setter;
+        this.setterType = setterType;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    ExecutableElement getGetter() {
+        return getter;
+    }
+
+    TypeMirror getGetterType() {
+        return getterType;
+    }
+
+    ExecutableElement getSetter() {
+        return setter;
+    }
+
+    TypeMirror getSetterType() {
+        return setterType;
+    }
+}
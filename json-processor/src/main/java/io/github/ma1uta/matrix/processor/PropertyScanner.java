@@ -0,0 +1,250 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.processor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+
+/**
+ * Collects the json properties of the model class from the fields, accessors and the json annotations.
+ */
+class PropertyScanner {
+
+    private static final String JSONB_PROPERTY = "javax.json.bind.annotation.JsonbProperty";
+
+    private static final String JSONB_TRANSIENT = "javax.json.bind.annotation.JsonbTransient";
+
+    private static final String JACKSON_PROPERTY = "com.fasterxml.jackson.annotation.JsonProperty";
+
+    private static final String JACKSON_IGNORE = "com.fasterxml.jackson.annotation.JsonIgnore";
+
+    private static final String JACKSON_READ_ONLY = "READ_ONLY";
+
+    private final Types types;
+
+    PropertyScanner(Types types) {
+        this.types = types;
+    }
+
+    /**
+     * Collect the properties of the class including the inherited ones.
+     * <br>
+     * The properties are sorted by the json names (unicode code points) so the generated codecs write the canonical key order.
+     *
+     * @param type the class.
+     * @return the properties.
+     */
+    List<Property> scan(TypeElement type) {
+        List<TypeElement> hierarchy = hierarchy(type);
+        DeclaredType declaredType = (DeclaredType) types.erasure(type.asType());
+        Map<String, Property> properties = new LinkedHashMap<>();
+
+        for (int i = hierarchy.size() - 1; i >= 0; i--) {
+            for (VariableElement field : ElementFilter.fieldsIn(hierarchy.get(i).getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT) || isIgnored(field)) {
+                    continue;
+                }
+                String capitalized = capitalize(field.getSimpleName().toString());
+                ExecutableElement getter = findMethod(hierarchy, "get" + capitalized, 0);
+                if (getter == null && field.asType().getKind() == TypeKind.BOOLEAN) {
+                    getter = findMethod(hierarchy, "is" + capitalized, 0);
+                }
+                ExecutableElement setter = findMethod(hierarchy, "set" + capitalized, 1);
+                if (getter != null && isIgnored(getter)) {
+                    continue;
+                }
+                String name = jsonName(hierarchy, field, getter, field.getSimpleName().toString());
+                if (getter != null && isReadOnly(hierarchy, getter)) {
+                    setter = null;
+                }
+                if (getter != null || setter != null) {
+                    properties.put(name, property(declaredType, name, getter, setter));
+                }
+            }
+        }
+
+        for (TypeElement element : hierarchy) {
+            for (ExecutableElement method : ElementFilter.methodsIn(element.getEnclosedElements())) {
+                if (!isGetter(method) || isIgnored(method)) {
+                    continue;
+                }
+                String name = annotatedName(hierarchy, method);
+                if (name != null && !properties.containsKey(name)) {
+                    ExecutableElement getter = findMethod(hierarchy, method.getSimpleName().toString(), 0);
+                    properties.put(name, property(declaredType, name, getter, null));
+                }
+            }
+        }
+        List<Property> sorted = new ArrayList<>(properties.values());
+        sorted.sort((first, second) -> compareNames(first.getName(), second.getName()));
+        return sorted;
+    }
+
+    private static int compareNames(String first, String second) {
+        int i = 0;
+        int j = 0;
+        while (i < first.length() && j < second.length()) {
+            int a = first.codePointAt(i);
+            int b = second.codePointAt(j);
+            if (a != b) {
+                return Integer.compare(a, b);
+            }
+            i += Character.charCount(a);
+            j += Character.charCount(b);
+        }
+        return Integer.compare(first.length() - i, second.length() - j);
+    }
+
+    private Property property(DeclaredType owner, String name, ExecutableElement getter, ExecutableElement setter) {
+        TypeMirror getterType = getter == null ? null : ((ExecutableType) types.asMemberOf(owner, getter)).getReturnType();
+        TypeMirror setterType = setter == null ? null : ((ExecutableType) types.asMemberOf(owner, setter)).getParameterTypes().get(0);
+        return new Property(name, getter, getterType, setter, setterType);
+    }
+
+    private List<TypeElement> hierarchy(TypeElement type) {
+        List<TypeElement> hierarchy = new ArrayList<>();
+        TypeElement current = type;
+        while (current != null && !current.getQualifiedName().contentEquals(Object.class.getName())) {
+            hierarchy.add(current);
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return hierarchy;
+    }
+
+    private ExecutableElement findMethod(List<TypeElement> hierarchy, String name, int parameters) {
+        for (TypeElement element : hierarchy) {
+            for (ExecutableElement method : ElementFilter.methodsIn(element.getEnclosedElements())) {
+                Set<Modifier> modifiers = method.getModifiers();
+                if (method.getSimpleName().contentEquals(name) && method.getParameters().size() == parameters
+                    && modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.STATIC)) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isGetter(ExecutableElement method) {
+        String name = method.getSimpleName().toString();
+        Set<Modifier> modifiers = method.getModifiers();
+        return modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.STATIC) && method.getParameters().isEmpty()
+            && method.getReturnType().getKind() != TypeKind.VOID && (name.startsWith("get") || name.startsWith("is"));
+    }
+
+    /**
+     * Json name of the field: the annotated name of the field or the accessor or the field name.
+     */
+    private String jsonName(List<TypeElement> hierarchy, VariableElement field, ExecutableElement getter, String defaultName) {
+        String name = annotationValue(field, JSONB_PROPERTY);
+        if (name == null) {
+            name = annotationValue(field, JACKSON_PROPERTY);
+        }
+        if (name == null && getter != null) {
+            name = annotatedName(hierarchy, getter);
+        }
+        return name == null ? defaultName : name;
+    }
+
+    /**
+     * Json name declared on the method or on any overridden method.
+     */
+    private String annotatedName(List<TypeElement> hierarchy, ExecutableElement method) {
+        for (TypeElement element : hierarchy) {
+            for (ExecutableElement candidate : ElementFilter.methodsIn(element.getEnclosedElements())) {
+                if (candidate.getSimpleName().contentEquals(method.getSimpleName()) && candidate.getParameters().isEmpty()) {
+                    String name = annotationValue(candidate, JSONB_PROPERTY);
+                    if (name == null) {
+                        name = annotationValue(candidate, JACKSON_PROPERTY);
+                    }
+                    if (name != null) {
+                        return name;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isReadOnly(List<TypeElement> hierarchy, ExecutableElement getter) {
+        for (TypeElement element : hierarchy) {
+            for (ExecutableElement candidate : ElementFilter.methodsIn(element.getEnclosedElements())) {
+                if (candidate.getSimpleName().contentEquals(getter.getSimpleName()) && candidate.getParameters().isEmpty()) {
+                    AnnotationMirror annotation = annotation(candidate, JACKSON_PROPERTY);
+                    if (annotation != null) {
+                        AnnotationValue access = attribute(annotation, "access");
+                        return access != null && access.getValue().toString().endsWith(JACKSON_READ_ONLY);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isIgnored(Element element) {
+        return annotation(element, JSONB_TRANSIENT) != null || annotation(element, JACKSON_IGNORE) != null;
+    }
+
+    private String annotationValue(Element element, String annotationName) {
+        AnnotationMirror annotation = annotation(element, annotationName);
+        if (annotation == null) {
+            return null;
+        }
+        AnnotationValue value = attribute(annotation, "value");
+        return value == null || value.getValue().toString().isEmpty() ? null : value.getValue().toString();
+    }
+
+    private AnnotationMirror annotation(Element element, String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(annotationName)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    private AnnotationValue attribute(AnnotationMirror annotation, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
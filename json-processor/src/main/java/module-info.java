@@ -0,0 +1,5 @@
+module matrix.json.processor {
+    requires java.compiler;
+
+    provides javax.annotation.processing.Processor with io.github.ma1uta.matrix.processor.JsonCodecProcessor;
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.push.rules;
+
+import io.github.ma1uta.matrix.common.Glob;
+import io.github.ma1uta.matrix.event.nested.PushCondition;
+import io.github.ma1uta.matrix.event.nested.PushRule;
+import io.github.ma1uta.matrix.event.nested.Ruleset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The push rules of all room members compiled for the evaluation in one pass.
+ * <br>
+ * The identical rules and conditions of the members (for example the default rules) are compiled and evaluated once per event.
+ * The literal keywords of the content rules and the display names of the members are found in the message body by the single
+ * multi-pattern matcher, so the cost of the body checks doesn't depend on the count of the members. Compile the evaluator
+ * when the members, their display names or their push rules change and reuse it for the events of the room.
+ */
+public final class BulkPushEvaluator {
+
+    private static final byte UNKNOWN = 0;
+
+    private static final byte MATCHED = 1;
+
+    private static final byte NOT_MATCHED = 2;
+
+    private static final int KEYWORD = 0;
+
+    private static final int DISPLAY_NAME = 1;
+
+    private static final int GENERIC = 2;
+
+    private final String[] users;
+
+    private final Map<String, Integer> userIndexes;
+
+    private final int[][] userRules;
+
+    private final int[] userDisplayNames;
+
+    private final Rule[] rules;
+
+    private final Cond[] conditions;
+
+    private final KeywordMatcher keywords;
+
+    private BulkPushEvaluator(String[] users, Map<String, Integer> userIndexes, int[][] userRules, int[] userDisplayNames,
+                              Rule[] rules, Cond[] conditions, KeywordMatcher keywords) {
+        this.users = users;
+        this.userIndexes = userIndexes;
+        this.userRules = userRules;
+        this.userDisplayNames = userDisplayNames;
+        this.rules = rules;
+        this.conditions = conditions;
+        this.keywords = keywords;
+    }
+
+    /**
+     * Compile the push rules of the room members.
+     *
+     * @param rulesets     the push rules keyed by the user id.
+     * @param displayNames the display names of the members in the room keyed by the user id.
+     * @return the evaluator.
+     */
+    public static BulkPushEvaluator compile(Map<String, Ruleset> rulesets, Map<String, String> displayNames) {
+        return new Compiler(displayNames).compile(rulesets);
+    }
+
+    /**
+     * Evaluate the event for all members.
+     *
+     * @param event the event.
+     * @return the actions of the members.
+     */
+    public BulkPushResult evaluate(PushEvent event) {
+        BitSet found = keywords.find(event.getBody());
+        byte[] conditionStates = new byte[conditions.length];
+        byte[] ruleStates = new byte[rules.length];
+        PushActions[] actions = new PushActions[users.length];
+        BitSet notify = new BitSet(users.length);
+        BitSet highlight = new BitSet(users.length);
+        for (int user = 0; user < users.length; user++) {
+            for (int rule : userRules[user]) {
+                if (matches(rule, user, event, found, conditionStates, ruleStates)) {
+                    PushActions matched = rules[rule].actions;
+                    actions[user] = matched;
+                    if (matched.isNotify()) {
+                        notify.set(user);
+                    }
+                    if (matched.isHighlight()) {
+                        highlight.set(user);
+                    }
+                    break;
+                }
+            }
+        }
+        return new BulkPushResult(event, users, userIndexes, actions, notify, highlight);
+    }
+
+    private boolean matches(int ruleId, int user, PushEvent event, BitSet found, byte[] conditionStates, byte[] ruleStates) {
+        Rule rule = rules[ruleId];
+        if (!rule.perUser && ruleStates[ruleId] != UNKNOWN) {
+            return ruleStates[ruleId] == MATCHED;
+        }
+        boolean matched = true;
+        for (int conditionId : rule.conditions) {
+            Cond condition = conditions[conditionId];
+            boolean result;
+            if (condition.type == DISPLAY_NAME) {
+                result = userDisplayNames[user] != -1 && found.get(userDisplayNames[user]);
+            } else if (condition.type == KEYWORD) {
+                result = found.get(condition.keyword);
+            } else {
+                if (conditionStates[conditionId] == UNKNOWN) {
+                    conditionStates[conditionId] = condition.condition.test(event, null) ? MATCHED : NOT_MATCHED;
+                }
+                result = conditionStates[conditionId] == MATCHED;
+            }
+            if (!result) {
+                matched = false;
+                break;
+            }
+        }
+        if (!rule.perUser) {
+            ruleStates[ruleId] = matched ? MATCHED : NOT_MATCHED;
+        }
+        return matched;
+    }
+
+    /**
+     * The count of the members.
+     *
+     * @return the count of the members.
+     */
+    public int size() {
+        return users.length;
+    }
+
+    /**
+     * The count of the distinct rules of all members.
+     *
+     * @return the count of the distinct rules.
+     */
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    /**
+     * The distinct compiled condition.
+     */
+    private static final class Cond {
+
+        private final int type;
+
+        private final int keyword;
+
+        private final PushRuleEvaluator.Condition condition;
+
+        Cond(int type, int keyword, PushRuleEvaluator.Condition condition) {
+            this.type = type;
+            this.keyword = keyword;
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * The distinct compiled rule.
+     */
+    private static final class Rule {
+
+        private final int[] conditions;
+
+        private final boolean perUser;
+
+        private final PushActions actions;
+
+        Rule(int[] conditions, boolean perUser, PushActions actions) {
+            this.conditions = conditions;
+            this.perUser = perUser;
+            this.actions = actions;
+        }
+    }
+
+    /**
+     * The compiler which dedupes the rules and the conditions.
+     */
+    private static final class Compiler {
+
+        private final Map<String, String> displayNames;
+
+        private final Map<List<Object>, Integer> conditionIds = new HashMap<>();
+
+        private final Map<List<Object>, Integer> ruleIds = new HashMap<>();
+
+        private final Map<String, Integer> patternIds = new HashMap<>();
+
+        private final List<String> patterns = new ArrayList<>();
+
+        private final List<Cond> conditions = new ArrayList<>();
+
+        private final List<Rule> rules = new ArrayList<>();
+
+        private int displayNameCondition = -1;
+
+        Compiler(Map<String, String> displayNames) {
+            this.displayNames = displayNames == null ? Collections.emptyMap() : displayNames;
+        }
+
+        BulkPushEvaluator compile(Map<String, Ruleset> rulesets) {
+            String[] users = rulesets.keySet().toArray(new String[0]);
+            Map<String, Integer> userIndexes = new HashMap<>();
+            int[][] userRules = new int[users.length][];
+            int[] userDisplayNames = new int[users.length];
+            for (int user = 0; user < users.length; user++) {
+                userIndexes.put(users[user], user);
+                Ruleset ruleset = rulesets.get(users[user]);
+                List<Integer> ids = new ArrayList<>();
+                if (ruleset != null) {
+                    add(ids, PushRuleEvaluator.OVERRIDE, ruleset.getOverride());
+                    add(ids, PushRuleEvaluator.CONTENT, ruleset.getContent());
+                    add(ids, PushRuleEvaluator.ROOM, ruleset.getRoom());
+                    add(ids, PushRuleEvaluator.SENDER, ruleset.getSender());
+                    add(ids, PushRuleEvaluator.UNDERRIDE, ruleset.getUnderride());
+                }
+                userRules[user] = ids.stream().mapToInt(Integer::intValue).toArray();
+                String displayName = displayNames.get(users[user]);
+                userDisplayNames[user] = displayName == null || displayName.isEmpty() ? -1 : pattern(displayName);
+            }
+            return new BulkPushEvaluator(users, Collections.unmodifiableMap(userIndexes), userRules, userDisplayNames,
+                rules.toArray(new Rule[0]), conditions.toArray(new Cond[0]), new KeywordMatcher(patterns));
+        }
+
+        private void add(List<Integer> ids, String kind, List<PushRule> pushRules) {
+            if (pushRules == null) {
+                return;
+            }
+            for (PushRule rule : pushRules) {
+                if (rule == null || Boolean.FALSE.equals(rule.getEnabled())) {
+                    continue;
+                }
+                List<Object> key = Arrays.asList(kind, rule.getRuleId(), rule.getPattern(), rule.getActions(),
+                    PushRuleEvaluator.CONTENT.equals(kind) || PushRuleEvaluator.ROOM.equals(kind)
+                        || PushRuleEvaluator.SENDER.equals(kind) ? null : conditionKeys(rule.getConditions()));
+                Integer id = ruleIds.get(key);
+                if (id == null) {
+                    Rule compiled = rule(kind, rule);
+                    if (compiled == null) {
+                        continue;
+                    }
+                    id = rules.size();
+                    rules.add(compiled);
+                    ruleIds.put(key, id);
+                }
+                ids.add(id);
+            }
+        }
+
+        private List<Object> conditionKeys(List<PushCondition> pushConditions) {
+            if (pushConditions == null) {
+                return Collections.emptyList();
+            }
+            List<Object> keys = new ArrayList<>(pushConditions.size());
+            for (PushCondition condition : pushConditions) {
+                keys.add(conditionKey(condition));
+            }
+            return keys;
+        }
+
+        private static List<Object> conditionKey(PushCondition condition) {
+            return condition == null ? Collections.emptyList()
+                : Arrays.asList(condition.getKind(), condition.getKey(), condition.getPattern(), condition.getIs());
+        }
+
+        private Rule rule(String kind, PushRule rule) {
+            int[] ids;
+            switch (kind) {
+                case PushRuleEvaluator.CONTENT:
+                    if (rule.getPattern() == null) {
+                        return null;
+                    }
+                    ids = new int[] {bodyMatch(rule.getPattern())};
+                    break;
+                case PushRuleEvaluator.ROOM:
+                case PushRuleEvaluator.SENDER:
+                    if (rule.getRuleId() == null) {
+                        return null;
+                    }
+                    String key = PushRuleEvaluator.ROOM.equals(kind) ? PushEvent.ROOM_ID : PushEvent.SENDER;
+                    ids = new int[] {generic(Arrays.asList(kind, rule.getRuleId()),
+                        PushRuleEvaluator.equalsTo(key, rule.getRuleId()))};
+                    break;
+                default:
+                    List<PushCondition> pushConditions = rule.getConditions() == null ? Collections.emptyList() : rule.getConditions();
+                    ids = new int[pushConditions.size()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = condition(pushConditions.get(i));
+                    }
+            }
+            boolean perUser = false;
+            for (int id : ids) {
+                perUser |= conditions.get(id).type == DISPLAY_NAME;
+            }
+            return new Rule(ids, perUser, new PushActions(kind, rule.getRuleId(), rule.getActions()));
+        }
+
+        private int condition(PushCondition condition) {
+            if (condition != null && PushRuleEvaluator.CONTAINS_DISPLAY_NAME.equals(condition.getKind())) {
+                if (displayNameCondition == -1) {
+                    displayNameCondition = conditions.size();
+                    conditions.add(new Cond(DISPLAY_NAME, -1, null));
+                }
+                return displayNameCondition;
+            }
+            if (condition != null && PushRuleEvaluator.EVENT_MATCH.equals(condition.getKind())
+                && PushEvent.BODY.equals(condition.getKey()) && condition.getPattern() != null) {
+                return bodyMatch(condition.getPattern());
+            }
+            return generic(conditionKey(condition), PushRuleEvaluator.condition(condition));
+        }
+
+        private int bodyMatch(String pattern) {
+            Glob glob = Glob.compile(pattern);
+            List<Object> key = Arrays.asList(PushRuleEvaluator.EVENT_MATCH, PushEvent.BODY, pattern);
+            Integer id = conditionIds.get(key);
+            if (id == null) {
+                id = conditions.size();
+                if (glob.isLiteral() && !pattern.isEmpty()) {
+                    conditions.add(new Cond(KEYWORD, pattern(pattern), null));
+                } else {
+                    conditions.add(new Cond(GENERIC, -1, PushRuleEvaluator.eventMatch(PushEvent.BODY, pattern)));
+                }
+                conditionIds.put(key, id);
+            }
+            return id;
+        }
+
+        private int generic(List<Object> key, PushRuleEvaluator.Condition condition) {
+            Integer id = conditionIds.get(key);
+            if (id == null) {
+                id = conditions.size();
+                conditions.add(new Cond(GENERIC, -1, condition));
+                conditionIds.put(key, id);
+            }
+            return id;
+        }
+
+        private int pattern(String pattern) {
+            return patternIds.computeIfAbsent(pattern, p -> {
+                patterns.add(p);
+                return patterns.size() - 1;
+            });
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.push.rules;
+
+import io.github.ma1uta.matrix.push.model.Notification;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of the bulk push rules evaluation.
+ * <br>
+ * The members are addressed by the index in the evaluator, the notified and the highlighted members are the bitmaps of the
+ * indexes.
+ */
+public final class BulkPushResult {
+
+    private static final String EVENT_ID = "event_id";
+
+    private static final String STATE_KEY = "state_key";
+
+    private static final String MEMBER_TYPE = "m.room.member";
+
+    private final PushEvent event;
+
+    private final String[] users;
+
+    private final Map<String, Integer> userIndexes;
+
+    private final PushActions[] actions;
+
+    private final BitSet notify;
+
+    private final BitSet highlight;
+
+    BulkPushResult(PushEvent event, String[] users, Map<String, Integer> userIndexes, PushActions[] actions, BitSet notify,
+                   BitSet highlight) {
+        this.event = event;
+        this.users = users;
+        this.userIndexes = userIndexes;
+        this.actions = actions;
+        this.notify = notify;
+        this.highlight = highlight;
+    }
+
+    public PushEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * The count of the members.
+     *
+     * @return the count of the members.
+     */
+    public int size() {
+        return users.length;
+    }
+
+    /**
+     * The member id.
+     *
+     * @param index the member index.
+     * @return the user id.
+     */
+    public String getUser(int index) {
+        return users[index];
+    }
+
+    /**
+     * The actions of the member.
+     *
+     * @param index the member index.
+     * @return the actions of the matched rule or {@code null} if no rule matches.
+     */
+    public PushActions getActions(int index) {
+        return actions[index];
+    }
+
+    /**
+     * The actions of the member.
+     *
+     * @param userId the user id.
+     * @return the actions of the matched rule or {@code null} if no rule matches or the user isn't the member.
+     */
+    public PushActions getActions(String userId) {
+        Integer index = userIndexes.get(userId);
+        return index == null ? null : actions[index];
+    }
+
+    /**
+     * The members to notify.
+     *
+     * @return the bitmap of the member indexes.
+     */
+    public BitSet getNotify() {
+        return (BitSet) notify.clone();
+    }
+
+    /**
+     * The members to highlight.
+     *
+     * @return the bitmap of the member indexes.
+     */
+    public BitSet getHighlight() {
+        return (BitSet) highlight.clone();
+    }
+
+    /**
+     * The members to notify.
+     *
+     * @return the user ids.
+     */
+    public List<String> getNotifiedUsers() {
+        List<String> notified = new ArrayList<>(notify.cardinality());
+        for (int i = notify.nextSetBit(0); i >= 0; i = notify.nextSetBit(i + 1)) {
+            notified.add(users[i]);
+        }
+        return notified;
+    }
+
+    /**
+     * Create the notification for the push gateway without the content, the counts and the devices.
+     *
+     * @param index the member index.
+     * @return the notification.
+     */
+    public Notification notification(int index) {
+        Notification notification = new Notification();
+        notification.setEventId(event.get(EVENT_ID));
+        notification.setRoomId(event.getRoomId());
+        notification.setType(event.getType());
+        notification.setSender(event.getSender());
+        notification.setUserIsTarget(MEMBER_TYPE.equals(event.getType()) && users[index].equals(event.get(STATE_KEY)));
+        PushActions userActions = actions[index];
+        boolean important = userActions != null && (userActions.isHighlight() || userActions.getSound() != null);
+        notification.setPrio(important ? Notification.Priority.HIGH : Notification.Priority.LOW);
+        return notification;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.push.rules;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Case-insensitive multi-pattern matcher (Aho-Corasick) of the words.
+ * <br>
+ * Finds all literal patterns which occur in the text surrounded by the non-word characters or the ends of the text in one pass.
+ */
+final class KeywordMatcher {
+
+    private static final int[] NO_OUTPUTS = new int[0];
+
+    private final char[][] keys;
+
+    private final int[][] next;
+
+    private final int[] fail;
+
+    private final int[][] outputs;
+
+    private final int[] lengths;
+
+    KeywordMatcher(List<String> patterns) {
+        List<Map<Character, Integer>> transitions = new ArrayList<>();
+        List<List<Integer>> found = new ArrayList<>();
+        transitions.add(new TreeMap<>());
+        found.add(new ArrayList<>());
+        this.lengths = new int[patterns.size()];
+        for (int id = 0; id < patterns.size(); id++) {
+            String pattern = patterns.get(id);
+            lengths[id] = pattern.length();
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char ch = Character.toLowerCase(pattern.charAt(i));
+                Integer target = transitions.get(state).get(ch);
+                if (target == null) {
+                    target = transitions.size();
+                    transitions.get(state).put(ch, target);
+                    transitions.add(new TreeMap<>());
+                    found.add(new ArrayList<>());
+                }
+                state = target;
+            }
+            found.get(state).add(id);
+        }
+
+        int states = transitions.size();
+        this.keys = new char[states][];
+        this.next = new int[states][];
+        for (int state = 0; state < states; state++) {
+            Map<Character, Integer> map = transitions.get(state);
+            keys[state] = new char[map.size()];
+            next[state] = new int[map.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> entry : map.entrySet()) {
+                keys[state][i] = entry.getKey();
+                next[state][i] = entry.getValue();
+                i++;
+            }
+        }
+
+        this.fail = new int[states];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : next[0]) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < keys[state].length; i++) {
+                int child = next[state][i];
+                int fallback = fail[state];
+                int target = step(fallback, keys[state][i]);
+                while (target == -1 && fallback != 0) {
+                    fallback = fail[fallback];
+                    target = step(fallback, keys[state][i]);
+                }
+                fail[child] = target == -1 ? 0 : target;
+                found.get(child).addAll(found.get(fail[child]));
+                queue.add(child);
+            }
+        }
+
+        this.outputs = new int[states][];
+        for (int state = 0; state < states; state++) {
+            List<Integer> ids = found.get(state);
+            outputs[state] = ids.isEmpty() ? NO_OUTPUTS : ids.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private int step(int state, char ch) {
+        char[] stateKeys = keys[state];
+        int low = 0;
+        int high = stateKeys.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (stateKeys[middle] < ch) {
+                low = middle + 1;
+            } else if (stateKeys[middle] > ch) {
+                high = middle - 1;
+            } else {
+                return next[state][middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the patterns.
+     *
+     * @param text the text.
+     * @return the ids of the found patterns.
+     */
+    BitSet find(String text) {
+        BitSet matched = new BitSet(lengths.length);
+        if (text == null || lengths.length == 0) {
+            return matched;
+        }
+        int state = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char ch = Character.toLowerCase(text.charAt(i));
+            int target = step(state, ch);
+            while (target == -1 && state != 0) {
+                state = fail[state];
+                target = step(state, ch);
+            }
+            state = target == -1 ? 0 : target;
+            if (outputs[state].length > 0 && (i + 1 == length || !isWordChar(text.charAt(i + 1)))) {
+                for (int id : outputs[state]) {
+                    int start = i + 1 - lengths[id];
+                    if (start == 0 || !isWordChar(text.charAt(start - 1))) {
+                        matched.set(id);
+                    }
+                }
+            }
+        }
+        return matched;
+    }
+
+    private static boolean isWordChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_';
+    }
+}
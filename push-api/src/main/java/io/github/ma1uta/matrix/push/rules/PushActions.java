@@ -0,0 +1,190 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.push.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.JsonNumber;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * The actions of the matched push rule.
+ * <br>
+ * The actions are parsed once when the rules are compiled and the same instance is returned for each matched event.
+ */
+public final class PushActions {
+
+    /**
+     * Notify action.
+     */
+    public static final String NOTIFY = "notify";
+
+    /**
+     * Don't notify action.
+     */
+    public static final String DONT_NOTIFY = "dont_notify";
+
+    /**
+     * Coalesce action.
+     */
+    public static final String COALESCE = "coalesce";
+
+    /**
+     * The tweak key of the action.
+     */
+    public static final String SET_TWEAK = "set_tweak";
+
+    /**
+     * The tweak value key of the action.
+     */
+    public static final String VALUE = "value";
+
+    /**
+     * The sound tweak.
+     */
+    public static final String SOUND = "sound";
+
+    /**
+     * The highlight tweak.
+     */
+    public static final String HIGHLIGHT = "highlight";
+
+    private final String kind;
+
+    private final String ruleId;
+
+    private final List<Object> actions;
+
+    private final boolean notify;
+
+    private final boolean coalesce;
+
+    private final Map<String, Object> tweaks;
+
+    PushActions(String kind, String ruleId, List<Object> actions) {
+        this.kind = kind;
+        this.ruleId = ruleId;
+        this.actions = actions == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(actions));
+        boolean notifyAction = false;
+        boolean coalesceAction = false;
+        Map<String, Object> parsedTweaks = new LinkedHashMap<>();
+        for (Object action : this.actions) {
+            if (action instanceof JsonString) {
+                action = ((JsonString) action).getString();
+            }
+            if (NOTIFY.equals(action)) {
+                notifyAction = true;
+            } else if (COALESCE.equals(action)) {
+                notifyAction = true;
+                coalesceAction = true;
+            } else if (action instanceof Map) {
+                Map<?, ?> tweak = (Map<?, ?>) action;
+                Object name = unwrap(tweak.get(SET_TWEAK));
+                if (name instanceof String) {
+                    Object value = unwrap(tweak.get(VALUE));
+                    parsedTweaks.put((String) name, value == null && HIGHLIGHT.equals(name) ? Boolean.TRUE : value);
+                }
+            }
+        }
+        this.notify = notifyAction;
+        this.coalesce = coalesceAction;
+        this.tweaks = Collections.unmodifiableMap(parsedTweaks);
+    }
+
+    private static Object unwrap(Object value) {
+        if (value instanceof JsonString) {
+            return ((JsonString) value).getString();
+        }
+        if (value instanceof JsonNumber) {
+            return ((JsonNumber) value).numberValue();
+        }
+        if (value == JsonValue.TRUE) {
+            return Boolean.TRUE;
+        }
+        if (value == JsonValue.FALSE) {
+            return Boolean.FALSE;
+        }
+        return value == JsonValue.NULL ? null : value;
+    }
+
+    /**
+     * The kind of the matched rule (override, content, room, sender or underride).
+     *
+     * @return the kind.
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    public String getRuleId() {
+        return ruleId;
+    }
+
+    /**
+     * The original actions of the rule.
+     *
+     * @return the actions.
+     */
+    public List<Object> getActions() {
+        return actions;
+    }
+
+    /**
+     * Whether the notification should be sent.
+     *
+     * @return {@code true} if the actions contain the notify or the coalesce action.
+     */
+    public boolean isNotify() {
+        return notify;
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * Whether the event should be highlighted.
+     *
+     * @return {@code true} if the highlight tweak is set.
+     */
+    public boolean isHighlight() {
+        return Boolean.TRUE.equals(tweaks.get(HIGHLIGHT));
+    }
+
+    /**
+     * The sound to play.
+     *
+     * @return the sound or {@code null} if the sound tweak isn't set.
+     */
+    public String getSound() {
+        Object sound = tweaks.get(SOUND);
+        return sound instanceof String ? (String) sound : null;
+    }
+
+    /**
+     * The tweaks of the actions.
+     *
+     * @return the tweaks keyed by the tweak name.
+     */
+    public Map<String, Object> getTweaks() {
+        return tweaks;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.push.rules;
+
+import io.github.ma1uta.matrix.common.RawJson;
+import io.github.ma1uta.matrix.json.JsonCodecs;
+import io.github.ma1uta.matrix.json.JsonOutput;
+import io.github.ma1uta.matrix.json.JsonScanner;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The event prepared for the push rules evaluation.
+ * <br>
+ * The string values of the event are flattened once into the dotted keys ({@code type}, {@code content.body}, ...), so the
+ * event can be evaluated against the rules of all room members without the repeated lookups.
+ */
+public final class PushEvent {
+
+    /**
+     * The event type key.
+     */
+    public static final String TYPE = "type";
+
+    /**
+     * The room id key.
+     */
+    public static final String ROOM_ID = "room_id";
+
+    /**
+     * The sender key.
+     */
+    public static final String SENDER = "sender";
+
+    /**
+     * The message body key.
+     */
+    public static final String BODY = "content.body";
+
+    private static final char SEPARATOR = '.';
+
+    private final Map<String, String> values;
+
+    private final int memberCount;
+
+    private PushEvent(Map<String, String> values, int memberCount) {
+        this.values = values;
+        this.memberCount = memberCount;
+    }
+
+    /**
+     * Prepare the event.
+     *
+     * @param values      the string values keyed by the dotted keys.
+     * @param memberCount the count of the joined room members.
+     * @return the event.
+     */
+    public static PushEvent of(Map<String, String> values, int memberCount) {
+        return new PushEvent(Collections.unmodifiableMap(new HashMap<>(values)), memberCount);
+    }
+
+    /**
+     * Prepare the event.
+     *
+     * @param event       the event (the event with the original json is flattened without the encoding).
+     * @param memberCount the count of the joined room members.
+     * @return the event.
+     */
+    public static PushEvent of(Object event, int memberCount) {
+        JsonOutput out = new JsonOutput();
+        JsonCodecs.write(out, event);
+        byte[] json = out.toByteArray();
+        return of(json, 0, json.length, memberCount);
+    }
+
+    /**
+     * Prepare the event.
+     *
+     * @param json        the json of the event.
+     * @param memberCount the count of the joined room members.
+     * @return the event.
+     */
+    public static PushEvent of(RawJson json, int memberCount) {
+        return of(json.getBytes(), json.getOffset(), json.getLength(), memberCount);
+    }
+
+    /**
+     * Prepare the event.
+     *
+     * @param json        the UTF-8 encoded json of the event.
+     * @param offset      the start of the json.
+     * @param length      the length of the json.
+     * @param memberCount the count of the joined room members.
+     * @return the event.
+     */
+    public static PushEvent of(byte[] json, int offset, int length, int memberCount) {
+        Map<String, String> values = new HashMap<>();
+        int end = offset + length;
+        flatten(json, JsonScanner.skipWhitespaces(json, offset, end), end, "", values);
+        return new PushEvent(values, memberCount);
+    }
+
+    private static void flatten(byte[] json, int start, int end, String prefix, Map<String, String> values) {
+        JsonScanner.scanObject(json, start, end, (nameStart, nameEnd, valueStart, valueEnd) -> {
+            byte first = json[valueStart];
+            if (first == '"') {
+                values.put(prefix + JsonScanner.decodeString(json, nameStart, nameEnd),
+                    JsonScanner.decodeString(json, valueStart + 1, valueEnd - 1));
+            } else if (first == '{') {
+                flatten(json, valueStart, valueEnd, prefix + JsonScanner.decodeString(json, nameStart, nameEnd) + SEPARATOR, values);
+            }
+        });
+    }
+
+    /**
+     * The string value of the dotted key.
+     *
+     * @param key the dotted key.
+     * @return the value or {@code null} if the event has no string value with this key.
+     */
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    public String getType() {
+        return values.get(TYPE);
+    }
+
+    public String getRoomId() {
+        return values.get(ROOM_ID);
+    }
+
+    public String getSender() {
+        return values.get(SENDER);
+    }
+
+    public String getBody() {
+        return values.get(BODY);
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+}
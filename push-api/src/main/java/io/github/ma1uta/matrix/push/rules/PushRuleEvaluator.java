@@ -0,0 +1,338 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.push.rules;
+
+import io.github.ma1uta.matrix.common.Glob;
+import io.github.ma1uta.matrix.event.nested.PushCondition;
+import io.github.ma1uta.matrix.event.nested.PushRule;
+import io.github.ma1uta.matrix.event.nested.Ruleset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The push rules of the user compiled into the ordered matcher.
+ * <br>
+ * The rules are checked in the order override, content, room, sender, underride and the actions of the first matched rule
+ * are returned. The glob patterns and the member count conditions are compiled once, so the evaluation of the event doesn't
+ * allocate. The unknown and the malformed conditions never match.
+ */
+public final class PushRuleEvaluator {
+
+    /**
+     * Override rules.
+     */
+    public static final String OVERRIDE = "override";
+
+    /**
+     * Content rules.
+     */
+    public static final String CONTENT = "content";
+
+    /**
+     * Room rules.
+     */
+    public static final String ROOM = "room";
+
+    /**
+     * Sender rules.
+     */
+    public static final String SENDER = "sender";
+
+    /**
+     * Underride rules.
+     */
+    public static final String UNDERRIDE = "underride";
+
+    /**
+     * Event match condition.
+     */
+    public static final String EVENT_MATCH = "event_match";
+
+    /**
+     * Contains display name condition.
+     */
+    public static final String CONTAINS_DISPLAY_NAME = "contains_display_name";
+
+    /**
+     * Room member count condition.
+     */
+    public static final String ROOM_MEMBER_COUNT = "room_member_count";
+
+    private static final Condition NEVER = (event, displayName) -> false;
+
+    private final Rule[] rules;
+
+    private PushRuleEvaluator(Rule[] rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Compile the ruleset.
+     *
+     * @param ruleset the ruleset.
+     * @return the evaluator.
+     */
+    public static PushRuleEvaluator compile(Ruleset ruleset) {
+        List<Rule> rules = new ArrayList<>();
+        if (ruleset != null) {
+            add(rules, OVERRIDE, ruleset.getOverride());
+            add(rules, CONTENT, ruleset.getContent());
+            add(rules, ROOM, ruleset.getRoom());
+            add(rules, SENDER, ruleset.getSender());
+            add(rules, UNDERRIDE, ruleset.getUnderride());
+        }
+        return new PushRuleEvaluator(rules.toArray(new Rule[0]));
+    }
+
+    private static void add(List<Rule> rules, String kind, List<PushRule> pushRules) {
+        if (pushRules == null) {
+            return;
+        }
+        for (PushRule pushRule : pushRules) {
+            if (pushRule == null || Boolean.FALSE.equals(pushRule.getEnabled())) {
+                continue;
+            }
+            Condition[] conditions = conditions(kind, pushRule);
+            if (conditions != null) {
+                rules.add(new Rule(conditions, new PushActions(kind, pushRule.getRuleId(), pushRule.getActions())));
+            }
+        }
+    }
+
+    private static Condition[] conditions(String kind, PushRule rule) {
+        switch (kind) {
+            case CONTENT:
+                return rule.getPattern() == null ? null : new Condition[] {eventMatch(PushEvent.BODY, rule.getPattern())};
+            case ROOM:
+                return rule.getRuleId() == null ? null : new Condition[] {equalsTo(PushEvent.ROOM_ID, rule.getRuleId())};
+            case SENDER:
+                return rule.getRuleId() == null ? null : new Condition[] {equalsTo(PushEvent.SENDER, rule.getRuleId())};
+            default:
+                if (rule.getConditions() == null) {
+                    return new Condition[0];
+                }
+                Condition[] conditions = new Condition[rule.getConditions().size()];
+                for (int i = 0; i < conditions.length; i++) {
+                    conditions[i] = condition(rule.getConditions().get(i));
+                }
+                return conditions;
+        }
+    }
+
+    /**
+     * Compile the condition.
+     *
+     * @param condition the condition.
+     * @return the compiled condition.
+     */
+    static Condition condition(PushCondition condition) {
+        if (condition == null || condition.getKind() == null) {
+            return NEVER;
+        }
+        switch (condition.getKind()) {
+            case EVENT_MATCH:
+                return condition.getKey() == null || condition.getPattern() == null ? NEVER
+                    : eventMatch(condition.getKey(), condition.getPattern());
+            case CONTAINS_DISPLAY_NAME:
+                return (event, displayName) -> containsDisplayName(event.getBody(), displayName);
+            case ROOM_MEMBER_COUNT:
+                return MemberCount.parse(condition.getIs());
+            default:
+                return NEVER;
+        }
+    }
+
+    /**
+     * Compile the event match condition (the body is matched by the words, the other keys are matched as the whole).
+     *
+     * @param key     the dotted key.
+     * @param pattern the glob pattern.
+     * @return the compiled condition.
+     */
+    static Condition eventMatch(String key, String pattern) {
+        Glob glob = Glob.compile(pattern);
+        if (PushEvent.BODY.equals(key)) {
+            return (event, displayName) -> glob.matchesWord(event.getBody());
+        }
+        return (event, displayName) -> glob.matches(event.get(key));
+    }
+
+    /**
+     * Compile the exact match of the value.
+     *
+     * @param key   the dotted key.
+     * @param value the value.
+     * @return the compiled condition.
+     */
+    static Condition equalsTo(String key, String value) {
+        return (event, displayName) -> value.equals(event.get(key));
+    }
+
+    /**
+     * Check if the body contains the display name as the separate word (case-insensitive).
+     *
+     * @param body        the message body.
+     * @param displayName the display name.
+     * @return {@code true} if the body contains the display name.
+     */
+    public static boolean containsDisplayName(String body, String displayName) {
+        if (body == null || displayName == null || displayName.isEmpty()) {
+            return false;
+        }
+        int length = displayName.length();
+        for (int start = 0; start + length <= body.length(); start++) {
+            if ((start == 0 || !isWordChar(body.charAt(start - 1)))
+                && (start + length == body.length() || !isWordChar(body.charAt(start + length)))
+                && body.regionMatches(true, start, displayName, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWordChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_';
+    }
+
+    /**
+     * Evaluate the rules.
+     *
+     * @param event       the event.
+     * @param displayName the display name of the user in the room.
+     * @return the actions of the first matched rule or {@code null} if no rule matches.
+     */
+    public PushActions evaluate(PushEvent event, String displayName) {
+        for (Rule rule : rules) {
+            if (rule.matches(event, displayName)) {
+                return rule.actions;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The count of the enabled rules.
+     *
+     * @return the count of the rules.
+     */
+    public int size() {
+        return rules.length;
+    }
+
+    /**
+     * The compiled condition.
+     */
+    @FunctionalInterface
+    interface Condition {
+
+        /**
+         * Check the event.
+         *
+         * @param event       the event.
+         * @param displayName the display name of the user.
+         * @return {@code true} if the condition holds.
+         */
+        boolean test(PushEvent event, String displayName);
+    }
+
+    /**
+     * The compiled rule.
+     */
+    private static final class Rule {
+
+        private final Condition[] conditions;
+
+        private final PushActions actions;
+
+        Rule(Condition[] conditions, PushActions actions) {
+            this.conditions = conditions;
+            this.actions = actions;
+        }
+
+        boolean matches(PushEvent event, String displayName) {
+            for (Condition condition : conditions) {
+                if (!condition.test(event, displayName)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The room member count condition.
+     */
+    private static final class MemberCount implements Condition {
+
+        private static final String[] OPERATORS = {"==", "<=", ">=", "<", ">"};
+
+        private static final int EQ = 0;
+
+        private static final int LE = 1;
+
+        private static final int GE = 2;
+
+        private static final int LT = 3;
+
+        private final int operator;
+
+        private final long value;
+
+        private MemberCount(int operator, long value) {
+            this.operator = operator;
+            this.value = value;
+        }
+
+        static Condition parse(String is) {
+            if (is == null) {
+                return NEVER;
+            }
+            String trimmed = is.trim();
+            int operator = EQ;
+            for (int i = 0; i < OPERATORS.length; i++) {
+                if (trimmed.startsWith(OPERATORS[i])) {
+                    operator = i;
+                    trimmed = trimmed.substring(OPERATORS[i].length()).trim();
+                    break;
+                }
+            }
+            try {
+                return new MemberCount(operator, Long.parseLong(trimmed));
+            } catch (NumberFormatException e) {
+                return NEVER;
+            }
+        }
+
+        @Override
+        public boolean test(PushEvent event, String displayName) {
+            long count = event.getMemberCount();
+            switch (operator) {
+                case EQ:
+                    return count == value;
+                case LE:
+                    return count <= value;
+                case GE:
+                    return count >= value;
+                case LT:
+                    return count < value;
+                default:
+                    return count > value;
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 module matrix.push.api {
     exports io.github.ma1uta.matrix.push.api;
     exports io.github.ma1uta.matrix.push.model;
+    exports io.github.ma1uta.matrix.push.rules;
 
     requires transitive matrix.common.api;
+
+    provides io.github.ma1uta.matrix.json.JsonCodecProvider with io.github.ma1uta.matrix.push.api.PushJsonCodecs;
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.acl;
+
+import io.github.ma1uta.matrix.common.GlobSet;
+import io.github.ma1uta.matrix.common.ServerName;
+import io.github.ma1uta.matrix.event.content.RoomServerAclContent;
+
+import java.util.Collections;
+
+/**
+ * Server ACL compiled from the {@link RoomServerAclContent}.
+ * <br>
+ * The server is denied if it is the IP literal and the IP literals aren't allowed, or if it matches any deny pattern, or if it
+ * doesn't match any allow pattern. The port of the server name is ignored.
+ */
+public final class ServerAcl {
+
+    /**
+     * The ACL of the room without the ACL event which allows all servers.
+     */
+    public static final ServerAcl ALLOW_ALL = new ServerAcl(true, GlobSet.empty(), null);
+
+    private final boolean allowIpLiterals;
+
+    private final GlobSet deny;
+
+    private final GlobSet allow;
+
+    private ServerAcl(boolean allowIpLiterals, GlobSet deny, GlobSet allow) {
+        this.allowIpLiterals = allowIpLiterals;
+        this.deny = deny;
+        this.allow = allow;
+    }
+
+    /**
+     * Compile the ACL.
+     *
+     * @param content the ACL event content or {@code null} if the room has no ACL.
+     * @return the compiled ACL.
+     */
+    public static ServerAcl compile(RoomServerAclContent content) {
+        if (content == null) {
+            return ALLOW_ALL;
+        }
+        return new ServerAcl(!Boolean.FALSE.equals(content.getAllowIpLiterals()),
+            content.getDeny() == null ? GlobSet.empty() : GlobSet.compile(content.getDeny()),
+            GlobSet.compile(content.getAllow() == null ? Collections.emptyList() : content.getAllow()));
+    }
+
+    /**
+     * Check if the server is allowed.
+     *
+     * @param serverName the server name with the optional port.
+     * @return {@code true} if the server is allowed.
+     */
+    public boolean isAllowed(String serverName) {
+        if (this == ALLOW_ALL) {
+            return true;
+        }
+        if (serverName == null) {
+            return false;
+        }
+        try {
+            return isAllowed(ServerName.of(serverName));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if the server is allowed.
+     *
+     * @param serverName the server name.
+     * @return {@code true} if the server is allowed.
+     */
+    public boolean isAllowed(ServerName serverName) {
+        if (this == ALLOW_ALL) {
+            return true;
+        }
+        if (!allowIpLiterals && serverName.isIpLiteral()) {
+            return false;
+        }
+        String host = serverName.getHost();
+        return !deny.matches(host) && allow.matches(host);
+    }
+}
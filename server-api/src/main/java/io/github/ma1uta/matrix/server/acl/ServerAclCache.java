@@ -0,0 +1,255 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.acl;
+
+import io.github.ma1uta.matrix.event.content.RoomServerAclContent;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResult;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResults;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.Transaction;
+import io.github.ma1uta.matrix.server.model.federation.edu.EphemeralDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.edu.Receipt;
+import io.github.ma1uta.matrix.server.model.federation.edu.Typing;
+import io.github.ma1uta.matrix.server.model.federation.edu.content.ReceiptContent;
+import io.github.ma1uta.matrix.server.model.federation.edu.content.TypingContent;
+import io.github.ma1uta.matrix.server.model.federation.v1.PDUv1;
+import io.github.ma1uta.matrix.server.model.federation.v3.PDUv3;
+import io.github.ma1uta.matrix.server.signature.SignatureVerifier;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Server ACLs of the rooms with the cache of the decisions.
+ * <br>
+ * Each room keeps the compiled ACL and the bounded LRU cache of the decisions by the server name. The ACL and the decisions
+ * are replaced when the {@code m.room.server_acl} state event changes (see {@link #update(String, RoomServerAclContent)}). The
+ * rooms without the ACL allow all servers.
+ */
+public class ServerAclCache {
+
+    /**
+     * The default maximum count of the cached decisions per room.
+     */
+    public static final int DEFAULT_MAX_SERVERS = 1024;
+
+    /**
+     * The error of the denied PDU.
+     */
+    public static final String BANNED = "Server is banned from room";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Map<String, RoomAcl> rooms = new ConcurrentHashMap<>();
+
+    private final int maxServers;
+
+    public ServerAclCache() {
+        this(DEFAULT_MAX_SERVERS);
+    }
+
+    public ServerAclCache(int maxServers) {
+        this.maxServers = maxServers;
+    }
+
+    /**
+     * Set the ACL of the room.
+     *
+     * @param roomId  the room id.
+     * @param content the content of the current ACL state event or {@code null} if the room has no ACL.
+     */
+    public void update(String roomId, RoomServerAclContent content) {
+        if (content == null) {
+            rooms.remove(roomId);
+        } else {
+            rooms.put(roomId, new RoomAcl(ServerAcl.compile(content), maxServers));
+        }
+    }
+
+    /**
+     * Forget the ACL of the room.
+     *
+     * @param roomId the room id.
+     */
+    public void remove(String roomId) {
+        rooms.remove(roomId);
+    }
+
+    /**
+     * The ACL of the room.
+     *
+     * @param roomId the room id.
+     * @return the ACL.
+     */
+    public ServerAcl getAcl(String roomId) {
+        RoomAcl room = rooms.get(roomId);
+        return room == null ? ServerAcl.ALLOW_ALL : room.acl;
+    }
+
+    /**
+     * Check if the server is allowed to participate in the room.
+     *
+     * @param roomId     the room id.
+     * @param serverName the server name.
+     * @return {@code true} if the server is allowed.
+     */
+    public boolean isAllowed(String roomId, String serverName) {
+        RoomAcl room = roomId == null ? null : rooms.get(roomId);
+        return room == null || room.isAllowed(serverName);
+    }
+
+    /**
+     * Check the PDU sent by the origin server.
+     *
+     * @param pdu    the PDU.
+     * @param origin the origin server of the transaction.
+     * @return {@code null} if the origin is allowed or the error.
+     */
+    public String check(PersistedDataUnit pdu, String origin) {
+        return isAllowed(roomId(pdu), origin) ? null : BANNED;
+    }
+
+    /**
+     * Check the PDUs of the transaction.
+     *
+     * @param transaction the transaction.
+     * @return the results of the denied PDUs keyed by the event id.
+     */
+    public PduProcessingResults check(Transaction transaction) {
+        return check(transaction, roomId -> null);
+    }
+
+    /**
+     * Check the PDUs of the transaction.
+     *
+     * @param transaction  the transaction.
+     * @param roomVersions the room versions by the room id (select the format of the event ids).
+     * @return the results of the denied PDUs keyed by the event id.
+     */
+    public PduProcessingResults check(Transaction transaction, Function<String, String> roomVersions) {
+        Map<String, PduProcessingResult> denied = new LinkedHashMap<>();
+        if (transaction.getPdus() != null) {
+            for (PersistedDataUnit pdu : transaction.getPdus()) {
+                String error = check(pdu, transaction.getOrigin());
+                if (error != null) {
+                    PduProcessingResult result = new PduProcessingResult();
+                    result.setError(error);
+                    String roomId = roomId(pdu);
+                    denied.put(SignatureVerifier.eventId(pdu, roomId != null ? roomVersions.apply(roomId) : null), result);
+                }
+            }
+        }
+        PduProcessingResults results = new PduProcessingResults();
+        results.setPdus(denied);
+        return results;
+    }
+
+    /**
+     * Remove the room EDUs of the rooms where the origin server is denied.
+     * <br>
+     * The typing notifications of the denied rooms are dropped, the receipts of the denied rooms are removed from the receipt
+     * EDUs (the EDU is copied if required).
+     *
+     * @param edus   the EDUs.
+     * @param origin the origin server of the transaction.
+     * @return the allowed EDUs.
+     */
+    public List<EphemeralDataUnit<?>> filter(List<EphemeralDataUnit<?>> edus, String origin) {
+        List<EphemeralDataUnit<?>> allowed = new ArrayList<>(edus.size());
+        for (EphemeralDataUnit<?> edu : edus) {
+            if (edu instanceof Typing) {
+                TypingContent content = ((Typing) edu).getContent();
+                if (content == null || isAllowed(content.getRoomId(), origin)) {
+                    allowed.add(edu);
+                }
+            } else if (edu instanceof Receipt && ((Receipt) edu).getContent() != null) {
+                ReceiptContent content = ((Receipt) edu).getContent();
+                if (content.keySet().stream().allMatch(roomId -> isAllowed(roomId, origin))) {
+                    allowed.add(edu);
+                    continue;
+                }
+                ReceiptContent filtered = new ReceiptContent();
+                content.forEach((roomId, receipts) -> {
+                    if (isAllowed(roomId, origin)) {
+                        filtered.put(roomId, receipts);
+                    }
+                });
+                if (!filtered.isEmpty()) {
+                    Receipt receipt = new Receipt();
+                    receipt.setContent(filtered);
+                    allowed.add(receipt);
+                }
+            } else {
+                allowed.add(edu);
+            }
+        }
+        return allowed;
+    }
+
+    private static String roomId(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getRoomId();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getRoomId();
+        }
+        return null;
+    }
+
+    /**
+     * The compiled ACL of the room with the cached decisions.
+     */
+    private static final class RoomAcl {
+
+        private final ServerAcl acl;
+
+        private final Map<String, Boolean> decisions;
+
+        RoomAcl(ServerAcl acl, int maxServers) {
+            this.acl = acl;
+            this.decisions = new LinkedHashMap<String, Boolean>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > maxServers;
+                }
+            };
+        }
+
+        boolean isAllowed(String serverName) {
+            if (serverName == null) {
+                return false;
+            }
+            synchronized (decisions) {
+                Boolean decision = decisions.get(serverName);
+                if (decision != null) {
+                    return decision;
+                }
+            }
+            boolean allowed = acl.isAllowed(serverName);
+            synchronized (decisions) {
+                decisions.put(serverName, allowed);
+            }
+            return allowed;
+        }
+    }
+}
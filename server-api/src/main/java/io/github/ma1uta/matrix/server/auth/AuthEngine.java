@@ -0,0 +1,858 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.auth;
+
+import io.github.ma1uta.matrix.common.PowerLevels;
+import io.github.ma1uta.matrix.event.RoomAliases;
+import io.github.ma1uta.matrix.event.RoomCreate;
+import io.github.ma1uta.matrix.event.RoomJoinRules;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.RoomPowerLevels;
+import io.github.ma1uta.matrix.event.RoomRedaction;
+import io.github.ma1uta.matrix.event.RoomThirdPartyInvite;
+import io.github.ma1uta.matrix.event.content.EventContent;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import io.github.ma1uta.matrix.json.CanonicalJson;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResult;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResults;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.Transaction;
+import io.github.ma1uta.matrix.server.pdu.Pdus;
+import io.github.ma1uta.matrix.server.signature.KeyCache;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The authorization rules of the room events (https://spec.matrix.org/latest/rooms/).
+ * <br>
+ * The event is checked against its auth events with the rules of the room version (see {@link AuthRules}). The compiled
+ * {@link PowerLevels} views are cached by the event id of the power levels event so the rooms with the same power levels share
+ * the single view. The PDUs of the transaction are checked in parallel, the PDU waits only for the PDUs of the same batch which
+ * it references as the auth events and is rejected if any of them is rejected.
+ * <br>
+ * The restricted joins require the signature of the authorising server, this signature is checked by the
+ * {@link io.github.ma1uta.matrix.server.signature.SignatureVerifier}, not here.
+ */
+public class AuthEngine {
+
+    /**
+     * The default maximum count of the cached power levels.
+     */
+    public static final int DEFAULT_MAX_POWER_LEVELS = 1024;
+
+    /**
+     * The {@code public} join rule.
+     */
+    public static final String PUBLIC = "public";
+
+    /**
+     * The {@code invite} join rule.
+     */
+    public static final String INVITE = "invite";
+
+    /**
+     * The {@code knock} join rule.
+     */
+    public static final String KNOCK = "knock";
+
+    /**
+     * The {@code restricted} join rule.
+     */
+    public static final String RESTRICTED = "restricted";
+
+    /**
+     * The {@code knock_restricted} join rule.
+     */
+    public static final String KNOCK_RESTRICTED = "knock_restricted";
+
+    private static final long ABSENT = Long.MIN_VALUE;
+
+    private final AuthEventSource source;
+
+    private final Executor executor;
+
+    private final int maxPowerLevels;
+
+    private final Map<String, PowerLevels> powerLevels = new ConcurrentHashMap<>();
+
+    public AuthEngine(AuthEventSource source) {
+        this(source, ForkJoinPool.commonPool(), DEFAULT_MAX_POWER_LEVELS);
+    }
+
+    public AuthEngine(AuthEventSource source, Executor executor, int maxPowerLevels) {
+        this.source = source;
+        this.executor = executor;
+        this.maxPowerLevels = maxPowerLevels;
+    }
+
+    /**
+     * Check the event against its auth events from the source.
+     *
+     * @param pdu         the event.
+     * @param roomVersion the room version or {@code null} to use the version of the create event (the event itself or its auth
+     *                    event).
+     * @return {@code null} if the event is allowed or the reason of the rejection.
+     */
+    public String check(PersistedDataUnit pdu, String roomVersion) {
+        List<String> ids = Pdus.authEvents(pdu);
+        Map<String, PersistedDataUnit> authEvents = new HashMap<>(ids.size() * 2);
+        PersistedDataUnit create = RoomCreate.TYPE.equals(Pdus.type(pdu)) ? pdu : null;
+        for (String id : ids) {
+            PersistedDataUnit authEvent = source.get(id);
+            if (authEvent == null) {
+                return "Missing auth event " + id;
+            }
+            if (RoomCreate.TYPE.equals(Pdus.type(authEvent))) {
+                create = authEvent;
+            }
+            authEvents.put(id, authEvent);
+        }
+        String version = roomVersion == null && create != null ? roomVersion(create) : roomVersion;
+        if (version == null) {
+            return "Unknown room version";
+        }
+        AuthRules rules = AuthRules.forVersion(version);
+        if (rules == null) {
+            return "Unsupported room version: " + version;
+        }
+        return check(pdu, authEvents, rules);
+    }
+
+    /**
+     * The room version of the create event.
+     *
+     * @param create the create event.
+     * @return the room version, the version 1 if the content has no room version.
+     */
+    public static String roomVersion(PersistedDataUnit create) {
+        String roomVersion = Contents.roomVersion(Pdus.content(create));
+        return roomVersion != null ? roomVersion : AuthRules.V1.getVersion();
+    }
+
+    /**
+     * Check the PDUs of the transaction.
+     *
+     * @param transaction  the transaction.
+     * @param roomVersions the room versions by the room id (the version of the create event is used for the unknown rooms).
+     * @return the results keyed by the event id.
+     */
+    public PduProcessingResults check(Transaction transaction, Function<String, String> roomVersions) {
+        return check(transaction.getPdus() != null ? transaction.getPdus() : Collections.emptyList(), roomVersions);
+    }
+
+    /**
+     * Check the PDUs in parallel.
+     * <br>
+     * The auth events are taken from the batch first and then from the source. The PDU which references the rejected PDU of
+     * the batch is rejected too.
+     *
+     * @param pdus         the PDUs.
+     * @param roomVersions the room versions by the room id (the version of the create event is used for the unknown rooms).
+     * @return the results keyed by the event id.
+     */
+    public PduProcessingResults check(List<PersistedDataUnit> pdus, Function<String, String> roomVersions) {
+        Map<String, String> createVersions = new HashMap<>();
+        for (PersistedDataUnit pdu : pdus) {
+            String roomId = Pdus.roomId(pdu);
+            if (roomId != null && RoomCreate.TYPE.equals(Pdus.type(pdu))) {
+                createVersions.putIfAbsent(roomId, Contents.roomVersion(Pdus.content(pdu)));
+            }
+        }
+        List<CompletableFuture<String>> ids = new ArrayList<>(pdus.size());
+        for (PersistedDataUnit pdu : pdus) {
+            String roomId = Pdus.roomId(pdu);
+            String roomVersion = roomId != null ? roomVersions.apply(roomId) : null;
+            String version = roomVersion != null ? roomVersion : createVersions.get(roomId);
+            ids.add(CompletableFuture.supplyAsync(() -> Pdus.eventId(pdu, version), executor));
+        }
+        Map<String, Integer> indices = new HashMap<>(pdus.size() * 2);
+        String[] eventIds = new String[pdus.size()];
+        for (int i = 0; i < pdus.size(); i++) {
+            eventIds[i] = ids.get(i).join();
+            if (eventIds[i] != null) {
+                indices.putIfAbsent(eventIds[i], i);
+            }
+        }
+        Batch batch = new Batch(pdus, indices, roomVersions);
+        for (int i = 0; i < pdus.size(); i++) {
+            batch.schedule(i);
+        }
+        Map<String, PduProcessingResult> results = new LinkedHashMap<>();
+        for (int i = 0; i < pdus.size(); i++) {
+            PduProcessingResult result = new PduProcessingResult();
+            result.setError(batch.futures[i].join());
+            results.put(eventIds[i], result);
+        }
+        PduProcessingResults processingResults = new PduProcessingResults();
+        processingResults.setPdus(results);
+        return processingResults;
+    }
+
+    /**
+     * Check the event against the auth events.
+     *
+     * @param pdu        the event.
+     * @param authEvents the auth events keyed by the event id.
+     * @param rules      the rules of the room version.
+     * @return {@code null} if the event is allowed or the reason of the rejection.
+     */
+    public String check(PersistedDataUnit pdu, Map<String, ? extends PersistedDataUnit> authEvents, AuthRules rules) {
+        String type = Pdus.type(pdu);
+        String sender = Pdus.sender(pdu);
+        String roomId = Pdus.roomId(pdu);
+        if (type == null || sender == null || roomId == null) {
+            return "Missing type, sender or room id";
+        }
+        EventContent content = Pdus.content(pdu);
+        if (RoomCreate.TYPE.equals(type)) {
+            return checkCreate(pdu, sender, roomId, content, rules);
+        }
+
+        AuthState state = new AuthState(type, Pdus.stateKey(pdu), sender, content, rules);
+        String error = state.select(authEvents);
+        if (error != null) {
+            return error;
+        }
+        if (!Contents.isFederated(Pdus.content(state.create)) && !sameDomain(sender, Pdus.sender(state.create))) {
+            return "Room is not federated";
+        }
+        if (rules.isAliases() && RoomAliases.TYPE.equals(type)) {
+            if (state.stateKey == null) {
+                return "Missing state key";
+            }
+            return state.stateKey.equals(domain(sender)) ? null : "State key must be the domain of the sender";
+        }
+        PowerLevels levels = powerLevels(state, rules);
+        if (levels == null) {
+            return "Invalid power levels";
+        }
+        if (RoomMember.TYPE.equals(type)) {
+            return checkMember(pdu, state, levels, rules);
+        }
+        if (!RoomMemberContent.JOIN.equals(state.senderMembership())) {
+            return "Sender is not joined";
+        }
+        if (RoomThirdPartyInvite.TYPE.equals(type)) {
+            return levels.canInvite(sender) ? null : "Insufficient power level to invite";
+        }
+        if (!levels.canSend(type, state.stateKey != null, sender)) {
+            return "Insufficient power level to send " + type;
+        }
+        if (state.stateKey != null && !state.stateKey.isEmpty() && state.stateKey.charAt(0) == '@' && !state.stateKey.equals(sender)) {
+            return "State key must be the sender";
+        }
+        if (RoomPowerLevels.TYPE.equals(type)) {
+            return checkPowerLevels(state, levels, rules);
+        }
+        if (rules.isRedactionDomain() && RoomRedaction.TYPE.equals(type) && !levels.canRedact(sender)) {
+            String redacts = Pdus.redacts(pdu);
+            String eventId = Pdus.eventId(pdu);
+            return redacts != null && eventId != null && sameDomain(redacts, eventId) ? null : "Insufficient power level to redact";
+        }
+        return null;
+    }
+
+    /**
+     * The power levels selected by the auth events.
+     * <br>
+     * Without the power levels event the creator has the level 100 and the other users have the level 0.
+     *
+     * @param authEvents the auth events keyed by the event id.
+     * @param rules      the rules of the room version.
+     * @return the power levels or {@code null} if the power levels are invalid or the create event is missing.
+     */
+    public PowerLevels selectPowerLevels(Map<String, ? extends PersistedDataUnit> authEvents, AuthRules rules) {
+        PersistedDataUnit create = null;
+        for (Map.Entry<String, ? extends PersistedDataUnit> entry : authEvents.entrySet()) {
+            String type = Pdus.type(entry.getValue());
+            if (RoomPowerLevels.TYPE.equals(type)) {
+                return powerLevels(entry.getKey(), entry.getValue(), rules);
+            }
+            if (RoomCreate.TYPE.equals(type)) {
+                create = entry.getValue();
+            }
+        }
+        if (create == null) {
+            return null;
+        }
+        return PowerLevels.initial(rules.isCreatorIsSender() ? Pdus.sender(create) : Contents.creator(Pdus.content(create)));
+    }
+
+    /**
+     * Visit the types and the state keys of the auth events required by the event (the auth events selection algorithm).
+     *
+     * @param pdu     the event.
+     * @param rules   the rules of the room version.
+     * @param visitor the visitor of the type and the state key.
+     */
+    public static void selectAuthEvents(PersistedDataUnit pdu, AuthRules rules, BiConsumer<String, String> visitor) {
+        String type = Pdus.type(pdu);
+        if (type == null || RoomCreate.TYPE.equals(type)) {
+            return;
+        }
+        visitor.accept(RoomCreate.TYPE, "");
+        visitor.accept(RoomPowerLevels.TYPE, "");
+        String sender = Pdus.sender(pdu);
+        if (sender != null) {
+            visitor.accept(RoomMember.TYPE, sender);
+        }
+        String stateKey = Pdus.stateKey(pdu);
+        if (!RoomMember.TYPE.equals(type) || stateKey == null) {
+            return;
+        }
+        EventContent content = Pdus.content(pdu);
+        String membership = Contents.membership(content);
+        if (!stateKey.equals(sender)) {
+            visitor.accept(RoomMember.TYPE, stateKey);
+        }
+        if (RoomMemberContent.JOIN.equals(membership) || RoomMemberContent.INVITE.equals(membership)
+            || RoomMemberContent.KNOCK.equals(membership)) {
+            visitor.accept(RoomJoinRules.TYPE, "");
+        }
+        if (RoomMemberContent.INVITE.equals(membership) && Contents.hasThirdPartyInvite(content)) {
+            String token = Contents.signedField(Contents.thirdPartySigned(content), "token");
+            if (token != null) {
+                visitor.accept(RoomThirdPartyInvite.TYPE, token);
+            }
+        }
+        if (rules.isRestrictedJoin() && RoomMemberContent.JOIN.equals(membership)) {
+            String authorising = Contents.joinAuthorisedVia(content);
+            if (authorising != null) {
+                visitor.accept(RoomMember.TYPE, authorising);
+            }
+        }
+    }
+
+    /**
+     * Remove the cached power levels.
+     */
+    public void clear() {
+        powerLevels.clear();
+    }
+
+    private String checkCreate(PersistedDataUnit pdu, String sender, String roomId, EventContent content, AuthRules rules) {
+        if (!Pdus.prevEvents(pdu).isEmpty()) {
+            return "Create event must not have previous events";
+        }
+        if (!sameDomain(roomId, sender)) {
+            return "Room id and sender must have the same domain";
+        }
+        if (Contents.hasRoomVersion(content) && !AuthRules.isKnown(Contents.roomVersion(content))) {
+            return "Unknown room version";
+        }
+        if (!rules.isCreatorIsSender() && Contents.creator(content) == null) {
+            return "Missing creator";
+        }
+        return null;
+    }
+
+    private String checkMember(PersistedDataUnit pdu, AuthState state, PowerLevels levels, AuthRules rules) {
+        String target = state.stateKey;
+        String membership = Contents.membership(state.content);
+        if (target == null || membership == null) {
+            return "Missing state key or membership";
+        }
+        String sender = state.sender;
+        String senderMembership = state.senderMembership();
+        String targetMembership = state.targetMembership();
+        switch (membership) {
+            case RoomMemberContent.JOIN:
+                return checkJoin(pdu, state, levels, rules, targetMembership);
+            case RoomMemberContent.INVITE:
+                if (Contents.hasThirdPartyInvite(state.content)) {
+                    return checkThirdPartyInvite(state, targetMembership);
+                }
+                if (!RoomMemberContent.JOIN.equals(senderMembership)) {
+                    return "Sender is not joined";
+                }
+                if (RoomMemberContent.JOIN.equals(targetMembership) || RoomMemberContent.BAN.equals(targetMembership)) {
+                    return "Target is joined or banned";
+                }
+                return levels.canInvite(sender) ? null : "Insufficient power level to invite";
+            case RoomMemberContent.LEAVE:
+                if (sender.equals(target)) {
+                    return RoomMemberContent.JOIN.equals(senderMembership) || RoomMemberContent.INVITE.equals(senderMembership)
+                        || rules.isKnock() && RoomMemberContent.KNOCK.equals(senderMembership) ? null : "Sender can't leave";
+                }
+                if (!RoomMemberContent.JOIN.equals(senderMembership)) {
+                    return "Sender is not joined";
+                }
+                if (RoomMemberContent.BAN.equals(targetMembership) && levels.getUserLevel(sender) < levels.getBan()) {
+                    return "Insufficient power level to unban";
+                }
+                return levels.canKick(sender, target) ? null : "Insufficient power level to kick";
+            case RoomMemberContent.BAN:
+                if (!RoomMemberContent.JOIN.equals(senderMembership)) {
+                    return "Sender is not joined";
+                }
+                return levels.canBan(sender, target) ? null : "Insufficient power level to ban";
+            case RoomMemberContent.KNOCK:
+                if (!rules.isKnock()) {
+                    return "Unsupported membership: " + membership;
+                }
+                String joinRule = state.joinRule();
+                if (!KNOCK.equals(joinRule) && !(rules.isKnockRestricted() && KNOCK_RESTRICTED.equals(joinRule))) {
+                    return "Room doesn't allow knocking";
+                }
+                if (!sender.equals(target)) {
+                    return "Sender must be the target";
+                }
+                return RoomMemberContent.BAN.equals(senderMembership) || RoomMemberContent.INVITE.equals(senderMembership)
+                    || RoomMemberContent.JOIN.equals(senderMembership) ? "Sender can't knock" : null;
+            default:
+                return "Unsupported membership: " + membership;
+        }
+    }
+
+    private String checkJoin(PersistedDataUnit pdu, AuthState state, PowerLevels levels, AuthRules rules, String targetMembership) {
+        String sender = state.sender;
+        List<String> prevEvents = Pdus.prevEvents(pdu);
+        if (prevEvents.size() == 1 && prevEvents.get(0).equals(state.createId) && state.stateKey.equals(state.creator())) {
+            return null;
+        }
+        if (!sender.equals(state.stateKey)) {
+            return "Sender must be the target";
+        }
+        if (RoomMemberContent.BAN.equals(targetMembership)) {
+            return "Sender is banned";
+        }
+        boolean member = RoomMemberContent.JOIN.equals(targetMembership) || RoomMemberContent.INVITE.equals(targetMembership);
+        String joinRule = state.joinRule();
+        if (joinRule == null) {
+            return "Room is not public";
+        }
+        switch (joinRule) {
+            case PUBLIC:
+                return null;
+            case INVITE:
+                return member ? null : "Sender is not invited";
+            case KNOCK:
+                return rules.isKnock() && member ? null : "Sender is not invited";
+            case RESTRICTED:
+            case KNOCK_RESTRICTED:
+                if (!rules.isRestrictedJoin() || KNOCK_RESTRICTED.equals(joinRule) && !rules.isKnockRestricted()) {
+                    return "Unsupported join rule: " + joinRule;
+                }
+                if (member) {
+                    return null;
+                }
+                String authorising = state.authorising;
+                if (authorising == null || !RoomMemberContent.JOIN.equals(Contents.membership(Pdus.content(state.authorisingMember)))
+                    || !levels.canInvite(authorising)) {
+                    return "Join is not authorised";
+                }
+                return null;
+            default:
+                return "Unsupported join rule: " + joinRule;
+        }
+    }
+
+    private String checkThirdPartyInvite(AuthState state, String targetMembership) {
+        if (RoomMemberContent.BAN.equals(targetMembership)) {
+            return "Target is banned";
+        }
+        Object signed = Contents.thirdPartySigned(state.content);
+        if (signed == null) {
+            return "Missing signed third party invite";
+        }
+        String mxid = Contents.signedField(signed, "mxid");
+        String token = Contents.signedField(signed, "token");
+        if (mxid == null || token == null) {
+            return "Missing mxid or token";
+        }
+        if (!mxid.equals(state.stateKey)) {
+            return "Third party invite is not for the target";
+        }
+        if (state.thirdPartyInvite == null || !token.equals(Pdus.stateKey(state.thirdPartyInvite))) {
+            return "Missing third party invite";
+        }
+        if (!state.sender.equals(Pdus.sender(state.thirdPartyInvite))) {
+            return "Sender didn't create the third party invite";
+        }
+        byte[] json = CanonicalJson.encode(signed, CanonicalJson.SIGNING_EXCLUDED);
+        List<String> publicKeys = Contents.publicKeys(Pdus.content(state.thirdPartyInvite));
+        try {
+            Signature verifier = Signature.getInstance(KeyCache.JCA_ED25519);
+            for (Map<String, String> serverSignatures : Contents.signatures(signed).values()) {
+                for (String signature : serverSignatures.values()) {
+                    byte[] decoded = KeyCache.decodeBase64(signature);
+                    if (decoded != null && verify(verifier, publicKeys, json, decoded)) {
+                        return null;
+                    }
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            return "Unable to verify the third party invite: " + e.getMessage();
+        }
+        return "Invalid signature of the third party invite";
+    }
+
+    private boolean verify(Signature verifier, List<String> publicKeys, byte[] json, byte[] signature) throws GeneralSecurityException {
+        for (String encodedKey : publicKeys) {
+            PublicKey key = KeyCache.publicKey(encodedKey);
+            if (key != null) {
+                verifier.initVerify(key);
+                verifier.update(json);
+                if (verifier.verify(signature)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String checkPowerLevels(AuthState state, PowerLevels current, AuthRules rules) {
+        PowerLevels levels = Contents.powerLevels(state.content, rules.isIntegerLevels());
+        if (levels == null) {
+            return "Invalid power levels";
+        }
+        if (state.powerLevels == null) {
+            return null;
+        }
+        // the keys which are added, changed or removed are checked, the absent keys are compared as the absent values.
+        long senderLevel = current.getUserLevel(state.sender);
+        for (String key : PowerLevels.LEVELS) {
+            if (!canChange(current.getExplicitLevel(key, ABSENT), levels.getExplicitLevel(key, ABSENT), senderLevel)) {
+                return "Insufficient power level to change the power levels";
+            }
+        }
+        boolean[] denied = new boolean[1];
+        if (rules.isNotifications()) {
+            current.forEachNotification((key, level) -> {
+                if (!canChange(level, levels.getExplicitNotificationLevel(key, ABSENT), senderLevel)) {
+                    denied[0] = true;
+                }
+            });
+            levels.forEachNotification((key, level) -> {
+                if (current.getExplicitNotificationLevel(key, ABSENT) == ABSENT && level > senderLevel) {
+                    denied[0] = true;
+                }
+            });
+            if (denied[0]) {
+                return "Insufficient power level to change the notification levels";
+            }
+        }
+        current.forEachEvent((type, level) -> {
+            if (!canChange(level, levels.getExplicitEventLevel(type, ABSENT), senderLevel)) {
+                denied[0] = true;
+            }
+        });
+        levels.forEachEvent((type, level) -> {
+            if (current.getExplicitEventLevel(type, ABSENT) == ABSENT && level > senderLevel) {
+                denied[0] = true;
+            }
+        });
+        if (denied[0]) {
+            return "Insufficient power level to change the event levels";
+        }
+        current.forEachUser((userId, level) -> {
+            long newLevel = levels.getExplicitUserLevel(userId, ABSENT);
+            if (newLevel != level && (!userId.equals(state.sender) && level >= senderLevel || newLevel > senderLevel)) {
+                denied[0] = true;
+            }
+        });
+        levels.forEachUser((userId, level) -> {
+            if (current.getExplicitUserLevel(userId, ABSENT) == ABSENT && level > senderLevel) {
+                denied[0] = true;
+            }
+        });
+        return denied[0] ? "Insufficient power level to change the user levels" : null;
+    }
+
+    private static boolean canChange(long currentLevel, long newLevel, long senderLevel) {
+        return currentLevel == newLevel || currentLevel <= senderLevel && newLevel <= senderLevel;
+    }
+
+    private PowerLevels powerLevels(AuthState state, AuthRules rules) {
+        if (state.powerLevels == null) {
+            return PowerLevels.initial(state.creator());
+        }
+        return powerLevels(state.powerLevelsId, state.powerLevels, rules);
+    }
+
+    private PowerLevels powerLevels(String eventId, PersistedDataUnit event, AuthRules rules) {
+        PowerLevels levels = powerLevels.get(eventId);
+        if (levels == null) {
+            levels = Contents.powerLevels(Pdus.content(event), rules.isIntegerLevels());
+            if (levels == null) {
+                return null;
+            }
+            if (powerLevels.size() >= maxPowerLevels) {
+                powerLevels.clear();
+            }
+            powerLevels.put(eventId, levels);
+        }
+        return levels;
+    }
+
+    private static boolean sameDomain(String first, String second) {
+        int firstColon = first.indexOf(':');
+        int secondColon = second.indexOf(':');
+        if (firstColon < 0 || secondColon < 0) {
+            return false;
+        }
+        int length = first.length() - firstColon;
+        return length == second.length() - secondColon && first.regionMatches(firstColon, second, secondColon, length);
+    }
+
+    private static String domain(String id) {
+        int colon = id.indexOf(':');
+        return colon < 0 ? null : id.substring(colon + 1);
+    }
+
+    /**
+     * The auth events of the event selected by the type and the state key.
+     */
+    private static final class AuthState {
+
+        private final String type;
+
+        private final String stateKey;
+
+        private final String sender;
+
+        private final EventContent content;
+
+        private final AuthRules rules;
+
+        private final String membership;
+
+        private final String authorising;
+
+        private PersistedDataUnit create;
+
+        private String createId;
+
+        private PersistedDataUnit powerLevels;
+
+        private String powerLevelsId;
+
+        private PersistedDataUnit joinRules;
+
+        private PersistedDataUnit senderMember;
+
+        private PersistedDataUnit targetMember;
+
+        private PersistedDataUnit authorisingMember;
+
+        private PersistedDataUnit thirdPartyInvite;
+
+        AuthState(String type, String stateKey, String sender, EventContent content, AuthRules rules) {
+            this.type = type;
+            this.stateKey = stateKey;
+            this.sender = sender;
+            this.content = content;
+            this.rules = rules;
+            boolean member = RoomMember.TYPE.equals(type);
+            this.membership = member ? Contents.membership(content) : null;
+            this.authorising = member && rules.isRestrictedJoin() && RoomMemberContent.JOIN.equals(membership)
+                ? Contents.joinAuthorisedVia(content) : null;
+        }
+
+        String select(Map<String, ? extends PersistedDataUnit> authEvents) {
+            for (Map.Entry<String, ? extends PersistedDataUnit> entry : authEvents.entrySet()) {
+                PersistedDataUnit authEvent = entry.getValue();
+                String authType = Pdus.type(authEvent);
+                String authStateKey = Pdus.stateKey(authEvent);
+                if (authType == null || authStateKey == null) {
+                    return "Auth event " + entry.getKey() + " is not a state event";
+                }
+                boolean duplicate;
+                switch (authType) {
+                    case RoomCreate.TYPE:
+                        duplicate = create != null;
+                        create = authEvent;
+                        createId = entry.getKey();
+                        break;
+                    case RoomPowerLevels.TYPE:
+                        duplicate = powerLevels != null;
+                        powerLevels = authEvent;
+                        powerLevelsId = entry.getKey();
+                        break;
+                    case RoomJoinRules.TYPE:
+                        if (!RoomMemberContent.JOIN.equals(membership) && !RoomMemberContent.INVITE.equals(membership)
+                            && !RoomMemberContent.KNOCK.equals(membership)) {
+                            return unexpected(entry.getKey());
+                        }
+                        duplicate = joinRules != null;
+                        joinRules = authEvent;
+                        break;
+                    case RoomMember.TYPE:
+                        if (authStateKey.equals(sender)) {
+                            duplicate = senderMember != null;
+                            senderMember = authEvent;
+                        } else if (membership != null && authStateKey.equals(stateKey)) {
+                            duplicate = targetMember != null;
+                            targetMember = authEvent;
+                        } else if (authStateKey.equals(authorising)) {
+                            duplicate = authorisingMember != null;
+                            authorisingMember = authEvent;
+                        } else {
+                            return unexpected(entry.getKey());
+                        }
+                        break;
+                    case RoomThirdPartyInvite.TYPE:
+                        if (!RoomMemberContent.INVITE.equals(membership) || !Contents.hasThirdPartyInvite(content)
+                            || !authStateKey.equals(Contents.signedField(Contents.thirdPartySigned(content), "token"))) {
+                            return unexpected(entry.getKey());
+                        }
+                        duplicate = thirdPartyInvite != null;
+                        thirdPartyInvite = authEvent;
+                        break;
+                    default:
+                        return unexpected(entry.getKey());
+                }
+                if (duplicate) {
+                    return "Duplicate auth event " + authType + " (" + authStateKey + ")";
+                }
+            }
+            if (senderMember != null && sender.equals(stateKey) && membership != null) {
+                targetMember = senderMember;
+            }
+            return create == null ? "Missing create event" : null;
+        }
+
+        String creator() {
+            return rules.isCreatorIsSender() ? Pdus.sender(create) : Contents.creator(Pdus.content(create));
+        }
+
+        String joinRule() {
+            return joinRules != null ? Contents.joinRule(Pdus.content(joinRules)) : null;
+        }
+
+        String senderMembership() {
+            return membership(senderMember);
+        }
+
+        String targetMembership() {
+            return membership(targetMember);
+        }
+
+        private String unexpected(String eventId) {
+            return "Unexpected auth event " + eventId + " for the " + type;
+        }
+
+        private static String membership(PersistedDataUnit member) {
+            String value = member != null ? Contents.membership(Pdus.content(member)) : null;
+            return value != null ? value : RoomMemberContent.LEAVE;
+        }
+    }
+
+    /**
+     * The PDUs of one batch with the futures of the checks.
+     */
+    private final class Batch {
+
+        private final List<PersistedDataUnit> pdus;
+
+        private final Map<String, Integer> indices;
+
+        private final Function<String, String> roomVersions;
+
+        private final CompletableFuture<String>[] futures;
+
+        private final boolean[] visiting;
+
+        @SuppressWarnings("unchecked")
+        Batch(List<PersistedDataUnit> pdus, Map<String, Integer> indices, Function<String, String> roomVersions) {
+            this.pdus = pdus;
+            this.indices = indices;
+            this.roomVersions = roomVersions;
+            this.futures = new CompletableFuture[pdus.size()];
+            this.visiting = new boolean[pdus.size()];
+        }
+
+        CompletableFuture<String> schedule(int index) {
+            if (futures[index] != null) {
+                return futures[index];
+            }
+            if (visiting[index]) {
+                return CompletableFuture.completedFuture("Auth events cycle");
+            }
+            visiting[index] = true;
+            PersistedDataUnit pdu = pdus.get(index);
+            List<String> authIds = Pdus.authEvents(pdu);
+            List<CompletableFuture<String>> dependencies = new ArrayList<>();
+            for (String authId : authIds) {
+                Integer dependency = indices.get(authId);
+                if (dependency != null) {
+                    CompletableFuture<String> future = schedule(dependency);
+                    dependencies.add(future.thenApply(error -> error != null ? "Rejected auth event " + authId : null));
+                }
+            }
+            CompletableFuture<String> future;
+            if (dependencies.isEmpty()) {
+                future = CompletableFuture.supplyAsync(() -> check(pdu, authIds), executor);
+            } else {
+                future = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0])).thenApplyAsync(ignored -> {
+                    for (CompletableFuture<String> dependency : dependencies) {
+                        String error = dependency.join();
+                        if (error != null) {
+                            return error;
+                        }
+                    }
+                    return check(pdu, authIds);
+                }, executor);
+            }
+            futures[index] = future.exceptionally(e -> "Unable to check the event: " + e.getMessage());
+            return futures[index];
+        }
+
+        private String check(PersistedDataUnit pdu, List<String> authIds) {
+            Map<String, PersistedDataUnit> authEvents = new HashMap<>(authIds.size() * 2);
+            PersistedDataUnit create = RoomCreate.TYPE.equals(Pdus.type(pdu)) ? pdu : null;
+            for (String authId : authIds) {
+                Integer index = indices.get(authId);
+                PersistedDataUnit authEvent = index != null ? pdus.get(index) : source.get(authId);
+                if (authEvent == null) {
+                    return "Missing auth event " + authId;
+                }
+                if (RoomCreate.TYPE.equals(Pdus.type(authEvent))) {
+                    create = authEvent;
+                }
+                authEvents.put(authId, authEvent);
+            }
+            String roomId = Pdus.roomId(pdu);
+            String roomVersion = roomId != null ? roomVersions.apply(roomId) : null;
+            if (roomVersion == null && create != null) {
+                roomVersion = roomVersion(create);
+            }
+            if (roomVersion == null) {
+                return "Unknown room version";
+            }
+            AuthRules rules = AuthRules.forVersion(roomVersion);
+            if (rules == null) {
+                return "Unsupported room version: " + roomVersion;
+            }
+            return AuthEngine.this.check(pdu, authEvents, rules);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.auth;
+
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+
+/**
+ * Source of the auth events (usually the event store of the server).
+ */
+@FunctionalInterface
+public interface AuthEventSource {
+
+    /**
+     * Find the event.
+     *
+     * @param eventId the event id.
+     * @return the event or {@code null} if the event is unknown (or was rejected).
+     */
+    PersistedDataUnit get(String eventId);
+}
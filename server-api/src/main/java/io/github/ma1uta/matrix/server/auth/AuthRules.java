@@ -0,0 +1,215 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.auth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The authorization rules of the room version.
+ * <br>
+ * The room versions differ in the small set of the rules so each version is the set of the flags which are checked by the
+ * {@link AuthEngine}. The instances are shared, use {@link #forVersion(String)} to find the rules of the room.
+ */
+public final class AuthRules {
+
+    /**
+     * Room versions 1 and 2: the {@code m.room.aliases} rule and the redaction rule by the event id domain.
+     */
+    public static final AuthRules V1 = new AuthRules("1", true, true, false, false, false, false, false, false);
+
+    /**
+     * Room versions 3, 4 and 5: redactions are checked when they are applied.
+     */
+    public static final AuthRules V3 = new AuthRules("3", true, false, false, false, false, false, false, false);
+
+    /**
+     * Room version 6: the {@code notifications} power levels, no {@code m.room.aliases} rule.
+     */
+    public static final AuthRules V6 = new AuthRules("6", false, false, true, false, false, false, false, false);
+
+    /**
+     * Room version 7: the {@code knock} membership.
+     */
+    public static final AuthRules V7 = new AuthRules("7", false, false, true, true, false, false, false, false);
+
+    /**
+     * Room versions 8 and 9: the {@code restricted} join rule.
+     */
+    public static final AuthRules V8 = new AuthRules("8", false, false, true, true, true, false, false, false);
+
+    /**
+     * Room version 10: the {@code knock_restricted} join rule and the integer-only power levels.
+     */
+    public static final AuthRules V10 = new AuthRules("10", false, false, true, true, true, true, true, false);
+
+    /**
+     * Room version 11: the room creator is the sender of the {@code m.room.create} event.
+     */
+    public static final AuthRules V11 = new AuthRules("11", false, false, true, true, true, true, true, true);
+
+    private static final Map<String, AuthRules> VERSIONS;
+
+    static {
+        Map<String, AuthRules> versions = new HashMap<>();
+        versions.put("1", V1);
+        versions.put("2", V1);
+        versions.put("3", V3);
+        versions.put("4", V3);
+        versions.put("5", V3);
+        versions.put("6", V6);
+        versions.put("7", V7);
+        versions.put("8", V8);
+        versions.put("9", V8);
+        versions.put("10", V10);
+        versions.put("11", V11);
+        VERSIONS = Collections.unmodifiableMap(versions);
+    }
+
+    private final String version;
+
+    private final boolean aliases;
+
+    private final boolean redactionDomain;
+
+    private final boolean notifications;
+
+    private final boolean knock;
+
+    private final boolean restrictedJoin;
+
+    private final boolean knockRestricted;
+
+    private final boolean integerLevels;
+
+    private final boolean creatorIsSender;
+
+    private AuthRules(String version, boolean aliases, boolean redactionDomain, boolean notifications, boolean knock,
+                      boolean restrictedJoin, boolean knockRestricted, boolean integerLevels, boolean creatorIsSender) {
+        this.version = version;
+        this.aliases = aliases;
+        this.redactionDomain = redactionDomain;
+        this.notifications = notifications;
+        this.knock = knock;
+        this.restrictedJoin = restrictedJoin;
+        this.knockRestricted = knockRestricted;
+        this.integerLevels = integerLevels;
+        this.creatorIsSender = creatorIsSender;
+    }
+
+    /**
+     * Find the rules of the room version.
+     *
+     * @param roomVersion the room version ({@code null} means the version 1).
+     * @return the rules or {@code null} if the room version is unknown.
+     */
+    public static AuthRules forVersion(String roomVersion) {
+        return roomVersion == null ? V1 : VERSIONS.get(roomVersion);
+    }
+
+    /**
+     * Check if the room version is known.
+     *
+     * @param roomVersion the room version.
+     * @return {@code true} if the rules of the room version exist.
+     */
+    public static boolean isKnown(String roomVersion) {
+        return VERSIONS.containsKey(roomVersion);
+    }
+
+    /**
+     * The first room version with these rules.
+     *
+     * @return the room version.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Check the {@code m.room.aliases} events (the state key must be the domain of the sender).
+     *
+     * @return {@code true} for the room versions 1-5.
+     */
+    public boolean isAliases() {
+        return aliases;
+    }
+
+    /**
+     * Allow the redactions by the domain of the event id without the redact power level.
+     *
+     * @return {@code true} for the room versions 1-2.
+     */
+    public boolean isRedactionDomain() {
+        return redactionDomain;
+    }
+
+    /**
+     * Check the changes of the {@code notifications} power levels.
+     *
+     * @return {@code true} for the room versions 6 and later.
+     */
+    public boolean isNotifications() {
+        return notifications;
+    }
+
+    /**
+     * Support the {@code knock} membership and join rule.
+     *
+     * @return {@code true} for the room versions 7 and later.
+     */
+    public boolean isKnock() {
+        return knock;
+    }
+
+    /**
+     * Support the {@code restricted} join rule.
+     *
+     * @return {@code true} for the room versions 8 and later.
+     */
+    public boolean isRestrictedJoin() {
+        return restrictedJoin;
+    }
+
+    /**
+     * Support the {@code knock_restricted} join rule.
+     *
+     * @return {@code true} for the room versions 10 and later.
+     */
+    public boolean isKnockRestricted() {
+        return knockRestricted;
+    }
+
+    /**
+     * Reject the power levels with the non-integer values.
+     *
+     * @return {@code true} for the room versions 10 and later.
+     */
+    public boolean isIntegerLevels() {
+        return integerLevels;
+    }
+
+    /**
+     * The creator of the room is the sender of the {@code m.room.create} event instead of the {@code creator} content field.
+     *
+     * @return {@code true} for the room versions 11 and later.
+     */
+    public boolean isCreatorIsSender() {
+        return creatorIsSender;
+    }
+}
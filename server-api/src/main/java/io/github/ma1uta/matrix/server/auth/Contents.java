@@ -0,0 +1,308 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.auth;
+
+import io.github.ma1uta.matrix.common.PowerLevels;
+import io.github.ma1uta.matrix.common.Signed;
+import io.github.ma1uta.matrix.common.UserId;
+import io.github.ma1uta.matrix.event.content.EventContent;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+import io.github.ma1uta.matrix.event.content.RoomCreateContent;
+import io.github.ma1uta.matrix.event.content.RoomJoinRulesContent;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import io.github.ma1uta.matrix.event.content.RoomPowerLevelsContent;
+import io.github.ma1uta.matrix.event.content.RoomThirdPartyInviteContent;
+import io.github.ma1uta.matrix.event.nested.PublicKeys;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Reads the fields which are used by the authorization rules from the typed and the raw (wire) event contents.
+ * <br>
+ * The raw contents are read in place, only the power levels are compiled to the {@link PowerLevels} view (once per the power levels
+ * event).
+ */
+final class Contents {
+
+    /**
+     * The largest integer of the canonical JSON (2^53 - 1).
+     */
+    private static final long MAX_LEVEL = 9_007_199_254_740_991L;
+
+    private Contents() {
+        //singleton
+    }
+
+    static String membership(EventContent content) {
+        if (content instanceof RoomMemberContent) {
+            return ((RoomMemberContent) content).getMembership();
+        }
+        return string(content, "membership");
+    }
+
+    static String joinRule(EventContent content) {
+        if (content instanceof RoomJoinRulesContent) {
+            return ((RoomJoinRulesContent) content).getJoinRule();
+        }
+        return string(content, "join_rule");
+    }
+
+    static String creator(EventContent content) {
+        if (content instanceof RoomCreateContent) {
+            return ((RoomCreateContent) content).getCreator();
+        }
+        return string(content, "creator");
+    }
+
+    static String roomVersion(EventContent content) {
+        if (content instanceof RoomCreateContent) {
+            return ((RoomCreateContent) content).getRoomVersion();
+        }
+        return string(content, "room_version");
+    }
+
+    static boolean hasRoomVersion(EventContent content) {
+        JsonObject json = json(content);
+        return json != null ? json.containsKey("room_version") : roomVersion(content) != null;
+    }
+
+    static boolean isFederated(EventContent content) {
+        if (content instanceof RoomCreateContent) {
+            return !Boolean.FALSE.equals(((RoomCreateContent) content).getFederate());
+        }
+        JsonObject json = json(content);
+        return json == null || json.get("m.federate") != JsonValue.FALSE;
+    }
+
+    static String joinAuthorisedVia(EventContent content) {
+        return string(content, "join_authorised_via_users_server");
+    }
+
+    static boolean hasThirdPartyInvite(EventContent content) {
+        if (content instanceof RoomMemberContent) {
+            return ((RoomMemberContent) content).getThirdPartyInvite() != null;
+        }
+        JsonObject json = json(content);
+        return json != null && json.containsKey("third_party_invite");
+    }
+
+    /**
+     * The {@code third_party_invite.signed} object of the membership.
+     *
+     * @param content the membership content.
+     * @return the {@link Signed} or the {@link JsonObject} or {@code null} if the signed object is missing.
+     */
+    static Object thirdPartySigned(EventContent content) {
+        if (content instanceof RoomMemberContent) {
+            RoomMemberContent member = (RoomMemberContent) content;
+            return member.getThirdPartyInvite() != null ? member.getThirdPartyInvite().getSigned() : null;
+        }
+        JsonObject json = json(content);
+        JsonValue invite = json != null ? json.get("third_party_invite") : null;
+        if (!(invite instanceof JsonObject)) {
+            return null;
+        }
+        JsonValue signed = ((JsonObject) invite).get("signed");
+        return signed instanceof JsonObject ? signed : null;
+    }
+
+    static String signedField(Object signed, String name) {
+        if (signed instanceof Signed) {
+            return "mxid".equals(name) ? ((Signed) signed).getMxid() : ((Signed) signed).getToken();
+        }
+        return signed instanceof JsonObject ? string((JsonObject) signed, name) : null;
+    }
+
+    static Map<String, Map<String, String>> signatures(Object signed) {
+        if (signed instanceof Signed) {
+            Map<String, Map<String, String>> signatures = ((Signed) signed).getSignatures();
+            return signatures != null ? signatures : Collections.emptyMap();
+        }
+        JsonValue value = signed instanceof JsonObject ? ((JsonObject) signed).get("signatures") : null;
+        if (!(value instanceof JsonObject)) {
+            return Collections.emptyMap();
+        }
+        Map<String, Map<String, String>> signatures = new HashMap<>();
+        for (Map.Entry<String, JsonValue> server : ((JsonObject) value).entrySet()) {
+            if (server.getValue() instanceof JsonObject) {
+                Map<String, String> keys = new HashMap<>();
+                for (Map.Entry<String, JsonValue> key : ((JsonObject) server.getValue()).entrySet()) {
+                    if (key.getValue() instanceof JsonString) {
+                        keys.put(key.getKey(), ((JsonString) key.getValue()).getString());
+                    }
+                }
+                signatures.put(server.getKey(), keys);
+            }
+        }
+        return signatures;
+    }
+
+    static List<String> publicKeys(EventContent content) {
+        List<String> keys = new ArrayList<>();
+        if (content instanceof RoomThirdPartyInviteContent) {
+            RoomThirdPartyInviteContent invite = (RoomThirdPartyInviteContent) content;
+            if (invite.getPublicKey() != null) {
+                keys.add(invite.getPublicKey());
+            }
+            if (invite.getPublicKeys() != null) {
+                for (PublicKeys publicKeys : invite.getPublicKeys()) {
+                    if (publicKeys != null && publicKeys.getPublicKey() != null) {
+                        keys.add(publicKeys.getPublicKey());
+                    }
+                }
+            }
+            return keys;
+        }
+        JsonObject json = json(content);
+        if (json == null) {
+            return keys;
+        }
+        String publicKey = string(json, "public_key");
+        if (publicKey != null) {
+            keys.add(publicKey);
+        }
+        JsonValue publicKeys = json.get("public_keys");
+        if (publicKeys instanceof JsonArray) {
+            for (JsonValue item : (JsonArray) publicKeys) {
+                String key = item instanceof JsonObject ? string((JsonObject) item, "public_key") : null;
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Read, validate and compile the power levels.
+     * <br>
+     * The levels are read as {@code long} values in the canonical JSON integer range, only the keys present in the content are
+     * the explicit levels of the compiled view.
+     *
+     * @param content      the power levels content.
+     * @param integersOnly reject the levels encoded as strings.
+     * @return the power levels or {@code null} if the content is invalid.
+     */
+    static PowerLevels powerLevels(EventContent content, boolean integersOnly) {
+        if (content instanceof RoomPowerLevelsContent) {
+            RoomPowerLevelsContent powerLevels = (RoomPowerLevelsContent) content;
+            return validUsers(powerLevels.getUsers()) ? PowerLevels.compile(powerLevels) : null;
+        }
+        JsonObject json = json(content);
+        if (json == null) {
+            return content == null ? PowerLevels.builder().build() : null;
+        }
+        PowerLevels.Builder powerLevels = PowerLevels.builder();
+        try {
+            for (String key : PowerLevels.LEVELS) {
+                JsonValue value = json.get(key);
+                if (value != null) {
+                    powerLevels.level(key, level(value, integersOnly));
+                }
+            }
+            levels(json.get("events"), integersOnly, false, powerLevels::event);
+            levels(json.get("users"), integersOnly, true, powerLevels::user);
+            levels(json.get("notifications"), integersOnly, false, powerLevels::notification);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return powerLevels.build();
+    }
+
+    static JsonObject json(EventContent content) {
+        if (content instanceof RawEventContent && ((RawEventContent) content).getContent() instanceof JsonObject) {
+            return (JsonObject) ((RawEventContent) content).getContent();
+        }
+        return null;
+    }
+
+    private static String string(EventContent content, String name) {
+        JsonObject json = json(content);
+        return json != null ? string(json, name) : null;
+    }
+
+    private static String string(JsonObject json, String name) {
+        JsonValue value = json.get(name);
+        return value instanceof JsonString ? ((JsonString) value).getString() : null;
+    }
+
+    private static boolean validUsers(Map<String, Long> users) {
+        if (users != null) {
+            for (String userId : users.keySet()) {
+                if (!isUserId(userId)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUserId(String userId) {
+        try {
+            UserId.of(userId);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void levels(JsonValue value, boolean integersOnly, boolean users, BiConsumer<String, Long> consumer) {
+        if (value == null || value == JsonValue.NULL) {
+            return;
+        }
+        if (!(value instanceof JsonObject)) {
+            throw new IllegalArgumentException("Levels must be an object");
+        }
+        for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+            if (users && !isUserId(entry.getKey())) {
+                throw new IllegalArgumentException("Invalid user id: " + entry.getKey());
+            }
+            consumer.accept(entry.getKey(), level(entry.getValue(), integersOnly));
+        }
+    }
+
+    private static long level(JsonValue value, boolean integersOnly) {
+        BigDecimal level;
+        if (value instanceof JsonNumber) {
+            level = ((JsonNumber) value).bigDecimalValue();
+        } else if (!integersOnly && value instanceof JsonString) {
+            level = new BigDecimal(((JsonString) value).getString().trim());
+        } else {
+            throw new IllegalArgumentException("Level must be an integer");
+        }
+        try {
+            long longLevel = level.longValueExact();
+            if (longLevel > MAX_LEVEL || longLevel < -MAX_LEVEL) {
+                throw new IllegalArgumentException("Level is out of the range");
+            }
+            return longLevel;
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Level must be an integer", e);
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package io.github.ma1uta.matrix.server.model.federation;
 
+import io.github.ma1uta.matrix.common.RawJsonHolder;
+
 /**
  * These events are broadcast from one homeserver to any others that have joined the same room (identified by Room ID).
  * They are persisted in long-term storage and record the history of messages and state for a room.
@@ -23,5 +25,5 @@ package io.github.ma1uta.matrix.server.model.federation;
  * Like email, it is the responsibility of the originating server of a PDU to deliver that event to its recipient servers.
  * However PDUs are signed using the originating server's private key so that it is possible to deliver them through third-party servers.
  */
-public interface PersistedDataUnit {
+public interface PersistedDataUnit extends RawJsonHolder {
 }
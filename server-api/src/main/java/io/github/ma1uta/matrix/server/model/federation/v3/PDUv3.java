@@ -16,15 +16,19 @@
 
 package io.github.ma1uta.matrix.server.model.federation.v3;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.github.ma1uta.matrix.common.RawJson;
 import io.github.ma1uta.matrix.event.Unsigned;
 import io.github.ma1uta.matrix.event.content.EventContent;
 import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
 import io.swagger.v3.oas.annotations.media.Schema;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.json.bind.annotation.JsonbProperty;
+import javax.json.bind.annotation.JsonbTransient;
 
 /**
  * These events are broadcast from one homeserver to any others that have joined the same room (identified by Room ID).
@@ -136,6 +140,8 @@ public class PDUv3 implements PersistedDataUnit {
 
     /**
      * Required. Hashes of the PDU, following the algorithm specified in Signing Events.
+     * <br>
+     * The changes of the map don't drop the original json, use the setter to change the hashes of the received PDU.
      */
     @Schema(
         description = "Hashes of the PDU, following the algorithm specified in Signing Events.",
@@ -145,6 +151,9 @@ public class PDUv3 implements PersistedDataUnit {
 
     /**
      * Required. Signatures of the redacted PDU, following the algorithm specified in Signing Events.
+     * <br>
+     * The changes of the map don't drop the original json, use {@link #addSignature(String, String, String)} or the setter to
+     * sign the received PDU.
      */
     @Schema(
         description = "Signatures of the redacted PDU, following the algorithm specified in Signing Events.",
@@ -168,6 +177,11 @@ public class PDUv3 implements PersistedDataUnit {
     )
     private Unsigned unsigned;
 
+    /**
+     * The original json of the PDU.
+     */
+    private transient RawJson rawJson;
+
     @JsonProperty("room_id")
     public String getRoomId() {
         return roomId;
@@ -175,6 +189,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setRoomId(String roomId) {
         this.roomId = roomId;
+        markModified();
     }
 
     public String getSender() {
@@ -183,6 +198,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setSender(String sender) {
         this.sender = sender;
+        markModified();
     }
 
     public String getOrigin() {
@@ -191,6 +207,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setOrigin(String origin) {
         this.origin = origin;
+        markModified();
     }
 
     @JsonProperty("origin_server_ts")
@@ -200,6 +217,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setOriginServerTs(Long originServerTs) {
         this.originServerTs = originServerTs;
+        markModified();
     }
 
     public String getType() {
@@ -208,6 +226,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setType(String type) {
         this.type = type;
+        markModified();
     }
 
     @JsonProperty("state_key")
@@ -217,6 +236,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setStateKey(String stateKey) {
         this.stateKey = stateKey;
+        markModified();
     }
 
     public EventContent getContent() {
@@ -225,6 +245,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setContent(EventContent content) {
         this.content = content;
+        markModified();
     }
 
     @JsonProperty("prev_events")
@@ -234,6 +255,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setPrevEvents(List<Map<String, Map<String, String>>> prevEvents) {
         this.prevEvents = prevEvents;
+        markModified();
     }
 
     public Long getDepth() {
@@ -242,6 +264,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setDepth(Long depth) {
         this.depth = depth;
+        markModified();
     }
 
     @JsonProperty("auth_events")
@@ -251,6 +274,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setAuthEvents(List<Map<String, Map<String, String>>> authEvents) {
         this.authEvents = authEvents;
+        markModified();
     }
 
     public Map<String, String> getHashes() {
@@ -259,6 +283,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setHashes(Map<String, String> hashes) {
         this.hashes = hashes;
+        markModified();
     }
 
     public Map<String, Map<String, String>> getSignatures() {
@@ -267,6 +292,22 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setSignatures(Map<String, Map<String, String>> signatures) {
         this.signatures = signatures;
+        markModified();
+    }
+
+    /**
+     * Add the signature of the server and drop the original json.
+     *
+     * @param serverName the server name.
+     * @param keyId      the key id.
+     * @param signature  the unpadded base64-encoded signature.
+     */
+    public void addSignature(String serverName, String keyId, String signature) {
+        if (signatures == null) {
+            signatures = new LinkedHashMap<>();
+        }
+        signatures.computeIfAbsent(serverName, server -> new LinkedHashMap<>()).put(keyId, signature);
+        markModified();
     }
 
     public String getRedacts() {
@@ -275,6 +316,7 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setRedacts(String redacts) {
         this.redacts = redacts;
+        markModified();
     }
 
     public Unsigned getUnsigned() {
@@ -283,5 +325,29 @@ public class PDUv3 implements PersistedDataUnit {
 
     public void setUnsigned(Unsigned unsigned) {
         this.unsigned = unsigned;
+        if (unsigned != null) {
+            unsigned.attachTo(this);
+        }
+        markModified();
+    }
+
+    @JsonIgnore
+    @JsonbTransient
+    @Override
+    public RawJson getRawJson() {
+        return rawJson;
+    }
+
+    @JsonbTransient
+    @Override
+    public void setRawJson(RawJson rawJson) {
+        this.rawJson = rawJson;
+    }
+
+    /**
+     * Drop the original json after the modification.
+     */
+    protected void markModified() {
+        this.rawJson = null;
     }
 }
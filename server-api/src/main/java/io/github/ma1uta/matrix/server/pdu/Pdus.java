@@ -0,0 +1,297 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.pdu;
+
+import io.github.ma1uta.matrix.event.content.EventContent;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.v1.PDUv1;
+import io.github.ma1uta.matrix.server.model.federation.v3.PDUv3;
+import io.github.ma1uta.matrix.server.signature.SignatureVerifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.json.JsonString;
+
+/**
+ * Access to the fields of the PDUs of all formats.
+ * <br>
+ * The v1 PDUs (room versions 1 and 2) reference the events as {@code [event_id, hashes]} pairs, the v3 PDUs reference the events
+ * by the event ids only. The methods return {@code null} (or the empty list) for the unsupported PDU formats.
+ */
+public class Pdus {
+
+    protected Pdus() {
+        //singleton
+    }
+
+    /**
+     * The event id of the PDU.
+     * <br>
+     * The event id of the v3 PDU is the reference hash so callers should compute it once per PDU.
+     *
+     * @param pdu the PDU.
+     * @return the event id.
+     */
+    public static String eventId(PersistedDataUnit pdu) {
+        return SignatureVerifier.eventId(pdu);
+    }
+
+    /**
+     * The event id of the PDU in the room of the specified version.
+     * <br>
+     * The room version 3 uses the standard base64 event ids, the later versions use the url-safe base64.
+     *
+     * @param pdu         the PDU.
+     * @param roomVersion the room version.
+     * @return the event id.
+     */
+    public static String eventId(PersistedDataUnit pdu, String roomVersion) {
+        return SignatureVerifier.eventId(pdu, roomVersion);
+    }
+
+    /**
+     * The room id of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the room id.
+     */
+    public static String roomId(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getRoomId();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getRoomId();
+        }
+        return null;
+    }
+
+    /**
+     * The sender of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the sender.
+     */
+    public static String sender(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getSender();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getSender();
+        }
+        return null;
+    }
+
+    /**
+     * The origin server of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the origin.
+     */
+    public static String origin(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getOrigin();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getOrigin();
+        }
+        return null;
+    }
+
+    /**
+     * The event type of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the event type.
+     */
+    public static String type(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getType();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getType();
+        }
+        return null;
+    }
+
+    /**
+     * The state key of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the state key or {@code null} for the non-state events.
+     */
+    public static String stateKey(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getStateKey();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getStateKey();
+        }
+        return null;
+    }
+
+    /**
+     * The content of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the content.
+     */
+    public static EventContent content(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getContent();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getContent();
+        }
+        return null;
+    }
+
+    /**
+     * The event id of the redacted event.
+     *
+     * @param pdu the PDU.
+     * @return the redacted event id.
+     */
+    public static String redacts(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getRedacts();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getRedacts();
+        }
+        return null;
+    }
+
+    /**
+     * The content hashes of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the hashes by the algorithm or {@code null}.
+     */
+    public static Map<String, String> hashes(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getHashes();
+        }
+        if (pdu instanceof PDUv3) {
+            return ((PDUv3) pdu).getHashes();
+        }
+        return null;
+    }
+
+    /**
+     * The depth of the PDU.
+     *
+     * @param pdu the PDU.
+     * @return the depth or {@code 0} if the depth is missing.
+     */
+    public static long depth(PersistedDataUnit pdu) {
+        Long depth = null;
+        if (pdu instanceof PDUv1) {
+            depth = ((PDUv1) pdu).getDepth();
+        } else if (pdu instanceof PDUv3) {
+            depth = ((PDUv3) pdu).getDepth();
+        }
+        return depth != null ? depth : 0L;
+    }
+
+    /**
+     * The timestamp of the PDU on the origin server.
+     *
+     * @param pdu the PDU.
+     * @return the timestamp or {@code 0} if the timestamp is missing.
+     */
+    public static long originServerTs(PersistedDataUnit pdu) {
+        Long ts = null;
+        if (pdu instanceof PDUv1) {
+            ts = ((PDUv1) pdu).getOriginServerTs();
+        } else if (pdu instanceof PDUv3) {
+            ts = ((PDUv3) pdu).getOriginServerTs();
+        }
+        return ts != null ? ts : 0L;
+    }
+
+    /**
+     * The event ids of the auth events.
+     *
+     * @param pdu the PDU.
+     * @return the event ids.
+     */
+    public static List<String> authEvents(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return references(((PDUv1) pdu).getAuthEvents());
+        }
+        if (pdu instanceof PDUv3) {
+            return references(((PDUv3) pdu).getAuthEvents());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * The event ids of the previous events.
+     *
+     * @param pdu the PDU.
+     * @return the event ids.
+     */
+    public static List<String> prevEvents(PersistedDataUnit pdu) {
+        if (pdu instanceof PDUv1) {
+            return references(((PDUv1) pdu).getPrevEvents());
+        }
+        if (pdu instanceof PDUv3) {
+            return references(((PDUv3) pdu).getPrevEvents());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Extract the event ids from the event references.
+     * <br>
+     * The reference is the event id (v3), the {@code [event_id, hashes]} pair (v1) or the map keyed by the event id.
+     *
+     * @param references the event references.
+     * @return the event ids.
+     */
+    public static List<String> references(List<?> references) {
+        if (references == null || references.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> ids = new ArrayList<>(references.size());
+        for (Object reference : references) {
+            if (reference instanceof Map) {
+                for (Object key : ((Map<?, ?>) reference).keySet()) {
+                    addReference(ids, key);
+                }
+            } else if (reference instanceof List) {
+                List<?> pair = (List<?>) reference;
+                if (!pair.isEmpty()) {
+                    addReference(ids, pair.get(0));
+                }
+            } else {
+                addReference(ids, reference);
+            }
+        }
+        return ids;
+    }
+
+    private static void addReference(List<String> ids, Object id) {
+        if (id instanceof String) {
+            ids.add((String) id);
+        } else if (id instanceof JsonString) {
+            ids.add(((JsonString) id).getString());
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.signature;
+
+import io.github.ma1uta.matrix.json.CanonicalJson;
+import io.github.ma1uta.matrix.json.CanonicalJsonOutput;
+import io.github.ma1uta.matrix.server.model.key.KeyResponse;
+import io.github.ma1uta.matrix.server.model.key.OldVerifyKey;
+import io.github.ma1uta.matrix.server.model.key.VerifyKey;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the decoded server public keys.
+ * <br>
+ * Missing and expired keys are fetched from the {@link KeySource}. The fetched {@link KeyResponse} must be self-signed with one
+ * of its keys, otherwise it is ignored. The keys which the server doesn't have are remembered for the configured time, so the
+ * events signed with the unknown keys don't trigger the fetch on each verification. The full cache evicts the expired entries
+ * and then the single entries, never the whole cache at once.
+ * <br>
+ * The cache requires the ed25519 support of the JVM (Java 15 or later), the constructor fails without it.
+ */
+public class KeyCache {
+
+    /**
+     * The ed25519 algorithm name (the key id prefix).
+     */
+    public static final String ED25519 = "ed25519";
+
+    /**
+     * The JCA name of the ed25519 algorithm.
+     */
+    public static final String JCA_ED25519 = "Ed25519";
+
+    /**
+     * The default maximum count of the cached keys.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    /**
+     * The default time in milliseconds to remember the keys which weren't found.
+     */
+    public static final long DEFAULT_MISSING_TTL = 300_000L;
+
+    /**
+     * X.509 (SubjectPublicKeyInfo) prefix of the raw 32-byte ed25519 public key.
+     */
+    private static final byte[] X509_PREFIX = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final String KEY_PREFIX = ED25519 + ":";
+
+    private final KeySource source;
+
+    private final int maxSize;
+
+    private final long missingTtl;
+
+    private final Map<String, CachedKey> keys = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<>();
+
+    public KeyCache(KeySource source) {
+        this(source, DEFAULT_MAX_SIZE);
+    }
+
+    public KeyCache(KeySource source, int maxSize) {
+        this(source, maxSize, DEFAULT_MISSING_TTL);
+    }
+
+    public KeyCache(KeySource source, int maxSize, long missingTtl) {
+        this.source = source;
+        this.maxSize = maxSize;
+        this.missingTtl = missingTtl;
+        keyFactory();
+    }
+
+    /**
+     * Find the key which is valid at the specified time.
+     *
+     * @param serverName the server name.
+     * @param keyId      the key id.
+     * @param ts         the time (the event origin_server_ts) in milliseconds.
+     * @return the key or {@code null} if the key is unknown or is not valid.
+     */
+    public PublicKey key(String serverName, String keyId, long ts) {
+        if (!keyId.startsWith(KEY_PREFIX)) {
+            return null;
+        }
+        String cacheKey = cacheKey(serverName, keyId);
+        CachedKey cached = keys.get(cacheKey);
+        if ((cached == null || !cached.isValid(ts)) && !isMissing(cacheKey)) {
+            KeyResponse response = source.fetch(serverName, keyId);
+            if (response != null) {
+                put(serverName, response);
+            }
+            cached = keys.get(cacheKey);
+            if (cached == null) {
+                if (missing.size() >= maxSize) {
+                    evictMissing();
+                }
+                missing.put(cacheKey, System.currentTimeMillis() + missingTtl);
+            }
+        }
+        return cached != null && cached.isValid(ts) ? cached.getKey() : null;
+    }
+
+    /**
+     * Verify and add the server keys.
+     *
+     * @param serverName the server name.
+     * @param response   the server keys.
+     * @return {@code true} if the keys are self-signed and were added, else {@code false}.
+     */
+    public boolean put(String serverName, KeyResponse response) {
+        if (!serverName.equals(response.getServerName()) || response.getVerifyKeys() == null) {
+            return false;
+        }
+        long validUntil = response.getValidUntilTs() != null ? response.getValidUntilTs() : Long.MAX_VALUE;
+        Map<String, CachedKey> decoded = new ConcurrentHashMap<>();
+        for (Map.Entry<String, VerifyKey> entry : response.getVerifyKeys().entrySet()) {
+            PublicKey key = decode(entry.getKey(), entry.getValue());
+            if (key != null) {
+                decoded.put(entry.getKey(), new CachedKey(key, validUntil, false));
+            }
+        }
+        if (!isSelfSigned(serverName, response, decoded)) {
+            return false;
+        }
+        if (response.getOldVerifyKeys() != null) {
+            for (Map.Entry<String, OldVerifyKey> entry : response.getOldVerifyKeys().entrySet()) {
+                PublicKey key = decode(entry.getKey(), entry.getValue());
+                Long expired = entry.getValue().getExpiredTs();
+                if (key != null && expired != null) {
+                    decoded.put(entry.getKey(), new CachedKey(key, expired, true));
+                }
+            }
+        }
+        if (keys.size() + decoded.size() > maxSize) {
+            evict(decoded.size());
+        }
+        for (Map.Entry<String, CachedKey> entry : decoded.entrySet()) {
+            String cacheKey = cacheKey(serverName, entry.getKey());
+            keys.put(cacheKey, entry.getValue());
+            missing.remove(cacheKey);
+        }
+        return true;
+    }
+
+    /**
+     * Remove all keys of the server.
+     *
+     * @param serverName the server name.
+     */
+    public void invalidate(String serverName) {
+        String prefix = serverName + " ";
+        keys.keySet().removeIf(key -> key.startsWith(prefix));
+        missing.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Verify the ed25519 signature.
+     *
+     * @param key       the public key.
+     * @param data      the signed data.
+     * @param length    the length of the signed data.
+     * @param signature the unpadded base64-encoded signature.
+     * @return {@code true} if the signature is valid, else {@code false}.
+     * @throws GeneralSecurityException if the JVM doesn't support ed25519.
+     */
+    public boolean verify(PublicKey key, byte[] data, int length, String signature) throws GeneralSecurityException {
+        byte[] decoded = decodeBase64(signature);
+        if (decoded == null) {
+            return false;
+        }
+        Signature verifier = signatures.get();
+        if (verifier == null) {
+            verifier = Signature.getInstance(JCA_ED25519);
+            signatures.set(verifier);
+        }
+        verifier.initVerify(key);
+        verifier.update(data, 0, length);
+        return verifier.verify(decoded);
+    }
+
+    /**
+     * Decode the unpadded (standard or url-safe) base64 string.
+     *
+     * @param value the encoded value.
+     * @return the decoded value or {@code null} if the value is malformed.
+     */
+    public static byte[] decodeBase64(String value) {
+        try {
+            return value.indexOf('-') >= 0 || value.indexOf('_') >= 0
+                ? Base64.getUrlDecoder().decode(value)
+                : Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode the unpadded base64-encoded ed25519 public key.
+     *
+     * @param value the encoded key.
+     * @return the public key or {@code null} if the key is malformed.
+     * @throws IllegalStateException if the JVM doesn't support ed25519.
+     */
+    public static PublicKey publicKey(String value) {
+        byte[] raw = value != null ? decodeBase64(value) : null;
+        if (raw == null || raw.length != KEY_LENGTH) {
+            return null;
+        }
+        byte[] encoded = new byte[X509_PREFIX.length + KEY_LENGTH];
+        System.arraycopy(X509_PREFIX, 0, encoded, 0, X509_PREFIX.length);
+        System.arraycopy(raw, 0, encoded, X509_PREFIX.length, KEY_LENGTH);
+        KeyFactory factory = keyFactory();
+        try {
+            return factory.generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            // the malformed key of the remote server
+            return null;
+        }
+    }
+
+    private static KeyFactory keyFactory() {
+        try {
+            return KeyFactory.getInstance(JCA_ED25519);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("The JVM doesn't support " + JCA_ED25519, e);
+        }
+    }
+
+    private boolean isMissing(String cacheKey) {
+        Long expires = missing.get(cacheKey);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            missing.remove(cacheKey, expires);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isSelfSigned(String serverName, KeyResponse response, Map<String, CachedKey> decoded) {
+        Map<String, String> serverSignatures = response.getSignatures() != null ? response.getSignatures().get(serverName) : null;
+        if (serverSignatures == null) {
+            return false;
+        }
+        CanonicalJsonOutput out = new CanonicalJsonOutput().exclude(CanonicalJson.SIGNING_EXCLUDED);
+        CanonicalJson.write(response, out);
+        byte[] json = out.toByteArray();
+        for (Map.Entry<String, String> signature : serverSignatures.entrySet()) {
+            CachedKey key = decoded.get(signature.getKey());
+            try {
+                if (key != null && verify(key.getKey(), json, json.length, signature.getValue())) {
+                    return true;
+                }
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private PublicKey decode(String keyId, VerifyKey verifyKey) {
+        if (!keyId.startsWith(KEY_PREFIX) || verifyKey == null || verifyKey.getKey() == null) {
+            return null;
+        }
+        return publicKey(verifyKey.getKey());
+    }
+
+    private void evict(int required) {
+        long now = System.currentTimeMillis();
+        keys.values().removeIf(key -> !key.isOld() && !key.isValid(now));
+        Iterator<CachedKey> iterator = keys.values().iterator();
+        while (keys.size() + required > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private void evictMissing() {
+        long now = System.currentTimeMillis();
+        missing.values().removeIf(expires -> expires < now);
+        Iterator<Long> iterator = missing.values().iterator();
+        while (missing.size() >= maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static String cacheKey(String serverName, String keyId) {
+        return serverName + " " + keyId;
+    }
+
+    /**
+     * Decoded key with the validity period.
+     */
+    private static class CachedKey {
+
+        private final PublicKey key;
+
+        private final long validUntil;
+
+        private final boolean old;
+
+        CachedKey(PublicKey key, long validUntil, boolean old) {
+            this.key = key;
+            this.validUntil = validUntil;
+            this.old = old;
+        }
+
+        PublicKey getKey() {
+            return key;
+        }
+
+        boolean isOld() {
+            return old;
+        }
+
+        /**
+         * The current key is valid until the valid_until_ts (it is refetched after this time), the old key is valid for the
+         * events which were sent before the key has been expired.
+         *
+         * @param ts the event time.
+         * @return {@code true} if the key is valid, else {@code false}.
+         */
+        boolean isValid(long ts) {
+            return old ? ts <= validUntil : System.currentTimeMillis() <= validUntil;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.signature;
+
+import io.github.ma1uta.matrix.server.model.key.KeyResponse;
+
+/**
+ * Source of the server keys (the server itself or the notary server).
+ */
+@FunctionalInterface
+public interface KeySource {
+
+    /**
+     * Fetch the keys of the server.
+     *
+     * @param serverName the server name.
+     * @param keyId      the required key id.
+     * @return the server keys or {@code null} if the keys are not available.
+     */
+    KeyResponse fetch(String serverName, String keyId);
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.signature;
+
+import io.github.ma1uta.matrix.event.RoomAliases;
+import io.github.ma1uta.matrix.event.RoomCreate;
+import io.github.ma1uta.matrix.event.RoomHistoryVisibility;
+import io.github.ma1uta.matrix.event.RoomJoinRules;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.RoomPowerLevels;
+import io.github.ma1uta.matrix.json.CanonicalJson;
+import io.github.ma1uta.matrix.json.CanonicalJsonOutput;
+import io.github.ma1uta.matrix.json.Passthrough;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Redaction algorithm (https://matrix.org/docs/spec/rooms/v1#redactions).
+ * <br>
+ * The event is redacted while it is written so the redacted copy of the event is never built.
+ */
+public class Redaction {
+
+    /**
+     * Top-level keys which are kept by the redaction.
+     */
+    public static final Set<String> KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "event_id", "type", "room_id", "sender", "state_key", "content", "hashes", "signatures", "depth", "prev_events", "prev_state",
+        "auth_events", "origin", "origin_server_ts", "membership")));
+
+    private static final Map<String, Set<String>> CONTENT_KEYS;
+
+    static {
+        Map<String, Set<String>> contentKeys = new HashMap<>();
+        contentKeys.put(RoomMember.TYPE, keys("membership"));
+        contentKeys.put(RoomCreate.TYPE, keys("creator"));
+        contentKeys.put(RoomJoinRules.TYPE, keys("join_rule"));
+        contentKeys.put(RoomPowerLevels.TYPE,
+            keys("ban", "events", "events_default", "kick", "redact", "state_default", "users", "users_default"));
+        contentKeys.put(RoomAliases.TYPE, keys("aliases"));
+        contentKeys.put(RoomHistoryVisibility.TYPE, keys("history_visibility"));
+        CONTENT_KEYS = Collections.unmodifiableMap(contentKeys);
+    }
+
+    protected Redaction() {
+        //singleton
+    }
+
+    private static Set<String> keys(String... keys) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(keys)));
+    }
+
+    /**
+     * Content keys of the event type which are kept by the redaction.
+     *
+     * @param type the event type.
+     * @return the content keys.
+     */
+    public static Set<String> contentKeys(String type) {
+        return CONTENT_KEYS.getOrDefault(type, Collections.emptySet());
+    }
+
+    /**
+     * Configure the writer to redact the event of the specified type.
+     *
+     * @param out  the writer.
+     * @param type the event type.
+     * @return the writer.
+     */
+    public static CanonicalJsonOutput redact(CanonicalJsonOutput out, String type) {
+        return out.retain(KEYS, contentKeys(type));
+    }
+
+    /**
+     * Build the redacted copy of the PDU (for example, to authorize the PDU with the wrong content hash).
+     * <br>
+     * The copy keeps the numbers of the PDU of any room version, the numbers are checked by the hashes and the signatures.
+     *
+     * @param pdu  the PDU.
+     * @param type the event type.
+     * @return the redacted copy which keeps the json of the redacted event.
+     */
+    public static PersistedDataUnit redacted(PersistedDataUnit pdu, String type) {
+        CanonicalJsonOutput out = redact(new CanonicalJsonOutput().integersOnly(false), type);
+        CanonicalJson.write(pdu, out);
+        return Passthrough.read(out.toByteArray(), pdu.getClass());
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.signature;
+
+import io.github.ma1uta.matrix.common.EventId;
+import io.github.ma1uta.matrix.common.Id;
+import io.github.ma1uta.matrix.common.MatrixId;
+import io.github.ma1uta.matrix.common.UserId;
+import io.github.ma1uta.matrix.json.CanonicalJson;
+import io.github.ma1uta.matrix.json.CanonicalJsonOutput;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResult;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResults;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.Transaction;
+import io.github.ma1uta.matrix.server.model.federation.v1.PDUv1;
+import io.github.ma1uta.matrix.server.model.federation.v3.PDUv3;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Verifier of the ed25519 signatures (https://matrix.org/docs/spec/appendices#signing-json).
+ * <br>
+ * The signed json is written in the canonical form without the {@code signatures} and {@code unsigned} keys directly into the
+ * thread-local buffer. The received objects are written from their original json, so the keys which are unknown to the model
+ * are verified too. PDUs are redacted before verification. The transaction PDUs are verified in parallel on the executor,
+ * the keys of the all signing servers are fetched before the verification.
+ * <br>
+ * The canonical json of the room versions 6 and later allows only the integers, the PDUs of the room versions 1-5 may contain
+ * the other numbers, so the PDUs are verified with the room version when it is known.
+ */
+public class SignatureVerifier {
+
+    /**
+     * The room version which uses the standard base64 event ids.
+     */
+    public static final String ROOM_V3 = "3";
+
+    /**
+     * The room versions which allow the non-integer numbers in the events.
+     */
+    public static final Set<String> ANY_NUMBER_VERSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "1", "2", ROOM_V3, "4", "5"
+    )));
+
+    private final KeyCache keys;
+
+    private final Executor executor;
+
+    private final ThreadLocal<CanonicalJsonOutput> outputs = ThreadLocal.withInitial(
+        () -> new CanonicalJsonOutput().exclude(CanonicalJson.SIGNING_EXCLUDED));
+
+    public SignatureVerifier(KeySource source) {
+        this(new KeyCache(source), ForkJoinPool.commonPool());
+    }
+
+    public SignatureVerifier(KeyCache keys, Executor executor) {
+        this.keys = keys;
+        this.executor = executor;
+    }
+
+    public KeyCache getKeys() {
+        return keys;
+    }
+
+    /**
+     * Verify the signed json object (for example {@link io.github.ma1uta.matrix.common.Signed}).
+     *
+     * @param value      the signed object.
+     * @param signatures the signatures of the object.
+     * @param serverName the server which must sign the object.
+     * @return {@code true} if the object has a valid signature of the server, else {@code false}.
+     */
+    public boolean verify(Object value, Map<String, Map<String, String>> signatures, String serverName) {
+        return verify(value, signatures, serverName, System.currentTimeMillis()) == null;
+    }
+
+    /**
+     * Verify the signatures of the PDU.
+     * <br>
+     * The PDU must be signed by the sender's server (and by the server of the event id for the v1 events).
+     *
+     * @param pdu the PDU.
+     * @return {@code null} if the signatures are valid or the error.
+     */
+    public String verify(PersistedDataUnit pdu) {
+        return verify(pdu, null);
+    }
+
+    /**
+     * Verify the signatures of the PDU of the room version.
+     *
+     * @param pdu         the PDU.
+     * @param roomVersion the room version or {@code null} if it is unknown (the canonical json of the room version 6 and later).
+     * @return {@code null} if the signatures are valid or the error.
+     */
+    public String verify(PersistedDataUnit pdu, String roomVersion) {
+        Pdu fields = Pdu.of(pdu);
+        if (fields == null) {
+            return "Unsupported PDU: " + pdu;
+        }
+        Set<String> servers = fields.getServers();
+        if (servers.isEmpty()) {
+            return "Missing or invalid sender";
+        }
+        CanonicalJsonOutput out = Redaction.redact(outputs.get(), fields.getType());
+        try {
+            CanonicalJson.write(pdu, out.integersOnly(isIntegersOnly(pdu, roomVersion)));
+        } catch (RuntimeException e) {
+            return "Unable to encode the PDU: " + e.getMessage();
+        } finally {
+            out.retain(null, null).integersOnly(true);
+        }
+        long ts = fields.getOriginServerTs() != null ? fields.getOriginServerTs() : System.currentTimeMillis();
+        for (String server : servers) {
+            String error = verify(out, fields.getSignatures(), server, ts);
+            if (error != null) {
+                return error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verify the PDUs of the transaction.
+     *
+     * @param transaction the transaction.
+     * @return the results keyed by event id.
+     */
+    public PduProcessingResults verify(Transaction transaction) {
+        return verify(transaction.getPdus() != null ? transaction.getPdus() : Collections.emptyList());
+    }
+
+    /**
+     * Verify the PDUs of the transaction.
+     *
+     * @param transaction  the transaction.
+     * @param roomVersions the room versions by the room id (select the format of the event ids).
+     * @return the results keyed by event id.
+     */
+    public PduProcessingResults verify(Transaction transaction, Function<String, String> roomVersions) {
+        return verify(transaction.getPdus() != null ? transaction.getPdus() : Collections.emptyList(), roomVersions);
+    }
+
+    /**
+     * Verify the PDUs in parallel.
+     *
+     * @param pdus the PDUs.
+     * @return the results keyed by event id.
+     */
+    public PduProcessingResults verify(List<PersistedDataUnit> pdus) {
+        return verify(pdus, roomId -> null);
+    }
+
+    /**
+     * Verify the PDUs in parallel.
+     *
+     * @param pdus         the PDUs.
+     * @param roomVersions the room versions by the room id (select the format of the event ids).
+     * @return the results keyed by event id.
+     */
+    public PduProcessingResults verify(List<PersistedDataUnit> pdus, Function<String, String> roomVersions) {
+        prefetch(pdus);
+        List<CompletableFuture<String>> futures = new ArrayList<>(pdus.size());
+        String[] versions = new String[pdus.size()];
+        for (int i = 0; i < pdus.size(); i++) {
+            PersistedDataUnit pdu = pdus.get(i);
+            String roomId = pdu instanceof PDUv3 ? ((PDUv3) pdu).getRoomId() : null;
+            String roomVersion = roomId != null ? roomVersions.apply(roomId) : null;
+            versions[i] = roomVersion;
+            futures.add(CompletableFuture.supplyAsync(() -> verify(pdu, roomVersion), executor));
+        }
+        Map<String, PduProcessingResult> results = new LinkedHashMap<>();
+        for (int i = 0; i < pdus.size(); i++) {
+            PduProcessingResult result = new PduProcessingResult();
+            result.setError(futures.get(i).join());
+            results.put(eventId(pdus.get(i), versions[i]), result);
+        }
+        PduProcessingResults processingResults = new PduProcessingResults();
+        processingResults.setPdus(results);
+        return processingResults;
+    }
+
+    private String verify(Object value, Map<String, Map<String, String>> signatures, String serverName, long ts) {
+        CanonicalJsonOutput out = outputs.get();
+        CanonicalJson.write(value, out);
+        return verify(out, signatures, serverName, ts);
+    }
+
+    private String verify(CanonicalJsonOutput out, Map<String, Map<String, String>> signatures, String serverName, long ts) {
+        Map<String, String> serverSignatures = signatures != null ? signatures.get(serverName) : null;
+        if (serverSignatures == null || serverSignatures.isEmpty()) {
+            return "Missing signature of the " + serverName;
+        }
+        byte[] json = out.toByteArray();
+        for (Map.Entry<String, String> signature : serverSignatures.entrySet()) {
+            PublicKey key = keys.key(serverName, signature.getKey(), ts);
+            if (key == null) {
+                continue;
+            }
+            try {
+                if (keys.verify(key, json, json.length, signature.getValue())) {
+                    return null;
+                }
+            } catch (GeneralSecurityException e) {
+                return "Unable to verify the signature: " + e.getMessage();
+            }
+        }
+        return "Invalid signature of the " + serverName;
+    }
+
+    private void prefetch(List<PersistedDataUnit> pdus) {
+        Map<String, Long> required = new LinkedHashMap<>();
+        for (PersistedDataUnit pdu : pdus) {
+            Pdu fields = Pdu.of(pdu);
+            if (fields == null || fields.getSignatures() == null) {
+                continue;
+            }
+            long ts = fields.getOriginServerTs() != null ? fields.getOriginServerTs() : System.currentTimeMillis();
+            for (String server : fields.getServers()) {
+                Map<String, String> serverSignatures = fields.getSignatures().get(server);
+                if (serverSignatures != null) {
+                    for (String keyId : serverSignatures.keySet()) {
+                        required.putIfAbsent(server + " " + keyId, ts);
+                    }
+                }
+            }
+        }
+        List<CompletableFuture<PublicKey>> futures = new ArrayList<>(required.size());
+        for (Map.Entry<String, Long> entry : required.entrySet()) {
+            int separator = entry.getKey().indexOf(' ');
+            String server = entry.getKey().substring(0, separator);
+            String keyId = entry.getKey().substring(separator + 1);
+            futures.add(CompletableFuture.supplyAsync(() -> keys.key(server, keyId, entry.getValue()), executor));
+        }
+        for (CompletableFuture<PublicKey> future : futures) {
+            future.exceptionally(e -> null).join();
+        }
+    }
+
+    /**
+     * Event id of the PDU of the room version 4 or later.
+     *
+     * @param pdu the PDU.
+     * @return the event id.
+     * @see #eventId(PersistedDataUnit, String)
+     */
+    public static String eventId(PersistedDataUnit pdu) {
+        return eventId(pdu, null);
+    }
+
+    /**
+     * Event id of the PDU.
+     * <br>
+     * The v1 PDUs (room versions 1 and 2) contain the event id. The event id of the v3 PDUs is the reference hash encoded with
+     * the standard base64 in the room version 3 and with the url-safe base64 in the room versions 4 and later.
+     *
+     * @param pdu         the PDU.
+     * @param roomVersion the room version ({@code null} means the url-safe event id of the room version 4 and later).
+     * @return the event id.
+     */
+    public static String eventId(PersistedDataUnit pdu, String roomVersion) {
+        if (pdu instanceof PDUv1) {
+            return ((PDUv1) pdu).getEventId();
+        }
+        if (pdu instanceof PDUv3) {
+            Base64.Encoder encoder = ROOM_V3.equals(roomVersion) ? Base64.getEncoder() : Base64.getUrlEncoder();
+            byte[] hash = referenceHash(pdu, ((PDUv3) pdu).getType(), isIntegersOnly(pdu, roomVersion));
+            return Id.Sigil.EVENT + encoder.withoutPadding().encodeToString(hash);
+        }
+        return null;
+    }
+
+    /**
+     * Reference hash of the event (SHA-256 of the redacted event without the {@code signatures} and {@code unsigned}).
+     *
+     * @param pdu  the PDU.
+     * @param type the event type.
+     * @return the hash.
+     */
+    public static byte[] referenceHash(PersistedDataUnit pdu, String type) {
+        return referenceHash(pdu, type, true);
+    }
+
+    /**
+     * Reference hash of the event (SHA-256 of the redacted event without the {@code signatures} and {@code unsigned}).
+     *
+     * @param pdu          the PDU.
+     * @param type         the event type.
+     * @param integersOnly {@code false} for the PDU of the room versions 1-5 which may contain the non-integer numbers.
+     * @return the hash.
+     */
+    public static byte[] referenceHash(PersistedDataUnit pdu, String type, boolean integersOnly) {
+        MessageDigest digest = CanonicalJson.sha256();
+        CanonicalJsonOutput out = new CanonicalJsonOutput(CanonicalJson.digestStream(digest))
+            .exclude(CanonicalJson.SIGNING_EXCLUDED)
+            .integersOnly(integersOnly);
+        CanonicalJson.write(pdu, Redaction.redact(out, type));
+        out.flush();
+        return digest.digest();
+    }
+
+    /**
+     * Whether the canonical json of the PDU allows only the integers.
+     *
+     * @param pdu         the PDU.
+     * @param roomVersion the room version or {@code null} if it is unknown.
+     * @return {@code false} for the v1 PDUs and the room versions 1-5, else {@code true}.
+     */
+    public static boolean isIntegersOnly(PersistedDataUnit pdu, String roomVersion) {
+        return !(pdu instanceof PDUv1) && !ANY_NUMBER_VERSIONS.contains(roomVersion);
+    }
+
+    /**
+     * The PDU fields which are required for the verification.
+     */
+    private static final class Pdu {
+
+        private final String type;
+
+        private final Long originServerTs;
+
+        private final Map<String, Map<String, String>> signatures;
+
+        private final Set<String> servers = new LinkedHashSet<>();
+
+        private Pdu(String type, String sender, String eventId, Long originServerTs, Map<String, Map<String, String>> signatures) {
+            this.type = type;
+            this.originServerTs = originServerTs;
+            this.signatures = signatures;
+            try {
+                if (sender != null) {
+                    addServer(UserId.of(sender));
+                }
+                if (eventId != null) {
+                    addServer(EventId.of(eventId));
+                }
+            } catch (IllegalArgumentException e) {
+                servers.clear();
+            }
+        }
+
+        private void addServer(MatrixId id) {
+            if (id.getServerName() != null) {
+                servers.add(id.getServerName().getValue());
+            }
+        }
+
+        static Pdu of(PersistedDataUnit pdu) {
+            if (pdu instanceof PDUv1) {
+                PDUv1 v1 = (PDUv1) pdu;
+                return new Pdu(v1.getType(), v1.getSender(), v1.getEventId(), v1.getOriginServerTs(), v1.getSignatures());
+            }
+            if (pdu instanceof PDUv3) {
+                PDUv3 v3 = (PDUv3) pdu;
+                return new Pdu(v3.getType(), v3.getSender(), null, v3.getOriginServerTs(), v3.getSignatures());
+            }
+            return null;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        Long getOriginServerTs() {
+            return originServerTs;
+        }
+
+        Map<String, Map<String, String>> getSignatures() {
+            return signatures;
+        }
+
+        Set<String> getServers() {
+            return servers;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.state;
+
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.pdu.Pdus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The auth chain index with the chain cover labels.
+ * <br>
+ * Each state event gets the label {@code (chain id, sequence number)}. The event extends the chain of its auth event with the same
+ * {@code (type, state_key)} if that auth event is the last event of the chain, otherwise the event starts the new chain, so the
+ * earlier events of the chain are the auth ancestors of the later events. The other auth events are the links
+ * {@code (chain, sequence) -> (chain, sequence)}, the links which are implied by the already known links are not stored.
+ * <br>
+ * The auth chain of the events is the maximum reachable sequence number of each chain: the reachability is the walk over the
+ * links of the reached chains, so the queries cost the count of the reached chains and links, not the count of the events.
+ * <br>
+ * The auth events must be added before the events which reference them (see {@link #rebuild(Iterable)}). The index is thread-safe.
+ */
+public class ChainIndex {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final IdTable events = new IdTable();
+
+    private final IdTable keys = new IdTable();
+
+    private int[] chainOf = new int[INITIAL_CAPACITY];
+
+    private int[] sequenceOf = new int[INITIAL_CAPACITY];
+
+    private Chain[] chains = new Chain[INITIAL_CAPACITY];
+
+    private int chainCount;
+
+    private final Reach reach = new Reach();
+
+    /**
+     * Rebuild the index from the PDUs.
+     * <br>
+     * The PDUs may be in any order, the non-state PDUs and the PDUs whose auth events are missing are skipped.
+     *
+     * @param pdus the PDUs.
+     * @return the index.
+     */
+    public static ChainIndex rebuild(Iterable<? extends PersistedDataUnit> pdus) {
+        ChainIndex index = new ChainIndex();
+        List<PersistedDataUnit> pending = new ArrayList<>();
+        for (PersistedDataUnit pdu : pdus) {
+            if (Pdus.stateKey(pdu) != null) {
+                pending.add(pdu);
+            }
+        }
+        // the auth events have the lower depth so the most of the events are added in the first pass.
+        pending.sort(Comparator.comparingLong(Pdus::depth));
+        List<String> pendingIds = new ArrayList<>(pending.size());
+        for (PersistedDataUnit pdu : pending) {
+            pendingIds.add(Pdus.eventId(pdu));
+        }
+        boolean progress = true;
+        while (progress && !pending.isEmpty()) {
+            progress = false;
+            int remaining = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                if (index.add(pendingIds.get(i), pending.get(i))) {
+                    progress = true;
+                } else {
+                    pending.set(remaining, pending.get(i));
+                    pendingIds.set(remaining, pendingIds.get(i));
+                    remaining++;
+                }
+            }
+            pending.subList(remaining, pending.size()).clear();
+            pendingIds.subList(remaining, pendingIds.size()).clear();
+        }
+        return index;
+    }
+
+    /**
+     * Read the index.
+     *
+     * @param in the input.
+     * @return the index.
+     * @throws IOException if the input is broken or has an unsupported format.
+     */
+    public static ChainIndex read(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported format: " + version);
+        }
+        ChainIndex index = new ChainIndex();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Chain chain = index.newChain(index.keys.add(in.readUTF()));
+            int length = in.readInt();
+            for (int sequence = 1; sequence <= length; sequence++) {
+                index.append(chain, in.readUTF());
+            }
+            int links = in.readInt();
+            for (int link = 0; link < links; link++) {
+                chain.addLink(in.readInt(), in.readInt(), in.readInt());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write the index.
+     *
+     * @param out the output.
+     * @throws IOException if the output fails.
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(chainCount);
+        for (int i = 0; i < chainCount; i++) {
+            Chain chain = chains[i];
+            out.writeUTF(keys.id(chain.key));
+            out.writeInt(chain.length);
+            for (int sequence = 0; sequence < chain.length; sequence++) {
+                out.writeUTF(events.id(chain.events[sequence]));
+            }
+            out.writeInt(chain.linkCount);
+            for (int link = 0; link < chain.linkCount; link++) {
+                out.writeInt(chain.linkFrom[link]);
+                out.writeInt(chain.linkChain[link]);
+                out.writeInt(chain.linkSequence[link]);
+            }
+        }
+    }
+
+    /**
+     * Add the PDU.
+     *
+     * @param eventId the event id.
+     * @param pdu     the PDU.
+     * @return {@code true} if the event is indexed, {@code false} if the event is not a state event or its auth events are unknown.
+     */
+    public boolean add(String eventId, PersistedDataUnit pdu) {
+        return add(eventId, Pdus.type(pdu), Pdus.stateKey(pdu), Pdus.authEvents(pdu));
+    }
+
+    /**
+     * Add the event.
+     *
+     * @param eventId    the event id.
+     * @param type       the event type.
+     * @param stateKey   the state key.
+     * @param authEvents the auth event ids.
+     * @return {@code true} if the event is indexed, {@code false} if the event is not a state event or its auth events are unknown.
+     */
+    public synchronized boolean add(String eventId, String type, String stateKey, List<String> authEvents) {
+        if (eventId == null || type == null || stateKey == null) {
+            return false;
+        }
+        if (events.get(eventId) >= 0) {
+            return true;
+        }
+        int[] auth = new int[authEvents.size()];
+        for (int i = 0; i < auth.length; i++) {
+            auth[i] = events.get(authEvents.get(i));
+            if (auth[i] < 0) {
+                return false;
+            }
+        }
+        int key = keys.add(type + '\u0000' + stateKey);
+        int predecessor = -1;
+        for (int authEvent : auth) {
+            Chain chain = chains[chainOf[authEvent]];
+            if (chain.key == key && chain.length == sequenceOf[authEvent]) {
+                predecessor = authEvent;
+                break;
+            }
+        }
+        Chain chain = predecessor >= 0 ? chains[chainOf[predecessor]] : newChain(key);
+        int event = append(chain, eventId);
+        int sequence = sequenceOf[event];
+
+        reach.reset();
+        if (predecessor >= 0) {
+            reach.visit(chain.id, sequence - 1, sequence - 1);
+            reach.drain();
+        }
+        // the later indexed auth events usually cover the earlier ones (the member event covers the create event).
+        Arrays.sort(auth);
+        for (int i = auth.length - 1; i >= 0; i--) {
+            int authEvent = auth[i];
+            int authChain = chainOf[authEvent];
+            int authSequence = sequenceOf[authEvent];
+            if (authEvent != predecessor && reach.included(authChain) < authSequence) {
+                chain.addLink(sequence, authChain, authSequence);
+                reach.visit(authChain, authSequence, authSequence);
+                reach.drain();
+            }
+        }
+        reach.reset();
+        return true;
+    }
+
+    /**
+     * Check if the event is indexed.
+     *
+     * @param eventId the event id.
+     * @return {@code true} if the event is indexed.
+     */
+    public synchronized boolean contains(String eventId) {
+        return events.get(eventId) >= 0;
+    }
+
+    /**
+     * The chain id of the event.
+     *
+     * @param eventId the event id.
+     * @return the chain id or {@code -1} if the event is not indexed.
+     */
+    public synchronized int getChainId(String eventId) {
+        int event = events.get(eventId);
+        return event >= 0 ? chainOf[event] : -1;
+    }
+
+    /**
+     * The sequence number of the event in its chain.
+     *
+     * @param eventId the event id.
+     * @return the sequence number (starting with 1) or {@code -1} if the event is not indexed.
+     */
+    public synchronized int getSequence(String eventId) {
+        int event = events.get(eventId);
+        return event >= 0 ? sequenceOf[event] : -1;
+    }
+
+    /**
+     * Check if the event is the auth ancestor of the other event.
+     *
+     * @param ancestor   the ancestor event id.
+     * @param descendant the descendant event id.
+     * @return {@code true} if the ancestor is in the auth chain of the descendant.
+     */
+    public synchronized boolean isAncestor(String ancestor, String descendant) {
+        int ancestorEvent = events.get(ancestor);
+        int descendantEvent = events.get(descendant);
+        if (ancestorEvent < 0 || descendantEvent < 0) {
+            return false;
+        }
+        reach.reset();
+        int sequence = sequenceOf[descendantEvent];
+        reach.visit(chainOf[descendantEvent], sequence - 1, sequence);
+        reach.drain();
+        boolean result = reach.included(chainOf[ancestorEvent]) >= sequenceOf[ancestorEvent];
+        reach.reset();
+        return result;
+    }
+
+    /**
+     * The auth chain of the events.
+     *
+     * @param eventIds  the event ids.
+     * @param inclusive include the events themselves.
+     * @return the event ids of the auth chain or {@code null} if any event is not indexed.
+     */
+    public synchronized List<String> authChain(Collection<String> eventIds, boolean inclusive) {
+        reach.reset();
+        if (!reach.visitAll(eventIds, inclusive)) {
+            reach.reset();
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < reach.touchedCount; i++) {
+            int chain = reach.touched[i];
+            int[] chainEvents = chains[chain].events;
+            for (int sequence = 1; sequence <= reach.included(chain); sequence++) {
+                result.add(events.id(chainEvents[sequence - 1]));
+            }
+        }
+        reach.reset();
+        return result;
+    }
+
+    /**
+     * The auth chain difference of the event sets: the union of the auth chains without their intersection.
+     * <br>
+     * The auth chain of the set includes the events of the set (the events of the state sets are the conflicted events of the
+     * state resolution anyway). The events of all sets are walked once, then each set walks only its own events.
+     *
+     * @param eventSets the event sets.
+     * @return the event ids of the auth chain difference or {@code null} if any event is not indexed.
+     */
+    public synchronized List<String> authChainDifference(List<? extends Collection<String>> eventSets) {
+        int setCount = eventSets.size();
+        int[] setCounts = new int[events.size()];
+        int[] lastSet = new int[events.size()];
+        for (int i = 0; i < setCount; i++) {
+            for (String eventId : eventSets.get(i)) {
+                int event = events.get(eventId);
+                if (event < 0) {
+                    return null;
+                }
+                if (lastSet[event] != i + 1) {
+                    lastSet[event] = i + 1;
+                    setCounts[event]++;
+                }
+            }
+        }
+        reach.reset();
+        for (int event = 0; event < setCounts.length; event++) {
+            if (setCounts[event] == setCount) {
+                reach.visit(chainOf[event], sequenceOf[event], sequenceOf[event]);
+            }
+        }
+        reach.drain();
+        int[] common = new int[chainCount];
+        for (int i = 0; i < reach.touchedCount; i++) {
+            common[reach.touched[i]] = reach.included(reach.touched[i]);
+        }
+
+        int[] min = new int[chainCount];
+        int[] max = new int[chainCount];
+        int[] chainCounts = new int[chainCount];
+        int[] touched = new int[0];
+        int touchedCount = 0;
+        for (Collection<String> eventSet : eventSets) {
+            reach.reset();
+            for (String eventId : eventSet) {
+                int event = events.get(eventId);
+                if (setCounts[event] != setCount) {
+                    reach.visit(chainOf[event], sequenceOf[event], sequenceOf[event]);
+                }
+            }
+            reach.drain();
+            for (int i = 0; i < reach.touchedCount; i++) {
+                int chain = reach.touched[i];
+                int included = reach.included(chain);
+                if (chainCounts[chain] == 0) {
+                    if (touchedCount == touched.length) {
+                        touched = Arrays.copyOf(touched, Math.max(INITIAL_CAPACITY, touchedCount * 2));
+                    }
+                    touched[touchedCount++] = chain;
+                    min[chain] = included;
+                } else {
+                    min[chain] = Math.min(min[chain], included);
+                }
+                max[chain] = Math.max(max[chain], included);
+                chainCounts[chain]++;
+            }
+        }
+        reach.reset();
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < touchedCount; i++) {
+            int chain = touched[i];
+            int from = Math.max(common[chain], chainCounts[chain] == setCount ? min[chain] : 0);
+            int to = Math.max(common[chain], max[chain]);
+            int[] chainEvents = chains[chain].events;
+            for (int sequence = from + 1; sequence <= to; sequence++) {
+                result.add(events.id(chainEvents[sequence - 1]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The count of the indexed events.
+     *
+     * @return the count of the events.
+     */
+    public synchronized int size() {
+        return events.size();
+    }
+
+    /**
+     * The count of the chains.
+     *
+     * @return the count of the chains.
+     */
+    public synchronized int getChainCount() {
+        return chainCount;
+    }
+
+    private Chain newChain(int key) {
+        if (chainCount == chains.length) {
+            chains = Arrays.copyOf(chains, chainCount * 2);
+        }
+        Chain chain = new Chain(chainCount, key);
+        chains[chainCount++] = chain;
+        return chain;
+    }
+
+    private int append(Chain chain, String eventId) {
+        int event = events.add(eventId);
+        if (event == chainOf.length) {
+            chainOf = Arrays.copyOf(chainOf, event * 2);
+            sequenceOf = Arrays.copyOf(sequenceOf, event * 2);
+        }
+        chainOf[event] = chain.id;
+        sequenceOf[event] = chain.append(event);
+        return event;
+    }
+
+    /**
+     * The chain of the events with the same {@code (type, state_key)}.
+     */
+    private static final class Chain {
+
+        private final int id;
+
+        private final int key;
+
+        private int[] events = new int[1];
+
+        private int length;
+
+        private int[] linkFrom = new int[0];
+
+        private int[] linkChain = new int[0];
+
+        private int[] linkSequence = new int[0];
+
+        private int linkCount;
+
+        Chain(int id, int key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        int append(int event) {
+            if (length == events.length) {
+                events = Arrays.copyOf(events, length * 2);
+            }
+            events[length++] = event;
+            return length;
+        }
+
+        /**
+         * Add the link, the links are added in the order of the source sequence number.
+         */
+        void addLink(int from, int toChain, int toSequence) {
+            if (linkCount == linkFrom.length) {
+                int capacity = Math.max(2, linkCount * 2);
+                linkFrom = Arrays.copyOf(linkFrom, capacity);
+                linkChain = Arrays.copyOf(linkChain, capacity);
+                linkSequence = Arrays.copyOf(linkSequence, capacity);
+            }
+            linkFrom[linkCount] = from;
+            linkChain[linkCount] = toChain;
+            linkSequence[linkCount] = toSequence;
+            linkCount++;
+        }
+    }
+
+    /**
+     * The reusable state of the reachability walk: the maximum included sequence number and the maximum scanned sequence number
+     * (the links from the events up to this number are followed) of the reached chains.
+     */
+    private final class Reach {
+
+        private int[] included = new int[INITIAL_CAPACITY];
+
+        private int[] scanned = new int[INITIAL_CAPACITY];
+
+        private int[] processed = new int[INITIAL_CAPACITY];
+
+        private boolean[] reached = new boolean[INITIAL_CAPACITY];
+
+        private boolean[] queued = new boolean[INITIAL_CAPACITY];
+
+        private int[] touched = new int[INITIAL_CAPACITY];
+
+        private int touchedCount;
+
+        private int[] queue = new int[INITIAL_CAPACITY];
+
+        private int queueSize;
+
+        int included(int chain) {
+            return chain < reached.length && reached[chain] ? included[chain] : 0;
+        }
+
+        boolean visitAll(Collection<String> eventIds, boolean inclusive) {
+            for (String eventId : eventIds) {
+                int event = events.get(eventId);
+                if (event < 0) {
+                    return false;
+                }
+                int sequence = sequenceOf[event];
+                visit(chainOf[event], inclusive ? sequence : sequence - 1, sequence);
+            }
+            drain();
+            return true;
+        }
+
+        void visit(int chain, int includedSequence, int scannedSequence) {
+            if (chain >= reached.length) {
+                grow();
+            }
+            if (!reached[chain]) {
+                reached[chain] = true;
+                included[chain] = 0;
+                scanned[chain] = 0;
+                processed[chain] = 0;
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = chain;
+            }
+            if (includedSequence > included[chain]) {
+                included[chain] = includedSequence;
+            }
+            if (scannedSequence > scanned[chain]) {
+                scanned[chain] = scannedSequence;
+                if (!queued[chain]) {
+                    queued[chain] = true;
+                    if (queueSize == queue.length) {
+                        queue = Arrays.copyOf(queue, queueSize * 2);
+                    }
+                    queue[queueSize++] = chain;
+                }
+            }
+        }
+
+        void drain() {
+            while (queueSize > 0) {
+                int chainId = queue[--queueSize];
+                queued[chainId] = false;
+                Chain chain = chains[chainId];
+                int link = processed[chainId];
+                while (link < chain.linkCount && chain.linkFrom[link] <= scanned[chainId]) {
+                    visit(chain.linkChain[link], chain.linkSequence[link], chain.linkSequence[link]);
+                    link++;
+                }
+                processed[chainId] = link;
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                reached[touched[i]] = false;
+            }
+            touchedCount = 0;
+        }
+
+        private void grow() {
+            int capacity = Math.max(chainCount, reached.length * 2);
+            included = Arrays.copyOf(included, capacity);
+            scanned = Arrays.copyOf(scanned, capacity);
+            processed = Arrays.copyOf(processed, capacity);
+            reached = Arrays.copyOf(reached, capacity);
+            queued = Arrays.copyOf(queued, capacity);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.state;
+
+import io.github.ma1uta.matrix.server.auth.AuthEventSource;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.pdu.Pdus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The {@code prev_events} graph of the room.
+ * <br>
+ * The graph keeps only the event ids, the depths and the {@code prev_events} as the int adjacency lists, and the events ordered
+ * by the depth (the buckets of the events with the same depth in the sorted map, so the backfilled events which are shallower
+ * than the known ones are inserted in the logarithmic time). The walkers for the {@code /backfill} and
+ * {@code /get_missing_events} requests choose the page by the graph alone, so the event bodies are loaded (see
+ * {@link #events(List, AuthEventSource)}) only for the events of the response and the backfill requests don't evict the hot
+ * events from the caches.
+ * <br>
+ * The prev events which are not added yet are kept as the gaps, the walkers don't pass through them.
+ * <br>
+ * The graph is thread-safe, the walks run concurrently and block only the additions.
+ */
+public class EventDag {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int[] NO_EDGES = new int[0];
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final IdTable events = new IdTable();
+
+    private final BitSet known = new BitSet();
+
+    private final BitSet referenced = new BitSet();
+
+    private long[] depths = new long[INITIAL_CAPACITY];
+
+    private int[][] prev = new int[INITIAL_CAPACITY][];
+
+    private final NavigableMap<Long, DepthBucket> byDepth = new TreeMap<>();
+
+    private int knownCount;
+
+    /**
+     * Add the event.
+     *
+     * @param eventId the event id.
+     * @param pdu     the event.
+     * @return {@code true} if the event was added, {@code false} if the event was added before.
+     */
+    public boolean add(String eventId, PersistedDataUnit pdu) {
+        return add(eventId, Pdus.depth(pdu), Pdus.prevEvents(pdu));
+    }
+
+    /**
+     * Add the event.
+     *
+     * @param eventId    the event id.
+     * @param depth      the depth of the event.
+     * @param prevEvents the prev events.
+     * @return {@code true} if the event was added, {@code false} if the event was added before.
+     */
+    public boolean add(String eventId, long depth, List<String> prevEvents) {
+        lock.writeLock().lock();
+        try {
+            int event = node(eventId);
+            if (known.get(event)) {
+                return false;
+            }
+            int[] edges = prevEvents.isEmpty() ? NO_EDGES : new int[prevEvents.size()];
+            int count = 0;
+            for (String prevId : prevEvents) {
+                int prevEvent = node(prevId);
+                if (prevEvent != event && indexOf(edges, count, prevEvent) < 0) {
+                    edges[count++] = prevEvent;
+                    referenced.set(prevEvent);
+                }
+            }
+            prev[event] = count == edges.length ? edges : Arrays.copyOf(edges, count);
+            depths[event] = depth;
+            known.set(event);
+            byDepth.computeIfAbsent(depth, key -> new DepthBucket()).add(event);
+            knownCount++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Check the event.
+     *
+     * @param eventId the event id.
+     * @return {@code true} if the event was added.
+     */
+    public boolean contains(String eventId) {
+        lock.readLock().lock();
+        try {
+            int event = events.get(eventId);
+            return event >= 0 && known.get(event);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The depth of the event.
+     *
+     * @param eventId the event id.
+     * @return the depth or {@code -1} if the event is unknown.
+     */
+    public long getDepth(String eventId) {
+        lock.readLock().lock();
+        try {
+            int event = events.get(eventId);
+            return event >= 0 && known.get(event) ? depths[event] : -1L;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The count of the added events.
+     *
+     * @return the count of the events.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return knownCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The forward extremities: the events which are not prev events of any added event.
+     *
+     * @return the event ids ordered by the depth (the deepest first).
+     */
+    public List<String> extremities() {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            for (DepthBucket bucket : byDepth.descendingMap().values()) {
+                for (int i = bucket.size - 1; i >= 0; i--) {
+                    if (!referenced.get(bucket.events[i])) {
+                        result.add(events.id(bucket.events[i]));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The gaps: the prev events which are not added.
+     *
+     * @return the event ids.
+     */
+    public List<String> gaps() {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            for (int event = referenced.nextSetBit(0); event >= 0; event = referenced.nextSetBit(event + 1)) {
+                if (!known.get(event)) {
+                    result.add(events.id(event));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The events within the depth range.
+     *
+     * @param minDepth the minimal depth (inclusive).
+     * @param maxDepth the maximal depth (inclusive).
+     * @param limit    the maximal count of the events.
+     * @return the event ids ordered by the depth (the shallowest first).
+     */
+    public List<String> range(long minDepth, long maxDepth, int limit) {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            if (minDepth > maxDepth) {
+                return result;
+            }
+            for (Map.Entry<Long, DepthBucket> entry : byDepth.subMap(minDepth, true, maxDepth, true).entrySet()) {
+                DepthBucket bucket = entry.getValue();
+                for (int i = 0; i < bucket.size && result.size() < limit; i++) {
+                    result.add(events.id(bucket.events[i]));
+                }
+                if (result.size() >= limit) {
+                    break;
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Select the events for the {@code /backfill} request: the given events and the events which preceded them.
+     * <br>
+     * The graph is walked by the {@code prev_events} from the deepest event, so the page is the most recent history.
+     *
+     * @param eventIds the event ids to backfill from.
+     * @param limit    the maximal count of the events including the given events.
+     * @return the event ids ordered by the depth (the deepest first).
+     */
+    public List<String> backfill(Collection<String> eventIds, int limit) {
+        lock.readLock().lock();
+        try {
+            BitSet visited = new BitSet(events.size());
+            IntHeap heap = new IntHeap(eventIds.size(), this::deepestFirst);
+            for (String eventId : eventIds) {
+                int event = events.get(eventId);
+                if (event >= 0 && known.get(event) && !visited.get(event)) {
+                    visited.set(event);
+                    heap.push(event);
+                }
+            }
+            List<String> result = new ArrayList<>(Math.min(Math.max(limit, 0), knownCount));
+            while (!heap.isEmpty() && result.size() < limit) {
+                int event = heap.pop();
+                result.add(events.id(event));
+                pushPrev(event, heap, visited, Long.MIN_VALUE);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Select the events for the {@code /get_missing_events} request: the prev events of the latest events excluding the earliest
+     * events and their ancestors.
+     *
+     * @param earliestEvents the events the requester already has.
+     * @param latestEvents   the events to retrieve the previous events for.
+     * @param limit          the maximal count of the events.
+     * @param minDepth       the minimal depth of the events.
+     * @return the event ids ordered by the depth (the shallowest first).
+     */
+    public List<String> missingEvents(Collection<String> earliestEvents, Collection<String> latestEvents, int limit, long minDepth) {
+        lock.readLock().lock();
+        try {
+            BitSet visited = new BitSet(events.size());
+            for (String eventId : earliestEvents) {
+                int event = events.get(eventId);
+                if (event >= 0) {
+                    visited.set(event);
+                }
+            }
+            IntHeap heap = new IntHeap(latestEvents.size(), this::deepestFirst);
+            for (String eventId : latestEvents) {
+                int event = events.get(eventId);
+                if (event >= 0 && known.get(event)) {
+                    pushPrev(event, heap, visited, minDepth);
+                }
+            }
+            List<String> result = new ArrayList<>(Math.min(Math.max(limit, 0), knownCount));
+            while (!heap.isEmpty() && result.size() < limit) {
+                int event = heap.pop();
+                result.add(events.id(event));
+                pushPrev(event, heap, visited, minDepth);
+            }
+            Collections.reverse(result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load the events of the page.
+     *
+     * @param eventIds the event ids.
+     * @param source   the event source.
+     * @return the found events in the order of the ids.
+     */
+    public static List<PersistedDataUnit> events(List<String> eventIds, AuthEventSource source) {
+        List<PersistedDataUnit> result = new ArrayList<>(eventIds.size());
+        for (String eventId : eventIds) {
+            PersistedDataUnit event = source.get(eventId);
+            if (event != null) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    private void pushPrev(int event, IntHeap heap, BitSet visited, long minDepth) {
+        for (int prevEvent : prev[event]) {
+            if (!visited.get(prevEvent) && known.get(prevEvent) && depths[prevEvent] >= minDepth) {
+                visited.set(prevEvent);
+                heap.push(prevEvent);
+            }
+        }
+    }
+
+    private int deepestFirst(int first, int second) {
+        int result = Long.compare(depths[second], depths[first]);
+        return result != 0 ? result : Integer.compare(second, first);
+    }
+
+    private int node(String eventId) {
+        int event = events.add(eventId);
+        if (event == depths.length) {
+            depths = Arrays.copyOf(depths, event * 2);
+            prev = Arrays.copyOf(prev, event * 2);
+        }
+        return event;
+    }
+
+    private static int indexOf(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The events with the same depth in the order of the addition.
+     */
+    private static final class DepthBucket {
+
+        private static final int INITIAL_SIZE = 2;
+
+        private int[] events = new int[INITIAL_SIZE];
+
+        private int size;
+
+        void add(int event) {
+            if (size == events.length) {
+                events = Arrays.copyOf(events, size * 2);
+            }
+            events[size++] = event;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.state;
+
+import io.github.ma1uta.matrix.server.auth.AuthEventSource;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.pdu.Pdus;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The auth graph of the events indexed by the int nodes.
+ * <br>
+ * The events are loaded from the source on the first access, the auth events of the node are resolved to the nodes lazily. The
+ * {@code (type, state_key)} pairs of the state events are interned to the int keys so the room state is the int array.
+ */
+final class EventGraph {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int[] NO_EDGES = new int[0];
+
+    private final AuthEventSource source;
+
+    private final IdTable ids = new IdTable();
+
+    private final Map<String, Integer> keyIndex = new HashMap<>();
+
+    private String[] keyTypes = new String[INITIAL_CAPACITY];
+
+    private String[] keyStateKeys = new String[INITIAL_CAPACITY];
+
+    private int keyCount;
+
+    private PersistedDataUnit[] events = new PersistedDataUnit[INITIAL_CAPACITY];
+
+    private int[][] auth = new int[INITIAL_CAPACITY][];
+
+    private int[] keys = new int[INITIAL_CAPACITY];
+
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+
+    EventGraph(AuthEventSource source) {
+        this.source = source;
+    }
+
+    /**
+     * The node of the event, the event is loaded from the source.
+     *
+     * @param eventId the event id.
+     * @return the node or {@code -1} if the event is unknown.
+     */
+    int node(String eventId) {
+        int node = ids.get(eventId);
+        if (node >= 0) {
+            return events[node] != null ? node : -1;
+        }
+        PersistedDataUnit event = source.get(eventId);
+        node = add(eventId, event);
+        return event != null ? node : -1;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    String id(int node) {
+        return ids.id(node);
+    }
+
+    PersistedDataUnit event(int node) {
+        return events[node];
+    }
+
+    long timestamp(int node) {
+        return timestamps[node];
+    }
+
+    /**
+     * The state key of the node.
+     *
+     * @param node the node.
+     * @return the int key of the {@code (type, state_key)} pair or {@code -1} for the non-state events.
+     */
+    int key(int node) {
+        return keys[node];
+    }
+
+    /**
+     * Find the int key.
+     *
+     * @param type     the event type.
+     * @param stateKey the state key.
+     * @return the int key or {@code -1} if no event has this {@code (type, state_key)} pair.
+     */
+    int key(String type, String stateKey) {
+        Integer key = keyIndex.get(keyString(type, stateKey));
+        return key != null ? key : -1;
+    }
+
+    int keyCount() {
+        return keyCount;
+    }
+
+    String keyType(int key) {
+        return keyTypes[key];
+    }
+
+    String keyStateKey(int key) {
+        return keyStateKeys[key];
+    }
+
+    /**
+     * The nodes of the known auth events.
+     *
+     * @param node the node.
+     * @return the auth nodes.
+     */
+    int[] auth(int node) {
+        int[] edges = auth[node];
+        if (edges == null) {
+            List<String> authIds = Pdus.authEvents(events[node]);
+            edges = new int[authIds.size()];
+            int count = 0;
+            for (String authId : authIds) {
+                int authNode = node(authId);
+                if (authNode >= 0) {
+                    edges[count++] = authNode;
+                }
+            }
+            edges = count == 0 ? NO_EDGES : count == edges.length ? edges : Arrays.copyOf(edges, count);
+            auth[node] = edges;
+        }
+        return edges;
+    }
+
+    /**
+     * Find the auth node with the key.
+     *
+     * @param node the node.
+     * @param key  the int key.
+     * @return the auth node or {@code -1}.
+     */
+    int authWithKey(int node, int key) {
+        if (key < 0) {
+            return -1;
+        }
+        for (int authNode : auth(node)) {
+            if (keys[authNode] == key) {
+                return authNode;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add the auth ancestors of the seeds (but not the seeds themselves) to the result.
+     *
+     * @param seeds  the seeds.
+     * @param count  the count of the seeds.
+     * @param stop   the nodes which are not visited (with their ancestors), may be {@code null}.
+     * @param result the ancestors.
+     */
+    void ancestors(int[] seeds, int count, BitSet stop, BitSet result) {
+        int[] queue = new int[Math.max(count, INITIAL_CAPACITY)];
+        int tail = 0;
+        for (int i = 0; i < count; i++) {
+            for (int authNode : auth(seeds[i])) {
+                if (!result.get(authNode) && (stop == null || !stop.get(authNode))) {
+                    result.set(authNode);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = authNode;
+                }
+            }
+        }
+        int head = 0;
+        while (head < tail) {
+            int current = queue[head++];
+            for (int authNode : auth(current)) {
+                if (!result.get(authNode) && (stop == null || !stop.get(authNode))) {
+                    result.set(authNode);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = authNode;
+                }
+            }
+        }
+    }
+
+    private int add(String eventId, PersistedDataUnit event) {
+        int node = ids.add(eventId);
+        if (node == events.length) {
+            int capacity = node * 2;
+            events = Arrays.copyOf(events, capacity);
+            auth = Arrays.copyOf(auth, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        events[node] = event;
+        keys[node] = event != null ? internKey(Pdus.type(event), Pdus.stateKey(event)) : -1;
+        timestamps[node] = event != null ? Pdus.originServerTs(event) : 0L;
+        return node;
+    }
+
+    private int internKey(String type, String stateKey) {
+        if (type == null || stateKey == null) {
+            return -1;
+        }
+        return keyIndex.computeIfAbsent(keyString(type, stateKey), ignored -> {
+            if (keyCount == keyTypes.length) {
+                keyTypes = Arrays.copyOf(keyTypes, keyCount * 2);
+                keyStateKeys = Arrays.copyOf(keyStateKeys, keyCount * 2);
+            }
+            keyTypes[keyCount] = type;
+            keyStateKeys[keyCount] = stateKey;
+            return keyCount++;
+        });
+    }
+
+    private static String keyString(String type, String stateKey) {
+        return type + '\u0000' + stateKey;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.state;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing table of the ids to the dense int indices (in the order of the addition) with the linear probing.
+ */
+final class IdTable {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int HASH_SPREAD = 16;
+
+    private String[] table;
+
+    private int[] indices;
+
+    private String[] ids;
+
+    private int size;
+
+    IdTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    IdTable(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, expected * 2) - 1) << 1;
+        this.table = new String[capacity];
+        this.indices = new int[capacity];
+        this.ids = new String[Math.max(INITIAL_CAPACITY, expected)];
+    }
+
+    /**
+     * Find the index of the id.
+     *
+     * @param id the id.
+     * @return the index or {@code -1}.
+     */
+    int get(String id) {
+        int mask = table.length - 1;
+        int slot = slot(id, mask);
+        String candidate;
+        while ((candidate = table[slot]) != null) {
+            if (candidate.equals(id)) {
+                return indices[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add the id.
+     *
+     * @param id the id.
+     * @return the index of the id (the existing index if the id was added before).
+     */
+    int add(String id) {
+        int mask = table.length - 1;
+        int slot = slot(id, mask);
+        String candidate;
+        while ((candidate = table[slot]) != null) {
+            if (candidate.equals(id)) {
+                return indices[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        int index = size++;
+        ids[index] = id;
+        table[slot] = id;
+        indices[slot] = index;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    String id(int index) {
+        return ids[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        String[] oldTable = table;
+        int[] oldIndices = indices;
+        table = new String[oldTable.length * 2];
+        indices = new int[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] != null) {
+                int slot = slot(oldTable[i], mask);
+                while (table[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = oldTable[i];
+                indices[slot] = oldIndices[i];
+            }
+        }
+    }
+
+    private static int slot(String id, int mask) {
+        int hash = id.hashCode();
+        return (hash ^ (hash >>> HASH_SPREAD)) & mask;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The room states stored as the state groups.
+ * <br>
+ * The state group is the delta against the parent group, every {@code maxChainLength} group is stored as the full state so the
+ * lookup applies the limited count of the deltas. The entries of the group are the longs: the int key of the
+ * {@code (type, state_key)} pair in the high half and the int index of the event id (plus one, zero is the removed entry) in the
+ * low half, sorted by the key.
+ * <br>
+ * The materialized groups are cached, the cache is cleared when it is full.
+ * <br>
+ * The store is thread-safe.
+ */
+public class StateGroupStore {
+
+    /**
+     * The default maximum count of the deltas from the group to the full state.
+     */
+    public static final int DEFAULT_MAX_CHAIN_LENGTH = 100;
+
+    /**
+     * The default maximum count of the cached materialized groups.
+     */
+    public static final int DEFAULT_MAX_CACHED = 128;
+
+    /**
+     * The missing group.
+     */
+    public static final int NO_GROUP = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int HALF = 32;
+
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+
+    private static final long[] NO_ENTRIES = new long[0];
+
+    private final int maxChainLength;
+
+    private final int maxCached;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final IdTable events = new IdTable();
+
+    private final IdTable keys = new IdTable();
+
+    private final Map<Integer, long[]> cache = new ConcurrentHashMap<>();
+
+    private int[] eventGroups = new int[INITIAL_CAPACITY];
+
+    private int[] parents = new int[INITIAL_CAPACITY];
+
+    private int[] chainLengths = new int[INITIAL_CAPACITY];
+
+    private long[][] entries = new long[INITIAL_CAPACITY][];
+
+    private int groupCount;
+
+    public StateGroupStore() {
+        this(DEFAULT_MAX_CHAIN_LENGTH, DEFAULT_MAX_CACHED);
+    }
+
+    public StateGroupStore(int maxChainLength, int maxCached) {
+        this.maxChainLength = Math.max(1, maxChainLength);
+        this.maxCached = maxCached;
+    }
+
+    /**
+     * Store the full state.
+     *
+     * @param state the state: the event ids by the state keys by the event types.
+     * @return the new group.
+     */
+    public int create(Map<String, Map<String, String>> state) {
+        return create(NO_GROUP, state);
+    }
+
+    /**
+     * Store the state changes.
+     *
+     * @param parent  the parent group or {@link #NO_GROUP} for the full state.
+     * @param changes the changed state: the event ids (or {@code null} for the removed entries) by the state keys by the event types.
+     * @return the new group.
+     */
+    public int create(int parent, Map<String, Map<String, String>> changes) {
+        lock.writeLock().lock();
+        try {
+            checkGroup(parent);
+            List<Long> changed = new ArrayList<>();
+            for (Map.Entry<String, Map<String, String>> typeEntry : changes.entrySet()) {
+                for (Map.Entry<String, String> entry : typeEntry.getValue().entrySet()) {
+                    changed.add(entry(keys.add(keyString(typeEntry.getKey(), entry.getKey())), event(entry.getValue())));
+                }
+            }
+            long[] delta = new long[changed.size()];
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = changed.get(i);
+            }
+            Arrays.sort(delta);
+            return add(parent, delta);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Store the state change.
+     *
+     * @param parent   the parent group.
+     * @param type     the event type.
+     * @param stateKey the state key.
+     * @param eventId  the event id or {@code null} to remove the entry.
+     * @return the new group.
+     */
+    public int create(int parent, String type, String stateKey, String eventId) {
+        lock.writeLock().lock();
+        try {
+            checkGroup(parent);
+            return add(parent, new long[] {entry(keys.add(keyString(type, stateKey)), event(eventId))});
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set the state group of the state at the event (before the event).
+     *
+     * @param eventId the event id.
+     * @param group   the state group.
+     */
+    public void setGroup(String eventId, int group) {
+        lock.writeLock().lock();
+        try {
+            checkGroup(group);
+            int event = events.add(eventId);
+            if (event >= eventGroups.length) {
+                int length = eventGroups.length;
+                eventGroups = Arrays.copyOf(eventGroups, Math.max(event + 1, length * 2));
+                Arrays.fill(eventGroups, length, eventGroups.length, NO_GROUP);
+            }
+            eventGroups[event] = group;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the state group of the state at the event.
+     *
+     * @param eventId the event id.
+     * @return the state group or {@link #NO_GROUP}.
+     */
+    public int getGroup(String eventId) {
+        lock.readLock().lock();
+        try {
+            int event = events.get(eventId);
+            return event >= 0 && event < eventGroups.length ? eventGroups[event] : NO_GROUP;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the state event of the group without the group materialization.
+     *
+     * @param group    the state group.
+     * @param type     the event type.
+     * @param stateKey the state key.
+     * @return the event id or {@code null}.
+     */
+    public String get(int group, String type, String stateKey) {
+        lock.readLock().lock();
+        try {
+            checkGroup(group);
+            int key = keys.get(keyString(type, stateKey));
+            if (key < 0) {
+                return null;
+            }
+            long[] cached = cache.get(group);
+            if (cached != null) {
+                return eventId(cached, key);
+            }
+            for (int current = group; current != NO_GROUP; current = parents[current]) {
+                int index = search(entries[current], key);
+                if (index >= 0) {
+                    return eventIdAt(entries[current], index);
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The state of the group.
+     *
+     * @param group the state group.
+     * @return the state: the event ids by the state keys by the event types.
+     */
+    public Map<String, Map<String, String>> getState(int group) {
+        lock.readLock().lock();
+        try {
+            long[] state = materialize(group);
+            Map<String, Map<String, String>> result = new HashMap<>();
+            for (long entry : state) {
+                String key = keys.id((int) (entry >>> HALF));
+                int separator = key.indexOf('\u0000');
+                result.computeIfAbsent(key.substring(0, separator), type -> new HashMap<>())
+                    .put(key.substring(separator + 1), events.id((int) (entry & LOW_MASK) - 1));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The event ids of the state of the group (the {@code pdus} of the {@code /state_ids} response).
+     *
+     * @param group the state group.
+     * @return the event ids.
+     */
+    public List<String> getEventIds(int group) {
+        lock.readLock().lock();
+        try {
+            long[] state = materialize(group);
+            List<String> result = new ArrayList<>(state.length);
+            for (long entry : state) {
+                result.add(events.id((int) (entry & LOW_MASK) - 1));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The event ids of the state at the event.
+     *
+     * @param eventId the event id.
+     * @return the event ids or {@code null} if the state at the event is unknown.
+     */
+    public List<String> getEventIds(String eventId) {
+        int group = getGroup(eventId);
+        return group != NO_GROUP ? getEventIds(group) : null;
+    }
+
+    /**
+     * The count of the deltas from the group to the full state.
+     *
+     * @param group the state group.
+     * @return the count of the deltas ({@code 0} for the full state).
+     */
+    public int getChainLength(int group) {
+        lock.readLock().lock();
+        try {
+            checkGroup(group);
+            return group != NO_GROUP ? chainLengths[group] : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The count of the groups.
+     *
+     * @return the count of the groups.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return groupCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the cached materialized groups.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private int add(int parent, long[] delta) {
+        if (groupCount == parents.length) {
+            parents = Arrays.copyOf(parents, groupCount * 2);
+            chainLengths = Arrays.copyOf(chainLengths, groupCount * 2);
+            entries = Arrays.copyOf(entries, groupCount * 2);
+        }
+        int group = groupCount++;
+        if (parent == NO_GROUP || chainLengths[parent] + 1 >= maxChainLength) {
+            parents[group] = NO_GROUP;
+            chainLengths[group] = 0;
+            entries[group] = merge(parent == NO_GROUP ? NO_ENTRIES : materialize(parent), delta, true);
+        } else {
+            parents[group] = parent;
+            chainLengths[group] = chainLengths[parent] + 1;
+            entries[group] = delta;
+        }
+        return group;
+    }
+
+    private long[] materialize(int group) {
+        checkGroup(group);
+        if (group == NO_GROUP) {
+            return NO_ENTRIES;
+        }
+        long[] cached = cache.get(group);
+        if (cached != null) {
+            return cached;
+        }
+        long[] overlay = NO_ENTRIES;
+        long[] base = NO_ENTRIES;
+        for (int current = group; current != NO_GROUP; current = parents[current]) {
+            long[] ancestor = current != group ? cache.get(current) : null;
+            if (ancestor != null) {
+                base = ancestor;
+                break;
+            }
+            if (parents[current] == NO_GROUP) {
+                base = entries[current];
+            } else {
+                overlay = merge(entries[current], overlay, false);
+            }
+        }
+        long[] result = merge(base, overlay, true);
+        if (cache.size() >= maxCached) {
+            cache.clear();
+        }
+        cache.put(group, result);
+        return result;
+    }
+
+    private int event(String eventId) {
+        return eventId != null ? events.add(eventId) + 1 : 0;
+    }
+
+    private void checkGroup(int group) {
+        if (group != NO_GROUP && (group < 0 || group >= groupCount)) {
+            throw new IllegalArgumentException("Unknown state group: " + group);
+        }
+    }
+
+    private String eventId(long[] state, int key) {
+        int index = search(state, key);
+        return index >= 0 ? eventIdAt(state, index) : null;
+    }
+
+    private String eventIdAt(long[] state, int index) {
+        int event = (int) (state[index] & LOW_MASK);
+        return event != 0 ? events.id(event - 1) : null;
+    }
+
+    private static long entry(int key, int event) {
+        return ((long) key << HALF) | (event & LOW_MASK);
+    }
+
+    /**
+     * Merge the sorted entries, the overlay entries replace the base entries with the same key.
+     *
+     * @param base    the base entries.
+     * @param overlay the overlay entries.
+     * @param full    {@code true} to drop the removed entries.
+     * @return the merged entries.
+     */
+    private static long[] merge(long[] base, long[] overlay, boolean full) {
+        if (overlay.length == 0) {
+            return base;
+        }
+        long[] result = new long[base.length + overlay.length];
+        int count = 0;
+        int baseIndex = 0;
+        int overlayIndex = 0;
+        while (baseIndex < base.length || overlayIndex < overlay.length) {
+            long entry;
+            if (overlayIndex == overlay.length) {
+                entry = base[baseIndex++];
+            } else if (baseIndex == base.length) {
+                entry = overlay[overlayIndex++];
+            } else {
+                long baseKey = base[baseIndex] >>> HALF;
+                long overlayKey = overlay[overlayIndex] >>> HALF;
+                if (baseKey < overlayKey) {
+                    entry = base[baseIndex++];
+                } else {
+                    if (baseKey == overlayKey) {
+                        baseIndex++;
+                    }
+                    entry = overlay[overlayIndex++];
+                }
+            }
+            if (!full || (entry & LOW_MASK) != 0) {
+                result[count++] = entry;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private static int search(long[] state, int key) {
+        int low = 0;
+        int high = state.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = state[middle] >>> HALF;
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private static String keyString(String type, String stateKey) {
+        return type + '\u0000' + stateKey;
+    }
+}
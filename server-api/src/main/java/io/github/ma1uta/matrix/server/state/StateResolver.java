@@ -0,0 +1,421 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.state;
+
+import io.github.ma1uta.matrix.common.PowerLevels;
+import io.github.ma1uta.matrix.event.RoomCreate;
+import io.github.ma1uta.matrix.event.RoomJoinRules;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.RoomPowerLevels;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import io.github.ma1uta.matrix.server.auth.AuthEngine;
+import io.github.ma1uta.matrix.server.auth.AuthEventSource;
+import io.github.ma1uta.matrix.server.auth.AuthRules;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.pdu.Pdus;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * The state resolution algorithm v2 (https://spec.matrix.org/latest/rooms/v2/#state-resolution).
+ * <br>
+ * The events are indexed by the int nodes of the auth graph, the state is the int array of the nodes by the int keys of the
+ * {@code (type, state_key)} pairs and the event sets are the bit sets. The events which are in all state sets are unconflicted,
+ * the auth chain of the unconflicted events is walked once and is shared by all state sets, so the auth difference walks only
+ * the auth chains of the conflicted events. With the {@link ChainIndex} the auth difference is computed by the chain cover labels
+ * and the auth chains are not walked at all (the index must contain the events of the state sets).
+ * <br>
+ * The resolver is thread-safe, each resolution uses its own graph.
+ */
+public class StateResolver {
+
+    private final AuthEngine engine;
+
+    private final AuthEventSource source;
+
+    private final ChainIndex chainIndex;
+
+    public StateResolver(AuthEngine engine, AuthEventSource source) {
+        this(engine, source, null);
+    }
+
+    public StateResolver(AuthEngine engine, AuthEventSource source, ChainIndex chainIndex) {
+        this.engine = engine;
+        this.source = source;
+        this.chainIndex = chainIndex;
+    }
+
+    /**
+     * Resolve the state sets.
+     *
+     * @param stateSets   the state sets (the event ids of the state events).
+     * @param roomVersion the room version.
+     * @return the resolved state (the event ids by the event type and the state key).
+     * @throws IllegalArgumentException if the room version is unsupported.
+     */
+    public Map<String, Map<String, String>> resolve(List<? extends Collection<String>> stateSets, String roomVersion) {
+        AuthRules rules = AuthRules.forVersion(roomVersion);
+        if (rules == null) {
+            throw new IllegalArgumentException("Unsupported room version: " + roomVersion);
+        }
+        return new Resolution(new EventGraph(source), rules).resolve(stateSets);
+    }
+
+    /**
+     * Check if the event is the power event (can remove the abilities of the other users).
+     *
+     * @param event the event.
+     * @return {@code true} for the create, power levels and join rules events, the kicks and the bans.
+     */
+    public static boolean isPowerEvent(PersistedDataUnit event) {
+        String type = Pdus.type(event);
+        if (RoomPowerLevels.TYPE.equals(type) || RoomJoinRules.TYPE.equals(type) || RoomCreate.TYPE.equals(type)) {
+            return Pdus.stateKey(event) != null && Pdus.stateKey(event).isEmpty();
+        }
+        if (!RoomMember.TYPE.equals(type)) {
+            return false;
+        }
+        String stateKey = Pdus.stateKey(event);
+        if (stateKey == null || stateKey.equals(Pdus.sender(event))) {
+            return false;
+        }
+        String membership = membership(event);
+        return RoomMemberContent.LEAVE.equals(membership) || RoomMemberContent.BAN.equals(membership);
+    }
+
+    private static String membership(PersistedDataUnit event) {
+        Object content = Pdus.content(event);
+        if (content instanceof RoomMemberContent) {
+            return ((RoomMemberContent) content).getMembership();
+        }
+        if (content instanceof RawEventContent && ((RawEventContent) content).getContent() instanceof JsonObject) {
+            JsonValue value = ((JsonObject) ((RawEventContent) content).getContent()).get("membership");
+            return value instanceof JsonString ? ((JsonString) value).getString() : null;
+        }
+        return null;
+    }
+
+    /**
+     * One resolution over its own graph.
+     */
+    private final class Resolution {
+
+        private final EventGraph graph;
+
+        private final AuthRules rules;
+
+        private int[] state;
+
+        private long[] powers;
+
+        private int[] mainline;
+
+        Resolution(EventGraph graph, AuthRules rules) {
+            this.graph = graph;
+            this.rules = rules;
+        }
+
+        Map<String, Map<String, String>> resolve(List<? extends Collection<String>> stateSets) {
+            int setCount = stateSets.size();
+            int[][] sets = new int[setCount][];
+            int[] counts = new int[Math.max(1, graph.size())];
+            int[] lastSet = new int[counts.length];
+            for (int i = 0; i < setCount; i++) {
+                Collection<String> stateSet = stateSets.get(i);
+                int[] nodes = new int[stateSet.size()];
+                int count = 0;
+                for (String eventId : stateSet) {
+                    int node = graph.node(eventId);
+                    if (node < 0 || graph.key(node) < 0) {
+                        continue;
+                    }
+                    if (node >= counts.length) {
+                        int capacity = Math.max(node + 1, counts.length * 2);
+                        counts = Arrays.copyOf(counts, capacity);
+                        lastSet = Arrays.copyOf(lastSet, capacity);
+                    }
+                    if (counts[node] == 0 || lastSet[node] != i) {
+                        counts[node]++;
+                        lastSet[node] = i;
+                        nodes[count++] = node;
+                    }
+                }
+                sets[i] = Arrays.copyOf(nodes, count);
+            }
+
+            // the events of all state sets are unconflicted, their auth chains are in the auth chains of all state sets.
+            BitSet unconflicted = new BitSet();
+            BitSet conflicted = new BitSet();
+            for (int[] nodes : sets) {
+                for (int node : nodes) {
+                    if (counts[node] == setCount) {
+                        unconflicted.set(node);
+                    } else {
+                        conflicted.set(node);
+                    }
+                }
+            }
+            int[] unconflictedNodes = unconflicted.stream().toArray();
+            BitSet fullConflicted = chainIndex != null ? indexedAuthDifference(stateSets) : null;
+            if (fullConflicted == null) {
+                fullConflicted = authDifference(sets, unconflicted, unconflictedNodes);
+            }
+            fullConflicted.or(conflicted);
+            fullConflicted.andNot(unconflicted);
+
+            state = new int[graph.keyCount()];
+            Arrays.fill(state, -1);
+            for (int node : unconflictedNodes) {
+                state[graph.key(node)] = node;
+            }
+
+            // the power events with their auth chains in the full conflicted set.
+            int[] powerSeeds = new int[fullConflicted.cardinality()];
+            int powerCount = 0;
+            for (int node = fullConflicted.nextSetBit(0); node >= 0; node = fullConflicted.nextSetBit(node + 1)) {
+                if (isPowerEvent(graph.event(node))) {
+                    powerSeeds[powerCount++] = node;
+                }
+            }
+            BitSet powerEvents = new BitSet();
+            graph.ancestors(powerSeeds, powerCount, null, powerEvents);
+            powers = new long[graph.size()];
+            Arrays.fill(powers, Long.MIN_VALUE);
+            powerEvents.and(fullConflicted);
+            for (int i = 0; i < powerCount; i++) {
+                powerEvents.set(powerSeeds[i]);
+            }
+            int[] sortedPowerEvents = reverseTopologicalPowerOrder(powerEvents);
+            iterativeAuthChecks(sortedPowerEvents);
+
+            BitSet others = fullConflicted;
+            others.andNot(powerEvents);
+            iterativeAuthChecks(mainlineOrder(others));
+
+            for (int node : unconflictedNodes) {
+                state[graph.key(node)] = node;
+            }
+            Map<String, Map<String, String>> resolved = new LinkedHashMap<>();
+            for (int key = 0; key < state.length; key++) {
+                if (state[key] >= 0) {
+                    resolved.computeIfAbsent(graph.keyType(key), type -> new HashMap<>())
+                        .put(graph.keyStateKey(key), graph.id(state[key]));
+                }
+            }
+            return resolved;
+        }
+
+        private BitSet authDifference(int[][] sets, BitSet unconflicted, int[] unconflictedNodes) {
+            BitSet common = new BitSet();
+            graph.ancestors(unconflictedNodes, unconflictedNodes.length, null, common);
+
+            BitSet union = new BitSet();
+            BitSet intersection = null;
+            for (int[] nodes : sets) {
+                int[] seeds = new int[nodes.length];
+                int seedCount = 0;
+                for (int node : nodes) {
+                    if (!unconflicted.get(node)) {
+                        seeds[seedCount++] = node;
+                    }
+                }
+                BitSet chain = new BitSet();
+                graph.ancestors(seeds, seedCount, common, chain);
+                union.or(chain);
+                if (intersection == null) {
+                    intersection = chain;
+                } else {
+                    intersection.and(chain);
+                }
+            }
+            if (intersection != null) {
+                union.andNot(intersection);
+            }
+            return union;
+        }
+
+        private BitSet indexedAuthDifference(List<? extends Collection<String>> stateSets) {
+            List<String> difference = chainIndex.authChainDifference(stateSets);
+            if (difference == null) {
+                return null;
+            }
+            BitSet result = new BitSet();
+            for (String eventId : difference) {
+                int node = graph.node(eventId);
+                if (node >= 0) {
+                    result.set(node);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Kahn's algorithm over the auth events, the ties are broken by the higher sender's power level, the earlier timestamp
+         * and the lower event id.
+         */
+        private int[] reverseTopologicalPowerOrder(BitSet nodes) {
+            int count = nodes.cardinality();
+            int[] members = nodes.stream().toArray();
+            int[] dependencies = new int[graph.size()];
+            int[] childCounts = new int[graph.size() + 1];
+            for (int node : members) {
+                for (int authNode : graph.auth(node)) {
+                    if (nodes.get(authNode)) {
+                        dependencies[node]++;
+                        childCounts[authNode + 1]++;
+                    }
+                }
+            }
+            // CSR layout of the children (the events which reference the node as the auth event).
+            for (int i = 1; i < childCounts.length; i++) {
+                childCounts[i] += childCounts[i - 1];
+            }
+            int[] children = new int[childCounts[childCounts.length - 1]];
+            int[] fill = Arrays.copyOf(childCounts, childCounts.length);
+            for (int node : members) {
+                for (int authNode : graph.auth(node)) {
+                    if (nodes.get(authNode)) {
+                        children[fill[authNode]++] = node;
+                    }
+                }
+            }
+            IntHeap ready = new IntHeap(count, (first, second) -> {
+                int result = Long.compare(power(second), power(first));
+                return result != 0 ? result : compareByTimestamp(first, second);
+            });
+            for (int node : members) {
+                if (dependencies[node] == 0) {
+                    ready.push(node);
+                }
+            }
+            int[] sorted = new int[count];
+            int sortedCount = 0;
+            while (!ready.isEmpty()) {
+                int node = ready.pop();
+                sorted[sortedCount++] = node;
+                for (int i = childCounts[node]; i < childCounts[node + 1]; i++) {
+                    if (--dependencies[children[i]] == 0) {
+                        ready.push(children[i]);
+                    }
+                }
+            }
+            // the events of the auth cycles are never ready and are dropped.
+            return sortedCount == count ? sorted : Arrays.copyOf(sorted, sortedCount);
+        }
+
+        /**
+         * Sort the events by the position of the closest mainline event, the timestamp and the event id.
+         */
+        private int[] mainlineOrder(BitSet nodes) {
+            int powerLevelsKey = graph.key(RoomPowerLevels.TYPE, "");
+            int[] chain = new int[0];
+            int length = 0;
+            int current = powerLevelsKey >= 0 ? state[powerLevelsKey] : -1;
+            while (current >= 0) {
+                if (length == chain.length) {
+                    chain = Arrays.copyOf(chain, Math.max(1, length * 2));
+                }
+                chain[length++] = current;
+                current = graph.authWithKey(current, powerLevelsKey);
+            }
+            mainline = new int[graph.size()];
+            // the root of the mainline has the position 1, the events without the mainline ancestor have the position 0.
+            for (int i = 0; i < length; i++) {
+                mainline[chain[i]] = length - i;
+            }
+            IntHeap heap = new IntHeap(nodes.cardinality(), (first, second) -> {
+                int result = Integer.compare(mainlinePosition(first, powerLevelsKey), mainlinePosition(second, powerLevelsKey));
+                return result != 0 ? result : compareByTimestamp(first, second);
+            });
+            for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+                heap.push(node);
+            }
+            int[] sorted = new int[heap.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = heap.pop();
+            }
+            return sorted;
+        }
+
+        private int mainlinePosition(int node, int powerLevelsKey) {
+            int current = node;
+            while (current >= 0) {
+                if (current < mainline.length && mainline[current] != 0) {
+                    return mainline[current];
+                }
+                current = graph.authWithKey(current, powerLevelsKey);
+            }
+            return 0;
+        }
+
+        private int compareByTimestamp(int first, int second) {
+            int result = Long.compare(graph.timestamp(first), graph.timestamp(second));
+            return result != 0 ? result : graph.id(first).compareTo(graph.id(second));
+        }
+
+        private long power(int node) {
+            long power = powers[node];
+            if (power == Long.MIN_VALUE) {
+                Map<String, PersistedDataUnit> authEvents = new HashMap<>();
+                for (int authNode : graph.auth(node)) {
+                    authEvents.put(graph.id(authNode), graph.event(authNode));
+                }
+                PowerLevels levels = engine.selectPowerLevels(authEvents, rules);
+                power = levels != null ? levels.getUserLevel(Pdus.sender(graph.event(node))) : 0;
+                powers[node] = power;
+            }
+            return power;
+        }
+
+        /**
+         * Apply the events to the partial state, each event is checked with its auth events replaced by the partial state.
+         */
+        private void iterativeAuthChecks(int[] nodes) {
+            Map<Integer, Integer> byKey = new LinkedHashMap<>();
+            for (int node : nodes) {
+                PersistedDataUnit event = graph.event(node);
+                byKey.clear();
+                for (int authNode : graph.auth(node)) {
+                    byKey.put(graph.key(authNode), authNode);
+                }
+                AuthEngine.selectAuthEvents(event, rules, (type, stateKey) -> {
+                    int key = graph.key(type, stateKey);
+                    if (key >= 0 && key < state.length && state[key] >= 0) {
+                        byKey.put(key, state[key]);
+                    }
+                });
+                Map<String, PersistedDataUnit> authEvents = new HashMap<>(byKey.size() * 2);
+                for (int authNode : byKey.values()) {
+                    authEvents.put(graph.id(authNode), graph.event(authNode));
+                }
+                if (engine.check(event, authEvents, rules) == null) {
+                    state[graph.key(node)] = node;
+                }
+            }
+        }
+    }
+}
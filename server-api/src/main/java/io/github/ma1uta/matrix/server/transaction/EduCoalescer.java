@@ -0,0 +1,210 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.transaction;
+
+import io.github.ma1uta.matrix.server.model.federation.edu.EphemeralDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.edu.Presence;
+import io.github.ma1uta.matrix.server.model.federation.edu.Receipt;
+import io.github.ma1uta.matrix.server.model.federation.edu.Typing;
+import io.github.ma1uta.matrix.server.model.federation.edu.content.PresenceUpdate;
+import io.github.ma1uta.matrix.server.model.federation.edu.content.ReceiptContent;
+import io.github.ma1uta.matrix.server.model.federation.edu.content.TypingContent;
+import io.github.ma1uta.matrix.server.model.federation.edu.content.nested.UserPresenceUpdate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The queued EDUs of the destination with the superseded updates coalesced.
+ * <ul>
+ * <li>{@link Typing}: the latest notification per room and user.</li>
+ * <li>{@link Presence}: the pushes of all queued presence EDUs are merged into the single EDU, the latest push per user.</li>
+ * <li>{@link Receipt}: the receipts added with the user id are merged into the single EDU per user, the latest receipt per room
+ * (the receipt content has only the {@code m.read} receipts).</li>
+ * <li>The device list updates, the to-device messages and other EDUs are kept in the order: the device list updates are chained
+ * by the {@code prev_id} and the to-device messages are never dropped.</li>
+ * </ul>
+ * The coalesced EDU keeps the place of the first queued EDU it replaces.
+ * <br>
+ * The queued EDUs which are replaced by the later ones are passed to the superseded listener, the EDUs which are taken (as they are
+ * or merged) are passed to the consumer of the {@link #take(int, Consumer)}, so the journal of the queue can track each queued
+ * EDU.
+ * <br>
+ * The coalescer isn't thread-safe.
+ */
+public class EduCoalescer {
+
+    private static final String SEPARATOR = "\u0000";
+
+    private final Map<Object, EphemeralDataUnit<?>> slots = new LinkedHashMap<>();
+
+    private final Map<Object, UserPresenceUpdate> presence = new LinkedHashMap<>();
+
+    private final Map<String, ReceiptContent> receipts = new HashMap<>();
+
+    private final List<EphemeralDataUnit<?>> presenceEdus = new ArrayList<>();
+
+    private final Map<String, List<EphemeralDataUnit<?>>> receiptEdus = new HashMap<>();
+
+    private final Consumer<EphemeralDataUnit<?>> superseded;
+
+    private long coalesced;
+
+    public EduCoalescer() {
+        this(edu -> {
+        });
+    }
+
+    public EduCoalescer(Consumer<EphemeralDataUnit<?>> superseded) {
+        this.superseded = superseded;
+    }
+
+    /**
+     * Queue the EDU.
+     *
+     * @param edu the EDU.
+     */
+    public void add(EphemeralDataUnit<?> edu) {
+        if (edu instanceof Typing) {
+            TypingContent content = ((Typing) edu).getContent();
+            if (content != null && content.getRoomId() != null && content.getUserId() != null) {
+                put(Typing.TYPE + SEPARATOR + content.getRoomId() + SEPARATOR + content.getUserId(), edu);
+                return;
+            }
+        } else if (edu instanceof Presence) {
+            PresenceUpdate content = ((Presence) edu).getContent();
+            if (content != null && content.getPush() != null) {
+                slots.putIfAbsent(Presence.TYPE, null);
+                presenceEdus.add(edu);
+                for (UserPresenceUpdate push : content.getPush()) {
+                    Object key = push.getUserId() != null ? push.getUserId() : new Object();
+                    if (presence.put(key, push) != null) {
+                        coalesced++;
+                    }
+                }
+                return;
+            }
+        }
+        slots.put(new Object(), edu);
+    }
+
+    /**
+     * Queue the receipt of the user.
+     *
+     * @param userId  the user id.
+     * @param receipt the receipt.
+     */
+    public void add(String userId, Receipt receipt) {
+        if (userId == null || receipt.getContent() == null) {
+            add(receipt);
+            return;
+        }
+        String key = Receipt.TYPE + SEPARATOR + userId;
+        slots.putIfAbsent(key, null);
+        receiptEdus.computeIfAbsent(key, ignored -> new ArrayList<>()).add(receipt);
+        ReceiptContent merged = receipts.computeIfAbsent(key, ignored -> new ReceiptContent());
+        int size = merged.size();
+        merged.putAll(receipt.getContent());
+        coalesced += size + receipt.getContent().size() - merged.size();
+    }
+
+    /**
+     * The count of the queued EDUs.
+     *
+     * @return the count of the EDUs.
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Check there are no queued EDUs.
+     *
+     * @return {@code true} if the queue is empty.
+     */
+    public boolean isEmpty() {
+        return slots.isEmpty();
+    }
+
+    /**
+     * The count of the EDUs (and presence pushes) dropped because they were superseded.
+     *
+     * @return the count of the superseded updates.
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Remove the EDUs from the queue.
+     *
+     * @param max the maximum count of the EDUs.
+     * @return the EDUs in the queue order.
+     */
+    public List<EphemeralDataUnit<?>> take(int max) {
+        return take(max, edu -> {
+        });
+    }
+
+    /**
+     * Remove the EDUs from the queue.
+     *
+     * @param max      the maximum count of the EDUs.
+     * @param consumed the consumer of the queued EDUs which are taken as they are or merged into the taken EDUs.
+     * @return the EDUs in the queue order.
+     */
+    public List<EphemeralDataUnit<?>> take(int max, Consumer<EphemeralDataUnit<?>> consumed) {
+        List<EphemeralDataUnit<?>> result = new ArrayList<>(Math.min(max, slots.size()));
+        Iterator<Map.Entry<Object, EphemeralDataUnit<?>>> iterator = slots.entrySet().iterator();
+        while (iterator.hasNext() && result.size() < max) {
+            Map.Entry<Object, EphemeralDataUnit<?>> slot = iterator.next();
+            iterator.remove();
+            if (slot.getValue() != null) {
+                result.add(slot.getValue());
+                consumed.accept(slot.getValue());
+            } else if (Presence.TYPE.equals(slot.getKey())) {
+                PresenceUpdate content = new PresenceUpdate();
+                content.setPush(new ArrayList<>(presence.values()));
+                presence.clear();
+                Presence edu = new Presence();
+                edu.setContent(content);
+                result.add(edu);
+                presenceEdus.forEach(consumed);
+                presenceEdus.clear();
+            } else {
+                Receipt edu = new Receipt();
+                edu.setContent(receipts.remove(slot.getKey()));
+                result.add(edu);
+                receiptEdus.remove(slot.getKey()).forEach(consumed);
+            }
+        }
+        return result;
+    }
+
+    private void put(String key, EphemeralDataUnit<?> edu) {
+        EphemeralDataUnit<?> previous = slots.put(key, edu);
+        if (previous != null) {
+            coalesced++;
+            superseded.accept(previous);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.transaction;
+
+import io.github.ma1uta.matrix.event.RoomCreate;
+import io.github.ma1uta.matrix.json.CanonicalJson;
+import io.github.ma1uta.matrix.server.auth.AuthEngine;
+import io.github.ma1uta.matrix.server.auth.AuthRules;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResult;
+import io.github.ma1uta.matrix.server.model.federation.PduProcessingResults;
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.Transaction;
+import io.github.ma1uta.matrix.server.pdu.Pdus;
+import io.github.ma1uta.matrix.server.signature.Redaction;
+import io.github.ma1uta.matrix.server.signature.SignatureVerifier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Processor of the inbound federation transactions ({@code PUT /_matrix/federation/v1/send/{txnId}}).
+ * <br>
+ * Each PDU passes the stages: parse (the event id, the room and the room version), the content hash check, the signature
+ * verification, the auth check and the persistence. The first three stages don't depend on the other PDUs and run in parallel
+ * on the executor, the auth check and the persistence run in the order of the PDUs of the room, so the rooms are processed
+ * concurrently and the later PDUs are verified while the earlier PDUs of the room are authorized. At most {@code capacity}
+ * PDUs are in the pipeline, the later PDUs wait for the free place in the order of the submission without blocking the caller,
+ * so {@link #process(String, String, Transaction)} never blocks (the caller bounds the count of the transactions in progress,
+ * for example, by the count of the concurrent requests).
+ * <br>
+ * The room version is taken from the room versions function or, for the unknown rooms, from the create event of the
+ * transaction (the event ids depend on the version), the PDU of the room without the known version is rejected.
+ * <br>
+ * The PDU with the wrong content hash is authorized and persisted redacted. The results of the recent transactions are kept per
+ * origin, so the retried transaction isn't processed again. The EDUs of the transaction are left to the caller.
+ */
+public class InboundProcessor {
+
+    /**
+     * The default maximum count of the PDUs in the pipeline.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The default count of the remembered transactions per origin.
+     */
+    public static final int DEFAULT_MAX_TRANSACTIONS = 64;
+
+    /**
+     * The default maximum count of the origins with the remembered transactions.
+     */
+    public static final int DEFAULT_MAX_ORIGINS = 10_000;
+
+    private static final String SHA256 = "sha256";
+
+    private static final CompletableFuture<String> DONE = CompletableFuture.completedFuture(null);
+
+    private static final CompletableFuture<Void> ADMITTED = CompletableFuture.completedFuture(null);
+
+    private final SignatureVerifier verifier;
+
+    private final AuthEngine engine;
+
+    private final PduStore store;
+
+    private final Function<String, String> roomVersions;
+
+    private final Executor executor;
+
+    private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+    private int capacity;
+
+    private final int maxTransactions;
+
+    private final int maxOrigins;
+
+    private final Map<String, Map<String, CompletableFuture<PduProcessingResults>>> transactions = new ConcurrentHashMap<>();
+
+    private final Map<String, CompletableFuture<String>> rooms = new ConcurrentHashMap<>();
+
+    public InboundProcessor(SignatureVerifier verifier, AuthEngine engine, PduStore store, Function<String, String> roomVersions,
+                            Executor executor) {
+        this(verifier, engine, store, roomVersions, executor, DEFAULT_CAPACITY, DEFAULT_MAX_TRANSACTIONS, DEFAULT_MAX_ORIGINS);
+    }
+
+    public InboundProcessor(SignatureVerifier verifier, AuthEngine engine, PduStore store, Function<String, String> roomVersions,
+                            Executor executor, int capacity, int maxTransactions, int maxOrigins) {
+        this.verifier = verifier;
+        this.engine = engine;
+        this.store = store;
+        this.roomVersions = roomVersions;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.maxTransactions = maxTransactions;
+        this.maxOrigins = maxOrigins;
+    }
+
+    /**
+     * Process the PDUs of the transaction.
+     *
+     * @param origin      the origin server (from the request authorization).
+     * @param txnId       the transaction id.
+     * @param transaction the transaction.
+     * @return the results keyed by the event id, the same results for the retried transaction.
+     */
+    public CompletableFuture<PduProcessingResults> process(String origin, String txnId, Transaction transaction) {
+        Map<String, CompletableFuture<PduProcessingResults>> recent = recent(origin);
+        CompletableFuture<PduProcessingResults> result = new CompletableFuture<>();
+        CompletableFuture<PduProcessingResults> existing = recent.putIfAbsent(txnId, result);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            List<PersistedDataUnit> pdus = transaction.getPdus() != null ? transaction.getPdus() : Collections.emptyList();
+            Map<String, String> createVersions = new HashMap<>();
+            for (PersistedDataUnit pdu : pdus) {
+                String roomId = Pdus.roomId(pdu);
+                if (roomId != null && RoomCreate.TYPE.equals(Pdus.type(pdu))) {
+                    createVersions.putIfAbsent(roomId, AuthEngine.roomVersion(pdu));
+                }
+            }
+            List<Item> items = new ArrayList<>(pdus.size());
+            List<CompletableFuture<String>> errors = new ArrayList<>(pdus.size());
+            for (PersistedDataUnit pdu : pdus) {
+                Item item = new Item(pdu, createVersions);
+                items.add(item);
+                errors.add(submit(item));
+            }
+            CompletableFuture.allOf(errors.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> {
+                Map<String, PduProcessingResult> results = new LinkedHashMap<>();
+                for (int i = 0; i < items.size(); i++) {
+                    if (items.get(i).eventId != null) {
+                        PduProcessingResult pduResult = new PduProcessingResult();
+                        pduResult.setError(errors.get(i).getNow(null));
+                        results.put(items.get(i).eventId, pduResult);
+                    }
+                }
+                PduProcessingResults processingResults = new PduProcessingResults();
+                processingResults.setPdus(results);
+                result.complete(processingResults);
+            });
+        } catch (RuntimeException e) {
+            recent.remove(txnId, result);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Forget the processed transactions.
+     */
+    public void clear() {
+        transactions.clear();
+    }
+
+    private Map<String, CompletableFuture<PduProcessingResults>> recent(String origin) {
+        Map<String, CompletableFuture<PduProcessingResults>> recent = transactions.get(origin);
+        if (recent == null) {
+            if (transactions.size() >= maxOrigins) {
+                transactions.clear();
+            }
+            recent = transactions.computeIfAbsent(origin, ignored -> Collections.synchronizedMap(
+                new LinkedHashMap<String, CompletableFuture<PduProcessingResults>>() {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<PduProcessingResults>> eldest) {
+                        return size() > maxTransactions;
+                    }
+                }));
+        }
+        return recent;
+    }
+
+    private CompletableFuture<String> submit(Item item) {
+        CompletableFuture<Void> admitted = acquire();
+        CompletableFuture<String> done;
+        try {
+            String roomId = Pdus.roomId(item.pdu);
+            if (roomId == null) {
+                done = admitted.thenApplyAsync(ignored -> verify(item), executor);
+            } else {
+                CompletableFuture<String> verified = admitted.thenApplyAsync(ignored -> verify(item), executor);
+                done = rooms.compute(roomId, (id, tail) -> (tail != null ? tail : DONE)
+                    .thenCombineAsync(verified, (previous, error) -> error != null ? error : authorize(item), executor));
+                CompletableFuture<String> roomTail = done;
+                done.whenComplete((ignored, error) -> rooms.remove(roomId, roomTail));
+            }
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        done.whenComplete((ignored, error) -> release());
+        return done;
+    }
+
+    /**
+     * Take the place in the pipeline, the PDUs which don't fit wait in the order of the submission, so the earlier PDUs of the
+     * room (which the later PDUs wait for) are always admitted first.
+     *
+     * @return the future which is completed when the PDU is admitted.
+     */
+    private CompletableFuture<Void> acquire() {
+        synchronized (waiting) {
+            if (capacity > 0) {
+                capacity--;
+                return ADMITTED;
+            }
+            CompletableFuture<Void> admission = new CompletableFuture<>();
+            waiting.add(admission);
+            return admission;
+        }
+    }
+
+    private void release() {
+        CompletableFuture<Void> next;
+        synchronized (waiting) {
+            next = waiting.poll();
+            if (next == null) {
+                capacity++;
+                return;
+            }
+        }
+        next.complete(null);
+    }
+
+    /**
+     * Parse, check the content hash and verify the signatures.
+     *
+     * @param item the PDU.
+     * @return {@code null} if the PDU passed the stages or the error.
+     */
+    private String verify(Item item) {
+        try {
+            String roomId = Pdus.roomId(item.pdu);
+            item.roomVersion = roomId != null ? roomVersions.apply(roomId) : null;
+            if (item.roomVersion == null && roomId != null) {
+                item.roomVersion = item.createVersions.get(roomId);
+            }
+            item.eventId = SignatureVerifier.eventId(item.pdu, item.roomVersion);
+            if (item.eventId == null) {
+                return "Unsupported PDU";
+            }
+            if (roomId == null) {
+                return "Missing room id";
+            }
+            if (item.roomVersion == null) {
+                return "Unknown room version";
+            }
+            if (!AuthRules.isKnown(item.roomVersion)) {
+                return "Unsupported room version: " + item.roomVersion;
+            }
+            Map<String, String> hashes = Pdus.hashes(item.pdu);
+            String hash = hashes != null ? hashes.get(SHA256) : null;
+            boolean integersOnly = SignatureVerifier.isIntegersOnly(item.pdu, item.roomVersion);
+            item.redacted = hash == null || !hash.equals(CanonicalJson.contentHash(item.pdu, integersOnly));
+            String error = verifier.verify(item.pdu, item.roomVersion);
+            if (error == null && item.redacted) {
+                item.checked = Redaction.redacted(item.pdu, Pdus.type(item.pdu));
+            }
+            return error;
+        } catch (RuntimeException e) {
+            return "Unable to verify the PDU: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Check the auth rules and persist the PDU.
+     *
+     * @param item the verified PDU.
+     * @return {@code null} if the PDU is persisted or the error.
+     */
+    private String authorize(Item item) {
+        try {
+            String error = engine.check(item.checked, item.roomVersion);
+            if (error == null) {
+                store.persist(item.eventId, item.pdu, item.redacted);
+            }
+            return error;
+        } catch (RuntimeException e) {
+            return "Unable to process the PDU: " + e.getMessage();
+        }
+    }
+
+    /**
+     * The PDU in the pipeline.
+     */
+    private static final class Item {
+
+        private final PersistedDataUnit pdu;
+
+        private final Map<String, String> createVersions;
+
+        private PersistedDataUnit checked;
+
+        private String eventId;
+
+        private String roomVersion;
+
+        private boolean redacted;
+
+        Item(PersistedDataUnit pdu, Map<String, String> createVersions) {
+            this.pdu = pdu;
+            this.createVersions = createVersions;
+            this.checked = pdu;
+        }
+    }
+}
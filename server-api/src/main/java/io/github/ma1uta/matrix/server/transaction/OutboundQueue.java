@@ -0,0 +1,441 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.transaction;
+
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.Transaction;
+import io.github.ma1uta.matrix.server.model.federation.edu.EphemeralDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.edu.Receipt;
+import io.github.ma1uta.matrix.server.pdu.Pdus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound federation queue.
+ * <br>
+ * The PDUs and EDUs are queued per destination and sent as the transactions of up to {@link #MAX_PDUS} PDUs and
+ * {@link #MAX_EDUS} EDUs. Each destination has at most one transaction in flight, the failed transaction is retried with the same
+ * id and the exponential backoff. The transaction ids are generated from the counter initialized by the start time or by the
+ * high-water mark persisted in the {@link TransactionJournal} (the greater one), the mark is persisted by the blocks of
+ * {@link #TXN_ID_BLOCK} ids, so the ids grow across the restarts even when the counter runs ahead of the clock.
+ * <br>
+ * The queue of the PDUs is bounded: when the destination is lagging (for example, it is offline for a long time) and the queue
+ * reaches the limit, only the latest PDU per room is kept until the destination catches up, the destination fetches the dropped
+ * PDUs as the missing events.
+ * <br>
+ * The destinations don't own the threads: the transactions are built and handed to the asynchronous {@link TransactionSender} on
+ * the shared executor, so thousands of destinations are served by the small pool.
+ * <br>
+ * The queued EDUs pass the {@link EduCoalescer}, so the superseded typing, presence and receipt updates aren't sent.
+ */
+public class OutboundQueue {
+
+    /**
+     * The maximum count of the PDUs in the transaction.
+     */
+    public static final int MAX_PDUS = 50;
+
+    /**
+     * The maximum count of the EDUs in the transaction.
+     */
+    public static final int MAX_EDUS = 100;
+
+    /**
+     * The default delay of the first retry in milliseconds.
+     */
+    public static final long DEFAULT_MIN_RETRY_DELAY = 2_000L;
+
+    /**
+     * The default maximum delay of the retry in milliseconds.
+     */
+    public static final long DEFAULT_MAX_RETRY_DELAY = 3_600_000L;
+
+    /**
+     * The default maximum count of the queued PDUs per destination before the destination switches to the catch-up mode.
+     */
+    public static final int DEFAULT_MAX_PENDING_PDUS = 10_000;
+
+    /**
+     * The count of the transaction ids reserved by each persisted high-water mark.
+     */
+    public static final long TXN_ID_BLOCK = 1_000L;
+
+    private final String origin;
+
+    private final TransactionSender sender;
+
+    private final ScheduledExecutorService executor;
+
+    private final TransactionJournal journal;
+
+    private final long minRetryDelay;
+
+    private final long maxRetryDelay;
+
+    private final int maxPendingPdus;
+
+    private final AtomicLong txnCounter;
+
+    private long txnIdHighWaterMark;
+
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+
+    public OutboundQueue(String origin, TransactionSender sender, ScheduledExecutorService executor) {
+        this(origin, sender, executor, TransactionJournal.NONE, DEFAULT_MIN_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY);
+    }
+
+    public OutboundQueue(String origin, TransactionSender sender, ScheduledExecutorService executor, TransactionJournal journal,
+                         long minRetryDelay, long maxRetryDelay) {
+        this(origin, sender, executor, journal, minRetryDelay, maxRetryDelay, DEFAULT_MAX_PENDING_PDUS);
+    }
+
+    public OutboundQueue(String origin, TransactionSender sender, ScheduledExecutorService executor, TransactionJournal journal,
+                         long minRetryDelay, long maxRetryDelay, int maxPendingPdus) {
+        this.origin = origin;
+        this.sender = sender;
+        this.executor = executor;
+        this.journal = journal;
+        this.minRetryDelay = minRetryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.maxPendingPdus = maxPendingPdus;
+        this.txnIdHighWaterMark = Math.max(journal.getTxnIdHighWaterMark(), System.currentTimeMillis());
+        this.txnCounter = new AtomicLong(txnIdHighWaterMark);
+    }
+
+    /**
+     * Queue the PDU.
+     *
+     * @param destination the destination server name.
+     * @param pdu         the PDU.
+     */
+    public void enqueue(String destination, PersistedDataUnit pdu) {
+        destination(destination).add(pdu);
+    }
+
+    /**
+     * Queue the EDU.
+     *
+     * @param destination the destination server name.
+     * @param edu         the EDU.
+     */
+    public void enqueue(String destination, EphemeralDataUnit<?> edu) {
+        destination(destination).add(edu);
+    }
+
+    /**
+     * Queue the receipt of the user, the receipts are coalesced by the room and the user.
+     *
+     * @param destination the destination server name.
+     * @param userId      the user id.
+     * @param receipt     the receipt.
+     */
+    public void enqueue(String destination, String userId, Receipt receipt) {
+        destination(destination).add(userId, receipt);
+    }
+
+    /**
+     * Queue the PDU to the destinations (for example, to the servers of the room).
+     *
+     * @param destinations the destination server names.
+     * @param pdu          the PDU.
+     */
+    public void enqueue(Collection<String> destinations, PersistedDataUnit pdu) {
+        for (String destination : destinations) {
+            if (!origin.equals(destination)) {
+                destination(destination).add(pdu);
+            }
+        }
+    }
+
+    /**
+     * Restore the destination queue from the journal.
+     *
+     * @param destination the destination server name.
+     * @param txnId       the id of the transaction in flight or {@code null}.
+     * @param inFlight    the transaction in flight or {@code null}.
+     * @param pdus        the queued PDUs.
+     * @param edus        the queued EDUs (without the receipts of the users, see {@link #recover(String, String, Receipt)}).
+     */
+    public void recover(String destination, String txnId, Transaction inFlight, List<PersistedDataUnit> pdus,
+                        List<? extends EphemeralDataUnit<?>> edus) {
+        destination(destination).recover(txnId, inFlight, pdus, edus);
+    }
+
+    /**
+     * Restore the queued receipt of the user from the journal, so the receipt is still coalesced by the room and the user.
+     *
+     * @param destination the destination server name.
+     * @param userId      the user id.
+     * @param receipt     the receipt.
+     */
+    public void recover(String destination, String userId, Receipt receipt) {
+        destination(destination).recover(userId, receipt);
+    }
+
+    /**
+     * Retry the failed transaction of the destination now and reset the backoff (for example, when the destination sent us a
+     * request, so it is online again).
+     *
+     * @param destination the destination server name.
+     */
+    public void wake(String destination) {
+        Destination queue = destinations.get(destination);
+        if (queue != null) {
+            queue.wake();
+        }
+    }
+
+    /**
+     * The count of the queued PDUs (without the transaction in flight and with the latest PDUs of the lagging destination).
+     *
+     * @param destination the destination server name.
+     * @return the count of the PDUs.
+     */
+    public int getPendingPdus(String destination) {
+        Destination queue = destinations.get(destination);
+        return queue != null ? queue.pendingPdus() : 0;
+    }
+
+    /**
+     * The count of the queued EDUs (without the transaction in flight).
+     *
+     * @param destination the destination server name.
+     * @return the count of the EDUs.
+     */
+    public int getPendingEdus(String destination) {
+        Destination queue = destinations.get(destination);
+        return queue != null ? queue.pendingEdus() : 0;
+    }
+
+    /**
+     * Check the destination has a transaction in flight (sending or waiting for the retry).
+     *
+     * @param destination the destination server name.
+     * @return {@code true} if the transaction is not accepted yet.
+     */
+    public boolean isInFlight(String destination) {
+        Destination queue = destinations.get(destination);
+        return queue != null && queue.isInFlight();
+    }
+
+    /**
+     * Generate the next transaction id.
+     *
+     * @return the transaction id.
+     */
+    protected String nextTxnId() {
+        long txnId = txnCounter.incrementAndGet();
+        if (txnId > txnIdHighWaterMark) {
+            reserveTxnIds(txnId);
+        }
+        return Long.toString(txnId);
+    }
+
+    private synchronized void reserveTxnIds(long txnId) {
+        if (txnId > txnIdHighWaterMark) {
+            long mark = txnId + TXN_ID_BLOCK;
+            journal.setTxnIdHighWaterMark(mark);
+            txnIdHighWaterMark = mark;
+        }
+    }
+
+    private Destination destination(String destination) {
+        return destinations.computeIfAbsent(destination, Destination::new);
+    }
+
+    /**
+     * The queue of the destination.
+     */
+    private class Destination {
+
+        private final String name;
+
+        private final ArrayDeque<PersistedDataUnit> pdus = new ArrayDeque<>();
+
+        private final Map<Object, PersistedDataUnit> latestPdus = new LinkedHashMap<>();
+
+        private final EduCoalescer edus = new EduCoalescer(this::superseded);
+
+        private String inFlightId;
+
+        private Transaction inFlight;
+
+        private boolean sending;
+
+        private ScheduledFuture<?> scheduled;
+
+        private long retryDelay;
+
+        Destination(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(PersistedDataUnit pdu) {
+            journal.append(name, pdu);
+            queue(pdu);
+            schedule(0L);
+        }
+
+        synchronized void add(EphemeralDataUnit<?> edu) {
+            journal.append(name, edu);
+            edus.add(edu);
+            schedule(0L);
+        }
+
+        synchronized void add(String userId, Receipt receipt) {
+            journal.append(name, userId, receipt);
+            edus.add(userId, receipt);
+            schedule(0L);
+        }
+
+        synchronized void recover(String txnId, Transaction transaction, List<PersistedDataUnit> queuedPdus,
+                                  List<? extends EphemeralDataUnit<?>> queuedEdus) {
+            if (transaction != null && inFlight == null) {
+                inFlightId = txnId;
+                inFlight = transaction;
+            }
+            for (PersistedDataUnit pdu : queuedPdus) {
+                queue(pdu);
+            }
+            for (EphemeralDataUnit<?> edu : queuedEdus) {
+                edus.add(edu);
+            }
+            schedule(0L);
+        }
+
+        synchronized void recover(String userId, Receipt receipt) {
+            edus.add(userId, receipt);
+            schedule(0L);
+        }
+
+        synchronized void wake() {
+            if (!sending && scheduled != null && retryDelay > 0 && scheduled.cancel(false)) {
+                scheduled = null;
+                retryDelay = 0;
+                schedule(0L);
+            }
+        }
+
+        synchronized int pendingPdus() {
+            return pdus.size() + latestPdus.size();
+        }
+
+        synchronized int pendingEdus() {
+            return edus.size();
+        }
+
+        synchronized boolean isInFlight() {
+            return inFlight != null;
+        }
+
+        private void superseded(EphemeralDataUnit<?> edu) {
+            journal.drop(name, edu);
+        }
+
+        private void queue(PersistedDataUnit pdu) {
+            if (pdus.size() < maxPendingPdus && latestPdus.isEmpty()) {
+                pdus.add(pdu);
+                return;
+            }
+            // the destination is lagging: keep only the latest PDU of the room.
+            String roomId = Pdus.roomId(pdu);
+            PersistedDataUnit previous = latestPdus.put(roomId != null ? roomId : new Object(), pdu);
+            if (previous != null) {
+                journal.drop(name, previous);
+            }
+        }
+
+        private void schedule(long delay) {
+            if (sending || scheduled != null || (inFlight == null && pdus.isEmpty() && latestPdus.isEmpty() && edus.isEmpty())) {
+                return;
+            }
+            scheduled = executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void flush() {
+            String txnId;
+            Transaction transaction;
+            synchronized (this) {
+                scheduled = null;
+                if (sending) {
+                    return;
+                }
+                if (inFlight == null) {
+                    if (pdus.isEmpty() && latestPdus.isEmpty() && edus.isEmpty()) {
+                        return;
+                    }
+                    List<PersistedDataUnit> transactionPdus = new ArrayList<>(Math.min(pdus.size() + latestPdus.size(), MAX_PDUS));
+                    while (!pdus.isEmpty() && transactionPdus.size() < MAX_PDUS) {
+                        transactionPdus.add(pdus.poll());
+                    }
+                    Iterator<PersistedDataUnit> latest = latestPdus.values().iterator();
+                    while (latest.hasNext() && transactionPdus.size() < MAX_PDUS) {
+                        transactionPdus.add(latest.next());
+                        latest.remove();
+                    }
+                    List<EphemeralDataUnit<?>> consumed = new ArrayList<>();
+                    List<EphemeralDataUnit> transactionEdus = new ArrayList<>(edus.take(MAX_EDUS, consumed::add));
+                    inFlight = new Transaction();
+                    inFlight.setOrigin(origin);
+                    inFlight.setOriginServerTs(System.currentTimeMillis());
+                    inFlight.setPdus(transactionPdus);
+                    inFlight.setEdus(transactionEdus);
+                    inFlightId = nextTxnId();
+                    for (EphemeralDataUnit<?> edu : consumed) {
+                        journal.consume(name, inFlightId, edu);
+                    }
+                    journal.begin(name, inFlightId, inFlight);
+                }
+                sending = true;
+                txnId = inFlightId;
+                transaction = inFlight;
+            }
+            try {
+                CompletionStage<?> result = sender.send(name, txnId, transaction);
+                result.whenComplete((ignored, error) -> completed(error));
+            } catch (RuntimeException e) {
+                completed(e);
+            }
+        }
+
+        private synchronized void completed(Throwable error) {
+            sending = false;
+            if (error == null) {
+                journal.complete(name, inFlightId);
+                inFlight = null;
+                inFlightId = null;
+                retryDelay = 0;
+                schedule(0L);
+            } else {
+                retryDelay = retryDelay == 0 ? minRetryDelay : Math.min(retryDelay * 2, maxRetryDelay);
+                schedule(retryDelay);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.transaction;
+
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+
+/**
+ * Store of the accepted inbound PDUs.
+ */
+@FunctionalInterface
+public interface PduStore {
+
+    /**
+     * Persist the PDU.
+     * <br>
+     * The PDU must be visible to the auth checks of the next PDUs of the room when the method returns.
+     *
+     * @param eventId  the event id.
+     * @param pdu      the PDU.
+     * @param redacted {@code true} if the content hash doesn't match, then the event must be stored redacted.
+     */
+    void persist(String eventId, PersistedDataUnit pdu, boolean redacted);
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.transaction;
+
+import io.github.ma1uta.matrix.server.model.federation.PersistedDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.Transaction;
+import io.github.ma1uta.matrix.server.model.federation.edu.EphemeralDataUnit;
+import io.github.ma1uta.matrix.server.model.federation.edu.Receipt;
+
+/**
+ * Persistent journal of the outbound queue.
+ * <br>
+ * After the restart the server reads the journal and passes the not completed transactions and the queued units to the
+ * {@link OutboundQueue#recover(String, String, Transaction, java.util.List, java.util.List)}, the receipts appended with the user
+ * id are passed to the {@link OutboundQueue#recover(String, String, Receipt)}. All methods do nothing by default.
+ */
+public interface TransactionJournal {
+
+    /**
+     * The journal which doesn't persist anything.
+     */
+    TransactionJournal NONE = new TransactionJournal() {
+    };
+
+    /**
+     * The PDU is queued.
+     *
+     * @param destination the destination server name.
+     * @param pdu         the PDU.
+     */
+    default void append(String destination, PersistedDataUnit pdu) {
+    }
+
+    /**
+     * The EDU is queued.
+     *
+     * @param destination the destination server name.
+     * @param edu         the EDU.
+     */
+    default void append(String destination, EphemeralDataUnit<?> edu) {
+    }
+
+    /**
+     * The receipt of the user is queued.
+     *
+     * @param destination the destination server name.
+     * @param userId      the user id.
+     * @param receipt     the receipt.
+     */
+    default void append(String destination, String userId, Receipt receipt) {
+        append(destination, receipt);
+    }
+
+    /**
+     * The queued PDU is dropped from the queue of the lagging destination because the later PDU of the same room is queued, the
+     * destination fetches the dropped PDU as the missing event of the later one.
+     *
+     * @param destination the destination server name.
+     * @param pdu         the dropped PDU.
+     */
+    default void drop(String destination, PersistedDataUnit pdu) {
+    }
+
+    /**
+     * The queued EDU is superseded by the later EDU and won't be sent.
+     *
+     * @param destination the destination server name.
+     * @param edu         the superseded EDU.
+     */
+    default void drop(String destination, EphemeralDataUnit<?> edu) {
+    }
+
+    /**
+     * The queued EDU is moved to the transaction as it is or merged with the other EDUs, called before the
+     * {@link #begin(String, String, Transaction)} of the transaction.
+     *
+     * @param destination the destination server name.
+     * @param txnId       the transaction id.
+     * @param edu         the queued EDU.
+     */
+    default void consume(String destination, String txnId, EphemeralDataUnit<?> edu) {
+    }
+
+    /**
+     * The queued units are moved to the transaction, the transaction will be sent with the same id until it is accepted.
+     *
+     * @param destination the destination server name.
+     * @param txnId       the transaction id.
+     * @param transaction the transaction.
+     */
+    default void begin(String destination, String txnId, Transaction transaction) {
+    }
+
+    /**
+     * The transaction is accepted by the destination.
+     *
+     * @param destination the destination server name.
+     * @param txnId       the transaction id.
+     */
+    default void complete(String destination, String txnId) {
+    }
+
+    /**
+     * The persisted high-water mark of the transaction ids, the ids above the mark were never issued.
+     *
+     * @return the high-water mark or {@code 0} if the mark isn't persisted.
+     */
+    default long getTxnIdHighWaterMark() {
+        return 0L;
+    }
+
+    /**
+     * Persist the high-water mark of the transaction ids, the queue issues the ids up to the mark before it persists the next one.
+     *
+     * @param txnId the high-water mark.
+     */
+    default void setTxnIdHighWaterMark(long txnId) {
+    }
+}
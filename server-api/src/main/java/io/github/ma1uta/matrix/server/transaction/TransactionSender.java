@@ -0,0 +1,40 @@
+/*
+ * Copyright Anatoliy Sablin tolya@sablin.xyz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.server.transaction;
+
+import io.github.ma1uta.matrix.server.model.federation.Transaction;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Transport of the outbound transactions (usually the {@code PUT /_matrix/federation/v1/send/{txnId}} client).
+ */
+@FunctionalInterface
+public interface TransactionSender {
+
+    /**
+     * Send the transaction.
+     * <br>
+     * The sender should not block the calling thread: the queue calls it from the shared executor.
+     *
+     * @param destination the destination server name.
+     * @param txnId       the transaction id.
+     * @param transaction the transaction.
+     * @return the stage which completes when the destination accepted the transaction or completes exceptionally on failure.
+     */
+    CompletionStage<?> send(String destination, String txnId, Transaction transaction);
+}
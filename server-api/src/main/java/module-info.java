@@ -1,5 +1,7 @@
 module matrix.server.api {
+    exports io.github.ma1uta.matrix.server.acl;
     exports io.github.ma1uta.matrix.server.api;
+    exports io.github.ma1uta.matrix.server.auth;
     exports io.github.ma1uta.matrix.server.model.federation;
     exports io.github.ma1uta.matrix.server.model.federation.edu;
     exports io.github.ma1uta.matrix.server.model.federation.edu.content;
@@ -9,6 +11,12 @@ module matrix.server.api {
     exports io.github.ma1uta.matrix.server.model.key;
     exports io.github.ma1uta.matrix.server.model.serverdiscovery;
     exports io.github.ma1uta.matrix.server.model.version;
+    exports io.github.ma1uta.matrix.server.pdu;
+    exports io.github.ma1uta.matrix.server.signature;
+    exports io.github.ma1uta.matrix.server.state;
+    exports io.github.ma1uta.matrix.server.transaction;
 
     requires transitive matrix.common.api;
+
+    provides io.github.ma1uta.matrix.json.JsonCodecProvider with io.github.ma1uta.matrix.server.api.ServerJsonCodecs;
 }